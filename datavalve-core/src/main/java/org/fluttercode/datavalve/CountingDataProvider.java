@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+/**
+ * Extends the {@link DataProvider} interface with cheaper alternatives to
+ * {@link DataProvider#fetchResultCount()} for when the exact number of results
+ * isn't needed or is too expensive to calculate.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from this provider
+ */
+public interface CountingDataProvider<T> extends DataProvider<T> {
+
+	/**
+	 * Counts the results, stopping once <code>limit</code> results have been
+	 * counted.
+	 * 
+	 * @param limit
+	 *            the maximum value to count up to
+	 * @return the number of results or <code>limit</code> if there are at
+	 *         least that many results
+	 */
+	public Integer fetchBoundedResultCount(int limit);
+
+	/**
+	 * Returns an estimate of the number of results, typically from the
+	 * database statistics or query planner.
+	 * 
+	 * @return the estimated number of results or null if no estimate is
+	 *         available
+	 */
+	public Integer fetchEstimatedResultCount();
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} over the results of a provider that reads the results as
+ * they are iterated instead of loading them all into memory first. The cursor
+ * holds on to the underlying resources (result set, file etc) until it is
+ * closed, so it should always be closed in a finally block. Cursors close
+ * themselves once the last result has been read.
+ * 
+ * <pre>
+ * DataCursor&lt;Person&gt; cursor = provider.fetchCursor(paginator);
+ * try {
+ * 	while (cursor.hasNext()) {
+ * 		export(cursor.next());
+ * 	}
+ * } finally {
+ * 	cursor.close();
+ * }
+ * </pre>
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from the cursor
+ */
+public interface DataCursor<T> extends Iterator<T> {
+
+	/**
+	 * Releases the resources held by the cursor. Calling this more than once
+	 * has no effect.
+	 */
+	void close();
+
+}
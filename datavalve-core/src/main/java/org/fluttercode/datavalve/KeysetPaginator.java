@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+import org.fluttercode.datavalve.provider.AbstractQueryDataProvider;
+
+/**
+ * {@link Paginator} implementation that pages using the order key values of
+ * the rows on the current page instead of the row offset (also known as seek
+ * or keyset pagination). Providers that support this (subclasses of
+ * {@link AbstractQueryDataProvider}) record the key values of the first and
+ * last rows on each page in the paginator. Calling {@link #next()} or
+ * {@link #previous()} then causes the next fetch to restrict the results to
+ * the rows following (or preceding) those key values so the database doesn't
+ * have to read and discard all the rows before the page.
+ * <p/>
+ * The <code>firstResult</code> value is still maintained so the page number
+ * can be calculated. Explicitly setting the first result or changing the
+ * ordering reverts to offset based paging until the next call to
+ * {@link #next()} or {@link #previous()}. Providers that don't support keyset
+ * paging, or have no unique key field to break ties between rows with equal
+ * order values, just treat this as a {@link DefaultPaginator}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class KeysetPaginator extends DefaultPaginator {
+
+	private static final long serialVersionUID = 1L;
+
+	private Object[] firstRowKey;
+	private Object[] lastRowKey;
+	private Object[] seekKey;
+	private boolean seekBackward;
+
+	public KeysetPaginator() {
+		super();
+	}
+
+	public KeysetPaginator(Integer maxRows) {
+		super(maxRows);
+	}
+
+	/**
+	 * @return the key values to seek from for the next fetch or null if the
+	 *         results should be fetched using the first result offset.
+	 */
+	public Object[] getSeekKey() {
+		return seekKey;
+	}
+
+	/**
+	 * @return true if the next fetch should return the rows preceding the
+	 *         seek key, false if it should return the rows following it.
+	 */
+	public boolean isSeekBackward() {
+		return seekBackward;
+	}
+
+	/**
+	 * Called by the provider once a page has been fetched to record the order
+	 * key values of the first and last rows on the page.
+	 * 
+	 * @param firstRowKey
+	 *            key values of the first row on the page
+	 * @param lastRowKey
+	 *            key values of the last row on the page
+	 */
+	public void setPageKeys(Object[] firstRowKey, Object[] lastRowKey) {
+		this.firstRowKey = firstRowKey;
+		this.lastRowKey = lastRowKey;
+	}
+
+	public Object[] getFirstRowKey() {
+		return firstRowKey;
+	}
+
+	public Object[] getLastRowKey() {
+		return lastRowKey;
+	}
+
+	/**
+	 * Clears the seek and page key values so the next fetch uses the first
+	 * result offset.
+	 */
+	public void clearKeys() {
+		seekKey = null;
+		seekBackward = false;
+		firstRowKey = null;
+		lastRowKey = null;
+	}
+
+	@Override
+	public void setFirstResult(int firstResult) {
+		super.setFirstResult(firstResult);
+		clearKeys();
+	}
+
+	@Override
+	public void setOrderKey(String orderKey) {
+		super.setOrderKey(orderKey);
+		clearKeys();
+	}
+
+	@Override
+	public void setOrderAscending(boolean orderAscending) {
+		super.setOrderAscending(orderAscending);
+		clearKeys();
+	}
+
+	@Override
+	public void changeOrderKey(String orderKey) {
+		super.changeOrderKey(orderKey);
+		clearKeys();
+	}
+
+	@Override
+	public void next() {
+		if (isNextAvailable()) {
+			Object[] key = lastRowKey;
+			super.next();
+			seekKey = key;
+			seekBackward = false;
+		}
+	}
+
+	@Override
+	public void previous() {
+		if (isPreviousAvailable()) {
+			Object[] key = firstRowKey;
+			super.previous();
+			// the first page is cheap to fetch by offset
+			seekKey = getFirstResult() == 0 ? null : key;
+			seekBackward = seekKey != null;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+/**
+ * Condition that objects returned from a provider must meet. Used to restrict
+ * the results of providers that don't use a query language.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            type of object being tested
+ */
+public interface Predicate<T> {
+
+	/**
+	 * @param object
+	 *            the object to test
+	 * @return true if the object should be included in the results
+	 */
+	boolean accept(T object);
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * A fetch of a page of results that has been prepared on the calling thread,
+ * with any parameters resolved, so it can be run later on another thread.
+ * Returned from {@link PreparingDataProvider#prepareFetch(Paginator)}.
+ * <p/>
+ * The key identifies the query and resolved parameter values the results
+ * come from, not including the position of the page, so pages prepared with
+ * equal keys come from the same results.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object in the page
+ */
+public class PreparedFetch<T> {
+
+	private final Object key;
+	private final Callable<List<T>> task;
+
+	public PreparedFetch(Object key, Callable<List<T>> task) {
+		this.key = key;
+		this.task = task;
+	}
+
+	/**
+	 * @return the key of the query and parameter values or null if they can't
+	 *         be compared with those of another fetch
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	/**
+	 * Fetches the results, updating the next available flag of the paginator
+	 * the fetch was prepared with.
+	 * 
+	 * @return the page of results
+	 */
+	public List<T> fetchResults() throws Exception {
+		return task.call();
+	}
+}
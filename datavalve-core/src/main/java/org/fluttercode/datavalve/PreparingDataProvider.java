@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+/**
+ * Extends the {@link DataProvider} interface with a method to prepare a fetch
+ * on the calling thread and run it later. This lets parameters that depend on
+ * thread bound contexts (such as EL expressions in a web request) be resolved
+ * before the results are fetched on a background thread.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from this provider
+ */
+public interface PreparingDataProvider<T> extends DataProvider<T> {
+
+	/**
+	 * Resolves the parameters and restrictions for the page of results
+	 * described by the paginator. The paginator is used again when the fetch
+	 * is run so it must not be changed in between.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return the prepared fetch
+	 */
+	public PreparedFetch<T> prepareFetch(Paginator paginator);
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Holds a page of results along with the total number of results and whether
+ * there are more results after the page. Returned from
+ * {@link ResultPageProvider#fetchResultPage(Paginator)} so the count and the
+ * page can be fetched together.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object in the page
+ */
+public class ResultPage<T> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<T> results;
+	private final Integer resultCount;
+	private final boolean nextAvailable;
+
+	public ResultPage(List<T> results, Integer resultCount,
+			boolean nextAvailable) {
+		this.results = results;
+		this.resultCount = resultCount;
+		this.nextAvailable = nextAvailable;
+	}
+
+	public List<T> getResults() {
+		return results;
+	}
+
+	public Integer getResultCount() {
+		return resultCount;
+	}
+
+	public boolean isNextAvailable() {
+		return nextAvailable;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ResultPage[results=%d, count=%s, next=%b]",
+				results == null ? 0 : results.size(), resultCount,
+				nextAvailable);
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+/**
+ * Extends the {@link DataProvider} interface with a method to fetch a page of
+ * results and the total result count in one call. This lets the provider
+ * prepare its state once and run the count and page queries at the same time
+ * where it is able to.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from this provider
+ */
+public interface ResultPageProvider<T> extends DataProvider<T> {
+
+	/**
+	 * Fetches the page of results described by the paginator along with the
+	 * total number of results. The next available flag on the paginator is
+	 * updated as it is for {@link DataProvider#fetchResults(Paginator)}.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return the results and the result count
+	 */
+	public ResultPage<T> fetchResultPage(Paginator paginator);
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve;
+
+/**
+ * Extends the {@link DataProvider} interface with a method for streaming the
+ * results through a {@link DataCursor}. This is used for traversing large
+ * datasets (exports, batch jobs) where holding all the results in memory or
+ * re-querying page by page is too expensive.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from this provider
+ */
+public interface StreamingDataProvider<T> extends DataProvider<T> {
+
+	/**
+	 * Opens a cursor over the results defined by the current provider state
+	 * and the paginator. The first result, max rows and ordering values of
+	 * the paginator are used, a null max rows value streams all the rows from
+	 * the first result to the end of the dataset. The paginator is not
+	 * modified.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return an open cursor over the results which must be closed by the
+	 *         caller
+	 */
+	public DataCursor<T> fetchCursor(Paginator paginator);
+
+}
@@ -23,6 +23,16 @@
 
 package org.fluttercode.datavalve.client.swing;
 
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableModel;
 
@@ -30,11 +40,29 @@ import org.fluttercode.datavalve.DataProvider;
 import org.fluttercode.datavalve.DefaultPaginator;
 import org.fluttercode.datavalve.Paginator;
 import org.fluttercode.datavalve.util.IndexedDataProviderCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Abstract class that implements a {@link TableModel} and allows for cached
  * results that can be referenced by index. The cache then fetches data in
  * batches from the provided {@link DataProvider}.
+ * <p/>
+ * The row count is fetched once and cached until {@link #invalidate()} is
+ * called.
+ * <p/>
+ * By default, rows are loaded on the calling thread (usually the event
+ * dispatch thread) when they are first displayed. If an executor is set using
+ * {@link #setExecutor(ExecutorService)}, the model never blocks. The row count
+ * and any blocks of rows that are not cached are loaded on the executor and
+ * placeholder values from {@link #getPlaceholderValue(int, int)} are shown
+ * until they are loaded. Once a block is loaded, only the rows in that block
+ * are updated.
+ * <p/>
+ * Sorting is pushed down to the provider by mapping columns to order keys with
+ * {@link #setColumnOrderKey(int, String)} and calling
+ * {@link #sortByColumn(int)}, or by installing a header listener with
+ * {@link #installHeaderSorting(JTable)}.
  * 
  * @author Andy Gibson
  * 
@@ -45,9 +73,20 @@ public abstract class ProviderTableModel<T> extends DefaultTableModel {
 
 	private static final long serialVersionUID = 1L;
 
+	private static Logger log = LoggerFactory
+			.getLogger(ProviderTableModel.class);
+
 	private IndexedDataProviderCache<T> cache;
 	private final Paginator paginator = new DefaultPaginator();
 	private final DataProvider<T> provider;
+	private final Map<Integer, String> columnOrderKeys = new HashMap<Integer, String>();
+
+	private transient ExecutorService executor;
+	// the following are only accessed on the event dispatch thread
+	private Integer rowCount;
+	private boolean rowCountLoading;
+	private final Set<Integer> loadingBlocks = new HashSet<Integer>();
+	private int generation;
 
 	public ProviderTableModel(DataProvider<T> provider) {
 		super(0,0);
@@ -57,22 +96,206 @@ public abstract class ProviderTableModel<T> extends DefaultTableModel {
 
 	@Override
 	public int getRowCount() {
-		return provider == null ? 0 : provider.fetchResultCount();
+		if (provider == null) {
+			return 0;
+		}
+		if (rowCount == null) {
+			if (executor == null) {
+				rowCount = cache.fetchResultCount();
+			} else {
+				loadRowCount();
+				return 0;
+			}
+		}
+		return rowCount;
 	}
 
 	@Override
 	public Object getValueAt(int row, int column) {
+		if (executor != null && !cache.isCached(row)) {
+			loadBlock(row);
+			return getPlaceholderValue(row, column);
+		}
 		T object = cache.get(row);
 		return getColumnValue(object, column);
 	}
 
 	protected abstract Object getColumnValue(T object, int column);
 
+	/**
+	 * Returns the value displayed for rows that are being loaded in the
+	 * background. By default this returns null, override to show some other
+	 * value.
+	 * 
+	 * @param row
+	 *            the row being loaded
+	 * @param column
+	 *            the column of the value
+	 * @return the value to display until the row is loaded
+	 */
+	protected Object getPlaceholderValue(int row, int column) {
+		return null;
+	}
+
+	private void loadRowCount() {
+		if (rowCountLoading) {
+			return;
+		}
+		rowCountLoading = true;
+		final int loadGeneration = generation;
+		executor.execute(new Runnable() {
+
+			public void run() {
+				Integer count = null;
+				try {
+					// counted under the same lock as the row loads
+					count = cache.fetchResultCount();
+				} catch (RuntimeException ex) {
+					log.warn("Error loading the row count", ex);
+				}
+				final Integer result = count;
+				SwingUtilities.invokeLater(new Runnable() {
+
+					public void run() {
+						if (loadGeneration != generation) {
+							return;
+						}
+						rowCountLoading = false;
+						if (result != null) {
+							rowCount = result;
+							fireTableDataChanged();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void loadBlock(final int row) {
+		final int blockSize = cache.getBlockSize();
+		final int block = row / blockSize;
+		if (!loadingBlocks.add(block)) {
+			return;
+		}
+		final int loadGeneration = generation;
+		executor.execute(new Runnable() {
+
+			public void run() {
+				boolean loaded = false;
+				try {
+					// loads the whole block, and maybe some read ahead
+					cache.get(row);
+					loaded = true;
+				} catch (RuntimeException ex) {
+					log.warn("Error loading rows", ex);
+				}
+				final boolean success = loaded;
+				SwingUtilities.invokeLater(new Runnable() {
+
+					public void run() {
+						if (loadGeneration != generation) {
+							return;
+						}
+						loadingBlocks.remove(block);
+						int first = block * blockSize;
+						int last = Math.min(first + blockSize,
+								getRowCount()) - 1;
+						if (success && last >= first) {
+							fireTableRowsUpdated(first, last);
+						}
+					}
+				});
+			}
+		});
+	}
+
 	public Paginator getPaginator() {
 		return paginator;
 	}
 
+	/**
+	 * Clears the cached rows and row count so they are fetched again.
+	 */
 	public void invalidate() {
+		generation++;
+		rowCount = null;
+		rowCountLoading = false;
+		loadingBlocks.clear();
 		cache.clear();
 	}
+
+	/**
+	 * Sets the order key used to sort the rows when the column is sorted.
+	 * 
+	 * @param column
+	 *            index of the column in the model
+	 * @param orderKey
+	 *            the order key passed to the provider
+	 */
+	public void setColumnOrderKey(int column, String orderKey) {
+		columnOrderKeys.put(column, orderKey);
+	}
+
+	public String getColumnOrderKey(int column) {
+		return columnOrderKeys.get(column);
+	}
+
+	/**
+	 * Sorts the rows by the order key for the column, toggling the direction
+	 * if the rows are already sorted by this column. The rows are reloaded
+	 * from the provider in the new order. Does nothing if there is no order
+	 * key for the column.
+	 * 
+	 * @param column
+	 *            index of the column in the model
+	 */
+	public void sortByColumn(int column) {
+		String orderKey = columnOrderKeys.get(column);
+		if (orderKey == null) {
+			return;
+		}
+		paginator.changeOrderKey(orderKey);
+		invalidate();
+		fireTableDataChanged();
+	}
+
+	/**
+	 * Adds a listener to the table header that sorts the rows by the clicked
+	 * column.
+	 * 
+	 * @param table
+	 *            table displaying this model
+	 */
+	public void installHeaderSorting(final JTable table) {
+		table.getTableHeader().addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int viewColumn = table.getColumnModel().getColumnIndexAtX(
+						e.getX());
+				if (viewColumn != -1) {
+					sortByColumn(table.convertColumnIndexToModel(viewColumn));
+				}
+			}
+		});
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor used to load rows in the background. Set to null (the
+	 * default) to load rows on the calling thread.
+	 * 
+	 * @param executor
+	 *            executor to load rows on
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		invalidate();
+	}
+
+	protected IndexedDataProviderCache<T> getCache() {
+		return cache;
+	}
 }
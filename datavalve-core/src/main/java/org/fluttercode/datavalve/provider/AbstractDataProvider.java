@@ -26,9 +26,21 @@ package org.fluttercode.datavalve.provider;
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.fluttercode.datavalve.CountingDataProvider;
+import org.fluttercode.datavalve.DataCursor;
 import org.fluttercode.datavalve.DataProvider;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.PreparedFetch;
+import org.fluttercode.datavalve.PreparingDataProvider;
+import org.fluttercode.datavalve.ResultPage;
+import org.fluttercode.datavalve.ResultPageProvider;
+import org.fluttercode.datavalve.StreamingDataProvider;
+import org.fluttercode.datavalve.util.PagedDataCursor;
 
 /**
  * Abstract class that implements the {@link DataProvider} interface. The fetch
@@ -46,6 +58,12 @@ import org.fluttercode.datavalve.Paginator;
  * {@link AbstractDataProvider#doFetchResultCount()} methods to return the data
  * and the total count of available results.
  * <p/>
+ * The {@link #fetchResultPage(Paginator)} method fetches a page and the total
+ * count together. If an {@link ExecutorService} is assigned to the provider
+ * (and the provider supports it) the count is run on the executor while the
+ * page is fetched on the calling thread. Without an executor the two are
+ * fetched one after the other.
+ * <p/>
  * Developers using those
  * 
  * @author Andy Gibson
@@ -56,12 +74,15 @@ import org.fluttercode.datavalve.Paginator;
  *
  * @param <T>
  */
-public abstract class AbstractDataProvider<T> implements DataProvider<T>,
-		Serializable {
+public abstract class AbstractDataProvider<T> implements
+		StreamingDataProvider<T>, CountingDataProvider<T>,
+		ResultPageProvider<T>, PreparingDataProvider<T>, Serializable {
 
 	private static final long serialVersionUID = 1L;
 
 	private Class<?> entityClass;
+	private int cursorBatchSize = 100;
+	private transient ExecutorService executor;
 
 	public Class<?> getEntityClass() {
 		if (entityClass == null) {
@@ -73,6 +94,17 @@ public abstract class AbstractDataProvider<T> implements DataProvider<T>,
 		return entityClass;
 	}
 
+	/**
+	 * Sets the entity class for providers where it can't be determined from
+	 * the generic type parameter.
+	 * 
+	 * @param entityClass
+	 *            type of object returned from the provider
+	 */
+	public void setEntityClass(Class<?> entityClass) {
+		this.entityClass = entityClass;
+	}
+
 	
 	public Integer fetchResultCount() {
 		doPreFetch();
@@ -83,11 +115,190 @@ public abstract class AbstractDataProvider<T> implements DataProvider<T>,
 		return resultCount;
 	}
 
+	public ResultPage<T> fetchResultPage(Paginator paginator) {
+		doPreFetch();
+		Callable<Integer> countTask = createCountTask();
+		Future<Integer> countFuture = null;
+		if (executor != null && isConcurrentFetchSupported()) {
+			countFuture = executor.submit(countTask);
+		}
+		List<T> results;
+		Integer count;
+		try {
+			results = doPostFetchResults(doFetchResults(paginator), paginator);
+			count = countFuture == null ? countTask.call() : countFuture.get();
+		} catch (ExecutionException ex) {
+			throw asRuntimeException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted waiting for the result count", ex);
+		} catch (Exception ex) {
+			throw asRuntimeException(ex);
+		} finally {
+			if (countFuture != null) {
+				// no effect if the count already completed
+				countFuture.cancel(true);
+			}
+		}
+		return new ResultPage<T>(results, doPostFetchResultCount(count),
+				paginator.isNextAvailable());
+	}
+
+	private static RuntimeException asRuntimeException(Throwable ex) {
+		if (ex instanceof RuntimeException) {
+			return (RuntimeException) ex;
+		}
+		if (ex instanceof Error) {
+			throw (Error) ex;
+		}
+		return new IllegalStateException("Error fetching result count", ex);
+	}
+
+	/**
+	 * Creates the task used to fetch the result count from
+	 * {@link #fetchResultPage(Paginator)}. This is called on the calling
+	 * thread after {@link #doPreFetch()} so subclasses can prepare any state
+	 * (such as resolving parameters) before the task is run on the executor.
+	 * By default, the task calls {@link #doFetchResultCount()}.
+	 * 
+	 * @return the task that returns the result count
+	 */
+	protected Callable<Integer> createCountTask() {
+		return new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return doFetchResultCount();
+			}
+		};
+	}
+
+	/**
+	 * Indicates whether the count task can be run on another thread at the
+	 * same time as the results are fetched. Subclasses that share resources
+	 * which are not thread safe between the two queries (such as a connection
+	 * or a session) should return false unless the count task uses its own
+	 * resources.
+	 * 
+	 * @return true if the count can be fetched concurrently
+	 */
+	protected boolean isConcurrentFetchSupported() {
+		return true;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor used to fetch the result count concurrently with the
+	 * results in {@link #fetchResultPage(Paginator)}. Set to null (the
+	 * default) to fetch them one after the other. The executor is not
+	 * shutdown by the provider.
+	 * 
+	 * @param executor
+	 *            executor to run count queries on
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public Integer fetchBoundedResultCount(int limit) {
+		doPreFetch();
+		return doFetchBoundedResultCount(limit);
+	}
+
+	/**
+	 * Counts the results up to <code>limit</code>. By default this fetches the
+	 * exact count and caps it at the limit, subclasses should override this to
+	 * stop counting once the limit is reached.
+	 * 
+	 * @param limit
+	 *            the maximum value to count up to
+	 * @return the number of results, no greater than <code>limit</code>
+	 */
+	protected Integer doFetchBoundedResultCount(int limit) {
+		Integer count = doFetchResultCount();
+		if (count == null || count <= limit) {
+			return count;
+		}
+		return limit;
+	}
+
+	public Integer fetchEstimatedResultCount() {
+		doPreFetch();
+		return doFetchEstimatedResultCount();
+	}
+
+	/**
+	 * Returns an estimate of the number of results. By default no estimate is
+	 * available and this returns null.
+	 * 
+	 * @return the estimated number of results or null
+	 */
+	protected Integer doFetchEstimatedResultCount() {
+		return null;
+	}
+
 	public List<T> fetchResults(Paginator paginator) {
 		doPreFetch();
 		return doPostFetchResults(doFetchResults(paginator), paginator);
 	}
 
+	public PreparedFetch<T> prepareFetch(Paginator paginator) {
+		doPreFetch();
+		return createPreparedFetch(paginator);
+	}
+
+	/**
+	 * Creates the fetch returned from {@link #prepareFetch(Paginator)}. This
+	 * is called on the calling thread after {@link #doPreFetch()} in the same
+	 * way as {@link #createCountTask()}. By default, the fetch has no key and
+	 * calls {@link #doFetchResults(Paginator)} when it is run.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return the prepared fetch
+	 */
+	protected PreparedFetch<T> createPreparedFetch(final Paginator paginator) {
+		return new PreparedFetch<T>(null, new Callable<List<T>>() {
+			public List<T> call() throws Exception {
+				return doPostFetchResults(doFetchResults(paginator), paginator);
+			}
+		});
+	}
+
+	public DataCursor<T> fetchCursor(Paginator paginator) {
+		doPreFetch();
+		return doFetchCursor(paginator);
+	}
+
+	/**
+	 * Opens a cursor over the results for the provider. By default, this
+	 * returns a {@link PagedDataCursor} which fetches the results in batches of
+	 * {@link #getCursorBatchSize()} rows using
+	 * {@link #fetchResults(Paginator)}. Subclasses that can stream results
+	 * natively should override this method.
+	 * 
+	 * @param paginator
+	 *            Pagination info for the results to be returned
+	 * @return an open cursor over the results
+	 */
+	protected DataCursor<T> doFetchCursor(Paginator paginator) {
+		return new PagedDataCursor<T>(this, paginator, cursorBatchSize);
+	}
+
+	/**
+	 * @return the number of rows fetched or buffered at a time when streaming
+	 *         results through a cursor
+	 */
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	public void setCursorBatchSize(int cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
 	/**
 	 * Provides a hook to examine the result list prior to returning them back
 	 * to the user. By default, this method just returns the list of results
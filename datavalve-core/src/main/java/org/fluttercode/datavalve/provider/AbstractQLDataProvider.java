@@ -23,10 +23,20 @@
 
 package org.fluttercode.datavalve.provider;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.KeysetPaginator;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.PreparedFetch;
 import org.fluttercode.datavalve.provider.util.DataQuery;
+import org.fluttercode.datavalve.provider.util.PageResultCache;
+import org.fluttercode.datavalve.provider.util.QueryKey;
+import org.fluttercode.datavalve.provider.util.ResultCountCache;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
 
 /**
  * Base class for any data provider that is driven by a Query Language. This
@@ -37,6 +47,21 @@ import org.fluttercode.datavalve.provider.util.DataQuery;
  * By using an internal query to hold the statement and the parameters, we can
  * utilize that in different ways in different sub classes for different data
  * access mechanisms
+ * <p>
+ * If a {@link ResultCountCache} is assigned, result counts are cached by the
+ * final count statement and parameter values so the count query is only run
+ * again once the restrictions or parameters change or the cached count
+ * expires.
+ * <p>
+ * Similarly, if a {@link PageResultCache} is assigned, pages of results are
+ * cached by the final statement, parameter values, first result and row count
+ * so identical pages requested by different users are only fetched once.
+ * <p>
+ * Cached counts and pages are also keyed by the cache region (by default the
+ * provider class name) so providers reading from different data sources
+ * don't share results for the same statement. Set the
+ * <code>cacheRegion</code> to tell apart providers of the same class that
+ * use different data sources.
  * 
  * @author Andy Gibson
  * 
@@ -48,6 +73,9 @@ public abstract class AbstractQLDataProvider<T> extends
 
 	private String selectStatement;
 	private String countStatement;
+	private ResultCountCache resultCountCache;
+	private PageResultCache pageResultCache;
+	private String cacheRegion;
 
 	public String getSelectStatement() {
 		return selectStatement;
@@ -68,18 +96,183 @@ public abstract class AbstractQLDataProvider<T> extends
 	@Override
 	protected Integer doFetchResultCount() {
 		DataQuery query = buildDataQuery(getCountStatement(), false, null);
+		Integer count = getCachedCount(query);
+		if (count == null) {
+			count = queryForCount(query);
+			cacheCount(query, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Builds the count query on the calling thread so parameters are resolved
+	 * before the task is handed off to the executor.
+	 */
+	@Override
+	protected Callable<Integer> createCountTask() {
+		final DataQuery query = buildDataQuery(getCountStatement(), false, null);
+		final Integer cachedCount = getCachedCount(query);
+		return new Callable<Integer>() {
+			public Integer call() throws Exception {
+				if (cachedCount != null) {
+					return cachedCount;
+				}
+				Integer count = queryForConcurrentCount(query);
+				cacheCount(query, count);
+				return count;
+			}
+		};
+	}
+
+	private Integer getCachedCount(DataQuery query) {
+		return resultCountCache == null ? null : resultCountCache
+				.get(new QueryKey(query, getCacheRegion()));
+	}
+
+	private void cacheCount(DataQuery query, Integer count) {
+		if (resultCountCache != null && count != null) {
+			resultCountCache.put(new QueryKey(query, getCacheRegion()),
+					getCacheEntityClass(), count);
+		}
+	}
+
+	/**
+	 * Returns the value that distinguishes the cached counts and pages of
+	 * this provider from those of providers using other data sources. Returns
+	 * the <code>cacheRegion</code> if set, otherwise the
+	 * {@link #getDefaultCacheRegion() default region}.
+	 * 
+	 * @return the cache region for this provider
+	 */
+	public String getCacheRegion() {
+		return cacheRegion == null ? getDefaultCacheRegion() : cacheRegion;
+	}
+
+	/**
+	 * Returns the cache region used when one hasn't been set. By default this
+	 * is the provider class name, override to identify the data source (i.e.
+	 * the database URL).
+	 * 
+	 * @return the default cache region
+	 */
+	protected String getDefaultCacheRegion() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Sets the region the cached counts and pages of this provider are kept
+	 * in. Providers only share cached results with providers in the same
+	 * region.
+	 * 
+	 * @param cacheRegion
+	 *            name of the region, null to use the default
+	 */
+	public void setCacheRegion(String cacheRegion) {
+		this.cacheRegion = cacheRegion;
+	}
+
+	/**
+	 * Returns the entity class that cached results are tagged with so they
+	 * can be invalidated by entity class.
+	 * 
+	 * @return the entity class or null if it can't be determined
+	 */
+	protected Class<?> getCacheEntityClass() {
+		try {
+			return getEntityClass();
+		} catch (RuntimeException ex) {
+			// the type parameter isn't bound to a class
+			return null;
+		}
+	}
+
+	public ResultCountCache getResultCountCache() {
+		return resultCountCache;
+	}
+
+	/**
+	 * Sets the cache used to hold result counts, set to null (the default) to
+	 * run the count query every time.
+	 * 
+	 * @param resultCountCache
+	 *            cache to hold the counts
+	 */
+	public void setResultCountCache(ResultCountCache resultCountCache) {
+		this.resultCountCache = resultCountCache;
+	}
+
+	/**
+	 * Executes the count query from the task created in
+	 * {@link #createCountTask()} which may be running on another thread. By
+	 * default, this just calls {@link #queryForCount(DataQuery)}. Subclasses
+	 * that use separate resources for concurrent counts should override this.
+	 * 
+	 * @param query
+	 *            The {@link DataQuery} for the count statement
+	 * @return the result count
+	 */
+	protected Integer queryForConcurrentCount(DataQuery query) {
 		return queryForCount(query);
 	}
 
+	@Override
+	protected Integer doFetchBoundedResultCount(int limit) {
+		DataQuery query = buildDataQuery(getSelectStatement(), false, null);
+		return queryForBoundedCount(query, limit);
+	}
+
+	@Override
+	protected Integer doFetchEstimatedResultCount() {
+		DataQuery query = buildDataQuery(getSelectStatement(), false, null);
+		return queryForEstimatedCount(query);
+	}
+
+	/**
+	 * Counts the rows returned by the select query up to <code>limit</code>.
+	 * By default this fetches at most <code>limit</code> results and returns
+	 * the number of results fetched.
+	 * <p/>
+	 * Override in subclasses to count the rows without creating the objects.
+	 * 
+	 * @param query
+	 *            The {@link DataQuery} for the select statement (without
+	 *            ordering)
+	 * @param limit
+	 *            the maximum value to count up to
+	 * @return the number of rows, no greater than <code>limit</code>
+	 */
+	protected Integer queryForBoundedCount(DataQuery query, int limit) {
+		return queryForResults(query, null, limit).size();
+	}
+
+	/**
+	 * Returns an estimate of the number of rows returned by the select query.
+	 * By default no estimate is available and this returns null.
+	 * <p/>
+	 * Override in subclasses that can get estimates from the database.
+	 * 
+	 * @param query
+	 *            The {@link DataQuery} for the select statement (without
+	 *            ordering)
+	 * @return the estimated number of rows or null
+	 */
+	protected Integer queryForEstimatedCount(DataQuery query) {
+		return null;
+	}
+
 	@Override
 	protected List<T> doFetchResults(Paginator paginator) {
 		// fetch the results by building the data query and handing it off to a
 		// query execution method.
 		DataQuery query = buildDataQuery(getSelectStatement(), true, paginator);
+		return fetchResults(query, paginator);
+	}
 
+	private List<T> fetchResults(DataQuery query, Paginator paginator) {
 		Integer count = paginator.includeAllResults() ? null : paginator
 				.getMaxRows() + 1;
-		List<T> temp = queryForResults(query, paginator.getFirstResult(), count);
+		List<T> temp = queryForCachedResults(query, paginator.getFirstResult(),
+				count);
 
 		// if we returned more than maxRows, then we have more data to fetch
 		boolean nextAvailable = (!paginator.includeAllResults())
@@ -95,6 +288,159 @@ public abstract class AbstractQLDataProvider<T> extends
 
 	}
 
+	/**
+	 * Builds the query on the calling thread so parameters are resolved
+	 * before the fetch is run. The key of the fetch is the final query and
+	 * parameter values, or null if the parameter values can't be used as a
+	 * key. Keyset pages are fetched using
+	 * {@link #doFetchResults(Paginator)} when the fetch is run.
+	 */
+	@Override
+	protected PreparedFetch<T> createPreparedFetch(final Paginator paginator) {
+		if (paginator instanceof KeysetPaginator) {
+			return super.createPreparedFetch(paginator);
+		}
+		final DataQuery query = buildDataQuery(getSelectStatement(), true,
+				paginator);
+		QueryKey key = new QueryKey(query, getCacheRegion());
+		return new PreparedFetch<T>(key.isCacheable() ? key : null,
+				new Callable<List<T>>() {
+					public List<T> call() throws Exception {
+						return doPostFetchResults(fetchResults(query,
+								paginator), paginator);
+					}
+				});
+	}
+
+	@Override
+	protected DataCursor<T> doFetchCursor(Paginator paginator) {
+		DataQuery query = buildDataQuery(getSelectStatement(), true, paginator);
+		return queryForCursor(query, paginator.getFirstResult(), paginator
+				.getMaxRows());
+	}
+
+	/**
+	 * Opens a cursor over the results of the query. The query is built once
+	 * and by default the cursor executes it for each batch of
+	 * {@link #getCursorBatchSize()} rows using
+	 * {@link #queryForResults(DataQuery, Integer, Integer)} so only one batch
+	 * is held in memory at a time.
+	 * <p/>
+	 * Override in subclasses that can stream the results of a single query
+	 * execution.
+	 * 
+	 * @param query
+	 *            The {@link DataQuery} instance containing the statement and
+	 *            parameters
+	 * @param firstResult
+	 *            indicates the first row that is to be returned or null if we
+	 *            are fetching from the first row.
+	 * @param count
+	 *            the number of rows to return or null if we are to return them
+	 *            all.
+	 * @return an open cursor over the results
+	 */
+	protected DataCursor<T> queryForCursor(DataQuery query,
+			Integer firstResult, Integer count) {
+		return new BatchedQueryCursor(query, firstResult, count);
+	}
+
+	/**
+	 * Cursor that re-executes the same {@link DataQuery} for each batch of
+	 * rows.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class BatchedQueryCursor extends AbstractDataCursor<T> {
+
+		private final DataQuery query;
+		private final int batchSize;
+		private int nextResult;
+		private Iterator<T> batch;
+		private boolean lastBatch;
+		private T current;
+
+		public BatchedQueryCursor(DataQuery query, Integer firstResult,
+				Integer count) {
+			super(count);
+			this.query = query;
+			this.batchSize = Math.max(1, getCursorBatchSize());
+			this.nextResult = firstResult == null ? 0 : firstResult;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			if (batch == null || !batch.hasNext()) {
+				if (lastBatch) {
+					return false;
+				}
+				List<T> results = queryForResults(query, nextResult, batchSize);
+				nextResult += batchSize;
+				lastBatch = results.size() < batchSize;
+				batch = results.iterator();
+				if (!batch.hasNext()) {
+					return false;
+				}
+			}
+			current = batch.next();
+			return true;
+		}
+
+		@Override
+		protected T getCurrent() {
+			return current;
+		}
+
+		@Override
+		protected void doClose() {
+			batch = null;
+			current = null;
+		}
+	}
+
+	/**
+	 * Returns the results from the page cache if there is one, otherwise calls
+	 * {@link #queryForResults(DataQuery, Integer, Integer)} and adds the
+	 * results to the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<T> queryForCachedResults(DataQuery query,
+			Integer firstResult, Integer count) {
+		if (pageResultCache == null) {
+			return queryForResults(query, firstResult, count);
+		}
+		QueryKey key = new QueryKey(query, getCacheRegion(), firstResult,
+				count);
+		List<T> cached = (List<T>) pageResultCache.get(key);
+		if (cached == null) {
+			cached = new ArrayList<T>(queryForResults(query, firstResult,
+					count));
+			// empty pages are cheap to fetch again and may be the result of
+			// an error that was logged by the provider
+			if (!cached.isEmpty()) {
+				pageResultCache.put(key, getCacheEntityClass(), cached);
+			}
+		}
+		// callers are free to modify the list they get back
+		return new ArrayList<T>(cached);
+	}
+
+	public PageResultCache getPageResultCache() {
+		return pageResultCache;
+	}
+
+	/**
+	 * Sets the cache used to hold pages of results, set to null (the default)
+	 * to query for every page.
+	 * 
+	 * @param pageResultCache
+	 *            cache to hold the pages
+	 */
+	public void setPageResultCache(PageResultCache pageResultCache) {
+		this.pageResultCache = pageResultCache;
+	}
+
 	/**
 	 * Go fetch the results from the database using the defined query and first
 	 * result and result size information.
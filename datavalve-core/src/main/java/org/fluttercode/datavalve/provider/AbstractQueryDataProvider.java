@@ -24,15 +24,21 @@
 package org.fluttercode.datavalve.provider;
 
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.beanutils.PropertyUtils;
+import org.fluttercode.datavalve.KeysetPaginator;
 import org.fluttercode.datavalve.Paginator;
 import org.fluttercode.datavalve.provider.util.DataQuery;
 import org.fluttercode.datavalve.provider.util.DataQueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Abstract class for Query driven datasets that implements most of the methods
@@ -45,6 +51,17 @@ import org.fluttercode.datavalve.provider.util.DataQueryBuilder;
  * However, we wrap this behaviour in the {@link #translateOrderKey(String)}
  * method. This can be overridden if you want to change how we translate
  * orderKey values.
+ * <p>
+ * When a {@link KeysetPaginator} is used, the pages following the first page
+ * are fetched by restricting the results to the rows after the order key
+ * values of the last row on the previous page instead of using the row
+ * offset. Rows with equal order key values would be skipped at the page
+ * boundaries so keyset paging is only used once a unique key field (i.e. the
+ * id) has been set with {@link #setKeysetUniqueField(String)}. The field is
+ * appended to the order clause and the seek restriction when the order key
+ * doesn't already include it. Without a unique key field, the provider falls
+ * back to offset paging. The key values are read from the result objects
+ * using {@link #getKeyValue(Object, String)}.
  * 
  * @author Andy Gibson
  * 
@@ -55,11 +72,14 @@ public abstract class AbstractQueryDataProvider<T> extends
 		AbstractQLDataProvider<T> implements QueryDataProvider<T>, Serializable {
 
 	private static final long serialVersionUID = 1L;
+	private static Logger log = LoggerFactory
+			.getLogger(AbstractQueryDataProvider.class);
 
 	private int paramId;
 
 	private Map<String, String> orderKeyMap = new HashMap<String, String>();
 	private List<String> restrictions = new ArrayList<String>();
+	private String keysetUniqueField;
 
 	public Map<String, String> getOrderKeyMap() {
 		return orderKeyMap;
@@ -77,6 +97,22 @@ public abstract class AbstractQueryDataProvider<T> extends
 		this.restrictions = restrictions;
 	}
 
+	public String getKeysetUniqueField() {
+		return keysetUniqueField;
+	}
+
+	/**
+	 * Sets the unique field (i.e. <code>p.id</code>) used to break ties
+	 * between rows with the same order key values when using keyset paging.
+	 * Keyset paging is only used when this is set.
+	 * 
+	 * @param keysetUniqueField
+	 *            unique field in the same form as the order key translations
+	 */
+	public void setKeysetUniqueField(String keysetUniqueField) {
+		this.keysetUniqueField = keysetUniqueField;
+	}
+
 	public void init(Class<? extends Object> clazz, String prefix) {
 		setCountStatement(String.format("select count(%s) from %s %s ", prefix,
 				clazz.getSimpleName(), prefix));
@@ -222,14 +258,194 @@ public abstract class AbstractQueryDataProvider<T> extends
 
 	protected DataQuery buildDataQuery(String baseStatement,
 			boolean includeOrdering, Paginator paginator) {
-		DataQueryBuilder builder = new DataQueryBuilder();
+		return initDataQueryBuilder(baseStatement, includeOrdering, paginator)
+				.build();
+	}
+
+	/**
+	 * Creates a {@link DataQueryBuilder} using
+	 * {@link #createDataQueryBuilder()} and initializes it with the statement
+	 * and the ordering information ready to build the query.
+	 * 
+	 * @param baseStatement
+	 *            Initial statement to use for selecting data
+	 * @param includeOrdering
+	 *            indicates whether the order clause should be added
+	 * @param paginator
+	 *            Paginator for determining the order clause.
+	 * @return the initialized builder
+	 */
+	protected DataQueryBuilder initDataQueryBuilder(String baseStatement,
+			boolean includeOrdering, Paginator paginator) {
+		DataQueryBuilder builder = createDataQueryBuilder();
 		builder.setProvider(this);
 		builder.setBaseStatement(baseStatement);
 		if (includeOrdering) {
 			builder.setOrderBy(translateOrderKey(paginator.getOrderKey()));
 			builder.setOrderAscending(paginator.isOrderAscending());
 		}
-		return builder.build();
+		return builder;
+	}
+
+	@Override
+	protected List<T> doFetchResults(Paginator paginator) {
+		String[] keyFields = getKeysetFields(paginator);
+		if (keyFields == null) {
+			return super.doFetchResults(paginator);
+		}
+		KeysetPaginator keysetPaginator = (KeysetPaginator) paginator;
+		Object[] seekKey = keysetPaginator.getSeekKey();
+		boolean backward = seekKey != null && keysetPaginator.isSeekBackward();
+
+		DataQueryBuilder builder = initDataQueryBuilder(getSelectStatement(),
+				true, paginator);
+		builder.setOrderBy(joinFields(keyFields));
+		if (seekKey != null) {
+			builder.setKeyset(keyFields, seekKey);
+		}
+		// to go backwards, read the preceding rows in reverse order
+		if (backward) {
+			builder.setOrderAscending(!paginator.isOrderAscending());
+		}
+		DataQuery query = builder.build();
+
+		int maxRows = paginator.getMaxRows();
+		int firstResult = seekKey == null ? paginator.getFirstResult() : 0;
+		List<T> temp = queryForResults(query, firstResult, maxRows + 1);
+
+		boolean moreAvailable = temp.size() > maxRows;
+		List<T> results = moreAvailable ? temp.subList(0, maxRows) : temp;
+
+		if (!backward) {
+			paginator.setNextAvailable(moreAvailable);
+			keysetPaginator.setPageKeys(extractKeyValues(results, 0, keyFields),
+					extractKeyValues(results, results.size() - 1, keyFields));
+			return results;
+		}
+
+		if (!moreAvailable) {
+			// we reached the start of the data so go back to the first page
+			keysetPaginator.setFirstResult(0);
+			if (results.size() < maxRows) {
+				return doFetchResults(paginator);
+			}
+		}
+		paginator.setNextAvailable(true);
+		keysetPaginator.setPageKeys(extractKeyValues(results,
+				results.size() - 1, keyFields), extractKeyValues(results, 0,
+				keyFields));
+		List<T> reversed = new ArrayList<T>(results);
+		Collections.reverse(reversed);
+		return reversed;
+	}
+
+	/**
+	 * Returns the fields used for keyset paging or null if the results should
+	 * be fetched using the row offset. Keyset paging is only used with a
+	 * {@link KeysetPaginator} that has an order key and a page size, and only
+	 * when a {@link #setKeysetUniqueField(String) unique key field} is set.
+	 * The unique field is appended to the order key fields if they don't
+	 * already include it.
+	 * 
+	 * @param paginator
+	 *            paginator used for fetching the results
+	 * @return the fields making up the order key or null
+	 */
+	protected String[] getKeysetFields(Paginator paginator) {
+		if (!(paginator instanceof KeysetPaginator)
+				|| paginator.includeAllResults() || keysetUniqueField == null
+				|| keysetUniqueField.length() == 0) {
+			return null;
+		}
+		String order = translateOrderKey(paginator.getOrderKey());
+		if (order == null || order.length() == 0) {
+			return null;
+		}
+		String[] fields = order.split(",");
+		String uniqueField = keysetUniqueField.trim();
+		boolean unique = false;
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = fields[i].trim();
+			unique |= fields[i].equalsIgnoreCase(uniqueField);
+		}
+		if (!unique) {
+			String[] result = new String[fields.length + 1];
+			System.arraycopy(fields, 0, result, 0, fields.length);
+			result[fields.length] = uniqueField;
+			return result;
+		}
+		return fields;
+	}
+
+	private String joinFields(String[] fields) {
+		StringBuilder result = new StringBuilder();
+		for (String field : fields) {
+			if (result.length() != 0) {
+				result.append(',');
+			}
+			result.append(field);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the order key values for the row at <code>index</code> in the
+	 * results. If any of the values are null, null is returned since the row
+	 * cannot be used to seek from and the paginator falls back to the row
+	 * offset.
+	 * 
+	 * @param results
+	 *            the results of the query in the order they were fetched
+	 * @param index
+	 *            index of the row
+	 * @param keyFields
+	 *            the fields making up the order key
+	 * @return the key values or null
+	 */
+	protected Object[] extractKeyValues(List<T> results, int index,
+			String[] keyFields) {
+		if (index < 0 || index >= results.size()) {
+			return null;
+		}
+		T row = results.get(index);
+		Object[] values = new Object[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			values[i] = getKeyValue(row, keyFields[i]);
+			if (values[i] == null) {
+				return null;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the value of an order key field from a result object. The default
+	 * implementation removes the alias prefix (<code>p.lastName</code> becomes
+	 * <code>lastName</code>) and reads the property from the object. Override
+	 * this if the order fields don't map to properties on the object.
+	 * 
+	 * @param row
+	 *            the object to read the value from
+	 * @param field
+	 *            the field from the translated order key
+	 * @return the value of the field or null if it cannot be read
+	 */
+	protected Object getKeyValue(T row, String field) {
+		String property = field;
+		int dot = property.indexOf('.');
+		if (dot != -1) {
+			property = property.substring(dot + 1);
+		}
+		try {
+			return PropertyUtils.getProperty(row, property);
+		} catch (IllegalAccessException e) {
+			log.warn("Unable to read order key value " + field, e);
+		} catch (InvocationTargetException e) {
+			log.warn("Unable to read order key value " + field, e);
+		} catch (NoSuchMethodException e) {
+			log.warn("Unable to read order key value " + field, e);
+		}
+		return null;
 	}
 
 }
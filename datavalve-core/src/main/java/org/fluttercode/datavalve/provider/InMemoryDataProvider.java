@@ -24,15 +24,31 @@
 package org.fluttercode.datavalve.provider;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
+import org.fluttercode.datavalve.DataCursor;
 import org.fluttercode.datavalve.DataProvider;
+import org.fluttercode.datavalve.DefaultPaginator;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+import org.fluttercode.datavalve.StreamingDataProvider;
+import org.fluttercode.datavalve.util.IndexComparator;
+import org.fluttercode.datavalve.util.IndexSorter;
+import org.fluttercode.datavalve.util.IteratorDataCursor;
 import org.fluttercode.datavalve.util.LazyList;
+import org.fluttercode.datavalve.util.PropertyComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,14 +72,49 @@ import org.slf4j.LoggerFactory;
  * values in the whole dataset. It is only from examining the complete list that
  * we determine whether or not paging is available.
  * </p>
+ * <p>
+ * The backing data is never reordered. The first time results are sorted by a
+ * comparator, the positions of the data in sorted order are worked out and
+ * kept until {@link #invalidateData()} is called, so later pages in either
+ * direction are read straight from that order. Descending pages walk the
+ * sorted positions backwards.
+ * </p>
+ * <p>
+ * Pages near the start of a large sorted list are served without sorting all
+ * of it. While the rows up to the end of the page are no more than a fraction
+ * of the data (see {@link #setPartialSortRatio(int)}), just those rows are
+ * selected in order. Once a deeper page is requested, the data is fully
+ * sorted.
+ * </p>
+ * <p>
+ * Order keys can be added for a property of the objects with
+ * {@link #addPropertyOrderKey(String, String)} instead of writing a
+ * comparator. The property is read from each object just once per sort and
+ * the sort compares the values read.
+ * </p>
+ * <p>
+ * If an executor is set with {@link #setSortExecutor(ExecutorService)}, data
+ * at least as large as the parallel sort threshold is sorted in parallel on
+ * it. Threads asking for the same sort while it is running wait for it rather
+ * than sorting the data again.
+ * </p>
+ * <p>
+ * Results can be restricted by adding {@link Predicate} instances with
+ * {@link #addRestriction(Predicate)}. The matching rows are found once and
+ * kept until the data or the restrictions change, so counts and pages of
+ * restricted results only touch the matching rows. A
+ * {@link PropertyRestriction} on a property indexed with
+ * {@link #addPropertyIndex(String)} finds its rows from the index without
+ * testing every row.
+ * </p>
  * 
  * @author Andy Gibson
  * 
  * @param <T>
  *            The type of object this dataset contains.
  */
-public abstract class InMemoryDataProvider<T> implements DataProvider<T>,
-		Serializable {
+public abstract class InMemoryDataProvider<T> implements
+		StreamingDataProvider<T>, Serializable {
 
 	private static final long serialVersionUID = 1L;
 
@@ -72,20 +123,38 @@ public abstract class InMemoryDataProvider<T> implements DataProvider<T>,
 
 	private Map<String, Comparator<T>> orderKeyMap = new HashMap<String, Comparator<T>>();
 	private Comparator<T> activeSortOrder;
-	private boolean orderedAscendingFlag = true;
 
 	private List<T> backingData;
 
+	private int partialSortRatio = 10;
+	private int parallelSortThreshold = 100000;
+	private int sortParallelism = Runtime.getRuntime().availableProcessors();
+	private transient ExecutorService sortExecutor;
+
+	private final List<Predicate<? super T>> restrictions = new ArrayList<Predicate<? super T>>();
+	private final Set<String> indexedProperties = new HashSet<String>();
+
+	private final Object sortLock = new Object[0];
+	private transient List<T> sortedData;
+	private transient Map<Comparator<T>, SortState> sortStates;
+	private transient List<T> restrictedSource;
+	private transient List<T> restrictedData;
+	private transient Map<Comparator<T>, SortState> restrictedSortStates;
+	private transient FutureTask<List<T>> restricting;
+	private transient List<T> indexedData;
+	private transient Map<String, FutureTask<PropertyIndex>> propertyIndexes;
+
 	/**
 	 * Implements the getResultCount function by fetching the backing data and
-	 * returning the size of that.
+	 * returning the size of that, or the number of rows matching the
+	 * restrictions.
 	 * 
 	 * @see #getBackingData()
 	 * 
 	 * @see org.fluttercode.datavalve.AbstractDataset#fetchResultCount()
 	 */
 	public Integer fetchResultCount() {
-		return Integer.valueOf(getBackingData().size());
+		return Integer.valueOf(getResultData().size());
 	}
 
 	/**
@@ -123,90 +192,609 @@ public abstract class InMemoryDataProvider<T> implements DataProvider<T>,
 	protected abstract List<T> fetchBackingData();
 
 	public List<T> fetchResults(Paginator paginator) {
-		// make this method final since
-
 		// make sure we fetch the data
-		getBackingData();
+		List<T> data = getResultData();
 		// check sorting hasn't changed
-		defineOrdering(paginator.getOrderKey());
-		defineOrderDirection(paginator.isOrderAscending());
-		sort();
+		Comparator<T> comparator = defineOrdering(paginator.getOrderKey());
+
+		int size = data.size();
+		int startPos = Math.min(paginator.getFirstResult(), size);
+		int endPos = paginator.getMaxRows() == null ? size : (int) Math.min(
+				(long) startPos + paginator.getMaxRows(), size);
+
+		List<T> results;
+		if (comparator == null) {
+			results = data.subList(startPos, endPos);
+		} else {
+			boolean ascending = paginator.isOrderAscending();
+			results = new ArrayList<T>(endPos - startPos);
+			int[] prefix = getSortedPrefix(data, comparator, endPos, ascending);
+			if (prefix != null) {
+				for (int i = startPos; i < endPos; i++) {
+					results.add(data.get(prefix[i]));
+				}
+			} else {
+				int[] indexes = getSortedIndexes(data, comparator);
+				for (int i = startPos; i < endPos; i++) {
+					results.add(data.get(indexes[ascending ? i : size - 1 - i]));
+				}
+			}
+		}
+		paginator.setNextAvailable(endPos < size);
+		return results;
+	}
+
+	/**
+	 * Returns the positions of the data in the order of the comparator,
+	 * sorting them the first time the comparator is used on the data. If
+	 * another thread is already sorting the data with the comparator, this
+	 * waits for that sort instead of starting another.
+	 * 
+	 * @param data
+	 *            the backing data
+	 * @param comparator
+	 *            comparator to order the data with
+	 * @return positions of the data in ascending order, which must not be
+	 *         modified
+	 */
+	protected int[] getSortedIndexes(final List<T> data,
+			final Comparator<T> comparator) {
+		final SortState state;
+		FutureTask<int[]> task;
+		boolean owner = false;
+		synchronized (sortLock) {
+			state = getSortState(data, comparator);
+			if (state.indexes != null) {
+				return state.indexes;
+			}
+			task = state.sorting;
+			if (task == null) {
+				task = new FutureTask<int[]>(new Callable<int[]>() {
+					public int[] call() throws Exception {
+						return sortIndexes(data, comparator);
+					}
+				});
+				state.sorting = task;
+				owner = true;
+			}
+		}
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				synchronized (sortLock) {
+					state.sorting = null;
+				}
+			}
+		}
+		int[] indexes = getResult(task);
+		if (owner) {
+			synchronized (sortLock) {
+				state.indexes = indexes;
+				state.ascending = new Prefix();
+				state.descending = new Prefix();
+			}
+		}
+		return indexes;
+	}
+
+	private int[] sortIndexes(List<T> data, Comparator<T> comparator) {
+		log.debug("Sorting list using {}  ", comparator);
+		int[] indexes = IndexSorter.identity(data.size());
+		IndexComparator indexComparator = createIndexComparator(data,
+				comparator);
+		if (sortExecutor != null && indexes.length >= parallelSortThreshold) {
+			IndexSorter.sort(indexes, indexComparator, sortExecutor,
+					sortParallelism);
+		} else {
+			IndexSorter.sort(indexes, indexComparator);
+		}
+		return indexes;
+	}
+
+	private static <V> V getResult(FutureTask<V> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted waiting for the data to be ordered", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Error ordering data", cause);
+		}
+	}
+
+	/**
+	 * Returns the positions of the first rows in the requested order, selecting
+	 * them from the data if they are few enough compared to the size of the
+	 * data and the data hasn't been fully sorted yet. Like
+	 * {@link #getSortedIndexes(List, Comparator)}, the selection runs outside
+	 * the lock and other threads needing no more rows wait for it.
+	 * 
+	 * @return positions of at least <code>count</code> rows in page order or
+	 *         null if the fully sorted positions should be used
+	 */
+	private int[] getSortedPrefix(final List<T> data,
+			final Comparator<T> comparator, int count, final boolean ascending) {
+		if (partialSortRatio <= 0
+				|| (long) count * partialSortRatio > data.size()) {
+			return null;
+		}
+		final Prefix prefix;
+		FutureTask<int[]> task;
+		boolean owner = false;
+		synchronized (sortLock) {
+			SortState state = getSortState(data, comparator);
+			if (state.indexes != null) {
+				return null;
+			}
+			prefix = ascending ? state.ascending : state.descending;
+			if (prefix.indexes != null && prefix.indexes.length >= count) {
+				return prefix.indexes;
+			}
+			task = prefix.selecting;
+			if (task == null || prefix.selectingCount < count) {
+				// grow in steps so paging forward doesn't select every time
+				final int wanted = prefix.indexes == null ? count : Math.max(
+						count, prefix.indexes.length * 2);
+				task = new FutureTask<int[]>(new Callable<int[]>() {
+					public int[] call() throws Exception {
+						return selectIndexes(data, comparator, wanted,
+								ascending);
+					}
+				});
+				prefix.selecting = task;
+				prefix.selectingCount = wanted;
+				owner = true;
+			}
+		}
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				synchronized (sortLock) {
+					if (prefix.selecting == task) {
+						prefix.selecting = null;
+					}
+				}
+			}
+		}
+		int[] indexes = getResult(task);
+		if (owner) {
+			synchronized (sortLock) {
+				if (prefix.indexes == null
+						|| prefix.indexes.length < indexes.length) {
+					prefix.indexes = indexes;
+				}
+			}
+		}
+		return indexes;
+	}
 
-		int startPos = paginator.getFirstResult();
-		if (startPos > backingData.size()) {
-			startPos = backingData.size();
+	private int[] selectIndexes(List<T> data, Comparator<T> comparator,
+			int count, boolean ascending) {
+		log.debug("Selecting first {} rows using {}", count, comparator);
+		IndexComparator indexComparator = createTieBreakingComparator(
+				createIndexComparator(data, comparator));
+		if (!ascending) {
+			indexComparator = reverse(indexComparator);
 		}
+		return IndexSorter.select(data.size(), count, indexComparator);
+	}
 
-		int endPos = paginator.getMaxRows() == null ? backingData.size()
-				: startPos + paginator.getMaxRows();
-		if (endPos >= backingData.size()) {
-			endPos = backingData.size();
+	private SortState getSortState(List<T> data, Comparator<T> comparator) {
+		Map<Comparator<T>, SortState> states;
+		if (data == restrictedData) {
+			states = restrictedSortStates;
+		} else {
+			if (sortedData != data) {
+				sortedData = data;
+				sortStates = new HashMap<Comparator<T>, SortState>();
+			}
+			states = sortStates;
+		}
+		SortState state = states.get(comparator);
+		if (state == null) {
+			state = new SortState();
+			states.put(comparator, state);
 		}
+		return state;
+	}
 
-		List<T> results = backingData.subList(startPos, endPos);
-		paginator
-				.setNextAvailable(paginator.getFirstResult() + results.size() < fetchResultCount());
+	/**
+	 * Returns the rows results are taken from, which is the backing data if
+	 * there are no restrictions and otherwise the rows of the backing data
+	 * that match the restrictions. The matching rows are found outside the
+	 * lock and other threads wait for them instead of restricting again.
+	 */
+	protected List<T> getResultData() {
+		final List<T> data = getBackingData();
+		if (!isRestricted()) {
+			return data;
+		}
+		FutureTask<List<T>> task;
+		boolean owner = false;
+		synchronized (sortLock) {
+			if (restrictedData != null && restrictedSource == data) {
+				return restrictedData;
+			}
+			task = restricting;
+			if (task == null || restrictedSource != data) {
+				task = new FutureTask<List<T>>(new Callable<List<T>>() {
+					public List<T> call() throws Exception {
+						return Collections.unmodifiableList(restrict(data));
+					}
+				});
+				restricting = task;
+				restrictedSource = data;
+				restrictedData = null;
+				owner = true;
+			}
+		}
+		if (owner) {
+			task.run();
+			synchronized (sortLock) {
+				// only keep the rows if the restrictions haven't changed
+				if (restricting == task) {
+					restricting = null;
+					restrictedData = getResult(task);
+					restrictedSortStates = new HashMap<Comparator<T>, SortState>();
+				}
+			}
+		}
+		return getResult(task);
+	}
+
+	/**
+	 * Finds the rows that match the restrictions, looking up the rows for
+	 * restrictions on indexed properties and testing only those rows against
+	 * the other restrictions.
+	 */
+	private List<T> restrict(List<T> data) {
+		Object[] rows = data.toArray();
+		int[] candidates = null;
+		List<Predicate<? super T>> remaining = new ArrayList<Predicate<? super T>>();
+		for (Predicate<? super T> restriction : restrictions) {
+			if (!isIndexed(restriction)) {
+				remaining.add(restriction);
+				continue;
+			}
+			PropertyRestriction<?> indexed = (PropertyRestriction<?>) restriction;
+			int[] found = indexed.find(getPropertyIndex(data, rows, indexed
+					.getPropertyPath()));
+			candidates = candidates == null ? found : PropertyIndex.intersect(
+					candidates, found);
+		}
+		List<T> results = new ArrayList<T>();
+		int count = candidates == null ? rows.length : candidates.length;
+		for (int i = 0; i < count; i++) {
+			@SuppressWarnings("unchecked")
+			T row = (T) rows[candidates == null ? i : candidates[i]];
+			if (accept(row, remaining)) {
+				results.add(row);
+			}
+		}
 		return results;
 	}
 
+	private boolean isIndexed(Predicate<? super T> restriction) {
+		return restriction instanceof PropertyRestriction<?>
+				&& indexedProperties
+						.contains(((PropertyRestriction<?>) restriction)
+								.getPropertyPath());
+	}
+
+	private static <T> boolean accept(T row,
+			List<Predicate<? super T>> restrictions) {
+		for (Predicate<? super T> restriction : restrictions) {
+			if (!restriction.accept(row)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the index of a property of the data, building it outside the
+	 * lock the first time it is used. Other threads needing the same index
+	 * wait for it to be built.
+	 */
+	private PropertyIndex getPropertyIndex(List<T> data, final Object[] rows,
+			final String propertyPath) {
+		FutureTask<PropertyIndex> task;
+		boolean owner = false;
+		synchronized (sortLock) {
+			if (indexedData != data) {
+				indexedData = data;
+				propertyIndexes = new HashMap<String, FutureTask<PropertyIndex>>();
+			}
+			task = propertyIndexes.get(propertyPath);
+			if (task == null) {
+				task = new FutureTask<PropertyIndex>(
+						new Callable<PropertyIndex>() {
+							public PropertyIndex call() throws Exception {
+								log.debug("Indexing property {}", propertyPath);
+								return new PropertyIndex(rows,
+										new PropertyComparator<T>(propertyPath));
+							}
+						});
+				propertyIndexes.put(propertyPath, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			task.run();
+		}
+		return getResult(task);
+	}
+
+	private IndexComparator createIndexComparator(List<T> data,
+			final Comparator<T> comparator) {
+		// copied so lists without fast random access are only walked once
+		final Object[] values = data.toArray();
+		if (comparator instanceof PropertyComparator<?>) {
+			return ((PropertyComparator<?>) comparator)
+					.createIndexComparator(values);
+		}
+		return new IndexComparator() {
+
+			@SuppressWarnings("unchecked")
+			public int compare(int index1, int index2) {
+				return comparator.compare((T) values[index1],
+						(T) values[index2]);
+			}
+		};
+	}
+
+	/**
+	 * Orders equal rows by position, the same as the stable full sort does.
+	 */
+	private static IndexComparator createTieBreakingComparator(
+			final IndexComparator comparator) {
+		return new IndexComparator() {
+
+			public int compare(int index1, int index2) {
+				int result = comparator.compare(index1, index2);
+				if (result != 0) {
+					return result;
+				}
+				return index1 < index2 ? -1 : (index1 == index2 ? 0 : 1);
+			}
+		};
+	}
+
+	private static IndexComparator reverse(final IndexComparator comparator) {
+		return new IndexComparator() {
+
+			public int compare(int index1, int index2) {
+				return comparator.compare(index2, index1);
+			}
+		};
+	}
+
+	/**
+	 * The sorted positions worked out for one comparator on the current data.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class SortState {
+
+		private int[] indexes;
+		private FutureTask<int[]> sorting;
+		private Prefix ascending = new Prefix();
+		private Prefix descending = new Prefix();
+	}
+
+	/**
+	 * The first rows selected in one direction and any selection of more rows
+	 * in progress.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class Prefix {
+
+		private int[] indexes;
+		private FutureTask<int[]> selecting;
+		private int selectingCount;
+	}
+
+	/**
+	 * Returns a cursor over the requested results. Since the data is already
+	 * in memory, this just iterates over the sorted backing data.
+	 */
+	public DataCursor<T> fetchCursor(Paginator paginator) {
+		Paginator copy = new DefaultPaginator();
+		copy.setFirstResult(paginator.getFirstResult());
+		copy.setMaxRows(paginator.getMaxRows());
+		copy.setOrderKey(paginator.getOrderKey());
+		copy.setOrderAscending(paginator.isOrderAscending());
+		return new IteratorDataCursor<T>(fetchResults(copy).iterator());
+	}
+
 	public void invalidateData() {
 		backingData = null;
+		synchronized (sortLock) {
+			sortedData = null;
+			sortStates = null;
+			restrictedSource = null;
+			restrictedData = null;
+			restrictedSortStates = null;
+			restricting = null;
+			indexedData = null;
+			propertyIndexes = null;
+		}
 	}
 
 	public Map<String, Comparator<T>> getOrderKeyMap() {
 		return orderKeyMap;
 	}
 
+	/**
+	 * Adds an order key that sorts by a property of the objects.
+	 * 
+	 * @param orderKey
+	 *            the order key
+	 * @param propertyPath
+	 *            name of the property, or a path to a nested property such as
+	 *            <code>address.city</code>
+	 */
+	public void addPropertyOrderKey(String orderKey, String propertyPath) {
+		addPropertyOrderKey(orderKey, propertyPath, null);
+	}
+
+	/**
+	 * Adds an order key that sorts by a property of the objects, comparing
+	 * string values using the collation rules of a locale.
+	 * 
+	 * @param orderKey
+	 *            the order key
+	 * @param propertyPath
+	 *            name of the property, or a path to a nested property
+	 * @param locale
+	 *            locale to collate strings for or null to compare them by
+	 *            their characters
+	 */
+	public void addPropertyOrderKey(String orderKey, String propertyPath,
+			Locale locale) {
+		orderKeyMap.put(orderKey, new PropertyComparator<T>(propertyPath,
+				locale));
+	}
+
 	protected boolean isSorted() {
 		return activeSortOrder != null;
 	}
 
-	private void defineOrderDirection(boolean ascending) {
-		if (ascending != orderedAscendingFlag) {
-			orderedAscendingFlag = ascending;
-			// flip the list
-			// log.debug("Flipping list for sort order");
-			// Collections.reverse(getBackingData());
-		}
+	private Comparator<T> defineOrdering(String key) {
+		// if there is no matching sort order, just clear it and leave the order
+		// as is.
+		Comparator<T> sorter = key == null ? null : translateOrderKey(key);
+		activeSortOrder = sorter;
+		return sorter;
 	}
 
-	private void defineOrdering(String key) {
-		if (key == null) {
-			activeSortOrder = null;
-			return;
-		}
+	/**
+	 * Adds a restriction that objects must pass to be included in the
+	 * results.
+	 * 
+	 * @param restriction
+	 *            condition objects must meet
+	 */
+	public void addRestriction(Predicate<? super T> restriction) {
+		restrictions.add(restriction);
+		invalidateRestrictions();
+	}
 
-		Comparator<T> sorter = translateOrderKey(key);
+	public void clearRestrictions() {
+		restrictions.clear();
+		invalidateRestrictions();
+	}
 
-		// if there is no matching sort order, just clear it and leave the order
-		// as is.
-		if (sorter == null) {
-			activeSortOrder = null;
-			return;
-		}
+	public List<Predicate<? super T>> getRestrictions() {
+		return Collections.unmodifiableList(restrictions);
+	}
+
+	public boolean isRestricted() {
+		return !restrictions.isEmpty();
+	}
 
-		// return if we are already sorted by this value then do nothing
-		if (sorter.equals(activeSortOrder)) {
-			return;
+	/**
+	 * Discards the rows found to match the restrictions. Call this if a
+	 * restriction changes the objects it accepts.
+	 */
+	public void invalidateRestrictions() {
+		synchronized (sortLock) {
+			restrictedData = null;
+			restrictedSortStates = null;
+			restricting = null;
 		}
-		// when we changed the order, it defaults to ascending
-		// orderedAscendingFlag = true;
-		activeSortOrder = sorter;
-		// sort();
+	}
+
+	/**
+	 * Indexes a property so {@link PropertyRestriction}s on it find their rows
+	 * from the index. The index is built the first time it is used and kept
+	 * until the data is invalidated.
+	 * 
+	 * @param propertyPath
+	 *            the property path, which must match the path of the
+	 *            restrictions
+	 */
+	public void addPropertyIndex(String propertyPath) {
+		indexedProperties.add(propertyPath);
+		invalidateRestrictions();
+	}
+
+	public int getPartialSortRatio() {
+		return partialSortRatio;
+	}
+
+	/**
+	 * Sets how many times larger than the rows needed for a page the data must
+	 * be for those rows to be selected instead of fully sorting the data.
+	 * Defaults to 10. Set to 0 to always fully sort.
+	 */
+	public void setPartialSortRatio(int partialSortRatio) {
+		this.partialSortRatio = partialSortRatio;
+	}
+
+	public ExecutorService getSortExecutor() {
+		return sortExecutor;
+	}
+
+	/**
+	 * Sets the executor used to sort large data in parallel. Set to null (the
+	 * default) to sort on the calling thread. Comparators must be thread safe
+	 * when an executor is set. The executor is not shutdown by the provider.
+	 */
+	public void setSortExecutor(ExecutorService sortExecutor) {
+		this.sortExecutor = sortExecutor;
+	}
+
+	public int getSortParallelism() {
+		return sortParallelism;
+	}
+
+	/**
+	 * Sets the number of threads the sort executor is expected to run, which
+	 * decides how many parts the data is split into. Defaults to the number
+	 * of processors.
+	 */
+	public void setSortParallelism(int sortParallelism) {
+		this.sortParallelism = sortParallelism;
+	}
+
+	public int getParallelSortThreshold() {
+		return parallelSortThreshold;
+	}
+
+	/**
+	 * Sets the size the data must reach to be sorted in parallel when there is
+	 * a sort executor. Defaults to 100000.
+	 */
+	public void setParallelSortThreshold(int parallelSortThreshold) {
+		this.parallelSortThreshold = parallelSortThreshold;
 	}
 
 	protected Comparator<T> translateOrderKey(String key) {
 		return getOrderKeyMap().get(key);
 	}
 
+	/**
+	 * Works out the sorted order for the last order key used, if it hasn't
+	 * been already. The backing data itself is left in its original order.
+	 */
 	public void sort() {
-		if (isSorted()) {
-			log.debug("Sorting list using {}  ", activeSortOrder);
-
-			Collections.sort(getBackingData(), activeSortOrder);
-			if (!orderedAscendingFlag) {
-				Collections.reverse(getBackingData());
-			}
+		Comparator<T> comparator = activeSortOrder;
+		if (comparator != null) {
+			getSortedIndexes(getBackingData(), comparator);
 		}
 	}
 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fluttercode.datavalve.util.IndexComparator;
+import org.fluttercode.datavalve.util.IndexSorter;
+import org.fluttercode.datavalve.util.PropertyComparator;
+
+/**
+ * Index of the values of one property over the rows of an
+ * {@link InMemoryDataProvider}. Equality lookups use a hash of the values to
+ * the positions holding them and range and prefix lookups binary search the
+ * positions sorted by value. Each structure is built the first time a lookup
+ * needs it. Restrictions can look rows up from several threads, so building
+ * the structures is synchronized.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+class PropertyIndex {
+
+	private final Object[] values;
+	private Map<Object, int[]> positionsByValue;
+	private int[] sortedPositions;
+
+	/**
+	 * Reads the property of each row.
+	 * 
+	 * @param rows
+	 *            the rows being indexed
+	 * @param property
+	 *            comparator for the property, used to read it
+	 */
+	public PropertyIndex(Object[] rows, PropertyComparator<?> property) {
+		values = new Object[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			values[i] = PropertyRestriction.normalize(property
+					.getValue(rows[i]));
+		}
+	}
+
+	public int[] findEqual(Object value) {
+		int[] positions = getPositionsByValue().get(value);
+		return positions == null ? new int[0] : positions;
+	}
+
+	public int[] findIn(Collection<Object> wanted) {
+		Map<Object, int[]> map = getPositionsByValue();
+		int count = 0;
+		for (Object value : wanted) {
+			int[] positions = map.get(value);
+			count += positions == null ? 0 : positions.length;
+		}
+		int[] result = new int[count];
+		int offset = 0;
+		for (Object value : wanted) {
+			int[] positions = map.get(value);
+			if (positions != null) {
+				System.arraycopy(positions, 0, result, offset,
+						positions.length);
+				offset += positions.length;
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Finds the rows in a range, including the bounds.
+	 * 
+	 * @param from
+	 *            lowest value or null for no lower bound
+	 * @param to
+	 *            highest value or null for no upper bound
+	 */
+	public int[] findRange(Object from, Object to) {
+		int[] sorted = getSortedPositions();
+		int low = from == null ? 0 : firstAfter(sorted, from, true);
+		int high = to == null ? sorted.length : firstAfter(sorted, to, false);
+		return copySorted(sorted, low, Math.max(low, high));
+	}
+
+	public int[] findPrefix(String prefix) {
+		int[] sorted = getSortedPositions();
+		int low = firstAfter(sorted, prefix, true);
+		int high = low;
+		while (high < sorted.length && values[sorted[high]] instanceof String
+				&& ((String) values[sorted[high]]).startsWith(prefix)) {
+			high++;
+		}
+		return copySorted(sorted, low, high);
+	}
+
+	/**
+	 * Binary search for the first sorted position with a value greater than
+	 * the bound, or equal to it if <code>inclusive</code> is true.
+	 */
+	private int firstAfter(int[] sorted, Object bound, boolean inclusive) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int result = PropertyComparator.compareObjects(
+					values[sorted[mid]], bound);
+			if (result > 0 || (inclusive && result == 0)) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	private static int[] copySorted(int[] positions, int from, int to) {
+		int[] result = Arrays.copyOfRange(positions, from, to);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private synchronized Map<Object, int[]> getPositionsByValue() {
+		if (positionsByValue == null) {
+			Map<Object, int[]> counts = new HashMap<Object, int[]>();
+			for (Object value : values) {
+				if (value != null) {
+					int[] count = counts.get(value);
+					if (count == null) {
+						count = new int[1];
+						counts.put(value, count);
+					}
+					count[0]++;
+				}
+			}
+			Map<Object, int[]> map = new HashMap<Object, int[]>(counts
+					.size() * 2);
+			for (Map.Entry<Object, int[]> entry : counts.entrySet()) {
+				map.put(entry.getKey(), new int[entry.getValue()[0]]);
+				// reuse the count as the fill position
+				entry.getValue()[0] = 0;
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					int[] fill = counts.get(values[i]);
+					map.get(values[i])[fill[0]++] = i;
+				}
+			}
+			positionsByValue = map;
+		}
+		return positionsByValue;
+	}
+
+	private synchronized int[] getSortedPositions() {
+		if (sortedPositions == null) {
+			int count = 0;
+			for (Object value : values) {
+				if (value != null) {
+					count++;
+				}
+			}
+			int[] positions = new int[count];
+			count = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					positions[count++] = i;
+				}
+			}
+			IndexSorter.sort(positions, new IndexComparator() {
+				public int compare(int index1, int index2) {
+					return PropertyComparator.compareObjects(values[index1],
+							values[index2]);
+				}
+			});
+			sortedPositions = positions;
+		}
+		return sortedPositions;
+	}
+
+	/**
+	 * Intersects two arrays of positions in ascending order.
+	 */
+	static int[] intersect(int[] positions1, int[] positions2) {
+		int[] result = new int[Math.min(positions1.length, positions2.length)];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < positions1.length && j < positions2.length) {
+			if (positions1[i] < positions2[j]) {
+				i++;
+			} else if (positions1[i] > positions2[j]) {
+				j++;
+			} else {
+				result[count++] = positions1[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+}
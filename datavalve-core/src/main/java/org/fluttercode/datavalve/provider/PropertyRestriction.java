@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.fluttercode.datavalve.Predicate;
+import org.fluttercode.datavalve.util.PropertyComparator;
+
+/**
+ * Restriction on the value of a property of an object, which can be a nested
+ * property path such as <code>address.city</code>. Objects are accepted if the
+ * value equals a value, is one of a set of values, is in a range of values or
+ * starts with a prefix. Objects with a null value are never accepted.
+ * <p/>
+ * Numbers are compared by value whatever their type, so an
+ * <code>Integer</code> restriction value of 1 matches a <code>Long</code>,
+ * <code>Double</code> or <code>BigDecimal</code> property of 1 and a
+ * <code>BigDecimal</code> of 1.50 matches 1.5. Range restrictions need the
+ * property values to be comparable with the bounds.
+ * <p/>
+ * When the property is indexed in an {@link InMemoryDataProvider} (see
+ * {@link InMemoryDataProvider#addPropertyIndex(String)}), the matching rows
+ * are found from the index instead of testing every row.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            type of object being tested
+ */
+public class PropertyRestriction<T> implements Predicate<T>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final BigDecimal MIN_LONG = BigDecimal
+			.valueOf(Long.MIN_VALUE);
+	private static final BigDecimal MAX_LONG = BigDecimal
+			.valueOf(Long.MAX_VALUE);
+
+	private enum Type {
+		EQUAL, IN, RANGE, PREFIX
+	}
+
+	private final Type type;
+	private final PropertyComparator<T> property;
+	private final Object value;
+	private final Object to;
+	private final Set<Object> values;
+
+	private PropertyRestriction(Type type, String propertyPath, Object value,
+			Object to, Set<Object> values) {
+		this.type = type;
+		this.property = new PropertyComparator<T>(propertyPath);
+		this.value = normalize(value);
+		this.to = normalize(to);
+		this.values = values;
+	}
+
+	/**
+	 * Accepts objects whose property equals a value.
+	 */
+	public static <T> PropertyRestriction<T> equalTo(String propertyPath,
+			Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException(
+					"Restriction value cannot be null");
+		}
+		return new PropertyRestriction<T>(Type.EQUAL, propertyPath, value,
+				null, null);
+	}
+
+	/**
+	 * Accepts objects whose property equals one of a number of values. Null
+	 * values are ignored.
+	 */
+	public static <T> PropertyRestriction<T> in(String propertyPath,
+			Collection<?> values) {
+		Set<Object> normalized = new HashSet<Object>();
+		for (Object value : values) {
+			if (value != null) {
+				normalized.add(normalize(value));
+			}
+		}
+		return new PropertyRestriction<T>(Type.IN, propertyPath, null, null,
+				Collections.unmodifiableSet(normalized));
+	}
+
+	/**
+	 * Accepts objects whose property is in a range of values.
+	 * 
+	 * @param propertyPath
+	 *            the property to test
+	 * @param from
+	 *            lowest value to accept or null for no lower bound
+	 * @param to
+	 *            highest value to accept or null for no upper bound
+	 */
+	public static <T> PropertyRestriction<T> between(String propertyPath,
+			Object from, Object to) {
+		return new PropertyRestriction<T>(Type.RANGE, propertyPath, from, to,
+				null);
+	}
+
+	/**
+	 * Accepts objects whose property is a string starting with a prefix.
+	 */
+	public static <T> PropertyRestriction<T> startsWith(String propertyPath,
+			String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix cannot be null");
+		}
+		return new PropertyRestriction<T>(Type.PREFIX, propertyPath, prefix,
+				null, null);
+	}
+
+	public boolean accept(T object) {
+		Object propertyValue = normalize(property.getValue(object));
+		if (propertyValue == null) {
+			return false;
+		}
+		switch (type) {
+		case EQUAL:
+			return value.equals(propertyValue);
+		case IN:
+			return values.contains(propertyValue);
+		case RANGE:
+			return (value == null || PropertyComparator.compareObjects(
+					propertyValue, value) >= 0)
+					&& (to == null || PropertyComparator.compareObjects(
+							propertyValue, to) <= 0);
+		default:
+			return propertyValue instanceof String
+					&& ((String) propertyValue).startsWith((String) value);
+		}
+	}
+
+	/**
+	 * Finds the positions of the rows accepted by this restriction in an index
+	 * of its property.
+	 * 
+	 * @return positions of the accepted rows in ascending order
+	 */
+	int[] find(PropertyIndex index) {
+		switch (type) {
+		case EQUAL:
+			return index.findEqual(value);
+		case IN:
+			return index.findIn(values);
+		case RANGE:
+			return index.findRange(value, to);
+		default:
+			return index.findPrefix((String) value);
+		}
+	}
+
+	/**
+	 * Converts a value to the form it is compared in so numbers are equal if
+	 * they have the same value. Numbers with a whole value that fits in a long
+	 * become longs, other numbers that a double holds exactly become doubles
+	 * and the rest stay as big decimals without trailing zeros.
+	 */
+	static Object normalize(Object value) {
+		if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			// doubles from -2^63 up to but excluding 2^63 fit in a long
+			if (d == Math.rint(d) && d >= -0x1p63 && d < 0x1p63) {
+				return (long) d;
+			}
+			return d;
+		}
+		if (value instanceof BigInteger) {
+			value = new BigDecimal((BigInteger) value);
+		}
+		if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			if (decimal.signum() == 0) {
+				return 0L;
+			}
+			decimal = decimal.stripTrailingZeros();
+			if (decimal.scale() <= 0 && decimal.compareTo(MIN_LONG) >= 0
+					&& decimal.compareTo(MAX_LONG) <= 0) {
+				return decimal.longValue();
+			}
+			double d = decimal.doubleValue();
+			if (!Double.isInfinite(d)
+					&& new BigDecimal(d).compareTo(decimal) == 0) {
+				return d;
+			}
+			return decimal;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return value;
+	}
+
+	public String getPropertyPath() {
+		return property.getPropertyPath();
+	}
+
+	@Override
+	public String toString() {
+		return "PropertyRestriction[" + getPropertyPath() + " " + type + "]";
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.fluttercode.datavalve.DataCursor;
+
+/**
+ * Index of the values in one column of a delimited file, stored on disk as
+ * the line numbers sorted by column value along with the values themselves.
+ * Lines with a value equal to, or in a range of, values are found with a
+ * binary search of the index so only the matching lines need to be read from
+ * the file.
+ * <p/>
+ * Values of a numeric column are parsed as longs, or doubles if they aren't
+ * whole numbers, so they are compared as numbers. Values that can't be parsed
+ * are indexed as null and never match a restriction.
+ * <p/>
+ * The index records the length and modification time of the file it was built
+ * from so it can be checked with {@link #isCurrent(File)} and reused across
+ * runs with {@link #load(File, File)}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class ColumnIndex {
+
+	private static final int MAGIC = 0x44564349;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 30;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File indexFile;
+	private final int size;
+	private final long fileLength;
+	private final long lastModified;
+	private final boolean numeric;
+	private final boolean quoted;
+
+	private ColumnIndex(File indexFile, int size, long fileLength,
+			long lastModified, boolean numeric, boolean quoted) {
+		this.indexFile = indexFile;
+		this.size = size;
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.numeric = numeric;
+		this.quoted = quoted;
+	}
+
+	/**
+	 * Builds an index from the values of a column.
+	 * 
+	 * @param values
+	 *            cursor over the value of the column on every line of the
+	 *            file in file order, which is closed when the index is built
+	 * @param numeric
+	 *            true to index the values as numbers
+	 * @param quoted
+	 *            true if the lines are numbered as quoted records, see
+	 *            {@link LineOffsetIndex}
+	 * @param indexFile
+	 *            file to write the index to
+	 * @param tempDirectory
+	 *            directory for temporary files or null for the default
+	 *            temporary directory
+	 * @param maxEntriesInMemory
+	 *            number of values sorted in memory at a time
+	 * @param file
+	 *            the file the values are read from
+	 * @return the index
+	 * @throws IOException
+	 *             if the values or the index cannot be read or written
+	 */
+	public static ColumnIndex build(DataCursor<String> values,
+			final boolean numeric, boolean quoted, File indexFile,
+			File tempDirectory, int maxEntriesInMemory, File file)
+			throws IOException {
+		// take these before reading so a change while reading makes the
+		// index stale rather than silently wrong
+		long length = file.length();
+		long modified = file.lastModified();
+		ExternalSorter sorter = new ExternalSorter(tempDirectory,
+				maxEntriesInMemory);
+		File linesFile = null;
+		File offsetsFile = null;
+		File keysFile = null;
+		try {
+			int line = 0;
+			try {
+				while (values.hasNext()) {
+					sorter.add(parseValue(values.next(), numeric), line++);
+				}
+			} finally {
+				values.close();
+			}
+			// the sections are written separately and joined at the end
+			linesFile = File.createTempFile("column", ".lines", tempDirectory);
+			offsetsFile = File.createTempFile("column", ".offsets",
+					tempDirectory);
+			keysFile = File.createTempFile("column", ".keys", tempDirectory);
+			final DataOutputStream lines = openOutput(linesFile);
+			final DataOutputStream offsets = openOutput(offsetsFile);
+			final DataOutputStream keys = openOutput(keysFile);
+			try {
+				sorter.finish(new ExternalSorter.EntryHandler() {
+
+					private long offset;
+
+					public void entry(Object key, int line) throws IOException {
+						lines.writeInt(line);
+						offsets.writeLong(offset);
+						ExternalSorter.writeKey(keys, key);
+						offset += getKeySize(key);
+					}
+				});
+			} finally {
+				lines.close();
+				offsets.close();
+				keys.close();
+			}
+			DataOutputStream out = openOutput(indexFile);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(length);
+				out.writeLong(modified);
+				out.writeBoolean(numeric);
+				out.writeBoolean(quoted);
+				out.writeInt(sorter.getSize());
+				copy(linesFile, out);
+				copy(offsetsFile, out);
+				copy(keysFile, out);
+			} finally {
+				out.close();
+			}
+			return new ColumnIndex(indexFile, sorter.getSize(), length,
+					modified, numeric, quoted);
+		} finally {
+			sorter.close();
+			delete(linesFile);
+			delete(offsetsFile);
+			delete(keysFile);
+		}
+	}
+
+	/**
+	 * Loads an index built by
+	 * {@link #build(DataCursor, boolean, boolean, File, File, int, File)}.
+	 * 
+	 * @param indexFile
+	 *            file the index was written to
+	 * @param file
+	 *            the file the index was built from
+	 * @return the index, or null if there is no readable index or it is no
+	 *         longer current for the file
+	 */
+	public static ColumnIndex load(File indexFile, File file) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return null;
+				}
+				long length = in.readLong();
+				long modified = in.readLong();
+				boolean numeric = in.readBoolean();
+				boolean quoted = in.readBoolean();
+				int size = in.readInt();
+				ColumnIndex index = new ColumnIndex(indexFile, size, length,
+						modified, numeric, quoted);
+				return index.isCurrent(file) ? index : null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// treat a damaged index the same as a missing one
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the lines with a value in a range.
+	 * 
+	 * @param from
+	 *            lowest value to match, or null for no lower bound
+	 * @param fromInclusive
+	 *            true to match lines equal to <code>from</code>
+	 * @param to
+	 *            highest value to match, or null for no upper bound
+	 * @param toInclusive
+	 *            true to match lines equal to <code>to</code>
+	 * @return the matching line numbers in file order
+	 * @throws IOException
+	 *             if the index cannot be read
+	 */
+	public int[] findLines(Object from, boolean fromInclusive, Object to,
+			boolean toInclusive) throws IOException {
+		Object fromKey = toKey(from);
+		Object toKey = toKey(to);
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			// a null lower bound still skips the lines without a value
+			int low = fromKey == null ? firstAfter(raf, null, false)
+					: firstAfter(raf, fromKey, fromInclusive);
+			int high = toKey == null ? size : firstAfter(raf, toKey,
+					!toInclusive);
+			if (high <= low) {
+				return new int[0];
+			}
+			byte[] bytes = new byte[(high - low) * 4];
+			raf.seek(HEADER_SIZE + 4L * low);
+			raf.readFully(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int[] lines = new int[high - low];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = buffer.getInt();
+			}
+			Arrays.sort(lines);
+			return lines;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Finds the lines with a value equal to the value.
+	 */
+	public int[] findLines(Object value) throws IOException {
+		if (value == null) {
+			throw new IllegalArgumentException(
+					"Cannot find lines without a value");
+		}
+		return findLines(value, true, value, true);
+	}
+
+	/**
+	 * Converts a value to the form it is indexed in, parsing strings as
+	 * numbers if the column is numeric.
+	 */
+	public Object toKey(Object value) {
+		if (value instanceof String) {
+			return parseValue((String) value, numeric);
+		}
+		return ExternalSorter.normalizeKey(value);
+	}
+
+	/**
+	 * Binary search for the first entry with a key greater than the bound, or
+	 * equal to it if <code>inclusive</code> is true.
+	 */
+	private int firstAfter(RandomAccessFile raf, Object bound,
+			boolean inclusive) throws IOException {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int result = ExternalSorter.compareKeys(readKey(raf, mid), bound);
+			if (result > 0 || (inclusive && result == 0)) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	private Object readKey(RandomAccessFile raf, int entry) throws IOException {
+		long offsetsStart = HEADER_SIZE + 4L * size;
+		long keysStart = offsetsStart + 8L * size;
+		raf.seek(offsetsStart + 8L * entry);
+		long offset = raf.readLong();
+		long end = entry + 1 < size ? raf.readLong() : raf.length()
+				- keysStart;
+		byte[] bytes = new byte[(int) (end - offset)];
+		raf.seek(keysStart + offset);
+		raf.readFully(bytes);
+		return ExternalSorter.readKey(new DataInputStream(
+				new ByteArrayInputStream(bytes)));
+	}
+
+	private static Object parseValue(String value, boolean numeric) {
+		if (value == null || !numeric) {
+			return value;
+		}
+		String trimmed = value.trim();
+		try {
+			return Long.parseLong(trimmed);
+		} catch (NumberFormatException e) {
+			try {
+				return Double.parseDouble(trimmed);
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+	}
+
+	private static long getKeySize(Object key) {
+		if (key instanceof String) {
+			return 5 + 2L * ((String) key).length();
+		}
+		return key == null ? 1 : 9;
+	}
+
+	private static DataOutputStream openOutput(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), BUFFER_SIZE));
+	}
+
+	private static void copy(File file, OutputStream out) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File file) {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the file the index was built from
+	 * @return true if the file has the same length and modification time as
+	 *         when the index was built
+	 */
+	public boolean isCurrent(File file) {
+		return file.length() == fileLength
+				&& file.lastModified() == lastModified;
+	}
+
+	/**
+	 * @return true if the values are indexed as numbers
+	 */
+	public boolean isNumeric() {
+		return numeric;
+	}
+
+	/**
+	 * @return true if the lines are numbered as quoted records
+	 */
+	public boolean isQuoted() {
+		return quoted;
+	}
+
+	/**
+	 * @return the number of lines in the index
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+}
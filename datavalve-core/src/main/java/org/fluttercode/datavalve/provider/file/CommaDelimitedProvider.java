@@ -23,12 +23,43 @@
 
 package org.fluttercode.datavalve.provider.file;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
+import org.fluttercode.datavalve.util.IteratorDataCursor;
 
 /**
  * Provider that returns data from a comma delimited file using a
  * {@link ColumnarRowMapper} instance to convert an array of string values into
  * an object.
+ * <p/>
+ * If {@link #setUseMappedReader(boolean)} is enabled, the file is read with a
+ * {@link MappedCsvReader} instead of line by line. Values can then be quoted
+ * as described in RFC 4180 and are only decoded when they are read. Objects
+ * are created from the {@link CsvRow} by
+ * {@link #doCreateObjectFromRow(CsvRow)} or the {@link CsvRowMapper} if one is
+ * set, falling back to creating them from the decoded columns.
+ * <p/>
+ * Columns declared with {@link #addIndexedColumn(int, boolean)} can be
+ * restricted to a value or range of values with
+ * {@link #addColumnRestriction(int, Object)} and
+ * {@link #addColumnRangeRestriction(int, Object, Object)}. A
+ * {@link ColumnIndex} of each restricted column is built the first time it is
+ * used and kept next to the file, so only the lines that match are read.
+ * Indexes are rebuilt when the size or modification time of the file changes.
  * 
  * @author Andy Gibson
  * 
@@ -41,6 +72,15 @@ public class CommaDelimitedProvider<T> extends TextFileProvider<T> {
 
 	private ColumnarRowMapper<T> rowMapper;
 
+	private CsvRowMapper<T> csvRowMapper;
+
+	private boolean useMappedReader = false;
+
+	private final Map<Integer, Boolean> indexedColumns = new HashMap<Integer, Boolean>();
+	private final List<ColumnRestriction> columnRestrictions = new ArrayList<ColumnRestriction>();
+	private final Object columnIndexLock = new Object[0];
+	private transient Map<Integer, ColumnIndex> columnIndexes;
+
 	public CommaDelimitedProvider(String filename,
 			ColumnarRowMapper<T> rowMapper) {
 		super(filename);
@@ -94,6 +134,593 @@ public class CommaDelimitedProvider<T> extends TextFileProvider<T> {
 		return null;
 	}
 
+	/**
+	 * Creates a new instance of a data object from a lazily decoded row when
+	 * using the mapped reader.
+	 * 
+	 * @param row
+	 *            the current row, only valid until the next row is read
+	 * @return new instance of data object built from the row
+	 */
+	protected T createObjectFromRow(CsvRow row) {
+		T result = doCreateObjectFromRow(row);
+		if (result != null) {
+			return result;
+		}
+		if (csvRowMapper != null) {
+			return csvRowMapper.mapRow(row);
+		}
+		return createObjectFromColumns(padToLength(row.toArray()));
+	}
+
+	/**
+	 * Method to create an instance of data from a row when using the mapped
+	 * reader. Default implementation returns null, in which case the
+	 * {@link CsvRowMapper} is used if there is one, otherwise the object is
+	 * created from the decoded columns.
+	 * 
+	 * @param row
+	 *            the current row
+	 * @return an instance of T built from the row or null
+	 */
+	protected T doCreateObjectFromRow(CsvRow row) {
+		return null;
+	}
+
+	@Override
+	protected boolean isQuotedLineIndex() {
+		return useMappedReader;
+	}
+
+	@Override
+	protected Integer doFetchResultCount() {
+		if (isColumnRestricted()) {
+			try {
+				return fetchColumnRestrictedCount();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+		if (!useMappedReader || isUseLineIndex() || isRestricted()) {
+			return super.doFetchResultCount();
+		}
+		int count = 0;
+		MappedCsvReader reader = null;
+		try {
+			reader = new MappedCsvReader(getFile());
+			while (reader.next()) {
+				count++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(reader);
+		}
+		return count;
+	}
+
+	@Override
+	protected List<T> doFetchResults(Paginator paginator) {
+		if (isColumnRestricted()) {
+			try {
+				return fetchColumnRestrictedResults(paginator);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return new ArrayList<T>();
+			}
+		}
+		if (!useMappedReader || isRestricted()) {
+			return super.doFetchResults(paginator);
+		}
+		Integer maxRows = paginator.getMaxRows();
+		List<T> results = new ArrayList<T>();
+		MappedCsvReader reader = null;
+		try {
+			reader = openMappedReader(paginator.getFirstResult());
+			while ((maxRows == null || results.size() < maxRows)
+					&& reader.next()) {
+				results.add(createObjectFromRow(reader.getRow()));
+			}
+			paginator.setNextAvailable(reader.next());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(reader);
+		}
+		return results;
+	}
+
+	@Override
+	protected DataCursor<T> doFetchCursor(Paginator paginator) {
+		if (!isColumnRestricted()) {
+			return super.doFetchCursor(paginator);
+		}
+		try {
+			return new IteratorDataCursor<T>(fetchColumnRestrictedResults(
+					paginator).iterator());
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format(
+					"Unable to open cursor on file '%s'", getFileName()), e);
+		}
+	}
+
+	@Override
+	protected boolean isConcurrentFetchSupported() {
+		return super.isConcurrentFetchSupported() && !isColumnRestricted();
+	}
+
+	/**
+	 * Finds the lines that match all the column restrictions using the column
+	 * indexes.
+	 * 
+	 * @return the matching line numbers in file order
+	 */
+	private int[] findColumnRestrictedLines() throws IOException {
+		int[] lines = null;
+		for (ColumnRestriction restriction : columnRestrictions) {
+			ColumnIndex index = getColumnIndex(restriction.column);
+			int[] found = index.findLines(restriction.from, true,
+					restriction.to, true);
+			lines = lines == null ? found : intersect(lines, found);
+		}
+		return lines;
+	}
+
+	private static int[] intersect(int[] lines1, int[] lines2) {
+		int[] result = new int[Math.min(lines1.length, lines2.length)];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < lines1.length && j < lines2.length) {
+			if (lines1[i] < lines2[j]) {
+				i++;
+			} else if (lines1[i] > lines2[j]) {
+				j++;
+			} else {
+				result[count++] = lines1[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private int fetchColumnRestrictedCount() throws IOException {
+		int[] lines = findColumnRestrictedLines();
+		if (!isRestricted()) {
+			return lines.length;
+		}
+		int count = 0;
+		LineReader reader = openLineReader();
+		try {
+			for (int line : lines) {
+				T object = reader.read(line);
+				if (object != null && accept(object)) {
+					count++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	private List<T> fetchColumnRestrictedResults(Paginator paginator)
+			throws IOException {
+		int[] lines = findColumnRestrictedLines();
+		int first = paginator.getFirstResult();
+		Integer maxRows = paginator.getMaxRows();
+		SortKeyExtractor<? super T> extractor = getSortKeyExtractor(paginator);
+		if (extractor == null && !isRestricted()) {
+			// the page can be read straight from the matching lines
+			int start = Math.min(first, lines.length);
+			int end = maxRows == null ? lines.length : (int) Math.min(
+					(long) start + maxRows, lines.length);
+			paginator.setNextAvailable(end < lines.length);
+			return readObjects(Arrays.copyOfRange(lines, start, end));
+		}
+		if (extractor == null) {
+			return fetchColumnRestrictedPage(lines, first, maxRows, paginator);
+		}
+		List<T> matches = new ArrayList<T>();
+		LineReader reader = openLineReader();
+		try {
+			for (int line : lines) {
+				T object = reader.read(line);
+				if (object != null && accept(object)) {
+					matches.add(object);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		sort(matches, extractor, paginator.isOrderAscending());
+		int start = Math.min(first, matches.size());
+		int end = maxRows == null ? matches.size() : (int) Math.min(
+				(long) start + maxRows, matches.size());
+		paginator.setNextAvailable(end < matches.size());
+		return new ArrayList<T>(matches.subList(start, end));
+	}
+
+	/**
+	 * Reads the matching lines in file order, skipping the matches before the
+	 * page and stopping at the first match after it.
+	 */
+	private List<T> fetchColumnRestrictedPage(int[] lines, int first,
+			Integer maxRows, Paginator paginator) throws IOException {
+		List<T> results = new ArrayList<T>();
+		boolean more = false;
+		int matched = 0;
+		LineReader reader = openLineReader();
+		try {
+			for (int line : lines) {
+				T object = reader.read(line);
+				if (object == null || !accept(object)) {
+					continue;
+				}
+				if (matched++ < first) {
+					continue;
+				}
+				if (maxRows != null && results.size() == maxRows) {
+					more = true;
+					break;
+				}
+				results.add(object);
+			}
+		} finally {
+			reader.close();
+		}
+		paginator.setNextAvailable(more);
+		return results;
+	}
+
+	/**
+	 * Sorts the matches in memory in the same order a {@link SortIndex} would,
+	 * extracting each key once.
+	 */
+	private void sort(List<T> matches, SortKeyExtractor<? super T> extractor,
+			final boolean ascending) {
+		List<Object[]> keyed = new ArrayList<Object[]>(matches.size());
+		for (T match : matches) {
+			keyed.add(new Object[] {
+					ExternalSorter.normalizeKey(extractor.getSortKey(match)),
+					match });
+		}
+		Collections.sort(keyed, new Comparator<Object[]>() {
+			public int compare(Object[] o1, Object[] o2) {
+				int result = ExternalSorter.compareKeys(o1[0], o2[0]);
+				return ascending ? result : -result;
+			}
+		});
+		matches.clear();
+		for (Object[] entry : keyed) {
+			@SuppressWarnings("unchecked")
+			T match = (T) entry[1];
+			matches.add(match);
+		}
+	}
+
+	/**
+	 * Returns the index of a column, loading or building it if there is no
+	 * index or the file has changed since it was built.
+	 * 
+	 * @param column
+	 *            zero based number of an indexed column
+	 * @return the index of the column
+	 * @throws IOException
+	 *             if the index cannot be read or built
+	 */
+	protected ColumnIndex getColumnIndex(int column) throws IOException {
+		Boolean numeric = indexedColumns.get(column);
+		if (numeric == null) {
+			throw new IllegalArgumentException(String.format(
+					"Column %d is not indexed", column));
+		}
+		File file = getFile();
+		synchronized (columnIndexLock) {
+			if (columnIndexes == null) {
+				columnIndexes = new HashMap<Integer, ColumnIndex>();
+			}
+			ColumnIndex index = columnIndexes.get(column);
+			if (index == null || !isUsable(index, file, numeric)) {
+				File indexFile = getColumnIndexFile(column);
+				index = ColumnIndex.load(indexFile, file);
+				if (index == null || !isUsable(index, file, numeric)) {
+					index = ColumnIndex.build(openColumnCursor(column),
+							numeric, useMappedReader, indexFile,
+							getSortDirectoryFile(), getSortBufferSize(), file);
+				}
+				columnIndexes.put(column, index);
+			}
+			return index;
+		}
+	}
+
+	private boolean isUsable(ColumnIndex index, File file, boolean numeric) {
+		return index.isCurrent(file) && index.isNumeric() == numeric
+				&& index.isQuoted() == useMappedReader;
+	}
+
+	/**
+	 * @param column
+	 *            zero based number of the column
+	 * @return the file the index of the column is kept in
+	 */
+	protected File getColumnIndexFile(int column) {
+		return new File(getFileName() + ".col" + column);
+	}
+
+	/**
+	 * Opens a cursor over the value of a column on each line of the file.
+	 */
+	private DataCursor<String> openColumnCursor(final int column)
+			throws IOException {
+		if (useMappedReader) {
+			final MappedCsvReader reader = new MappedCsvReader(getFile());
+			return new AbstractDataCursor<String>(null) {
+
+				@Override
+				protected boolean moveNext() {
+					try {
+						return reader.next();
+					} catch (IOException e) {
+						throw new IllegalStateException(String.format(
+								"Error reading from file '%s'", getFileName()),
+								e);
+					}
+				}
+
+				@Override
+				protected String getCurrent() {
+					CsvRow row = reader.getRow();
+					return column < row.getColumnCount() ? row
+							.getString(column) : null;
+				}
+
+				@Override
+				protected void doClose() {
+					closeQuietly(reader);
+				}
+			};
+		}
+		final BufferedReader reader = new BufferedReader(new FileReader(
+				getFile()));
+		return new AbstractDataCursor<String>(null) {
+
+			private String line;
+
+			@Override
+			protected boolean moveNext() {
+				try {
+					line = reader.readLine();
+					return line != null;
+				} catch (IOException e) {
+					throw new IllegalStateException(String.format(
+							"Error reading from file '%s'", getFileName()), e);
+				}
+			}
+
+			@Override
+			protected String getCurrent() {
+				String[] columns = line.split(",");
+				return column < columns.length ? columns[column] : null;
+			}
+
+			@Override
+			protected void doClose() {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Declares a column that can be restricted with
+	 * {@link #addColumnRestriction(int, Object)} or
+	 * {@link #addColumnRangeRestriction(int, Object, Object)}.
+	 * 
+	 * @param column
+	 *            zero based number of the column
+	 * @param numeric
+	 *            true to index and compare the values as numbers instead of
+	 *            strings
+	 */
+	public void addIndexedColumn(int column, boolean numeric) {
+		indexedColumns.put(column, numeric);
+	}
+
+	public void addIndexedColumn(int column) {
+		addIndexedColumn(column, false);
+	}
+
+	public boolean isIndexedColumn(int column) {
+		return indexedColumns.containsKey(column);
+	}
+
+	/**
+	 * Restricts the results to lines where an indexed column is equal to a
+	 * value.
+	 * 
+	 * @param column
+	 *            zero based number of an indexed column
+	 * @param value
+	 *            value the column must equal
+	 */
+	public void addColumnRestriction(int column, Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException(
+					"Column restriction value cannot be null");
+		}
+		addColumnRangeRestriction(column, value, value);
+	}
+
+	/**
+	 * Restricts the results to lines where an indexed column is in a range of
+	 * values.
+	 * 
+	 * @param column
+	 *            zero based number of an indexed column
+	 * @param from
+	 *            lowest value to include or null for no lower bound
+	 * @param to
+	 *            highest value to include or null for no upper bound
+	 */
+	public void addColumnRangeRestriction(int column, Object from, Object to) {
+		if (!isIndexedColumn(column)) {
+			throw new IllegalArgumentException(String.format(
+					"Column %d is not indexed", column));
+		}
+		columnRestrictions.add(new ColumnRestriction(column, from, to));
+	}
+
+	public void clearColumnRestrictions() {
+		columnRestrictions.clear();
+	}
+
+	public boolean isColumnRestricted() {
+		return !columnRestrictions.isEmpty();
+	}
+
+	/**
+	 * Range of values a column is restricted to.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class ColumnRestriction implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int column;
+		private final Object from;
+		private final Object to;
+
+		public ColumnRestriction(int column, Object from, Object to) {
+			this.column = column;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	@Override
+	protected DataCursor<T> openCursor(int firstLine, Integer maxLines)
+			throws IOException {
+		if (!useMappedReader) {
+			return super.openCursor(firstLine, maxLines);
+		}
+		return new RecordCursor(openMappedReader(firstLine), maxLines);
+	}
+
+	/**
+	 * Reads the records through one mapped reader when the mapped reader is
+	 * enabled.
+	 */
+	@Override
+	protected RecordReader<T> openRecordReader() throws IOException {
+		if (!useMappedReader) {
+			return super.openRecordReader();
+		}
+		final MappedCsvReader reader = new MappedCsvReader(getFile());
+		return new RecordReader<T>() {
+
+			public void seek(long offset) {
+				reader.seek(offset);
+			}
+
+			public void skip(int count) throws IOException {
+				reader.skip(count);
+			}
+
+			public T read() throws IOException {
+				return reader.next() ? createObjectFromRow(reader.getRow())
+						: null;
+			}
+
+			public void close() {
+				closeQuietly(reader);
+			}
+		};
+	}
+
+	/**
+	 * Opens a mapped reader positioned before a record, seeking with the line
+	 * index if it is enabled.
+	 * 
+	 * @param firstRecord
+	 *            zero based number of the first record to read
+	 * @return reader whose next record is the first record
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected MappedCsvReader openMappedReader(int firstRecord)
+			throws IOException {
+		MappedCsvReader reader = new MappedCsvReader(getFile());
+		try {
+			int skip = firstRecord;
+			if (isUseLineIndex() && firstRecord != 0) {
+				LineOffsetIndex index = getLineIndex();
+				reader.seek(index.getSeekOffset(firstRecord));
+				skip = index.getLinesToSkip(firstRecord);
+			}
+			reader.skip(skip);
+		} catch (IOException e) {
+			closeQuietly(reader);
+			throw e;
+		}
+		return reader;
+	}
+
+	private static void closeQuietly(MappedCsvReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Cursor that creates an object from each record as the mapped reader
+	 * moves through the file.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class RecordCursor extends AbstractDataCursor<T> {
+
+		private final MappedCsvReader reader;
+
+		public RecordCursor(MappedCsvReader reader, Integer maxRows) {
+			super(maxRows);
+			this.reader = reader;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			try {
+				return reader.next();
+			} catch (IOException e) {
+				throw new IllegalStateException(String.format(
+						"Error reading from file '%s'", getFileName()), e);
+			}
+		}
+
+		@Override
+		protected T getCurrent() {
+			return createObjectFromRow(reader.getRow());
+		}
+
+		@Override
+		protected void doClose() {
+			closeQuietly(reader);
+		}
+	}
+
 	/**
 	 * Takes an array of columns and pads it with nulls until it has a certain
 	 * length.
@@ -123,4 +750,24 @@ public class CommaDelimitedProvider<T> extends TextFileProvider<T> {
 	 public void setRowMapper(ColumnarRowMapper<T> rowMapper) {
 		this.rowMapper = rowMapper;
 	}
+
+	public CsvRowMapper<T> getCsvRowMapper() {
+		return csvRowMapper;
+	}
+
+	public void setCsvRowMapper(CsvRowMapper<T> csvRowMapper) {
+		this.csvRowMapper = csvRowMapper;
+	}
+
+	public boolean isUseMappedReader() {
+		return useMappedReader;
+	}
+
+	/**
+	 * Sets whether the file is read using a {@link MappedCsvReader}, which
+	 * handles quoted values and decodes values lazily. Defaults to false.
+	 */
+	public void setUseMappedReader(boolean useMappedReader) {
+		this.useMappedReader = useMappedReader;
+	}
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+/**
+ * View of a row of delimited values that decodes values only when they are
+ * read. Instances may be reused for the next row so values should be read
+ * before moving on rather than holding on to the row.
+ * <p/>
+ * Reading a column past the end of the row returns null for strings, the same
+ * as a row padded with {@link CommaDelimitedProvider#setPaddingLength(int)}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public interface CsvRow {
+
+	int getColumnCount();
+
+	/**
+	 * @param column
+	 *            zero based column index
+	 * @return the decoded value of the column or null if the row has no such
+	 *         column
+	 */
+	String getString(int column);
+
+	/**
+	 * Parses the column as an int without creating a string.
+	 * 
+	 * @throws NumberFormatException
+	 *             if the column is missing or not a valid int
+	 */
+	int getInt(int column);
+
+	/**
+	 * Parses the column as a long without creating a string.
+	 * 
+	 * @throws NumberFormatException
+	 *             if the column is missing or not a valid long
+	 */
+	long getLong(int column);
+
+	/**
+	 * @return true if the column is missing or has no characters
+	 */
+	boolean isEmpty(int column);
+
+	/**
+	 * @return all the values in the row decoded as strings
+	 */
+	String[] toArray();
+}
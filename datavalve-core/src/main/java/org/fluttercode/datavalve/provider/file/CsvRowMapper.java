@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+/**
+ * Maps a {@link CsvRow} to an object. Unlike {@link ColumnarRowMapper} the
+ * columns are only decoded as they are read, and numeric columns can be read
+ * without creating strings.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            type of object created from the row
+ */
+public interface CsvRowMapper<T> {
+
+	public T mapRow(CsvRow row);
+
+}
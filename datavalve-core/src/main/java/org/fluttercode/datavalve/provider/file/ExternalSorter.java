@@ -0,0 +1,399 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts (key, line number) entries using a bounded amount of memory. Entries
+ * are sorted in memory until the buffer is full and then written to a sorted
+ * run in a temporary file. When all the entries have been added, the runs are
+ * merged, in several passes if there are many of them, and the entries are
+ * passed to a handler in order. Entries with equal keys keep the order of
+ * their line numbers.
+ * <p/>
+ * Keys must be strings, numbers or null. Whole numbers are compared as longs,
+ * other numbers as doubles, numbers sort before strings and null sorts first.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+class ExternalSorter {
+
+	private static Logger log = LoggerFactory.getLogger(ExternalSorter.class);
+
+	private static final int MERGE_FACTOR = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte NULL_KEY = 0;
+	private static final byte STRING_KEY = 1;
+	private static final byte LONG_KEY = 2;
+	private static final byte DOUBLE_KEY = 3;
+
+	/**
+	 * Receives the sorted entries.
+	 */
+	interface EntryHandler {
+		void entry(Object key, int line) throws IOException;
+	}
+
+	private final File tempDirectory;
+	private final int maxEntriesInMemory;
+	private List<Entry> entries = new ArrayList<Entry>();
+	private List<File> runs = new ArrayList<File>();
+	private int size;
+
+	/**
+	 * @param tempDirectory
+	 *            directory for the sorted runs or null for the default
+	 *            temporary directory
+	 * @param maxEntriesInMemory
+	 *            number of entries sorted in memory before they are written to
+	 *            a run
+	 */
+	public ExternalSorter(File tempDirectory, int maxEntriesInMemory) {
+		if (maxEntriesInMemory < 1) {
+			throw new IllegalArgumentException(
+					"Max entries in memory must be at least 1");
+		}
+		this.tempDirectory = tempDirectory;
+		this.maxEntriesInMemory = maxEntriesInMemory;
+	}
+
+	public void add(Object key, int line) throws IOException {
+		entries.add(new Entry(normalizeKey(key), line));
+		size++;
+		if (entries.size() >= maxEntriesInMemory) {
+			runs.add(writeRun(entries));
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of entries added
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Passes the entries to the handler in sorted order and deletes the runs.
+	 */
+	public void finish(EntryHandler handler) throws IOException {
+		try {
+			if (runs.isEmpty()) {
+				Collections.sort(entries);
+				for (Entry entry : entries) {
+					handler.entry(entry.key, entry.line);
+				}
+				return;
+			}
+			if (!entries.isEmpty()) {
+				runs.add(writeRun(entries));
+			}
+			entries = null;
+			while (runs.size() > MERGE_FACTOR) {
+				runs = mergePass(runs);
+			}
+			mergeRuns(runs, null, handler);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Deletes any runs written so far.
+	 */
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		entries = null;
+	}
+
+	private File writeRun(List<Entry> entries) throws IOException {
+		Collections.sort(entries);
+		File run = File.createTempFile("sort", ".run", tempDirectory);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run), BUFFER_SIZE));
+		try {
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				writeKey(out, entry.key);
+				out.writeInt(entry.line);
+			}
+		} finally {
+			out.close();
+		}
+		return run;
+	}
+
+	/**
+	 * Merges groups of runs into fewer, longer runs.
+	 */
+	private List<File> mergePass(List<File> runs) throws IOException {
+		List<File> merged = new ArrayList<File>();
+		try {
+			for (int i = 0; i < runs.size(); i += MERGE_FACTOR) {
+				List<File> group = runs.subList(i, Math.min(i + MERGE_FACTOR,
+						runs.size()));
+				File run = File.createTempFile("sort", ".run", tempDirectory);
+				merged.add(run);
+				mergeRuns(group, run, null);
+			}
+		} catch (IOException e) {
+			for (File run : merged) {
+				run.delete();
+			}
+			throw e;
+		}
+		for (File run : runs) {
+			run.delete();
+		}
+		return merged;
+	}
+
+	/**
+	 * Merges sorted runs into another run or, if there is no output file, into
+	 * the handler.
+	 */
+	private void mergeRuns(List<File> runs, File output, EntryHandler handler)
+			throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs
+				.size(), new Comparator<RunReader>() {
+			public int compare(RunReader o1, RunReader o2) {
+				return o1.current.compareTo(o2.current);
+			}
+		});
+		List<RunReader> readers = new ArrayList<RunReader>();
+		DataOutputStream out = null;
+		try {
+			int total = 0;
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				total += reader.remaining;
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+			if (output != null) {
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(output), BUFFER_SIZE));
+				out.writeInt(total);
+			}
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				Entry entry = reader.current;
+				if (out != null) {
+					writeKey(out, entry.key);
+					out.writeInt(entry.line);
+				} else {
+					handler.entry(entry.key, entry.line);
+				}
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Converts a key to the form it is stored and compared in.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the key is not a string, number or null
+	 */
+	static Object normalizeKey(Object key) {
+		if (key == null || key instanceof String) {
+			return key;
+		}
+		if (key instanceof Long || key instanceof Integer
+				|| key instanceof Short || key instanceof Byte) {
+			return ((Number) key).longValue();
+		}
+		if (key instanceof BigInteger && ((BigInteger) key).bitLength() < 64) {
+			return ((Number) key).longValue();
+		}
+		if (key instanceof Number) {
+			return ((Number) key).doubleValue();
+		}
+		throw new IllegalArgumentException(String.format(
+				"Unsupported sort key type %s, keys must be strings or numbers",
+				key.getClass().getName()));
+	}
+
+	/**
+	 * Compares two normalized keys.
+	 */
+	static int compareKeys(Object key1, Object key2) {
+		if (key1 == null || key2 == null) {
+			return key1 == null ? (key2 == null ? 0 : -1) : 1;
+		}
+		if (key1 instanceof String && key2 instanceof String) {
+			return ((String) key1).compareTo((String) key2);
+		}
+		if (key1 instanceof Long && key2 instanceof Long) {
+			return ((Long) key1).compareTo((Long) key2);
+		}
+		if (key1 instanceof Number && key2 instanceof Number) {
+			return Double.compare(((Number) key1).doubleValue(),
+					((Number) key2).doubleValue());
+		}
+		// numbers sort before strings
+		return key1 instanceof Number ? -1 : 1;
+	}
+
+	static void writeKey(DataOutput out, Object key) throws IOException {
+		if (key == null) {
+			out.writeByte(NULL_KEY);
+		} else if (key instanceof String) {
+			String value = (String) key;
+			out.writeByte(STRING_KEY);
+			out.writeInt(value.length());
+			out.writeChars(value);
+		} else if (key instanceof Long) {
+			out.writeByte(LONG_KEY);
+			out.writeLong((Long) key);
+		} else {
+			out.writeByte(DOUBLE_KEY);
+			out.writeDouble((Double) key);
+		}
+	}
+
+	static Object readKey(DataInput in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL_KEY:
+			return null;
+		case STRING_KEY:
+			char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = in.readChar();
+			}
+			return new String(chars);
+		case LONG_KEY:
+			return in.readLong();
+		case DOUBLE_KEY:
+			return in.readDouble();
+		default:
+			throw new IOException("Unknown sort key type " + type);
+		}
+	}
+
+	/**
+	 * Sort key and the line it came from.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		private final Object key;
+		private final int line;
+
+		public Entry(Object key, int line) {
+			this.key = key;
+			this.line = line;
+		}
+
+		public int compareTo(Entry o) {
+			int result = compareKeys(key, o.key);
+			if (result != 0) {
+				return result;
+			}
+			// keep file order for equal keys
+			return line < o.line ? -1 : (line == o.line ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Reads the entries of a sorted run one at a time.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class RunReader {
+
+		private final DataInputStream in;
+		private int remaining;
+		private Entry current;
+
+		public RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run), BUFFER_SIZE));
+			try {
+				remaining = in.readInt();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public boolean advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return false;
+			}
+			Object key = readKey(in);
+			current = new Entry(key, in.readInt());
+			remaining--;
+			return true;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.warn("Unable to close sorted run", e);
+			}
+		}
+	}
+}
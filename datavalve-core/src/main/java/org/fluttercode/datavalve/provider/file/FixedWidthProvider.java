@@ -0,0 +1,381 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
+
+/**
+ * Provider that returns data from a file of fixed width records, such as a
+ * mainframe extract. Every record is the same number of bytes, including any
+ * line terminator, so the offset of any record is known from its number and
+ * the count comes from the file length. Pages are read with positional reads
+ * of just the bytes of their records no matter how far into the file they
+ * are.
+ * <p/>
+ * The fields of a record are declared with {@link #addColumn(int, int)} and
+ * decoded to strings using the charset set with {@link #setCharset(String)}.
+ * Objects are created from the array of values by
+ * {@link #doCreateObjectFromColumns(String[])} or the
+ * {@link ColumnarRowMapper}. A final record without its line terminator is
+ * still read as long as it holds all the declared columns.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class FixedWidthProvider<T> extends AbstractFileBasedProvider<T> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int recordLength;
+	private final List<Column> columns = new ArrayList<Column>();
+	private ColumnarRowMapper<T> rowMapper;
+	private String charset = "ISO-8859-1";
+	private boolean trimValues = true;
+	private transient Charset decoder;
+
+	public FixedWidthProvider(String fileName, int recordLength,
+			ColumnarRowMapper<T> rowMapper) {
+		super(fileName);
+		if (recordLength <= 0) {
+			throw new IllegalArgumentException(
+					"Record length must be greater than zero");
+		}
+		this.recordLength = recordLength;
+		this.rowMapper = rowMapper;
+	}
+
+	public FixedWidthProvider(String fileName, int recordLength) {
+		this(fileName, recordLength, null);
+	}
+
+	/**
+	 * Adds a field to the record layout.
+	 * 
+	 * @param offset
+	 *            zero based byte offset of the field within the record
+	 * @param length
+	 *            length of the field in bytes
+	 */
+	public void addColumn(int offset, int length) {
+		if (offset < 0 || length <= 0 || offset + length > recordLength) {
+			throw new IllegalArgumentException(String.format(
+					"Column at %d of length %d does not fit in a record of %d bytes",
+					offset, length, recordLength));
+		}
+		columns.add(new Column(offset, length));
+	}
+
+	/**
+	 * Adds a field that starts straight after the last field added.
+	 * 
+	 * @param length
+	 *            length of the field in bytes
+	 */
+	public void addColumn(int length) {
+		int offset = 0;
+		if (!columns.isEmpty()) {
+			Column last = columns.get(columns.size() - 1);
+			offset = last.offset + last.length;
+		}
+		addColumn(offset, length);
+	}
+
+	@Override
+	protected Integer doFetchResultCount() {
+		long length = getFile().length();
+		long count = length / recordLength;
+		// a last record missing its terminator still counts if it is whole
+		if (length % recordLength >= getLayoutLength()) {
+			count++;
+		}
+		return (int) Math.min(count, Integer.MAX_VALUE);
+	}
+
+	@Override
+	protected Integer doFetchEstimatedResultCount() {
+		// as cheap as an estimate and exact
+		return doFetchResultCount();
+	}
+
+	@Override
+	protected List<T> doFetchResults(Paginator paginator) {
+		List<T> results = new ArrayList<T>();
+		int count = doFetchResultCount();
+		int first = Math.min(paginator.getFirstResult(), count);
+		int end = paginator.getMaxRows() == null ? count : (int) Math.min(
+				(long) first + paginator.getMaxRows(), count);
+		DataCursor<T> cursor = null;
+		try {
+			cursor = new RecordCursor(first, end);
+			while (cursor.hasNext()) {
+				results.add(cursor.next());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		paginator.setNextAvailable(end < count);
+		return results;
+	}
+
+	@Override
+	protected DataCursor<T> doFetchCursor(Paginator paginator) {
+		int count = doFetchResultCount();
+		int first = Math.min(paginator.getFirstResult(), count);
+		int end = paginator.getMaxRows() == null ? count : (int) Math.min(
+				(long) first + paginator.getMaxRows(), count);
+		try {
+			return new RecordCursor(first, end);
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format(
+					"Unable to open cursor on file '%s'", getFileName()), e);
+		}
+	}
+
+	/**
+	 * Decodes the fields of one record.
+	 * 
+	 * @param buffer
+	 *            bytes holding the record
+	 * @param start
+	 *            offset of the record in the buffer
+	 * @return the values of the declared columns
+	 */
+	protected String[] decodeRecord(byte[] buffer, int start) {
+		Charset charset = getDecoder();
+		String[] values = new String[columns.size()];
+		for (int i = 0; i < values.length; i++) {
+			Column column = columns.get(i);
+			String value = new String(buffer, start + column.offset,
+					column.length, charset);
+			values[i] = trimValues ? value.trim() : value;
+		}
+		return values;
+	}
+
+	/**
+	 * Creates a new instance of a data object from the values of a record.
+	 */
+	protected T createObjectFromColumns(String[] columns) {
+		T result = doCreateObjectFromColumns(columns);
+		if (result != null) {
+			return result;
+		}
+		if (rowMapper == null) {
+			throw new NullPointerException(
+					"Rowmapper in fixed width provider is unassigned");
+		}
+		return rowMapper.mapRow(columns);
+	}
+
+	/**
+	 * Method to create an instance of data from the column values. Default
+	 * implementation returns null in which case the {@link ColumnarRowMapper}
+	 * is used.
+	 * 
+	 * @param columns
+	 *            Array of column values
+	 * @return an instance of T built from the values or null
+	 */
+	protected T doCreateObjectFromColumns(String[] columns) {
+		return null;
+	}
+
+	/**
+	 * @return number of bytes of a record covered by the declared columns
+	 */
+	private int getLayoutLength() {
+		if (columns.isEmpty()) {
+			return recordLength;
+		}
+		int length = 0;
+		for (Column column : columns) {
+			length = Math.max(length, column.offset + column.length);
+		}
+		return length;
+	}
+
+	private Charset getDecoder() {
+		if (decoder == null) {
+			decoder = Charset.forName(charset);
+		}
+		return decoder;
+	}
+
+	/**
+	 * Cursor that reads a range of records from the file in blocks using
+	 * positional reads.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class RecordCursor extends AbstractDataCursor<T> {
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final int end;
+		private final byte[] block;
+		private final int blockRecords;
+		private int next;
+		private int blockFirst;
+		private int blockCount;
+		private int current;
+
+		public RecordCursor(int first, int end) throws IOException {
+			super(null);
+			this.raf = new RandomAccessFile(getFile(), "r");
+			this.channel = raf.getChannel();
+			this.next = first;
+			this.end = end;
+			this.blockRecords = Math.max(1, BUFFER_SIZE / recordLength);
+			this.block = new byte[blockRecords * recordLength];
+		}
+
+		@Override
+		protected boolean moveNext() {
+			if (next >= end) {
+				return false;
+			}
+			if (next >= blockFirst + blockCount) {
+				try {
+					readBlock();
+				} catch (IOException e) {
+					throw new IllegalStateException(String.format(
+							"Error reading from file '%s'", getFileName()), e);
+				}
+			}
+			current = next++;
+			return true;
+		}
+
+		private void readBlock() throws IOException {
+			blockFirst = next;
+			blockCount = Math.min(blockRecords, end - next);
+			long position = (long) blockFirst * recordLength;
+			// the last record may be short its terminator
+			long wanted = Math.min((long) blockCount * recordLength, getFile()
+					.length()
+					- position);
+			ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) wanted);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException(String.format(
+							"File '%s' was truncated while reading",
+							getFileName()));
+				}
+			}
+		}
+
+		@Override
+		protected T getCurrent() {
+			return createObjectFromColumns(decodeRecord(block,
+					(current - blockFirst) * recordLength));
+		}
+
+		@Override
+		protected void doClose() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Position of a field within a record.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class Column implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int offset;
+		private final int length;
+
+		public Column(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	public int getColumnCount() {
+		return columns.size();
+	}
+
+	public ColumnarRowMapper<T> getRowMapper() {
+		return rowMapper;
+	}
+
+	public void setRowMapper(ColumnarRowMapper<T> rowMapper) {
+		this.rowMapper = rowMapper;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Sets the name of the charset the records are decoded with, for example
+	 * "Cp037" for EBCDIC extracts. Defaults to ISO-8859-1.
+	 */
+	public void setCharset(String charset) {
+		this.charset = charset;
+		this.decoder = null;
+	}
+
+	public boolean isTrimValues() {
+		return trimValues;
+	}
+
+	/**
+	 * Sets whether the padding around values is trimmed. Defaults to true.
+	 */
+	public void setTrimValues(boolean trimValues) {
+		this.trimValues = trimValues;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the lines in a text file by scanning its raw bytes for line breaks
+ * without decoding any characters. Lines are counted the same way as
+ * {@link java.io.BufferedReader#readLine()} would return them, so the file
+ * must use a character set where line breaks are single bytes such as ASCII,
+ * UTF-8 or ISO-8859-1.
+ * <p/>
+ * If an executor is given, files larger than the range size are split into
+ * byte ranges that are counted in parallel. Counts are cached by the canonical
+ * path, length and modification time of the file and shared by all counters,
+ * so an unchanged file is only counted once.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class LineCounter {
+
+	public static final int DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_CACHED_COUNTS = 256;
+
+	private static final Map<CountKey, Integer> counts = new LinkedHashMap<CountKey, Integer>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CountKey, Integer> eldest) {
+			return size() > MAX_CACHED_COUNTS;
+		}
+	};
+
+	private final ExecutorService executor;
+	private final int rangeSize;
+
+	public LineCounter() {
+		this(null);
+	}
+
+	public LineCounter(ExecutorService executor) {
+		this(executor, DEFAULT_RANGE_SIZE);
+	}
+
+	/**
+	 * @param executor
+	 *            executor to count ranges on or null to count on the calling
+	 *            thread
+	 * @param rangeSize
+	 *            number of bytes in each range counted in parallel
+	 */
+	public LineCounter(ExecutorService executor, int rangeSize) {
+		if (rangeSize < 1) {
+			throw new IllegalArgumentException("Range size must be at least 1");
+		}
+		this.executor = executor;
+		this.rangeSize = rangeSize;
+	}
+
+	/**
+	 * Returns the number of lines in the file, using the cached count if the
+	 * file hasn't changed since it was last counted.
+	 * 
+	 * @param file
+	 *            file to count
+	 * @return number of lines in the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public int count(File file) throws IOException {
+		// take these before reading so a change while reading gives a key
+		// that won't match the changed file
+		CountKey key = new CountKey(file.getCanonicalPath(), file.length(),
+				file.lastModified());
+		synchronized (counts) {
+			Integer count = counts.get(key);
+			if (count != null) {
+				return count;
+			}
+		}
+		int count = countLines(file, key.length);
+		synchronized (counts) {
+			counts.put(key, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Removes all the cached counts.
+	 */
+	public static void clearCache() {
+		synchronized (counts) {
+			counts.clear();
+		}
+	}
+
+	private int countLines(File file, long length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			long breaks = 0;
+			if (executor == null || length <= rangeSize) {
+				breaks = countLineBreaks(channel, 0, length);
+			} else {
+				List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+				for (long start = 0; start < length; start += rangeSize) {
+					final long from = start;
+					final long to = Math.min(start + rangeSize, length);
+					tasks.add(new Callable<Long>() {
+						public Long call() throws Exception {
+							// positional reads are safe on a shared channel
+							return countLineBreaks(channel, from, to);
+						}
+					});
+				}
+				for (Future<Long> future : invokeAll(tasks)) {
+					breaks += get(future);
+				}
+			}
+			// a last line without a line break still counts
+			byte last = readByte(channel, length - 1);
+			if (last != '\n' && last != '\r') {
+				breaks++;
+			}
+			if (breaks > Integer.MAX_VALUE) {
+				throw new IllegalStateException(String.format(
+						"File '%s' has too many lines to count", file));
+			}
+			return (int) breaks;
+		} finally {
+			stream.close();
+		}
+	}
+
+	private List<Future<Long>> invokeAll(List<Callable<Long>> tasks) {
+		try {
+			return executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted counting lines", e);
+		}
+	}
+
+	private static long get(Future<Long> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted counting lines", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Error counting lines", cause);
+		}
+	}
+
+	/**
+	 * Counts the line breaks in a range of the file. A <code>\r\n</code> pair
+	 * is counted once, by its <code>\r</code>, even if the pair is split
+	 * across two ranges.
+	 */
+	private static long countLineBreaks(FileChannel channel, long from, long to)
+			throws IOException {
+		boolean afterCarriageReturn = from > 0
+				&& readByte(channel, from - 1) == '\r';
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long count = 0;
+		long position = from;
+		while (position < to) {
+			buffer.clear();
+			if (to - position < buffer.capacity()) {
+				buffer.limit((int) (to - position));
+			}
+			int read = channel.read(buffer, position);
+			if (read == -1) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n') {
+					if (!afterCarriageReturn) {
+						count++;
+					}
+					afterCarriageReturn = false;
+				} else if (b == '\r') {
+					count++;
+					afterCarriageReturn = true;
+				} else {
+					afterCarriageReturn = false;
+				}
+			}
+			position += read;
+		}
+		return count;
+	}
+
+	private static byte readByte(FileChannel channel, long position)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		if (channel.read(buffer, position) != 1) {
+			throw new IOException("Unable to read byte at " + position);
+		}
+		return buffer.get(0);
+	}
+
+	/**
+	 * Identifies a version of a file.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class CountKey {
+
+		private final String path;
+		private final long length;
+		private final long lastModified;
+
+		public CountKey(String path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CountKey)) {
+				return false;
+			}
+			CountKey other = (CountKey) obj;
+			return path.equals(other.path) && length == other.length
+					&& lastModified == other.lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = path.hashCode();
+			result = 31 * result + (int) (length ^ (length >>> 32));
+			return 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+		}
+	}
+}
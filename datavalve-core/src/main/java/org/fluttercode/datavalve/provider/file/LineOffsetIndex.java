@@ -0,0 +1,499 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the byte offsets at which lines start in a text file so a reader
+ * can seek straight to a line instead of reading every line before it. Lines
+ * are terminated by <code>\n</code>, <code>\r</code> or <code>\r\n</code> in
+ * the same way as {@link java.io.BufferedReader#readLine()}, which means the
+ * file must use a character set where these are single bytes such as ASCII,
+ * UTF-8 or ISO-8859-1.
+ * <p/>
+ * A quoted index treats the file as delimited records where line breaks
+ * inside double quoted values (as described in RFC 4180) don't end a record,
+ * so it indexes records rather than physical lines. As in
+ * {@link MappedCsvReader}, a quote only starts a quoted value at the start of
+ * a value and is an ordinary character anywhere else.
+ * <p/>
+ * To keep the index small for large files, only the offset of every
+ * <code>stride</code> line is kept. Seeking to a line means seeking to the
+ * nearest indexed line before it and skipping at most <code>stride - 1</code>
+ * lines.
+ * <p/>
+ * The index records the length and modification time of the file it was built
+ * from, and {@link #isCurrent(File)} can be used to check whether it is still
+ * valid. Indexes can be saved to and loaded from a sidecar file so they don't
+ * need to be rebuilt each time the file is opened.
+ * <p/>
+ * For files that are only ever appended to, {@link #extend(File)} creates an
+ * index for the grown file by scanning just the appended bytes. A checksum of
+ * the start of the file is kept so a file that has been truncated or replaced
+ * is detected and not extended.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class LineOffsetIndex {
+
+	public static final int DEFAULT_STRIDE = 16;
+
+	private static final int MAGIC = 0x44564c49;
+	private static final int VERSION = 3;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int HEAD_LENGTH = 4096;
+
+	private final long[] offsets;
+	private final int offsetCount;
+	private final int stride;
+	private final boolean quoted;
+	private final int lineCount;
+	private final long fileLength;
+	private final long lastModified;
+	private final int headLength;
+	private final long headChecksum;
+	// scanner state at the end of the file, used to carry on from there
+	private final boolean inLine;
+	private final boolean afterCarriageReturn;
+	private final boolean inQuotes;
+	private final boolean atValueStart;
+	private final boolean quotePending;
+	private boolean extended;
+
+	private LineOffsetIndex(Scanner scanner, long fileLength,
+			long lastModified, int headLength, long headChecksum) {
+		this.offsets = scanner.offsets;
+		this.offsetCount = scanner.offsetCount;
+		this.stride = scanner.stride;
+		this.quoted = scanner.quoted;
+		this.lineCount = scanner.lines;
+		this.inLine = scanner.inLine;
+		this.afterCarriageReturn = scanner.afterCarriageReturn;
+		this.inQuotes = scanner.inQuotes;
+		this.atValueStart = scanner.atValueStart;
+		this.quotePending = scanner.quotePending;
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.headLength = headLength;
+		this.headChecksum = headChecksum;
+	}
+
+	/**
+	 * Builds an index for the file keeping the offset of every line.
+	 */
+	public static LineOffsetIndex build(File file) throws IOException {
+		return build(file, 1, false);
+	}
+
+	/**
+	 * Builds an index of the lines in the file keeping the offset of every
+	 * <code>stride</code> line.
+	 */
+	public static LineOffsetIndex build(File file, int stride)
+			throws IOException {
+		return build(file, stride, false);
+	}
+
+	/**
+	 * Builds an index for the file by scanning its bytes.
+	 * 
+	 * @param file
+	 *            file to index
+	 * @param stride
+	 *            keep the offset of every <code>stride</code> line
+	 * @param quoted
+	 *            true to ignore line breaks inside double quoted values
+	 * @return the index for the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static LineOffsetIndex build(File file, int stride, boolean quoted)
+			throws IOException {
+		if (stride < 1) {
+			throw new IllegalArgumentException("Stride must be at least 1");
+		}
+		// take these before reading so a change while reading makes the
+		// index stale rather than silently wrong
+		long length = file.length();
+		long modified = file.lastModified();
+		Scanner scanner = new Scanner(new long[16], 0, stride, quoted);
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			int headLength = (int) Math.min(length, HEAD_LENGTH);
+			long headChecksum = checksum(channel, headLength);
+			scanner.scan(channel, 0, length);
+			return new LineOffsetIndex(scanner, length, modified, headLength,
+					headChecksum);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Creates an index for a file that has been appended to since this index
+	 * was built by scanning only the appended bytes. Only one index can be
+	 * extended from each index without copying the offsets, so indexes should
+	 * be replaced by the index returned from this method.
+	 * 
+	 * @param file
+	 *            the indexed file
+	 * @return the index for the grown file, this index if the file hasn't
+	 *         changed, or null if the file has been truncated or replaced and
+	 *         must be indexed from scratch
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public LineOffsetIndex extend(File file) throws IOException {
+		if (isCurrent(file)) {
+			return this;
+		}
+		long length = file.length();
+		long modified = file.lastModified();
+		if (length < fileLength) {
+			return null;
+		}
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			if (checksum(channel, headLength) != headChecksum) {
+				return null;
+			}
+			Scanner scanner = new Scanner(claimOffsets(), offsetCount, stride,
+					quoted);
+			scanner.lines = lineCount;
+			scanner.inLine = inLine;
+			scanner.afterCarriageReturn = afterCarriageReturn;
+			scanner.inQuotes = inQuotes;
+			scanner.atValueStart = atValueStart;
+			scanner.quotePending = quotePending;
+			scanner.scan(channel, fileLength, length);
+			return new LineOffsetIndex(scanner, length, modified, headLength,
+					headChecksum);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Returns the offsets array for an extended index to append to. The first
+	 * extension shares the array since this index never reads past its own
+	 * offsets, later ones get a copy so they don't overwrite each other.
+	 */
+	private synchronized long[] claimOffsets() {
+		if (!extended) {
+			extended = true;
+			return offsets;
+		}
+		long[] copy = new long[Math.max(16, offsetCount * 2)];
+		System.arraycopy(offsets, 0, copy, 0, offsetCount);
+		return copy;
+	}
+
+	private static long checksum(FileChannel channel, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()
+				&& channel.read(buffer, buffer.position()) != -1) {
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		return crc.getValue();
+	}
+
+	/**
+	 * Loads an index saved with {@link #save(File)}.
+	 * 
+	 * @param indexFile
+	 *            file the index was saved to
+	 * @param file
+	 *            the file that was indexed
+	 * @return the saved index or null if there isn't a saved index or it is no
+	 *         longer current for the file
+	 */
+	public static LineOffsetIndex load(File indexFile, File file) {
+		LineOffsetIndex index = read(indexFile);
+		return index == null || !index.isCurrent(file) ? null : index;
+	}
+
+	/**
+	 * Reads an index saved with {@link #save(File)} without checking whether
+	 * it is current, so it can be extended if the file has been appended to.
+	 * 
+	 * @param indexFile
+	 *            file the index was saved to
+	 * @return the saved index or null if there isn't a readable saved index
+	 */
+	public static LineOffsetIndex read(File indexFile) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile), BUFFER_SIZE));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return null;
+				}
+				long length = in.readLong();
+				long modified = in.readLong();
+				int headLength = in.readInt();
+				long headChecksum = in.readLong();
+				int stride = in.readInt();
+				boolean quoted = in.readBoolean();
+				int count = in.readInt();
+				long[] offsets = new long[Math.max(16, count)];
+				for (int i = 0; i < count; i++) {
+					offsets[i] = in.readLong();
+				}
+				Scanner scanner = new Scanner(offsets, count, stride, quoted);
+				scanner.lines = in.readInt();
+				scanner.inLine = in.readBoolean();
+				scanner.afterCarriageReturn = in.readBoolean();
+				scanner.inQuotes = in.readBoolean();
+				scanner.atValueStart = in.readBoolean();
+				scanner.quotePending = in.readBoolean();
+				return new LineOffsetIndex(scanner, length, modified,
+						headLength, headChecksum);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// treat a damaged index the same as a missing one
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the index to a sidecar file so it can be loaded with
+	 * {@link #load(File, File)}.
+	 * 
+	 * @param indexFile
+	 *            file to write the index to
+	 * @throws IOException
+	 *             if the index cannot be written
+	 */
+	public void save(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile), BUFFER_SIZE));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeInt(headLength);
+			out.writeLong(headChecksum);
+			out.writeInt(stride);
+			out.writeBoolean(quoted);
+			out.writeInt(offsetCount);
+			for (int i = 0; i < offsetCount; i++) {
+				out.writeLong(offsets[i]);
+			}
+			out.writeInt(lineCount);
+			out.writeBoolean(inLine);
+			out.writeBoolean(afterCarriageReturn);
+			out.writeBoolean(inQuotes);
+			out.writeBoolean(atValueStart);
+			out.writeBoolean(quotePending);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the indexed file
+	 * @return true if the file has the same length and modification time as
+	 *         when it was indexed
+	 */
+	public boolean isCurrent(File file) {
+		return file.length() == fileLength
+				&& file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Returns the offset of the nearest indexed line at or before the line.
+	 * The number of lines to skip from there to reach the line is given by
+	 * {@link #getLinesToSkip(int)}.
+	 * 
+	 * @param line
+	 *            zero based line number
+	 * @return byte offset to start reading from, or the length of the file if
+	 *         the line is past the end
+	 */
+	public long getSeekOffset(int line) {
+		if (line >= lineCount) {
+			return fileLength;
+		}
+		return offsets[line / stride];
+	}
+
+	/**
+	 * @param line
+	 *            zero based line number
+	 * @return the number of lines to skip after seeking to
+	 *         {@link #getSeekOffset(int)} to reach the line
+	 */
+	public int getLinesToSkip(int line) {
+		if (line >= lineCount) {
+			return 0;
+		}
+		return line % stride;
+	}
+
+	/**
+	 * @return true if line breaks inside quoted values were ignored when
+	 *         building the index
+	 */
+	public boolean isQuoted() {
+		return quoted;
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Finds line starts in a range of bytes, keeping enough state to carry on
+	 * from where it stopped.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class Scanner {
+
+		private final int stride;
+		private final boolean quoted;
+		private long[] offsets;
+		private int offsetCount;
+		private int lines;
+		private boolean inLine;
+		private boolean afterCarriageReturn;
+		private boolean inQuotes;
+		// a quote here would open a quoted value
+		private boolean atValueStart;
+		// a quote inside a quoted value that the next byte may escape
+		private boolean quotePending;
+
+		public Scanner(long[] offsets, int offsetCount, int stride,
+				boolean quoted) {
+			this.offsets = offsets;
+			this.offsetCount = offsetCount;
+			this.stride = stride;
+			this.quoted = quoted;
+		}
+
+		public void scan(FileChannel channel, long from, long to)
+				throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long position = from;
+			while (position < to) {
+				buffer.clear();
+				if (to - position < buffer.capacity()) {
+					buffer.limit((int) (to - position));
+				}
+				int read = channel.read(buffer, position);
+				if (read == -1) {
+					break;
+				}
+				for (int i = 0; i < read; i++, position++) {
+					byte b = buffer.get(i);
+					if (afterCarriageReturn) {
+						afterCarriageReturn = false;
+						if (b == '\n') {
+							continue;
+						}
+					}
+					if (!inLine) {
+						if (lines % stride == 0) {
+							addOffset(position);
+						}
+						lines++;
+						inLine = true;
+						atValueStart = true;
+					}
+					if (quotePending) {
+						quotePending = false;
+						if (b == '"') {
+							// escaped quote, the value carries on
+							continue;
+						}
+						// the value was closed by the quote
+						inQuotes = false;
+					}
+					if (inQuotes) {
+						quotePending = b == '"';
+						continue;
+					}
+					if (quoted && atValueStart && b == '"') {
+						inQuotes = true;
+						atValueStart = false;
+						continue;
+					}
+					atValueStart = b == ',';
+					if (b == '\n') {
+						inLine = false;
+					} else if (b == '\r') {
+						inLine = false;
+						afterCarriageReturn = true;
+					}
+				}
+			}
+		}
+
+		private void addOffset(long offset) {
+			if (offsetCount == offsets.length) {
+				long[] grown = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, grown, 0, offsetCount);
+				offsets = grown;
+			}
+			offsets[offsetCount++] = offset;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads records from a comma delimited file by memory mapping it and
+ * tokenizing the mapped bytes in place. Values may be enclosed in double
+ * quotes, in which case they can contain commas, line breaks and escaped
+ * (doubled) quotes as described in RFC 4180.
+ * <p/>
+ * Each call to {@link #next()} finds the column boundaries of the next record
+ * without copying or decoding anything. Values are only decoded when they are
+ * read from the {@link CsvRow} returned by {@link #getRow()}, which is reused
+ * for every record. The file must use a character set where commas, quotes and
+ * line breaks are single bytes, such as ASCII, UTF-8 or ISO-8859-1.
+ * <p/>
+ * The file is mapped a window at a time so files larger than the addressable
+ * size of a buffer can be read. A record that doesn't fit in the window causes
+ * the window to be moved to the start of the record, and grown if needed.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class MappedCsvReader {
+
+	public static final int DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+	private static final int NEED_MORE = -1;
+
+	private final FileInputStream stream;
+	private final FileChannel channel;
+	private final long fileLength;
+	private final MappedRow row;
+	private int windowSize;
+	private MappedByteBuffer buffer;
+	private long bufferStart;
+	private long position;
+
+	public MappedCsvReader(File file) throws IOException {
+		this(file, Charset.defaultCharset(), DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedCsvReader(File file, Charset charset) throws IOException {
+		this(file, charset, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param file
+	 *            file to read
+	 * @param charset
+	 *            character set values are decoded with
+	 * @param windowSize
+	 *            number of bytes of the file mapped at a time
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public MappedCsvReader(File file, Charset charset, int windowSize)
+			throws IOException {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException(
+					"Window size must be at least 1");
+		}
+		this.stream = new FileInputStream(file);
+		this.channel = stream.getChannel();
+		this.fileLength = channel.size();
+		this.windowSize = windowSize;
+		this.row = new MappedRow(charset);
+	}
+
+	/**
+	 * Moves to the next record.
+	 * 
+	 * @return true if there was another record, false at the end of the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public boolean next() throws IOException {
+		row.clear();
+		if (position >= fileLength) {
+			return false;
+		}
+		while (true) {
+			if (buffer == null || position < bufferStart
+					|| position >= bufferStart + buffer.limit()) {
+				map(position);
+			}
+			int end = tokenize((int) (position - bufferStart));
+			if (end != NEED_MORE) {
+				position = bufferStart + end;
+				return true;
+			}
+			// record runs past the window, move the window to the record and
+			// make it bigger if it already starts there
+			if (bufferStart == position) {
+				if (windowSize == Integer.MAX_VALUE) {
+					throw new IOException(String.format(
+							"Record at offset %d is too large to map",
+							position));
+				}
+				windowSize = windowSize > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE
+						: windowSize * 2;
+			}
+			map(position);
+		}
+	}
+
+	/**
+	 * Moves to a byte offset in the file, which should be the start of a
+	 * record.
+	 * 
+	 * @param offset
+	 *            offset of the next record to read
+	 */
+	public void seek(long offset) {
+		row.clear();
+		position = offset;
+	}
+
+	/**
+	 * Skips records without decoding them.
+	 * 
+	 * @param count
+	 *            number of records to skip
+	 * @return the number of records skipped, which is less than count if the
+	 *         end of the file was reached
+	 */
+	public int skip(int count) throws IOException {
+		int skipped = 0;
+		while (skipped < count && next()) {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return byte offset of the record after the current one
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return view of the current record, which is reused for the next record
+	 */
+	public CsvRow getRow() {
+		return row;
+	}
+
+	public void close() throws IOException {
+		buffer = null;
+		row.clear();
+		stream.close();
+	}
+
+	private void map(long start) throws IOException {
+		long size = Math.min(windowSize, fileLength - start);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		bufferStart = start;
+	}
+
+	/**
+	 * Finds the columns of the record starting at an index in the buffer.
+	 * 
+	 * @return the index after the end of the record or {@link #NEED_MORE} if
+	 *         the record isn't complete in the buffer
+	 */
+	private int tokenize(int start) {
+		MappedByteBuffer b = buffer;
+		int limit = b.limit();
+		boolean atEnd = bufferStart + limit >= fileLength;
+		// drop any values found by an earlier attempt at this record
+		row.clear();
+		int i = start;
+		while (true) {
+			if (i < limit && b.get(i) == '"') {
+				int valueStart = ++i;
+				boolean escaped = false;
+				while (true) {
+					if (i >= limit) {
+						if (!atEnd) {
+							return NEED_MORE;
+						}
+						// unterminated quote takes the rest of the file
+						row.add(valueStart, limit, escaped);
+						return limit;
+					}
+					if (b.get(i) == '"') {
+						if (i + 1 >= limit && !atEnd) {
+							return NEED_MORE;
+						}
+						if (i + 1 < limit && b.get(i + 1) == '"') {
+							escaped = true;
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				row.add(valueStart, i, escaped);
+				// skip the closing quote and anything before the delimiter
+				i++;
+				while (i < limit && !isDelimiter(b.get(i))) {
+					i++;
+				}
+			} else {
+				int valueStart = i;
+				while (i < limit && !isDelimiter(b.get(i))) {
+					i++;
+				}
+				if (i >= limit && !atEnd) {
+					return NEED_MORE;
+				}
+				row.add(valueStart, i, false);
+			}
+			if (i >= limit) {
+				return atEnd ? limit : NEED_MORE;
+			}
+			byte c = b.get(i);
+			if (c == ',') {
+				i++;
+				if (i >= limit) {
+					if (!atEnd) {
+						return NEED_MORE;
+					}
+					row.add(i, i, false);
+					return limit;
+				}
+				continue;
+			}
+			if (c == '\r') {
+				if (i + 1 < limit) {
+					return b.get(i + 1) == '\n' ? i + 2 : i + 1;
+				}
+				return atEnd ? i + 1 : NEED_MORE;
+			}
+			// new line
+			return i + 1;
+		}
+	}
+
+	private static boolean isDelimiter(byte b) {
+		return b == ',' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * Row view holding the boundaries of the values in the mapped buffer.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class MappedRow implements CsvRow {
+
+		private final Charset charset;
+		private int[] starts = new int[16];
+		private int[] ends = new int[16];
+		private boolean[] escaped = new boolean[16];
+		private int count;
+		private byte[] scratch = new byte[256];
+
+		public MappedRow(Charset charset) {
+			this.charset = charset;
+		}
+
+		void clear() {
+			count = 0;
+		}
+
+		void add(int start, int end, boolean hasEscapes) {
+			if (count == starts.length) {
+				int size = count * 2;
+				int[] newStarts = new int[size];
+				int[] newEnds = new int[size];
+				boolean[] newEscaped = new boolean[size];
+				System.arraycopy(starts, 0, newStarts, 0, count);
+				System.arraycopy(ends, 0, newEnds, 0, count);
+				System.arraycopy(escaped, 0, newEscaped, 0, count);
+				starts = newStarts;
+				ends = newEnds;
+				escaped = newEscaped;
+			}
+			starts[count] = start;
+			ends[count] = end;
+			escaped[count] = hasEscapes;
+			count++;
+		}
+
+		public int getColumnCount() {
+			return count;
+		}
+
+		public String getString(int column) {
+			if (column >= count) {
+				return null;
+			}
+			int length = ends[column] - starts[column];
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			int copied = 0;
+			for (int i = starts[column]; i < ends[column]; i++) {
+				byte b = buffer.get(i);
+				scratch[copied++] = b;
+				if (b == '"' && escaped[column]) {
+					// skip the second quote of the pair
+					i++;
+				}
+			}
+			return new String(scratch, 0, copied, charset);
+		}
+
+		public int getInt(int column) {
+			long value = getLong(column);
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				throw new NumberFormatException("Value out of int range : "
+						+ value);
+			}
+			return (int) value;
+		}
+
+		public long getLong(int column) {
+			if (column >= count) {
+				throw new NumberFormatException("Missing column " + column);
+			}
+			int i = starts[column];
+			int end = ends[column];
+			if (i == end) {
+				throw new NumberFormatException("Empty column " + column);
+			}
+			boolean negative = false;
+			byte first = buffer.get(i);
+			if (first == '-' || first == '+') {
+				negative = first == '-';
+				if (++i == end) {
+					throw invalidNumber(column);
+				}
+			}
+			// accumulate negatively so Long.MIN_VALUE can be parsed
+			long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+			long multiplyLimit = limit / 10;
+			long result = 0;
+			for (; i < end; i++) {
+				int digit = buffer.get(i) - '0';
+				if (digit < 0 || digit > 9 || result < multiplyLimit) {
+					throw invalidNumber(column);
+				}
+				result *= 10;
+				if (result < limit + digit) {
+					throw invalidNumber(column);
+				}
+				result -= digit;
+			}
+			return negative ? result : -result;
+		}
+
+		private NumberFormatException invalidNumber(int column) {
+			return new NumberFormatException(String.format(
+					"Invalid number '%s' in column %d", getString(column),
+					column));
+		}
+
+		public boolean isEmpty(int column) {
+			return column >= count || starts[column] == ends[column];
+		}
+
+		public String[] toArray() {
+			String[] values = new String[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = getString(i);
+			}
+			return values;
+		}
+	}
+}
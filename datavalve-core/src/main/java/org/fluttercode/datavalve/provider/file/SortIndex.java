@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.Predicate;
+
+/**
+ * Sorted permutation of the lines of a file stored on disk. The index holds
+ * the line numbers of the rows in order of their sort keys, so a page of
+ * sorted rows is read by reading a slice of line numbers and then reading
+ * those lines. Descending pages read the same index from the other end.
+ * <p/>
+ * The index is built with an external merge sort so only a bounded number of
+ * sort keys are held in memory. Keys are sorted in runs that are written to
+ * temporary files and merged, in several passes if there are many runs. Rows
+ * with equal keys keep their file order.
+ * <p/>
+ * The index records the length and modification time of the file it was built
+ * from so it can be checked with {@link #isCurrent(File)} and reused across
+ * runs with {@link #load(File, File, String)}. It also records the identity of
+ * the sort key so an index built with a different or changed extractor is not
+ * loaded.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class SortIndex {
+
+	public static final int DEFAULT_MAX_ENTRIES_IN_MEMORY = 100000;
+
+	private static final int MAGIC = 0x44565349;
+	private static final int VERSION = 2;
+	// header size without the sort key identity
+	private static final int FIXED_HEADER_SIZE = 28;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File indexFile;
+	private final String keyId;
+	private final int headerSize;
+	private final int size;
+	private final long fileLength;
+	private final long lastModified;
+
+	private SortIndex(File indexFile, String keyId, int size,
+			long fileLength, long lastModified) {
+		this.indexFile = indexFile;
+		this.keyId = keyId;
+		this.headerSize = getHeaderSize(keyId);
+		this.size = size;
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Builds a sort index from the rows of a file.
+	 * 
+	 * @param rows
+	 *            cursor over every row of the file in file order, which is
+	 *            closed when the index is built
+	 * @param extractor
+	 *            extracts the sort key from each row
+	 * @param keyId
+	 *            identity of the sort key (i.e. the extractor class and
+	 *            version) recorded in the index
+	 * @param filter
+	 *            rows to include in the index, or null to include every row
+	 * @param indexFile
+	 *            file to write the index to
+	 * @param tempDirectory
+	 *            directory for the sorted runs or null for the default
+	 *            temporary directory
+	 * @param maxEntriesInMemory
+	 *            number of keys sorted in memory before they are written to
+	 *            a run
+	 * @param file
+	 *            the file the rows are read from
+	 * @return the index
+	 * @throws IOException
+	 *             if the rows or the index cannot be read or written
+	 */
+	public static <T> SortIndex build(DataCursor<T> rows,
+			SortKeyExtractor<? super T> extractor, String keyId,
+			Predicate<? super T> filter, File indexFile, File tempDirectory,
+			int maxEntriesInMemory, File file) throws IOException {
+		// take these before reading so a change while reading makes the
+		// index stale rather than silently wrong
+		long length = file.length();
+		long modified = file.lastModified();
+		ExternalSorter sorter = new ExternalSorter(tempDirectory,
+				maxEntriesInMemory);
+		try {
+			int line = 0;
+			try {
+				while (rows.hasNext()) {
+					T row = rows.next();
+					if (filter == null || filter.accept(row)) {
+						sorter.add(extractor.getSortKey(row), line);
+					}
+					line++;
+				}
+			} finally {
+				rows.close();
+			}
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(indexFile),
+							BUFFER_SIZE));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(length);
+				out.writeLong(modified);
+				out.writeInt(sorter.getSize());
+				out.writeUTF(keyId);
+				sorter.finish(new ExternalSorter.EntryHandler() {
+					public void entry(Object key, int line) throws IOException {
+						out.writeInt(line);
+					}
+				});
+			} finally {
+				out.close();
+			}
+			return new SortIndex(indexFile, keyId, sorter.getSize(), length,
+					modified);
+		} finally {
+			sorter.close();
+		}
+	}
+
+	/**
+	 * Loads an index built by
+	 * {@link #build(DataCursor, SortKeyExtractor, String, Predicate, File, File, int, File)}
+	 * .
+	 * 
+	 * @param indexFile
+	 *            file the index was written to
+	 * @param file
+	 *            the file the index was built from
+	 * @param keyId
+	 *            identity of the sort key the index must have been built with
+	 * @return the index, or null if there is no readable index, it is no
+	 *         longer current for the file or it was built for another sort key
+	 */
+	public static SortIndex load(File indexFile, File file, String keyId) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return null;
+				}
+				long length = in.readLong();
+				long modified = in.readLong();
+				int size = in.readInt();
+				if (!keyId.equals(in.readUTF())) {
+					return null;
+				}
+				SortIndex index = new SortIndex(indexFile, keyId, size, length,
+						modified);
+				if (!index.isCurrent(file)
+						|| indexFile.length() != index.headerSize + 4L * size) {
+					return null;
+				}
+				return index;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// treat a damaged index the same as a missing one
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the line numbers of a page of sorted rows.
+	 * 
+	 * @param first
+	 *            zero based position of the first row in sorted order
+	 * @param count
+	 *            maximum number of rows to read, or null to read to the end
+	 * @param ascending
+	 *            true to read in ascending order, false for descending
+	 * @return line numbers of the rows in the requested order
+	 * @throws IOException
+	 *             if the index cannot be read
+	 */
+	public int[] read(int first, Integer count, boolean ascending)
+			throws IOException {
+		int available = Math.max(0, size - first);
+		int n = count == null ? available : Math.min(count, available);
+		int[] lines = new int[n];
+		if (n == 0) {
+			return lines;
+		}
+		// descending pages are the mirror slice of the ascending index
+		int start = ascending ? first : size - first - n;
+		byte[] bytes = new byte[n * 4];
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			raf.seek(headerSize + 4L * start);
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		for (int i = 0; i < n; i++) {
+			lines[ascending ? i : n - 1 - i] = buffer.getInt();
+		}
+		return lines;
+	}
+
+	private static int getHeaderSize(String keyId) {
+		// written as a two byte length and the modified UTF-8 bytes
+		int length = 0;
+		for (int i = 0; i < keyId.length(); i++) {
+			char c = keyId.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+		}
+		return FIXED_HEADER_SIZE + 2 + length;
+	}
+
+	/**
+	 * @param file
+	 *            the file the index was built from
+	 * @return true if the file has the same length and modification time as
+	 *         when the index was built
+	 */
+	public boolean isCurrent(File file) {
+		return file.length() == fileLength
+				&& file.lastModified() == lastModified;
+	}
+
+	/**
+	 * @return the number of rows in the index
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the identity of the sort key the index was built with
+	 */
+	public String getKeyId() {
+		return keyId;
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Deletes the file holding the index.
+	 */
+	public void delete() {
+		indexFile.delete();
+	}
+}
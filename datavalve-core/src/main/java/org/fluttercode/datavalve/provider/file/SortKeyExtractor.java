@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+/**
+ * Extracts the value a text file provider sorts objects on for an order key.
+ * Values must be a {@link String}, a {@link Number} or null so they can be
+ * written to disk while sorting. Whole numbers are compared as longs, other
+ * numbers as doubles, and null values sort first.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            type of object the value is extracted from
+ */
+public interface SortKeyExtractor<T> {
+
+	/**
+	 * @param object
+	 *            object created from a line of the file
+	 * @return the value to sort the object on
+	 */
+	Object getSortKey(T object);
+}
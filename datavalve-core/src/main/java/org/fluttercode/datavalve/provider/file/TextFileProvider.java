@@ -25,16 +25,58 @@ package org.fluttercode.datavalve.provider.file;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.fluttercode.datavalve.DataCursor;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
 
 /**
  * Abstract Text file provider that can be used to use a text file as a
  * datasource with an object definition per line.
+ * <p/>
+ * Cursors returned from {@link #fetchCursor(Paginator)} read the file a line
+ * at a time as the cursor is iterated so the whole file is never held in
+ * memory.
+ * <p/>
+ * By default a {@link LineOffsetIndex} is built the first time the file is
+ * read so pages can seek straight to their first line and the result count
+ * comes from the index. The index is rebuilt when the size or modification
+ * time of the file changes. It can be saved to a sidecar file (see
+ * {@link #setPersistLineIndex(boolean)}) so it is reused across runs. Files
+ * that are only appended to can use tail mode (see
+ * {@link #setTailMode(boolean)}) so only the appended bytes are indexed as the
+ * file grows.
+ * <p/>
+ * Results can be restricted by adding {@link Predicate} instances with
+ * {@link #addRestriction(Predicate)}. Restricted results are found by scanning
+ * the file in chunks of lines split on the line index, on the executor set
+ * with {@link #setScanExecutor(ExecutorService)} if there is one. The number of
+ * matches in each chunk is kept until the file or the restrictions change, so
+ * later pages only rescan the chunks they come from.
+ * {@link #createObjectFromLine(String)} must be thread safe when a scan
+ * executor is used.
+ * <p/>
+ * Results can be sorted by mapping order keys to {@link SortKeyExtractor}
+ * instances in {@link #getOrderKeyMap()}. The first time an order key is
+ * used, a {@link SortIndex} of the line numbers in sorted order is built on
+ * disk with an external merge sort so files larger than the heap can be
+ * sorted. Pages are then read by looking up their line numbers in the index,
+ * which serves both ascending and descending order.
  * 
  * @author Andy Gibson
  * 
@@ -43,39 +85,184 @@ public abstract class TextFileProvider<T> extends AbstractFileBasedProvider<T> {
 
 	private static final long serialVersionUID = 1L;
 
+	private boolean useLineIndex = true;
+	private boolean persistLineIndex = false;
+	private int lineIndexStride = LineOffsetIndex.DEFAULT_STRIDE;
+	private boolean tailMode = false;
+	private transient LineOffsetIndex lineIndex;
+
+	private final List<Predicate<? super T>> restrictions = new ArrayList<Predicate<? super T>>();
+	private int scanParallelism = Runtime.getRuntime().availableProcessors();
+	private int maxRetainedMatches = 1000;
+	private transient ExecutorService scanExecutor;
+	private final Object scanLock = new Object[0];
+	private transient ScanResult<T> lastScan;
+
+	private final Map<String, SortKeyExtractor<? super T>> orderKeyMap = new HashMap<String, SortKeyExtractor<? super T>>();
+	private String sortDirectory;
+	private int sortBufferSize = SortIndex.DEFAULT_MAX_ENTRIES_IN_MEMORY;
+	private final Object sortLock = new Object[0];
+	private transient Map<String, SortIndex> sortIndexes;
+
 	public TextFileProvider(String fileName) {
 		super(fileName);
 	}
 
-	private int countNumberOfLines(File file) {
-		int count = 0;
-		BufferedReader reader = null;
-		try {
-			try {
-				reader = new BufferedReader(new FileReader(file));
-				while (reader.readLine() != null) {
-					count++;
+	/**
+	 * Returns the line index for the file, loading or building it if there is
+	 * no index or the file has changed since it was built. In tail mode, an
+	 * index for a file that has grown is extended with the appended lines
+	 * instead of being rebuilt.
+	 * 
+	 * @return the current index for the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected synchronized LineOffsetIndex getLineIndex() throws IOException {
+		File file = getFile();
+		boolean quoted = isQuotedLineIndex();
+		if (lineIndex != null && lineIndex.isQuoted() == quoted) {
+			LineOffsetIndex index = tailMode ? lineIndex.extend(file)
+					: lineIndex;
+			// an extended index is consistent up to the length it scanned
+			// even if more has been appended since
+			if (index != null && (tailMode || index.isCurrent(file))) {
+				lineIndex = index;
+				return index;
+			}
+		}
+		LineOffsetIndex index = null;
+		if (persistLineIndex) {
+			File indexFile = getLineIndexFile();
+			if (tailMode) {
+				index = LineOffsetIndex.read(indexFile);
+				if (index != null && index.isQuoted() == quoted) {
+					index = index.extend(file);
 				}
-			} finally {
-				if (reader != null) {
-					reader.close();
+			} else {
+				index = LineOffsetIndex.load(indexFile, file);
+			}
+			if (index != null && index.isQuoted() != quoted) {
+				index = null;
+			}
+		}
+		if (index == null) {
+			index = LineOffsetIndex.build(file, lineIndexStride, quoted);
+			if (persistLineIndex) {
+				try {
+					index.save(getLineIndexFile());
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 			}
+		}
+		lineIndex = index;
+		return index;
+	}
+
+	/**
+	 * @return true if the line index should treat line breaks inside quoted
+	 *         values as part of the line. Returns false by default.
+	 */
+	protected boolean isQuotedLineIndex() {
+		return false;
+	}
 
+	/**
+	 * @return the sidecar file the line index is saved to, which defaults to
+	 *         the file name with <code>.idx</code> appended
+	 */
+	protected File getLineIndexFile() {
+		return new File(getFileName() + ".idx");
+	}
+
+	/**
+	 * Opens a reader on the file positioned at the start of a line, using the
+	 * line index to seek to it if the index is enabled.
+	 * 
+	 * @param firstLine
+	 *            zero based number of the first line to read
+	 * @return reader positioned at the line
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected BufferedReader openReader(int firstLine) throws IOException {
+		BufferedReader reader;
+		int skip = firstLine;
+		if (useLineIndex && firstLine != 0) {
+			LineOffsetIndex index = getLineIndex();
+			FileInputStream stream = new FileInputStream(getFile());
+			try {
+				stream.getChannel().position(index.getSeekOffset(firstLine));
+			} catch (IOException e) {
+				stream.close();
+				throw e;
+			}
+			reader = new BufferedReader(new InputStreamReader(stream));
+			skip = index.getLinesToSkip(firstLine);
+		} else {
+			reader = new BufferedReader(new FileReader(getFile()));
+		}
+		try {
+			while (skip != 0 && reader.readLine() != null) {
+				skip--;
+			}
+		} catch (IOException e) {
+			closeQuietly(reader);
+			throw e;
+		}
+		return reader;
+	}
+
+	private int countNumberOfLines(File file) {
+		try {
+			return new LineCounter(scanExecutor).count(file);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return 0;
 		}
-		return count;
 	}
 
 	@Override
 	protected Integer doFetchResultCount() {
+		if (isRestricted()) {
+			try {
+				return scan(0).getMatchCount();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+		if (useLineIndex) {
+			try {
+				return getLineIndex().getLineCount();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
 		return countNumberOfLines(getFile());
 	}
 
-	// TODO change this implementation so it doesn't need to get the row count
 	@Override
 	protected List<T> doFetchResults(Paginator paginator) {
+		SortKeyExtractor<? super T> extractor = getSortKeyExtractor(paginator);
+		if (extractor != null) {
+			try {
+				return fetchSortedResults(paginator, extractor);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return new ArrayList<T>();
+			}
+		}
+		if (isRestricted()) {
+			try {
+				return fetchRestrictedResults(paginator);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return new ArrayList<T>();
+			}
+		}
 		Integer rowCount = paginator.getMaxRows() == null ? null : paginator
 				.getMaxRows();
 		int firstResult = paginator.getFirstResult();
@@ -85,17 +272,7 @@ public abstract class TextFileProvider<T> extends AbstractFileBasedProvider<T> {
 		String line;
 		try {
 			try {
-				reader = new BufferedReader(new FileReader(getFile()));
-
-				// Put this 'if' in as an extra measure, we don't want to use a
-				// readline if firstresult = 0 since we want to start at the
-				// beginning. Put this check in because we don't want to rely on
-				// fail fast checks in the while statement.
-				if (firstResult != 0) {
-					while (firstResult != 0 && reader.readLine() != null) {
-						firstResult--;
-					}
-				}
+				reader = openReader(firstResult);
 
 				while ((line = reader.readLine()) != null
 						&& (rowCount == null || rowCount != 0)) {
@@ -121,5 +298,905 @@ public abstract class TextFileProvider<T> extends AbstractFileBasedProvider<T> {
 
 	}
 
+	@Override
+	protected DataCursor<T> doFetchCursor(Paginator paginator) {
+		try {
+			SortKeyExtractor<? super T> extractor = getSortKeyExtractor(paginator);
+			if (extractor != null) {
+				SortIndex index = getSortIndex(paginator.getOrderKey(),
+						extractor);
+				return new SortedCursor(index, paginator.getFirstResult(),
+						paginator.getMaxRows(), paginator.isOrderAscending());
+			}
+			if (isRestricted()) {
+				return new RestrictedCursor(openCursor(0, null), paginator
+						.getFirstResult(), paginator.getMaxRows());
+			}
+			return openCursor(paginator.getFirstResult(), paginator
+					.getMaxRows());
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format(
+					"Unable to open cursor on file '%s'", getFileName()), e);
+		}
+	}
+
+	/**
+	 * Opens a cursor over the unrestricted objects in the file.
+	 * 
+	 * @param firstLine
+	 *            zero based number of the first line to read
+	 * @param maxLines
+	 *            maximum number of lines to read or null to read to the end
+	 * @return cursor over the objects created from the lines
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected DataCursor<T> openCursor(int firstLine, Integer maxLines)
+			throws IOException {
+		return new LineCursor(openReader(firstLine), maxLines);
+	}
+
+	/**
+	 * @return the sort key extractor for the order key of the paginator or
+	 *         null if the results are not sorted
+	 */
+	protected SortKeyExtractor<? super T> getSortKeyExtractor(
+			Paginator paginator) {
+		String orderKey = paginator.getOrderKey();
+		return orderKey == null ? null : orderKeyMap.get(orderKey);
+	}
+
+	private List<T> fetchSortedResults(Paginator paginator,
+			SortKeyExtractor<? super T> extractor) throws IOException {
+		SortIndex index = getSortIndex(paginator.getOrderKey(), extractor);
+		int[] lines = index.read(paginator.getFirstResult(), paginator
+				.getMaxRows(), paginator.isOrderAscending());
+		List<T> results = readObjects(lines);
+		paginator.setNextAvailable(paginator.getFirstResult() + lines.length < index
+				.getSize());
+		return results;
+	}
+
+	/**
+	 * Reads the objects on a set of lines of the file through a single
+	 * reader. The lines are read in file order, seeking forward with the line
+	 * index past the lines in between, and returned in the order they were
+	 * requested in.
+	 * 
+	 * @param lines
+	 *            zero based numbers of the lines to read, in any order
+	 * @return the objects on the lines, skipping any lines past the end of the
+	 *         file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected List<T> readObjects(int[] lines) throws IOException {
+		if (lines.length == 0) {
+			return new ArrayList<T>();
+		}
+		// sort the lines with their positions packed into the low bits
+		long[] order = new long[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			order[i] = ((long) lines[i] << 32) | i;
+		}
+		Arrays.sort(order);
+
+		List<T> found = new ArrayList<T>(Collections.<T> nCopies(
+				lines.length, null));
+		LineReader reader = openLineReader();
+		try {
+			for (long entry : order) {
+				found.set((int) entry, reader.read((int) (entry >>> 32)));
+			}
+		} finally {
+			reader.close();
+		}
+		List<T> results = new ArrayList<T>(lines.length);
+		for (T object : found) {
+			if (object != null) {
+				results.add(object);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Opens a reader on the file that reads the objects on given lines,
+	 * seeking forward with the line index past the lines in between.
+	 * Reading the lines in file order makes one pass over the file.
+	 * 
+	 * @return a new reader on the file
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	protected LineReader openLineReader() throws IOException {
+		return new LineReader(getLineIndex(), openRecordReader());
+	}
+
+	/**
+	 * Reads the objects on lines of the file through a single
+	 * {@link RecordReader}, only seeking when the next line is behind the
+	 * reader or a later line index block can be seeked to.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	protected class LineReader {
+
+		private final LineOffsetIndex index;
+		private final RecordReader<T> reader;
+		// number of the line the reader returns next, -1 before a seek
+		private int current = -1;
+
+		private LineReader(LineOffsetIndex index, RecordReader<T> reader) {
+			this.index = index;
+			this.reader = reader;
+		}
+
+		/**
+		 * @param line
+		 *            zero based number of the line
+		 * @return the object on the line or null if there is no such line
+		 */
+		public T read(int line) throws IOException {
+			int blockStart = line - index.getLinesToSkip(line);
+			if (current == -1 || line < current || blockStart > current) {
+				reader.seek(index.getSeekOffset(line));
+				current = blockStart;
+			}
+			reader.skip(line - current);
+			current = line + 1;
+			return reader.read();
+		}
+
+		public void close() {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Opens a reader used by {@link #openLineReader()} to seek to lines of the
+	 * file and read the objects on them.
+	 * 
+	 * @return a new reader on the file
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	protected RecordReader<T> openRecordReader() throws IOException {
+		final FileInputStream stream = new FileInputStream(getFile());
+		return new RecordReader<T>() {
+
+			private BufferedReader reader;
+
+			public void seek(long offset) throws IOException {
+				stream.getChannel().position(offset);
+				// drop anything the previous reader buffered
+				reader = new BufferedReader(new InputStreamReader(stream));
+			}
+
+			public void skip(int count) throws IOException {
+				while (count-- > 0 && reader.readLine() != null) {
+				}
+			}
+
+			public T read() throws IOException {
+				String line = reader.readLine();
+				return line == null ? null : createObjectFromLine(line);
+			}
+
+			public void close() {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reader that can seek to the start of a line of the file and read the
+	 * objects on the lines from there.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 * @param <T>
+	 *            type of object read from the file
+	 */
+	protected interface RecordReader<T> {
+
+		/**
+		 * Moves the reader to a byte offset at the start of a line.
+		 */
+		void seek(long offset) throws IOException;
+
+		/**
+		 * Skips over lines without creating objects from them.
+		 */
+		void skip(int count) throws IOException;
+
+		/**
+		 * @return the object on the next line or null at the end of the file
+		 */
+		T read() throws IOException;
+
+		void close();
+	}
+
+	/**
+	 * Reads the object on one line of the file.
+	 * 
+	 * @param line
+	 *            zero based number of the line
+	 * @return the object or null if there is no such line
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	protected T readObject(int line) throws IOException {
+		DataCursor<T> cursor = openCursor(line, 1);
+		try {
+			return cursor.hasNext() ? cursor.next() : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the sort index for an order key, loading or building it if there
+	 * is no index, the file has changed since it was built or it was built
+	 * with another sort key. Indexes of unrestricted results are kept in the
+	 * sort directory and reused across runs. Indexes of restricted results are
+	 * only kept until the restrictions change. Sorting requires the line index
+	 * since the rows of each page are read by seeking to their lines.
+	 */
+	private SortIndex getSortIndex(String orderKey,
+			SortKeyExtractor<? super T> extractor) throws IOException {
+		if (!useLineIndex) {
+			throw new IllegalStateException(String.format(
+					"Sorting file '%s' requires the line index", getFileName()));
+		}
+		File file = getFile();
+		String keyId = getSortKeyId(orderKey, extractor);
+		synchronized (sortLock) {
+			if (sortIndexes == null) {
+				sortIndexes = new HashMap<String, SortIndex>();
+			}
+			SortIndex index = sortIndexes.get(orderKey);
+			if (index != null && index.isCurrent(file)
+					&& index.getKeyId().equals(keyId)) {
+				return index;
+			}
+			File indexFile = getSortIndexFile(orderKey);
+			if (index != null && !index.getIndexFile().equals(indexFile)) {
+				index.delete();
+			}
+			index = null;
+			Predicate<T> filter = null;
+			if (isRestricted()) {
+				filter = new Predicate<T>() {
+					public boolean accept(T object) {
+						return TextFileProvider.this.accept(object);
+					}
+				};
+				// deleted when the restrictions change
+				indexFile = File.createTempFile("restricted", ".sort",
+						getSortDirectoryFile());
+			} else {
+				index = SortIndex.load(indexFile, file, keyId);
+			}
+			if (index == null) {
+				index = SortIndex.build(openCursor(0, null), extractor, keyId,
+						filter, indexFile, getSortDirectoryFile(),
+						sortBufferSize, file);
+			}
+			sortIndexes.put(orderKey, index);
+			return index;
+		}
+	}
+
+	/**
+	 * Returns the identity of the sort key recorded in sort indexes so an
+	 * index is only reused with the same provider and extractor. By default
+	 * this is made up of the provider class, the order key and the extractor
+	 * class. Override to add a version if an extractor changes the keys it
+	 * returns.
+	 * 
+	 * @param orderKey
+	 *            the order key being sorted on
+	 * @param extractor
+	 *            the extractor for the order key
+	 * @return the identity of the sort key
+	 */
+	protected String getSortKeyId(String orderKey,
+			SortKeyExtractor<? super T> extractor) {
+		return getClass().getName() + "#" + orderKey + "#"
+				+ extractor.getClass().getName();
+	}
+
+	/**
+	 * @param orderKey
+	 *            the order key being sorted on
+	 * @return the file the sort index for unrestricted results is kept in
+	 */
+	protected File getSortIndexFile(String orderKey) {
+		String id = Integer.toHexString((getFile().getAbsolutePath() + "#" + orderKey)
+				.hashCode());
+		return new File(getSortDirectoryFile(), getFile().getName() + "-" + id
+				+ ".sort");
+	}
+
+	/**
+	 * @return the directory sort indexes and temporary sort files are kept in
+	 */
+	protected File getSortDirectoryFile() {
+		return new File(sortDirectory == null ? System
+				.getProperty("java.io.tmpdir") : sortDirectory);
+	}
+
+	/**
+	 * Discards the sort indexes held in memory, deleting any built from
+	 * restricted results.
+	 */
+	private void invalidateSortIndexes() {
+		synchronized (sortLock) {
+			if (sortIndexes == null) {
+				return;
+			}
+			for (Map.Entry<String, SortIndex> entry : sortIndexes.entrySet()) {
+				SortIndex index = entry.getValue();
+				if (!index.getIndexFile().equals(
+						getSortIndexFile(entry.getKey()))) {
+					index.delete();
+				}
+			}
+			sortIndexes.clear();
+		}
+	}
+
+	@Override
+	protected boolean isConcurrentFetchSupported() {
+		// the count comes from the same scan as the results
+		return !isRestricted();
+	}
+
+	private List<T> fetchRestrictedResults(Paginator paginator)
+			throws IOException {
+		int first = paginator.getFirstResult();
+		Integer maxRows = paginator.getMaxRows();
+		long end = maxRows == null ? Long.MAX_VALUE : (long) first + maxRows;
+		int retain = end <= maxRetainedMatches ? (int) end : 0;
+		ScanResult<T> scan = scan(retain);
+
+		List<T> results = new ArrayList<T>();
+		long before = 0;
+		for (Chunk<T> chunk : scan.chunks) {
+			long chunkEnd = before + chunk.matches;
+			if (chunkEnd > first && before < end) {
+				int from = (int) Math.max(first - before, 0);
+				int to = (int) Math.min(end - before, chunk.matches);
+				if (to <= chunk.retained.size()) {
+					results.addAll(chunk.retained.subList(from, to));
+				} else {
+					collectMatches(chunk, from, to, results);
+				}
+			}
+			before = chunkEnd;
+			if (before >= end) {
+				break;
+			}
+		}
+		paginator.setNextAvailable(first + results.size() < scan
+				.getMatchCount());
+		return results;
+	}
+
+	/**
+	 * Returns the matches in each chunk of the file, scanning the file if it
+	 * or the restrictions have changed since the last scan.
+	 * 
+	 * @param retain
+	 *            number of matches to keep from each chunk when scanning
+	 */
+	private ScanResult<T> scan(int retain) throws IOException {
+		File file = getFile();
+		synchronized (scanLock) {
+			if (lastScan != null && lastScan.isCurrent(file)) {
+				return lastScan;
+			}
+			long length = file.length();
+			long modified = file.lastModified();
+			List<Chunk<T>> chunks = splitIntoChunks();
+			if (scanExecutor == null || chunks.size() < 2) {
+				for (Chunk<T> chunk : chunks) {
+					countMatches(chunk, retain);
+				}
+			} else {
+				List<Callable<Chunk<T>>> tasks = new ArrayList<Callable<Chunk<T>>>();
+				for (final Chunk<T> chunk : chunks) {
+					final int chunkRetain = retain;
+					tasks.add(new Callable<Chunk<T>>() {
+						public Chunk<T> call() throws Exception {
+							countMatches(chunk, chunkRetain);
+							return chunk;
+						}
+					});
+				}
+				waitFor(tasks);
+			}
+			lastScan = new ScanResult<T>(chunks, length, modified);
+			return lastScan;
+		}
+	}
+
+	private void waitFor(List<Callable<Chunk<T>>> tasks) throws IOException {
+		try {
+			for (Future<Chunk<T>> future : scanExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(String.format(
+					"Interrupted scanning file '%s'", getFileName()), e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(String.format(
+					"Error scanning file '%s'", getFileName()), cause);
+		}
+	}
+
+	/**
+	 * Splits the file into chunks of lines that start on indexed lines so
+	 * each chunk can seek straight to its first line.
+	 */
+	private List<Chunk<T>> splitIntoChunks() throws IOException {
+		List<Chunk<T>> chunks = new ArrayList<Chunk<T>>();
+		if (!useLineIndex || scanExecutor == null) {
+			chunks.add(new Chunk<T>(0, null));
+			return chunks;
+		}
+		LineOffsetIndex index = getLineIndex();
+		int lines = index.getLineCount();
+		int stride = index.getStride();
+		int chunkCount = Math.max(1, scanParallelism * 4);
+		int chunkLines = (lines + chunkCount - 1) / chunkCount;
+		chunkLines = Math.max(1, (chunkLines + stride - 1) / stride) * stride;
+		for (int line = 0; line < lines; line += chunkLines) {
+			chunks.add(new Chunk<T>(line, Math.min(chunkLines, lines - line)));
+		}
+		return chunks;
+	}
+
+	private void countMatches(Chunk<T> chunk, int retain) throws IOException {
+		DataCursor<T> cursor = openCursor(chunk.firstLine, chunk.lineCount);
+		try {
+			while (cursor.hasNext()) {
+				T object = cursor.next();
+				if (accept(object)) {
+					if (chunk.matches < retain) {
+						chunk.retained.add(object);
+					}
+					chunk.matches++;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void collectMatches(Chunk<T> chunk, int from, int to,
+			List<T> results) throws IOException {
+		DataCursor<T> cursor = openCursor(chunk.firstLine, chunk.lineCount);
+		try {
+			int match = 0;
+			while (match < to && cursor.hasNext()) {
+				T object = cursor.next();
+				if (accept(object)) {
+					if (match >= from) {
+						results.add(object);
+					}
+					match++;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Tests an object against the restrictions.
+	 * 
+	 * @param object
+	 *            object created from a line of the file
+	 * @return true if the object passes all the restrictions
+	 */
+	protected boolean accept(T object) {
+		for (Predicate<? super T> restriction : restrictions) {
+			if (!restriction.accept(object)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a restriction that objects must pass to be included in the
+	 * results.
+	 * 
+	 * @param restriction
+	 *            condition objects must meet
+	 */
+	public void addRestriction(Predicate<? super T> restriction) {
+		restrictions.add(restriction);
+		invalidateScan();
+	}
+
+	public void clearRestrictions() {
+		restrictions.clear();
+		invalidateScan();
+	}
+
+	public List<Predicate<? super T>> getRestrictions() {
+		return Collections.unmodifiableList(restrictions);
+	}
+
+	public boolean isRestricted() {
+		return !restrictions.isEmpty();
+	}
+
+	/**
+	 * Discards the match counts from the last restricted scan and any sort
+	 * indexes of restricted results. Call this if a restriction changes the
+	 * objects it accepts.
+	 */
+	public void invalidateScan() {
+		synchronized (scanLock) {
+			lastScan = null;
+		}
+		invalidateSortIndexes();
+	}
+
+	/**
+	 * Range of lines in the file and the number of matches found in it.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class Chunk<T> {
+
+		private final int firstLine;
+		private final Integer lineCount;
+		private final List<T> retained = new ArrayList<T>();
+		private int matches;
+
+		public Chunk(int firstLine, Integer lineCount) {
+			this.firstLine = firstLine;
+			this.lineCount = lineCount;
+		}
+	}
+
+	/**
+	 * Chunks found by scanning a version of the file.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private static class ScanResult<T> {
+
+		private final List<Chunk<T>> chunks;
+		private final long fileLength;
+		private final long lastModified;
+
+		public ScanResult(List<Chunk<T>> chunks, long fileLength,
+				long lastModified) {
+			this.chunks = chunks;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+		}
+
+		public boolean isCurrent(File file) {
+			return file.length() == fileLength
+					&& file.lastModified() == lastModified;
+		}
+
+		public int getMatchCount() {
+			int count = 0;
+			for (Chunk<T> chunk : chunks) {
+				count += chunk.matches;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Cursor that returns the objects from another cursor that pass the
+	 * restrictions.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class RestrictedCursor extends AbstractDataCursor<T> {
+
+		private final DataCursor<T> source;
+		private int skip;
+		private T current;
+
+		public RestrictedCursor(DataCursor<T> source, int firstResult,
+				Integer maxRows) {
+			super(maxRows);
+			this.source = source;
+			this.skip = firstResult;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			while (source.hasNext()) {
+				T object = source.next();
+				if (accept(object)) {
+					if (skip == 0) {
+						current = object;
+						return true;
+					}
+					skip--;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		protected T getCurrent() {
+			return current;
+		}
+
+		@Override
+		protected void doClose() {
+			current = null;
+			source.close();
+		}
+	}
+
+	/**
+	 * Cursor that reads rows in the order of a sort index, reading the line
+	 * numbers from the index a batch at a time.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class SortedCursor extends AbstractDataCursor<T> {
+
+		private final SortIndex index;
+		private final boolean ascending;
+		private int position;
+		private List<T> batch = Collections.emptyList();
+		private int next;
+		private T current;
+
+		public SortedCursor(SortIndex index, int firstResult, Integer maxRows,
+				boolean ascending) {
+			super(maxRows);
+			this.index = index;
+			this.position = firstResult;
+			this.ascending = ascending;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			try {
+				while (next == batch.size()) {
+					int[] lines = index.read(position, getCursorBatchSize(),
+							ascending);
+					if (lines.length == 0) {
+						return false;
+					}
+					position += lines.length;
+					batch = readObjects(lines);
+					next = 0;
+				}
+				current = batch.get(next++);
+				return true;
+			} catch (IOException e) {
+				throw new IllegalStateException(String.format(
+						"Error reading from file '%s'", getFileName()), e);
+			}
+		}
+
+		@Override
+		protected T getCurrent() {
+			return current;
+		}
+
+		@Override
+		protected void doClose() {
+			current = null;
+			batch = null;
+		}
+	}
+
+	private static void closeQuietly(BufferedReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Cursor that creates an object from each line of the file as it is read.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class LineCursor extends AbstractDataCursor<T> {
+
+		private final BufferedReader reader;
+		private String line;
+
+		public LineCursor(BufferedReader reader, Integer maxRows) {
+			super(maxRows);
+			this.reader = reader;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			try {
+				line = reader.readLine();
+			} catch (IOException e) {
+				throw new IllegalStateException(String.format(
+						"Error reading from file '%s'", getFileName()), e);
+			}
+			return line != null;
+		}
+
+		@Override
+		protected T getCurrent() {
+			return createObjectFromLine(line);
+		}
+
+		@Override
+		protected void doClose() {
+			line = null;
+			closeQuietly(reader);
+		}
+	}
+
 	protected abstract T createObjectFromLine(String line);
+
+	public boolean isUseLineIndex() {
+		return useLineIndex;
+	}
+
+	/**
+	 * Sets whether a line index is used to seek to pages and count lines.
+	 * Without the index, lines are counted with a {@link LineCounter}.
+	 * Defaults to true.
+	 */
+	public void setUseLineIndex(boolean useLineIndex) {
+		this.useLineIndex = useLineIndex;
+	}
+
+	public boolean isPersistLineIndex() {
+		return persistLineIndex;
+	}
+
+	/**
+	 * Sets whether the line index is saved to and loaded from the sidecar
+	 * file returned by {@link #getLineIndexFile()}. Defaults to false.
+	 */
+	public void setPersistLineIndex(boolean persistLineIndex) {
+		this.persistLineIndex = persistLineIndex;
+	}
+
+	public boolean isTailMode() {
+		return tailMode;
+	}
+
+	/**
+	 * Sets whether the file is treated as one that is only appended to, such
+	 * as a log file. When the file grows, only the appended bytes are scanned
+	 * to bring the line index and result count up to date. If the file is
+	 * truncated or replaced the index is rebuilt from scratch. Tail mode needs
+	 * the line index to be enabled and defaults to false.
+	 */
+	public void setTailMode(boolean tailMode) {
+		this.tailMode = tailMode;
+	}
+
+	public ExecutorService getScanExecutor() {
+		return scanExecutor;
+	}
+
+	/**
+	 * Sets the executor used to scan chunks of the file in parallel when the
+	 * results are restricted, and to count lines in parallel when the line
+	 * index isn't used. Set to null (the default) to scan the file on
+	 * the calling thread. The executor is not shutdown by the provider.
+	 */
+	public void setScanExecutor(ExecutorService scanExecutor) {
+		this.scanExecutor = scanExecutor;
+	}
+
+	public int getScanParallelism() {
+		return scanParallelism;
+	}
+
+	/**
+	 * Sets the number of threads the scan executor is expected to run, which
+	 * decides how many chunks the file is split into. Defaults to the number
+	 * of processors.
+	 */
+	public void setScanParallelism(int scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	public int getMaxRetainedMatches() {
+		return maxRetainedMatches;
+	}
+
+	/**
+	 * Sets how far into the restricted results a page can end and still be
+	 * taken from matches kept by the scan instead of rescanning chunks.
+	 * Defaults to 1000.
+	 */
+	public void setMaxRetainedMatches(int maxRetainedMatches) {
+		this.maxRetainedMatches = maxRetainedMatches;
+	}
+
+	/**
+	 * Returns the map of order keys to the extractors used to sort the
+	 * results when the paginator uses that order key.
+	 */
+	public Map<String, SortKeyExtractor<? super T>> getOrderKeyMap() {
+		return orderKeyMap;
+	}
+
+	public String getSortDirectory() {
+		return sortDirectory;
+	}
+
+	/**
+	 * Sets the directory sort indexes and the runs used to build them are
+	 * written to. Defaults to the system temporary directory.
+	 */
+	public void setSortDirectory(String sortDirectory) {
+		this.sortDirectory = sortDirectory;
+	}
+
+	public int getSortBufferSize() {
+		return sortBufferSize;
+	}
+
+	/**
+	 * Sets how many sort keys are held in memory while building a sort index
+	 * before they are written to a sorted run on disk. Defaults to
+	 * {@link SortIndex#DEFAULT_MAX_ENTRIES_IN_MEMORY}.
+	 */
+	public void setSortBufferSize(int sortBufferSize) {
+		this.sortBufferSize = sortBufferSize;
+	}
+
+	public int getLineIndexStride() {
+		return lineIndexStride;
+	}
+
+	/**
+	 * Sets how many lines apart the indexed offsets are. Larger values make
+	 * the index smaller at the cost of reading more lines to reach a page.
+	 * Takes effect the next time the index is built.
+	 */
+	public synchronized void setLineIndexStride(int lineIndexStride) {
+		if (lineIndexStride < 1) {
+			throw new IllegalArgumentException("Stride must be at least 1");
+		}
+		this.lineIndexStride = lineIndexStride;
+	}
 }
@@ -23,12 +23,12 @@
 
 package org.fluttercode.datavalve.provider.util;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.fluttercode.datavalve.params.Parameter;
 import org.fluttercode.datavalve.params.ParameterParser;
-import org.fluttercode.datavalve.params.ParameterValues;
 import org.fluttercode.datavalve.params.RegexParameterParser;
 import org.fluttercode.datavalve.provider.ParameterizedDataProvider;
 import org.fluttercode.datavalve.provider.QueryDataProvider;
@@ -50,21 +50,34 @@ import org.slf4j.LoggerFactory;
  * the final query.
  * <p>
  * The process involves parameterizing each line of the query (statement plus
- * restrictions) and then
+ * restrictions) and then concatenating them into the final statement. Each
+ * line is parsed once into a {@link StatementTemplate} holding the literal
+ * text and the parameter slots. Templates are shared between instances of
+ * this class using the default {@link RegexParameterParser} so building a
+ * query only needs to resolve the parameter values and append the text.
+ * Subclasses don't share templates and build the query through the
+ * {@link #parameterizeLine(String, DataQuery, boolean)},
+ * {@link #addLineToQuery(String)} and {@link #addRestrictionToQuery(String)}
+ * methods so they can override them.
  * 
  * @author Andy Gibson
  * 
  */
 public class DataQueryBuilder {
 
-	private int parameterId = 0;
-	// private ParameterizedDataProvider<? extends Object> provider;
+	// estimated length of a renamed parameter used to size the buffers
+	private static final int PARAMETER_LENGTH = 10;
+
 	private static Pattern commaSplitter = Pattern.compile(",");
+	private static final Pattern logicalOpPattern = Pattern.compile(
+			"\\A[ (]*\\b(and|or)\\b[ (]*.*", Pattern.CASE_INSENSITIVE);
+	private static final StatementTemplateCache templateCache = new StatementTemplateCache(
+			1000);
+
+	private int parameterId = 0;
 
 	private StringBuilder statement = new StringBuilder();
 	private StringBuilder restrictions = new StringBuilder();
-	private Pattern logicalOpPattern = Pattern.compile(
-			"\\A[ (]*\\b(and|or)\\b[ (]*.*", Pattern.CASE_INSENSITIVE);
 	private ParameterParser parameterParser = new RegexParameterParser();
 
 	private boolean orderedParams = false;
@@ -73,18 +86,11 @@ public class DataQueryBuilder {
 	private String orderBy;
 	private boolean orderAscending = true;
 	private String baseStatement;
+	private String[] keysetFields;
+	private Object[] keysetValues;
 
 	private static Logger log = LoggerFactory.getLogger(DataQueryBuilder.class);
 
-	/**
-	 * Clears the final statement and restriction values before building another
-	 * query.
-	 */
-	private void clear() {
-		statement = new StringBuilder();
-		restrictions = new StringBuilder();
-	}
-
 	public DataQuery build() {
 
 		if (provider == null) {
@@ -97,19 +103,31 @@ public class DataQueryBuilder {
 					"Cannot build Data Query without a base statement");
 		}
 
-		clear();
 		DataQuery query = new DataQuery();
 
-		addLineToQuery(parameterizeLine(baseStatement, query, true));
-
-		// is this a query? If so, lets add the restrictions for this query
-		if (provider instanceof QueryDataProvider<?>) {
-			QueryDataProvider<? extends Object> queryProvider = (QueryDataProvider<? extends Object>) provider;
+		if (isTemplateCacheable()) {
+			appendTemplates(query);
+		} else {
+			statement = new StringBuilder();
+			restrictions = new StringBuilder();
+			addLineToQuery(parameterizeLine(baseStatement, query, true));
+
+			// is this a query? If so, lets add the restrictions for this query
+			if (provider instanceof QueryDataProvider<?>) {
+				QueryDataProvider<? extends Object> queryProvider = (QueryDataProvider<? extends Object>) provider;
+				for (String restriction : queryProvider.getRestrictions()) {
+					addRestrictionToQuery(parameterizeLine(restriction, query,
+							allowNullParameters));
+				}
+			}
+		}
 
-			for (String restriction : queryProvider.getRestrictions()) {
-				addRestrictionToQuery(parameterizeLine(restriction, query,
-						allowNullParameters));
+		if (keysetFields != null) {
+			// group the existing restrictions in case they use OR
+			if (restrictions.length() != 0) {
+				restrictions.insert(0, '(').append(')');
 			}
+			addRestrictionToQuery(buildKeysetRestriction(query));
 		}
 
 		query.setStatement(buildFinalStatement());
@@ -117,6 +135,77 @@ public class DataQueryBuilder {
 		return query;
 	}
 
+	/**
+	 * Appends the statement and restrictions to the buffers using the shared
+	 * templates.
+	 * 
+	 * @param query
+	 *            query the parameters are added to
+	 */
+	private void appendTemplates(DataQuery query) {
+		StatementTemplate baseTemplate = getTemplate(baseStatement);
+		StatementTemplate[] restrictionTemplates = getRestrictionTemplates();
+
+		// size the buffers up front so the statement is built without copying
+		int restrictionLength = 0;
+		for (StatementTemplate template : restrictionTemplates) {
+			restrictionLength += getEstimatedLength(template) + 5;
+		}
+		int orderByLength = orderBy == null ? 0 : orderBy.length() * 2 + 10;
+		statement = new StringBuilder(getEstimatedLength(baseTemplate)
+				+ restrictionLength + orderByLength + 8);
+		restrictions = new StringBuilder(restrictionLength);
+
+		appendLine(statement, baseTemplate, query, true);
+
+		for (StatementTemplate template : restrictionTemplates) {
+			appendRestriction(template, query);
+		}
+	}
+
+	/**
+	 * Builds the restriction used for keyset paging that limits the results to
+	 * the rows that come after the {@link #keysetValues} in the order defined
+	 * by the {@link #keysetFields} and the order direction. For fields
+	 * <code>a,b</code> in ascending order this produces
+	 * <code>(a > :k0 OR (a = :k0 AND b > :k1))</code>. The expanded form is
+	 * used since not all query languages support row value comparisons.
+	 * 
+	 * @param query
+	 *            Query the keyset parameters are added to
+	 * @return the keyset restriction
+	 */
+	protected String buildKeysetRestriction(DataQuery query) {
+		if (keysetValues == null || keysetValues.length != keysetFields.length) {
+			throw new IllegalStateException(
+					"Keyset values must be set for each keyset field");
+		}
+		String operator = isOrderAscending() ? " > " : " < ";
+		StringBuilder result = new StringBuilder("(");
+		for (int i = 0; i < keysetFields.length; i++) {
+			if (i != 0) {
+				result.append(" OR (");
+			}
+			for (int j = 0; j < i; j++) {
+				result.append(keysetFields[j]).append(" = ").append(
+						addKeysetParameter(query, keysetValues[j])).append(
+						" AND ");
+			}
+			result.append(keysetFields[i]).append(operator).append(
+					addKeysetParameter(query, keysetValues[i]));
+			if (i != 0) {
+				result.append(")");
+			}
+		}
+		return result.append(")").toString();
+	}
+
+	private String addKeysetParameter(DataQuery query, Object value) {
+		String name = getNewParameterName();
+		query.getParameters().add(new Parameter(name, value));
+		return getNewParameterNamePrefix() + name;
+	}
+
 	/**
 	 * Process this query line by getting the parameter expressions, evaluating
 	 * them. The parameters are renamed and the line is added to the query and
@@ -131,57 +220,157 @@ public class DataQueryBuilder {
 	protected final String parameterizeLine(String line, DataQuery query,
 			boolean includeNullParameters) {
 
-		log.debug("processing restriction '{}'", line);
-
 		// if this is a null or empty string, just return
 		if (line == null || line.length() == 0) {
 			return null;
 		}
-		// get the parameter expressions in this line
-		String[] expressions = extractExpressions(line);
-
-		// if there are no expressions, just add the restriction and leave
-		if (expressions.length == 0) {
-			log.debug("Found no restrictions, exiting");
-			return line;
+		StatementTemplate template = getTemplate(line);
+		StringBuilder result = new StringBuilder(getEstimatedLength(template));
+		if (appendLine(result, template, query, includeNullParameters)) {
+			return result.toString();
 		}
+		return null;
+	}
 
-		// build the parameters for this restriction line
-		ParameterValues params = buildParameterList(expressions, query);
-
-		// are we missing some parameter values? If so we are done if we are not
-		// including missing parameters
-		if (params.hasNullParameters() && !includeNullParameters) {
-			return null;
+	/**
+	 * Appends the line defined by the template to the <code>target</code>
+	 * buffer. The parameter expressions are resolved and replaced with new
+	 * parameter names and the resolved parameters are added to the query. If
+	 * any parameters are null and <code>includeNullParameters</code> is false,
+	 * nothing is appended and no parameters are added.
+	 * 
+	 * @param target
+	 *            buffer to append the line to
+	 * @param template
+	 *            template for the line
+	 * @param query
+	 *            query the parameters are added to
+	 * @param includeNullParameters
+	 *            whether the line is included if it has null parameters
+	 * @return true if the line was appended
+	 */
+	private boolean appendLine(StringBuilder target, StatementTemplate template,
+			DataQuery query, boolean includeNullParameters) {
+		int count = template.getParameterCount();
+		if (count == 0) {
+			target.append(template.getText());
+			return true;
 		}
 
-		// Process each parameter
-		for (Parameter param : params) {
+		// resolve the parameters for this line first, we may not be using it
+		String[] expressions = template.getExpressions();
+		Parameter[] params = new Parameter[count];
+		for (int i = 0; i < count; i++) {
+			Object value = provider.resolveParameter(expressions[i]);
+			if (value == null && !includeNullParameters) {
+				return false;
+			}
+			params[i] = new Parameter(expressions[i], value);
+		}
 
+		String prefix = getNewParameterNamePrefix();
+		for (int i = 0; i < count; i++) {
 			// calculate new name for parameter (param_(int) or '?')
 			String newName = getNewParameterName();
+			target.append(template.getSegment(i)).append(prefix).append(
+					newName);
+			params[i].setName(newName);
+			query.getParameters().add(params[i]);
+		}
+		target.append(template.getSegment(count));
+		return true;
+	}
 
-			// replace the param in the restriction with the new name with the
-			// necessary prefix ":" or blank if we are using ordered parameters
-
-			String prefixedNewName = getNewParameterNamePrefix() + newName;
-			log.debug("Replacing {} with {} in expression");
-			String oldValue = param.getName();
-			oldValue = oldValue.replace("{", "\\{");
-			oldValue = oldValue.replace("}", "\\}");
+	/**
+	 * Adds the restriction defined by the template to the restrictions,
+	 * prefixed with ' AND ' if it is not the first restriction and doesn't
+	 * start with a logical operator. Restrictions with null parameters are not
+	 * added unless null parameters are allowed.
+	 * 
+	 * @param template
+	 *            template for the restriction
+	 * @param query
+	 *            query the parameters are added to
+	 */
+	private void appendRestriction(StatementTemplate template, DataQuery query) {
+		int mark = restrictions.length();
+		if (mark != 0) {
+			if (!template.hasLogicalOperatorPrefix()) {
+				restrictions.append(" AND");
+			}
+			restrictions.append(" ");
+		}
+		if (!appendLine(restrictions, template, query, allowNullParameters)) {
+			restrictions.setLength(mark);
+		}
+	}
 
-			line = line.replaceFirst(oldValue, prefixedNewName);
+	/**
+	 * Returns the templates for the non-empty restrictions if the provider is
+	 * a {@link QueryDataProvider}.
+	 * 
+	 * @return array of restriction templates
+	 */
+	private StatementTemplate[] getRestrictionTemplates() {
+		if (!(provider instanceof QueryDataProvider<?>)) {
+			return new StatementTemplate[0];
+		}
+		List<String> lines = ((QueryDataProvider<? extends Object>) provider)
+				.getRestrictions();
+		int count = 0;
+		StatementTemplate[] templates = new StatementTemplate[lines.size()];
+		for (String line : lines) {
+			if (line != null && line.length() != 0) {
+				templates[count++] = getTemplate(line);
+			}
+		}
+		if (count == templates.length) {
+			return templates;
+		}
+		StatementTemplate[] result = new StatementTemplate[count];
+		System.arraycopy(templates, 0, result, 0, count);
+		return result;
+	}
 
-			// set the new name of the parameter in the parameter info
-			param.setName(newName);
+	/**
+	 * Returns the compiled template for the line, using the shared template
+	 * cache if {@link #isTemplateCacheable()} is true.
+	 * 
+	 * @param line
+	 *            statement or restriction to get the template for
+	 * @return the template for the line
+	 */
+	private StatementTemplate getTemplate(String line) {
+		boolean cacheable = isTemplateCacheable();
+		StatementTemplate template = cacheable ? templateCache.get(line) : null;
+		if (template == null) {
+			log.debug("Compiling template for '{}'", line);
+			template = StatementTemplate.compile(line,
+					extractExpressions(line), startsWithLogicalOperator(line));
+			if (cacheable) {
+				templateCache.put(template);
+			}
+		}
+		return template;
+	}
 
-			// add the parameter to the final list
+	/**
+	 * Indicates whether parsed statement templates can be shared with other
+	 * builders. This is only true for this class (subclasses may override the
+	 * parsing and query building methods) using the default
+	 * {@link RegexParameterParser} since other parsers may extract parameters
+	 * differently for the same text.
+	 * 
+	 * @return true if templates are cached
+	 */
+	private boolean isTemplateCacheable() {
+		return getClass() == DataQueryBuilder.class && parameterParser != null
+				&& parameterParser.getClass() == RegexParameterParser.class;
+	}
 
-			query.getParameters().add(param);
-		}
-		// finally, add the restriction to the list
-		log.debug("Adding restriction {}", line);
-		return line;
+	private int getEstimatedLength(StatementTemplate template) {
+		return template.getLiteralLength() + template.getParameterCount()
+				* PARAMETER_LENGTH;
 	}
 
 	/**
@@ -246,28 +435,6 @@ public class DataQueryBuilder {
 		return orderedParams ? "" : ":";
 	}
 
-	/**
-	 * Takes a list of string parameter expressions and resolves them, storing
-	 * the results in the {@link ParameterValues} list.
-	 * 
-	 * @param expressions
-	 *            List of expressions to resolve
-	 * @return List of resolved parameter values.
-	 */
-	private ParameterValues buildParameterList(String[] expressions,
-			DataQuery query) {
-
-		ParameterValues results = new ParameterValues();
-
-		if (provider != null) {
-			for (String expression : expressions) {
-				Object value = provider.resolveParameter(expression);
-				results.add(expression, value);
-			}
-		}
-		return results;
-	}
-
 	/**
 	 * Extracts the parameter expressions contained in a query restriction into
 	 * a string array. The parameters are extracted using a parameterParser
@@ -314,26 +481,26 @@ public class DataQueryBuilder {
 			statement.append(" WHERE ");
 			statement.append(restrictions);
 		}
-		statement.append(buildOrderBy());
+		appendOrderBy(statement);
 		return statement.toString();
 
 	}
 
-	private String buildOrderBy() {
+	private void appendOrderBy(StringBuilder target) {
 		// parse out fields and add order
 		if (orderBy == null || orderBy.length() == 0) {
-			return "";
+			return;
 		}
 		String[] fields = commaSplitter.split(orderBy);
-		String order = "";
+		String direction = isOrderAscending() ? " ASC" : " DESC";
+		target.append(" ORDER BY ");
 		// concatenate the fields with the direction, put commas in between
-		for (String field : fields) {
-			if (order.length() != 0) {
-				order = order + ", ";
+		for (int i = 0; i < fields.length; i++) {
+			if (i != 0) {
+				target.append(", ");
 			}
-			order = order + field + (isOrderAscending() ? " ASC" : " DESC");
+			target.append(fields[i]).append(direction);
 		}
-		return " ORDER BY " + order;
 	}
 
 	protected String buildFinalStatement(String orderBy) {
@@ -392,4 +559,27 @@ public class DataQueryBuilder {
 		this.orderAscending = orderAscending;
 	}
 
+	public String[] getKeysetFields() {
+		return keysetFields;
+	}
+
+	public Object[] getKeysetValues() {
+		return keysetValues;
+	}
+
+	/**
+	 * Restricts the query to the rows following the given key values in the
+	 * query order. The fields should be the same as the fields being ordered on
+	 * and the last field must be unique so the order is deterministic.
+	 * 
+	 * @param keysetFields
+	 *            the fields that make up the order key
+	 * @param keysetValues
+	 *            the values of the order key fields to seek from
+	 */
+	public void setKeyset(String[] keysetFields, Object[] keysetValues) {
+		this.keysetFields = keysetFields;
+		this.keysetValues = keysetValues;
+	}
+
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fluttercode.datavalve.provider.AbstractQLDataProvider;
+
+/**
+ * Cache of result pages keyed by the final statement, parameter values, first
+ * result and row count, which can be assigned to {@link AbstractQLDataProvider}
+ * instances so popular pages are only fetched from the database once. The
+ * cache is bounded by an estimate of the number of bytes used by the cached
+ * results instead of the number of pages.
+ * <p/>
+ * The cached objects are returned to every caller that requests the same page
+ * so this should only be used for results that are not modified or attached to
+ * a session (i.e. JDBC mapped objects or detached entities).
+ * <p/>
+ * The size of each object is estimated from its fields, counting the contents
+ * of any <code>String</code> fields, but not following references to other
+ * objects. Override {@link #estimateSize(Object)} for more accurate estimates.
+ * <p/>
+ * The shared instance returned from {@link #getSharedInstance()} is resolved
+ * back to the shared instance when deserialized so providers that are
+ * serialized between requests keep using it.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class PageResultCache extends QueryResultCache<List<?>> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final long DEFAULT_TIME_TO_LIVE = 60000;
+	public static final long DEFAULT_MAXIMUM_BYTES = 16 * 1024 * 1024;
+
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int REFERENCE_SIZE = 8;
+	private static final int STRING_OVERHEAD = 40;
+
+	private static final Map<Class<?>, Field[]> stringFields = new ConcurrentHashMap<Class<?>, Field[]>();
+	private static final Map<Class<?>, Long> shallowSizes = new ConcurrentHashMap<Class<?>, Long>();
+
+	private static final PageResultCache sharedInstance = new PageResultCache(
+			DEFAULT_TIME_TO_LIVE, DEFAULT_MAXIMUM_BYTES, true);
+
+	private final boolean shared;
+
+	/**
+	 * @param timeToLive
+	 *            number of milliseconds pages are kept for, zero or less for
+	 *            no expiry
+	 * @param maximumBytes
+	 *            estimated number of bytes the cached pages can use
+	 */
+	public PageResultCache(long timeToLive, long maximumBytes) {
+		this(timeToLive, maximumBytes, false);
+	}
+
+	private PageResultCache(long timeToLive, long maximumBytes, boolean shared) {
+		super(timeToLive, maximumBytes);
+		this.shared = shared;
+	}
+
+	/**
+	 * @return the application wide page cache which holds up to
+	 *         {@link #DEFAULT_MAXIMUM_BYTES} of pages for
+	 *         {@link #DEFAULT_TIME_TO_LIVE} milliseconds.
+	 */
+	public static PageResultCache getSharedInstance() {
+		return sharedInstance;
+	}
+
+	private Object readResolve() {
+		return shared ? sharedInstance : this;
+	}
+
+	@Override
+	protected long weigh(QueryKey key, List<?> value) {
+		long size = OBJECT_OVERHEAD + REFERENCE_SIZE * value.size();
+		for (Object object : value) {
+			size += estimateSize(object);
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the number of bytes used by an object in the cached results.
+	 * 
+	 * @param object
+	 *            the object to estimate the size of, may be null
+	 * @return estimated size in bytes
+	 */
+	protected long estimateSize(Object object) {
+		if (object == null) {
+			return 0;
+		}
+		if (object instanceof String) {
+			return estimateStringSize((String) object);
+		}
+		if (object instanceof Object[]) {
+			long size = OBJECT_OVERHEAD;
+			for (Object element : (Object[]) object) {
+				size += REFERENCE_SIZE + estimateSize(element);
+			}
+			return size;
+		}
+		Class<?> clazz = object.getClass();
+		long size = getShallowSize(clazz);
+		for (Field field : getStringFields(clazz)) {
+			try {
+				String value = (String) field.get(object);
+				if (value != null) {
+					size += estimateStringSize(value);
+				}
+			} catch (IllegalAccessException e) {
+				// ignore the field contents
+			}
+		}
+		return size;
+	}
+
+	private static long estimateStringSize(String value) {
+		return STRING_OVERHEAD + 2 * value.length();
+	}
+
+	private static long getShallowSize(Class<?> clazz) {
+		Long size = shallowSizes.get(clazz);
+		if (size == null) {
+			long total = OBJECT_OVERHEAD;
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers())) {
+						total += getFieldSize(field.getType());
+					}
+				}
+			}
+			size = total;
+			shallowSizes.put(clazz, size);
+		}
+		return size;
+	}
+
+	private static long getFieldSize(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == short.class || type == char.class) {
+			return 2;
+		}
+		if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		if (type == Date.class || Number.class.isAssignableFrom(type)) {
+			// reference plus the small value object
+			return REFERENCE_SIZE + OBJECT_OVERHEAD + 8;
+		}
+		return REFERENCE_SIZE;
+	}
+
+	private static Field[] getStringFields(Class<?> clazz) {
+		Field[] fields = stringFields.get(clazz);
+		if (fields == null) {
+			List<Field> result = new ArrayList<Field>();
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (field.getType() == String.class
+							&& !Modifier.isStatic(field.getModifiers())) {
+						try {
+							field.setAccessible(true);
+							result.add(field);
+						} catch (SecurityException e) {
+							// can't read it, just count the reference
+						}
+					}
+				}
+			}
+			fields = result.toArray(new Field[result.size()]);
+			stringFields.put(clazz, fields);
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+import org.fluttercode.datavalve.params.Parameter;
+
+/**
+ * Immutable key identifying the results of a {@link DataQuery}. The key is
+ * made up of the final statement, the parameter values and any extra values
+ * (such as the provider discriminator, first result and row count) that
+ * affect the results.
+ * <p/>
+ * The key holds copies of the parameter values so changes the caller makes to
+ * a parameter (i.e. a <code>Date</code>) after the key is created don't change
+ * the key. Values that can't be copied (such as entities) make the key
+ * uncacheable, see {@link #isCacheable()}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public final class QueryKey implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// placeholder for values that can't be copied
+	private static final Object UNCOPYABLE = new Object[0];
+
+	private final String statement;
+	private final Object[] values;
+	private final int hashCode;
+	private final boolean cacheable;
+
+	public QueryKey(DataQuery query, Object... extra) {
+		this.statement = query.getStatement();
+		List<Parameter> params = query.getParameters();
+		values = new Object[params.size() + extra.length];
+		boolean copied = true;
+		for (int i = 0; i < values.length; i++) {
+			Object value = i < params.size() ? params.get(i).getValue()
+					: extra[i - params.size()];
+			values[i] = copyValue(value);
+			copied &= values[i] != UNCOPYABLE;
+		}
+		cacheable = copied;
+		hashCode = 31 * (statement == null ? 0 : statement.hashCode())
+				+ Arrays.deepHashCode(values);
+	}
+
+	/**
+	 * Returns an immutable copy of a parameter value or {@link #UNCOPYABLE}
+	 * if the value may be changed by the caller and can't be copied.
+	 */
+	private static Object copyValue(Object value) {
+		if (value == null || value instanceof String
+				|| value instanceof Boolean || value instanceof Character
+				|| value instanceof Enum<?> || value instanceof Class<?>
+				|| value instanceof Locale || value instanceof UUID) {
+			return value;
+		}
+		if (value instanceof Number) {
+			Class<?> type = value.getClass();
+			if (type == Integer.class || type == Long.class
+					|| type == Short.class || type == Byte.class
+					|| type == Double.class || type == Float.class
+					|| type == BigDecimal.class || type == BigInteger.class) {
+				return value;
+			}
+			return UNCOPYABLE;
+		}
+		if (value instanceof Date) {
+			return ((Date) value).clone();
+		}
+		if (value instanceof Calendar) {
+			return ((Calendar) value).clone();
+		}
+		if (value instanceof Object[]) {
+			Object[] source = (Object[]) value;
+			Object[] copy = new Object[source.length];
+			for (int i = 0; i < source.length; i++) {
+				copy[i] = copyValue(source[i]);
+				if (copy[i] == UNCOPYABLE) {
+					return UNCOPYABLE;
+				}
+			}
+			return copy;
+		}
+		if (value.getClass().isArray()) {
+			// primitive arrays
+			return copyPrimitiveArray(value);
+		}
+		if (value instanceof Collection<?>) {
+			List<Object> copy = new ArrayList<Object>();
+			for (Object element : (Collection<?>) value) {
+				Object elementCopy = copyValue(element);
+				if (elementCopy == UNCOPYABLE) {
+					return UNCOPYABLE;
+				}
+				copy.add(elementCopy);
+			}
+			if (value instanceof Set<?>) {
+				return new HashSet<Object>(copy);
+			}
+			return copy;
+		}
+		return UNCOPYABLE;
+	}
+
+	private static Object copyPrimitiveArray(Object value) {
+		if (value instanceof int[]) {
+			return ((int[]) value).clone();
+		}
+		if (value instanceof long[]) {
+			return ((long[]) value).clone();
+		}
+		if (value instanceof short[]) {
+			return ((short[]) value).clone();
+		}
+		if (value instanceof byte[]) {
+			return ((byte[]) value).clone();
+		}
+		if (value instanceof char[]) {
+			return ((char[]) value).clone();
+		}
+		if (value instanceof double[]) {
+			return ((double[]) value).clone();
+		}
+		if (value instanceof float[]) {
+			return ((float[]) value).clone();
+		}
+		return ((boolean[]) value).clone();
+	}
+
+	public String getStatement() {
+		return statement;
+	}
+
+	/**
+	 * Indicates whether results can be cached with this key. This is false if
+	 * any of the parameter values can't be copied since the caller could
+	 * change them after the results have been cached.
+	 * 
+	 * @return true if the key can be used for caching
+	 */
+	public boolean isCacheable() {
+		return cacheable;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof QueryKey)) {
+			return false;
+		}
+		QueryKey other = (QueryKey) obj;
+		if (hashCode != other.hashCode) {
+			return false;
+		}
+		if (statement == null ? other.statement != null : !statement
+				.equals(other.statement)) {
+			return false;
+		}
+		return Arrays.deepEquals(values, other.values);
+	}
+
+	@Override
+	public String toString() {
+		return statement + " " + Arrays.deepToString(values);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe cache of query results keyed by {@link QueryKey} that can be
+ * shared between providers. Entries expire after the time to live and the
+ * least recently used entries are evicted once the total weight of the
+ * entries goes over the maximum weight. By default each entry weighs 1 so the
+ * maximum weight is the maximum number of entries, subclasses can override
+ * {@link #weigh(QueryKey, Object)} to bound the cache by some other measure.
+ * <p/>
+ * Each entry is tagged with the entity class of the provider that cached it
+ * so all the entries for an entity can be invalidated when it is modified.
+ * <p/>
+ * Keys that aren't {@link QueryKey#isCacheable() cacheable} are never
+ * cached. The cached entries are not serialized, a deserialized cache starts
+ * out empty.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <V>
+ *            The type of value held in the cache
+ */
+public class QueryResultCache<V> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long timeToLive;
+	private final long maximumWeight;
+
+	private transient Map<QueryKey, Entry<V>> entries;
+	private transient long totalWeight;
+	private transient long hitCount;
+	private transient long missCount;
+	private transient long evictionCount;
+
+	private static class Entry<V> {
+		final V value;
+		final Class<?> entityClass;
+		final long weight;
+		final long expiry;
+
+		Entry(V value, Class<?> entityClass, long weight, long expiry) {
+			this.value = value;
+			this.entityClass = entityClass;
+			this.weight = weight;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * @param timeToLive
+	 *            number of milliseconds entries are kept for, zero or less for
+	 *            no expiry
+	 * @param maximumWeight
+	 *            maximum total weight of the cached entries
+	 */
+	public QueryResultCache(long timeToLive, long maximumWeight) {
+		if (maximumWeight < 1) {
+			throw new IllegalArgumentException(
+					"Maximum cache weight must be at least 1");
+		}
+		this.timeToLive = timeToLive;
+		this.maximumWeight = maximumWeight;
+		init();
+	}
+
+	private void init() {
+		entries = new LinkedHashMap<QueryKey, Entry<V>>(64, 0.75f, true);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	/**
+	 * Returns the cached value for the key.
+	 * 
+	 * @param key
+	 *            key for the query results
+	 * @return the cached value or null if it isn't cached or has expired
+	 */
+	public synchronized V get(QueryKey key) {
+		if (!key.isCacheable()) {
+			missCount++;
+			return null;
+		}
+		Entry<V> entry = entries.get(key);
+		if (entry != null && isExpired(entry)) {
+			removeEntry(key, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.value;
+	}
+
+	/**
+	 * Adds the value to the cache, evicting the least recently used entries
+	 * if the cache is over its maximum weight. Values heavier than the
+	 * maximum weight are not cached.
+	 * 
+	 * @param key
+	 *            key for the query results
+	 * @param entityClass
+	 *            the entity class the results are for, may be null
+	 * @param value
+	 *            the value to cache
+	 */
+	public void put(QueryKey key, Class<?> entityClass, V value) {
+		if (!key.isCacheable()) {
+			return;
+		}
+		// weigh the value before locking since it may be slow
+		long weight = value == null ? 0 : weigh(key, value);
+		synchronized (this) {
+			putEntry(key, entityClass, value, weight);
+		}
+	}
+
+	private void putEntry(QueryKey key, Class<?> entityClass, V value,
+			long weight) {
+		Entry<V> previous = entries.remove(key);
+		if (previous != null) {
+			totalWeight -= previous.weight;
+		}
+		if (value == null || weight > maximumWeight) {
+			return;
+		}
+		long expiry = timeToLive > 0 ? currentTime() + timeToLive
+				: Long.MAX_VALUE;
+		entries.put(key, new Entry<V>(value, entityClass, weight, expiry));
+		totalWeight += weight;
+
+		Iterator<Map.Entry<QueryKey, Entry<V>>> iterator = entries.entrySet()
+				.iterator();
+		while (totalWeight > maximumWeight && iterator.hasNext()) {
+			Entry<V> eldest = iterator.next().getValue();
+			iterator.remove();
+			totalWeight -= eldest.weight;
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * Removes all the entries cached for the entity class or any of its
+	 * subclasses.
+	 * 
+	 * @param entityClass
+	 *            the entity class that has been modified
+	 * @return the number of entries removed
+	 */
+	public synchronized int invalidate(Class<?> entityClass) {
+		int count = 0;
+		Iterator<Entry<V>> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry<V> entry = iterator.next();
+			if (entry.entityClass != null
+					&& entityClass.isAssignableFrom(entry.entityClass)) {
+				iterator.remove();
+				totalWeight -= entry.weight;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the entry for the key.
+	 * 
+	 * @param key
+	 *            key for the query results
+	 */
+	public synchronized void invalidate(QueryKey key) {
+		Entry<V> entry = entries.remove(key);
+		if (entry != null) {
+			totalWeight -= entry.weight;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalWeight = 0;
+	}
+
+	private boolean isExpired(Entry<V> entry) {
+		return entry.expiry != Long.MAX_VALUE && currentTime() >= entry.expiry;
+	}
+
+	private void removeEntry(QueryKey key, Entry<V> entry) {
+		entries.remove(key);
+		totalWeight -= entry.weight;
+	}
+
+	/**
+	 * Returns the weight of a value used to bound the size of the cache. By
+	 * default every entry weighs 1. This is called before the cache is locked
+	 * so other threads can use the cache while the value is weighed.
+	 * 
+	 * @param key
+	 *            the key for the value
+	 * @param value
+	 *            value being cached
+	 * @return the weight of the entry
+	 */
+	protected long weigh(QueryKey key, V value) {
+		return 1;
+	}
+
+	protected long currentTime() {
+		return System.currentTimeMillis();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return totalWeight;
+	}
+
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s[size=%d, weight=%d, hits=%d, misses=%d, evictions=%d]",
+				getClass().getSimpleName(), entries.size(), totalWeight,
+				hitCount, missCount, evictionCount);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+import org.fluttercode.datavalve.provider.AbstractQLDataProvider;
+
+/**
+ * Cache of result counts keyed by the final count statement and parameter
+ * values. Assign a cache to {@link AbstractQLDataProvider} instances to avoid
+ * running the same count query over and over when the restrictions haven't
+ * changed. A single cache can be shared between providers as long as they
+ * query the same database.
+ * <p/>
+ * The shared instance returned from {@link #getSharedInstance()} is resolved
+ * back to the shared instance when deserialized so providers that are
+ * serialized between requests keep using it.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class ResultCountCache extends QueryResultCache<Integer> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final long DEFAULT_TIME_TO_LIVE = 60000;
+	public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+	private static final ResultCountCache sharedInstance = new ResultCountCache(
+			DEFAULT_TIME_TO_LIVE, DEFAULT_MAXIMUM_SIZE, true);
+
+	private final boolean shared;
+
+	/**
+	 * @param timeToLive
+	 *            number of milliseconds counts are kept for, zero or less for
+	 *            no expiry
+	 * @param maximumSize
+	 *            maximum number of counts to hold
+	 */
+	public ResultCountCache(long timeToLive, int maximumSize) {
+		this(timeToLive, maximumSize, false);
+	}
+
+	private ResultCountCache(long timeToLive, int maximumSize, boolean shared) {
+		super(timeToLive, maximumSize);
+		this.shared = shared;
+	}
+
+	/**
+	 * @return the application wide count cache which holds up to
+	 *         {@link #DEFAULT_MAXIMUM_SIZE} counts for
+	 *         {@link #DEFAULT_TIME_TO_LIVE} milliseconds.
+	 */
+	public static ResultCountCache getSharedInstance() {
+		return sharedInstance;
+	}
+
+	private Object readResolve() {
+		return shared ? sharedInstance : this;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+/**
+ * Pre-parsed form of a statement or restriction line used by the
+ * {@link DataQueryBuilder}. The line is split into the literal text segments
+ * and the parameter expressions between them so building a query only needs
+ * to resolve the parameter values and concatenate the segments with the new
+ * parameter names. Templates are immutable and shared between builders through
+ * the {@link StatementTemplateCache}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+final class StatementTemplate {
+
+	private final String text;
+	private final String[] segments;
+	private final String[] expressions;
+	private final boolean logicalOperatorPrefix;
+	private final int literalLength;
+
+	private StatementTemplate(String text, String[] segments,
+			String[] expressions, boolean logicalOperatorPrefix) {
+		this.text = text;
+		this.segments = segments;
+		this.expressions = expressions;
+		this.logicalOperatorPrefix = logicalOperatorPrefix;
+		int length = 0;
+		for (String segment : segments) {
+			length += segment.length();
+		}
+		this.literalLength = length;
+	}
+
+	/**
+	 * Splits the text around the expressions. The expressions must be in the
+	 * order they appear in the text, each expression slot takes the first
+	 * occurrence of the expression after the previous slot.
+	 * 
+	 * @param text
+	 *            the statement or restriction line
+	 * @param expressions
+	 *            the parameter expressions found in the text
+	 * @param logicalOperatorPrefix
+	 *            whether the line starts with an AND/OR operator
+	 * @return the compiled template
+	 */
+	static StatementTemplate compile(String text, String[] expressions,
+			boolean logicalOperatorPrefix) {
+		String[] segments = new String[expressions.length + 1];
+		int position = 0;
+		for (int i = 0; i < expressions.length; i++) {
+			int index = text.indexOf(expressions[i], position);
+			if (index == -1) {
+				throw new IllegalStateException(String.format(
+						"Parameter '%s' not found in '%s'", expressions[i],
+						text));
+			}
+			segments[i] = text.substring(position, index);
+			position = index + expressions[i].length();
+		}
+		segments[expressions.length] = text.substring(position);
+		return new StatementTemplate(text, segments, expressions,
+				logicalOperatorPrefix);
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String getSegment(int index) {
+		return segments[index];
+	}
+
+	/**
+	 * @return the parameter expressions in the order they appear in the line
+	 */
+	public String[] getExpressions() {
+		return expressions;
+	}
+
+	public int getParameterCount() {
+		return expressions.length;
+	}
+
+	public boolean hasLogicalOperatorPrefix() {
+		return logicalOperatorPrefix;
+	}
+
+	/**
+	 * @return the length of the line with the parameters removed, used to size
+	 *         the buffer the query is built in
+	 */
+	public int getLiteralLength() {
+		return literalLength;
+	}
+}
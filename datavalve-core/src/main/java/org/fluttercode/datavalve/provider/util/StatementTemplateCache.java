@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of {@link StatementTemplate} instances keyed by the statement
+ * or restriction text. Statements and restrictions rarely change between
+ * requests so each line only needs parsing once. Reads don't lock since the
+ * cache is used each time a query is built. Once the cache is full, an
+ * arbitrary template is ejected for each new one so restrictions containing
+ * literal values don't cause it to grow without limit.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+final class StatementTemplateCache {
+
+	private final ConcurrentMap<String, StatementTemplate> templates = new ConcurrentHashMap<String, StatementTemplate>(
+			64);
+	private final int maximumSize;
+
+	public StatementTemplateCache(int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	public StatementTemplate get(String text) {
+		return templates.get(text);
+	}
+
+	public void put(StatementTemplate template) {
+		if (templates.putIfAbsent(template.getText(), template) == null) {
+			Iterator<String> keys = templates.keySet().iterator();
+			while (templates.size() > maximumSize && keys.hasNext()) {
+				String key = keys.next();
+				if (!key.equals(template.getText())) {
+					templates.remove(key);
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return templates.size();
+	}
+
+	public void clear() {
+		templates.clear();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.NoSuchElementException;
+
+import org.fluttercode.datavalve.DataCursor;
+
+/**
+ * Base class for {@link DataCursor} implementations that handles the look
+ * ahead for {@link #hasNext()}, limiting the number of rows returned and
+ * closing the cursor once the end of the data is reached. Subclasses just need
+ * to implement moving to the next row, reading the current row and releasing
+ * their resources.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from the cursor
+ */
+public abstract class AbstractDataCursor<T> implements DataCursor<T> {
+
+	private final Integer maxRows;
+	private int rowCount;
+	private boolean pending;
+	private boolean closed;
+
+	/**
+	 * @param maxRows
+	 *            maximum number of rows to return or null for all rows
+	 */
+	public AbstractDataCursor(Integer maxRows) {
+		this.maxRows = maxRows;
+	}
+
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (pending) {
+			return true;
+		}
+		if ((maxRows != null && rowCount >= maxRows) || !moveNext()) {
+			close();
+			return false;
+		}
+		pending = true;
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more results in cursor");
+		}
+		pending = false;
+		rowCount++;
+		return getCurrent();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Data cursors do not support element removal");
+	}
+
+	public void close() {
+		if (!closed) {
+			closed = true;
+			pending = false;
+			doClose();
+		}
+	}
+
+	/**
+	 * @return the number of rows returned from the cursor so far
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Moves the cursor on to the next row.
+	 * 
+	 * @return true if there is a row, false if the end of the data has been
+	 *         reached
+	 */
+	protected abstract boolean moveNext();
+
+	/**
+	 * @return the object for the row the cursor was moved to
+	 */
+	protected abstract T getCurrent();
+
+	/**
+	 * Releases any resources held by the cursor.
+	 */
+	protected abstract void doClose();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+/**
+ * Compares two elements of a data set by their positions so sorts can
+ * rearrange arrays of indexes instead of the data itself.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public interface IndexComparator {
+
+	/**
+	 * Compares the elements at two positions in the data.
+	 * 
+	 * @return a negative number, zero or a positive number as the first
+	 *         element is less than, equal to or greater than the second
+	 */
+	int compare(int index1, int index2);
+}
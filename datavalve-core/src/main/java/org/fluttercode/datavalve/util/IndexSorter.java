@@ -0,0 +1,287 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts arrays of indexes into a data set using an {@link IndexComparator}.
+ * The sort is a stable merge sort working on primitive arrays so no objects
+ * are created per element. When only the first few elements in order are
+ * needed, {@link #select(int, int, IndexComparator)} finds them without
+ * sorting the rest. Large arrays can be sorted in parallel with
+ * {@link #sort(int[], IndexComparator, ExecutorService, int)}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class IndexSorter {
+
+	private static final int INSERTION_SORT_THRESHOLD = 7;
+	private static final int MIN_PARALLEL_RUN = 8192;
+
+	private IndexSorter() {
+		// hide constructor
+	}
+
+	/**
+	 * @return an array holding the indexes from 0 to <code>size - 1</code>
+	 */
+	public static int[] identity(int size) {
+		int[] indexes = new int[size];
+		for (int i = 0; i < size; i++) {
+			indexes[i] = i;
+		}
+		return indexes;
+	}
+
+	/**
+	 * Sorts the indexes in place. Equal elements keep their relative order.
+	 * 
+	 * @param indexes
+	 *            indexes to sort
+	 * @param comparator
+	 *            comparator for the elements at the indexes
+	 */
+	public static void sort(int[] indexes, IndexComparator comparator) {
+		int[] work = indexes.clone();
+		mergeSort(work, indexes, 0, indexes.length, comparator);
+	}
+
+	/**
+	 * Sorts the indexes in place, splitting the work across an executor. The
+	 * array is split into runs that are sorted concurrently and then merged in
+	 * pairs, with the merges of each round also run concurrently. Equal
+	 * elements keep their relative order, so the result is the same as
+	 * {@link #sort(int[], IndexComparator)}. The comparator must be safe to
+	 * call from several threads at once.
+	 * 
+	 * @param indexes
+	 *            indexes to sort
+	 * @param comparator
+	 *            comparator for the elements at the indexes
+	 * @param executor
+	 *            executor to run the sorts and merges on, or null to sort on
+	 *            the calling thread
+	 * @param parallelism
+	 *            number of runs to split the array into, which should be the
+	 *            number of threads the executor runs
+	 */
+	public static void sort(int[] indexes, final IndexComparator comparator,
+			ExecutorService executor, int parallelism) {
+		int runs = Math.min(parallelism, indexes.length / MIN_PARALLEL_RUN);
+		if (executor == null || runs < 2) {
+			sort(indexes, comparator);
+			return;
+		}
+		final int[] bounds = new int[runs + 1];
+		for (int i = 0; i <= runs; i++) {
+			bounds[i] = (int) ((long) indexes.length * i / runs);
+		}
+		final int[] work = indexes.clone();
+		final int[] sorted = indexes;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < runs; i++) {
+			final int low = bounds[i];
+			final int high = bounds[i + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					mergeSort(work, sorted, low, high, comparator);
+					return null;
+				}
+			});
+		}
+		runAll(executor, tasks);
+
+		int[] src = indexes;
+		int[] dest = work;
+		for (int width = 1; width < runs; width *= 2) {
+			tasks.clear();
+			for (int i = 0; i < runs; i += 2 * width) {
+				final int low = bounds[i];
+				final int mid = bounds[Math.min(i + width, runs)];
+				final int high = bounds[Math.min(i + 2 * width, runs)];
+				final int[] from = src;
+				final int[] to = dest;
+				tasks.add(new Callable<Object>() {
+					public Object call() throws Exception {
+						merge(from, to, low, mid, high, comparator);
+						return null;
+					}
+				});
+			}
+			runAll(executor, tasks);
+			int[] swap = src;
+			src = dest;
+			dest = swap;
+		}
+		if (src != indexes) {
+			System.arraycopy(src, 0, indexes, 0, indexes.length);
+		}
+	}
+
+	private static void runAll(ExecutorService executor,
+			List<Callable<Object>> tasks) {
+		try {
+			for (Future<Object> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted sorting", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Error sorting", cause);
+		}
+	}
+
+	/**
+	 * Selects the indexes of the smallest elements in sorted order using a
+	 * bounded heap, which takes time proportional to
+	 * <code>size * log(count)</code> rather than <code>size * log(size)</code>
+	 * for a full sort.
+	 * <p/>
+	 * Unlike {@link #sort(int[], IndexComparator)}, equal elements may come
+	 * out in any order so the comparator should not consider two different
+	 * indexes equal if the order of ties matters.
+	 * 
+	 * @param size
+	 *            number of elements, which are at indexes 0 to
+	 *            <code>size - 1</code>
+	 * @param count
+	 *            number of elements to select
+	 * @param comparator
+	 *            comparator for the elements at the indexes
+	 * @return the indexes of the smallest <code>count</code> elements, or all
+	 *         elements if there are fewer, in order
+	 */
+	public static int[] select(int size, int count, IndexComparator comparator) {
+		int[] heap = new int[Math.max(0, Math.min(size, count))];
+		if (heap.length == 0) {
+			return heap;
+		}
+		// max heap of the smallest elements seen so far
+		int heapSize = 0;
+		for (int index = 0; index < size; index++) {
+			if (heapSize < heap.length) {
+				int child = heapSize++;
+				while (child > 0) {
+					int parent = (child - 1) >>> 1;
+					if (comparator.compare(heap[parent], index) >= 0) {
+						break;
+					}
+					heap[child] = heap[parent];
+					child = parent;
+				}
+				heap[child] = index;
+			} else if (comparator.compare(index, heap[0]) < 0) {
+				siftDown(heap, index, comparator);
+			}
+		}
+		sort(heap, comparator);
+		return heap;
+	}
+
+	/**
+	 * Replaces the top of a full max heap and restores the heap order.
+	 */
+	private static void siftDown(int[] heap, int index,
+			IndexComparator comparator) {
+		int parent = 0;
+		int half = heap.length >>> 1;
+		while (parent < half) {
+			int child = 2 * parent + 1;
+			int right = child + 1;
+			if (right < heap.length
+					&& comparator.compare(heap[right], heap[child]) > 0) {
+				child = right;
+			}
+			if (comparator.compare(index, heap[child]) >= 0) {
+				break;
+			}
+			heap[parent] = heap[child];
+			parent = child;
+		}
+		heap[parent] = index;
+	}
+
+	/**
+	 * Merge sort of the range of <code>dest</code>, using <code>src</code> as
+	 * working space. Both arrays must hold the same values over the range
+	 * when called.
+	 */
+	private static void mergeSort(int[] src, int[] dest, int low, int high,
+			IndexComparator comparator) {
+		int length = high - low;
+		if (length < INSERTION_SORT_THRESHOLD) {
+			for (int i = low + 1; i < high; i++) {
+				for (int j = i; j > low
+						&& comparator.compare(dest[j - 1], dest[j]) > 0; j--) {
+					int swap = dest[j];
+					dest[j] = dest[j - 1];
+					dest[j - 1] = swap;
+				}
+			}
+			return;
+		}
+		int mid = (low + high) >>> 1;
+		mergeSort(dest, src, low, mid, comparator);
+		mergeSort(dest, src, mid, high, comparator);
+
+		// already in order, no need to merge
+		if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, low, dest, low, length);
+			return;
+		}
+		merge(src, dest, low, mid, high, comparator);
+	}
+
+	/**
+	 * Merges the sorted ranges <code>low</code> to <code>mid</code> and
+	 * <code>mid</code> to <code>high</code> of <code>src</code> into the same
+	 * range of <code>dest</code>, taking from the first range on ties.
+	 */
+	private static void merge(int[] src, int[] dest, int low, int mid,
+			int high, IndexComparator comparator) {
+		for (int i = low, p = low, q = mid; i < high; i++) {
+			if (q >= high
+					|| (p < mid && comparator.compare(src[p], src[q]) <= 0)) {
+				dest[i] = src[p++];
+			} else {
+				dest[i] = src[q++];
+			}
+		}
+	}
+}
@@ -23,22 +23,40 @@
 
 package org.fluttercode.datavalve.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.fluttercode.datavalve.DataProvider;
+import org.fluttercode.datavalve.DefaultPaginator;
 import org.fluttercode.datavalve.Paginator;
 
 /**
  * Implementation of a data cache that is used to keep hold of a limited set of
  * result values, and uses a LRU mechanism to eject older items. This is
  * designed for use with random access mechanisms for accessing data by index.
- * it can perform a look ahead prefetch so the next set of results are probably
- * loaded in.
+ * <p>
+ * Values are loaded and cached in fixed size blocks aligned on block
+ * boundaries. The cache watches the direction the blocks are accessed in and
+ * when successive misses move through the data in the same direction, it
+ * reads ahead more blocks in that direction with each fetch, doubling the
+ * read ahead up to <code>maximumReadAhead</code> blocks. A jump to some other
+ * part of the data resets the read ahead so random access only loads the one
+ * block.
+ * <p>
+ * The cache is thread safe. Threads that need a block that is already being
+ * loaded wait for that load instead of fetching it again, and fetches from the
+ * provider are run one at a time so the provider is never used by two threads
+ * at once.
  * <p>
  * The {@link IndexedDataProviderCache#loadValues(Integer, int)} method is used
- * as a template to load the values with a look ahead.
+ * as a template to load the values.
  * 
  * 
  * @author Andy Gibson
@@ -48,76 +66,348 @@ import org.fluttercode.datavalve.Paginator;
  */
 public class IndexedDataProviderCache<V> {
 
+	public static final int DEFAULT_BLOCK_SIZE = 25;
+	public static final int DEFAULT_MAXIMUM_READ_AHEAD = 8;
+
 	private final DataProvider<V> provider;
 	private final Paginator paginator;
-	private final int maximumSize;
+	private final int blockSize;
+	private final int maximumBlocks;
+	private final int maximumReadAhead;
 
-	private Map<Integer, V> map;
+	private final Map<Integer, List<V>> blocks;
+	private final Map<Integer, FutureTask<Map<Integer, List<V>>>> loading = new HashMap<Integer, FutureTask<Map<Integer, List<V>>>>();
+	private final Object providerLock = new Object();
+
+	private int generation;
+	private int lastMissedBlock = -1;
+	private int direction = 1;
+	private int readAhead;
+	private int hitCount;
+	private int missCount;
+	private int loadCount;
 
 	public IndexedDataProviderCache(DataProvider<V> provider,
 			Paginator paginator) {
-		this(provider, paginator, 100, 25);
+		this(provider, paginator, DEFAULT_BLOCK_SIZE, 20,
+				DEFAULT_MAXIMUM_READ_AHEAD);
 	}
 
+	/**
+	 * Creates a cache using the default block size that holds roughly
+	 * <code>maxEntries</code> values.
+	 * 
+	 * @param provider
+	 *            provider to load the values from
+	 * @param paginator
+	 *            paginator holding the ordering for the values
+	 * @param maxEntries
+	 *            number of values to hold
+	 * @param initialSize
+	 *            no longer used
+	 */
 	public IndexedDataProviderCache(DataProvider<V> provider,
 			Paginator paginator, int maxEntries, int initialSize) {
+		this(provider, paginator, DEFAULT_BLOCK_SIZE, Math.max(1,
+				(maxEntries + DEFAULT_BLOCK_SIZE - 1) / DEFAULT_BLOCK_SIZE),
+				DEFAULT_MAXIMUM_READ_AHEAD);
+	}
 
+	/**
+	 * @param provider
+	 *            provider to load the values from
+	 * @param paginator
+	 *            paginator holding the ordering for the values
+	 * @param blockSize
+	 *            number of values in each block
+	 * @param maximumBlocks
+	 *            maximum number of blocks held in the cache
+	 * @param maximumReadAhead
+	 *            maximum number of blocks to read ahead of a missed block
+	 */
+	public IndexedDataProviderCache(DataProvider<V> provider,
+			Paginator paginator, int blockSize, final int maximumBlocks,
+			int maximumReadAhead) {
+		if (blockSize < 1 || maximumBlocks < 1 || maximumReadAhead < 0) {
+			throw new IllegalArgumentException(
+					"Block size and maximum blocks must be at least 1 and "
+							+ "maximum read ahead cannot be negative");
+		}
 		this.provider = provider;
-		this.maximumSize = maxEntries;
 		this.paginator = paginator;
+		this.blockSize = blockSize;
+		this.maximumBlocks = maximumBlocks;
+		// never read ahead more blocks than we can hold
+		this.maximumReadAhead = Math.min(maximumReadAhead, maximumBlocks - 1);
 
-		map = new LinkedHashMap<Integer, V>(initialSize, 0.75f, true) {
-			protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
-				return size() > maximumSize;
-			};
-		};
+		blocks = new LinkedHashMap<Integer, List<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
 
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, List<V>> eldest) {
+				return size() > maximumBlocks;
+			}
+		};
 	}
 
 	public V get(Integer key) {
-		if (map.containsKey(key)) {
-			return map.get(key);
+		int blockIndex = key / blockSize;
+		FutureTask<Map<Integer, List<V>>> task;
+		boolean owner = false;
+		synchronized (this) {
+			List<V> block = blocks.get(blockIndex);
+			if (block != null) {
+				hitCount++;
+				return getFromBlock(block, key);
+			}
+			missCount++;
+			task = loading.get(blockIndex);
+			if (task == null) {
+				task = createLoadTask(blockIndex);
+				owner = true;
+			}
 		}
-		List<V> values = loadValues(key, 10);
-
-		if (values == null || values.size() == 0) {
+		if (owner) {
+			task.run();
+		}
+		Map<Integer, List<V>> loaded;
+		try {
+			loaded = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Error loading values", cause);
+		}
+		List<V> block = loaded.get(blockIndex);
+		return block == null ? null : getFromBlock(block, key);
+	}
+
+	private V getFromBlock(List<V> block, int key) {
+		int offset = key % blockSize;
+		return offset < block.size() ? block.get(offset) : null;
+	}
+
+	/**
+	 * Works out which blocks to load for a miss on <code>blockIndex</code>
+	 * and registers the task for loading them. Must be called while holding
+	 * the lock on this cache.
+	 * 
+	 * @param blockIndex
+	 *            the block that was missed
+	 * @return the task that will load the blocks
+	 */
+	private FutureTask<Map<Integer, List<V>>> createLoadTask(int blockIndex) {
+		updateReadAhead(blockIndex);
+
+		// extend the range in the scroll direction over blocks we don't have
+		int first = blockIndex;
+		int last = blockIndex;
+		for (int i = 0; i < readAhead; i++) {
+			int next = direction > 0 ? last + 1 : first - 1;
+			if (next < 0 || blocks.containsKey(next)
+					|| loading.containsKey(next)) {
+				break;
+			}
+			if (direction > 0) {
+				last = next;
+			} else {
+				first = next;
+			}
+		}
+
+		final int firstBlock = first;
+		final int blockCount = last - first + 1;
+		final int loadGeneration = generation;
+		FutureTask<Map<Integer, List<V>>> task = new FutureTask<Map<Integer, List<V>>>(
+				new Callable<Map<Integer, List<V>>>() {
+
+					public Map<Integer, List<V>> call() throws Exception {
+						return loadBlocks(firstBlock, blockCount,
+								loadGeneration);
+					}
+				});
+		for (int i = first; i <= last; i++) {
+			loading.put(i, task);
+		}
+		return task;
+	}
+
+	/**
+	 * Doubles the read ahead when misses move through the data in one
+	 * direction and resets it when they jump around.
+	 * 
+	 * @param blockIndex
+	 *            the block that was missed
+	 */
+	private void updateReadAhead(int blockIndex) {
+		int distance = blockIndex - lastMissedBlock;
+		if (lastMissedBlock != -1 && distance != 0
+				&& Math.abs(distance) <= readAhead + 1) {
+			int newDirection = distance > 0 ? 1 : -1;
+			if (newDirection == direction) {
+				readAhead = Math.min(maximumReadAhead, Math.max(1,
+						readAhead * 2));
+			} else {
+				direction = newDirection;
+				readAhead = 0;
+			}
+		} else {
+			readAhead = 0;
 		}
+		lastMissedBlock = blockIndex;
+	}
 
-		for (int i = 0; i < values.size(); i++) {
-			map.put(key + i, values.get(i));
+	private Map<Integer, List<V>> loadBlocks(int firstBlock, int blockCount,
+			int loadGeneration) {
+		Map<Integer, List<V>> loaded = new HashMap<Integer, List<V>>();
+		try {
+			List<V> values;
+			synchronized (providerLock) {
+				values = loadValues(firstBlock * blockSize, blockCount
+						* blockSize);
+			}
+			if (values == null) {
+				values = Collections.emptyList();
+			}
+			for (int i = 0; i < blockCount; i++) {
+				int start = i * blockSize;
+				if (start >= values.size()) {
+					break;
+				}
+				int end = Math.min(values.size(), start + blockSize);
+				loaded.put(firstBlock + i, new ArrayList<V>(values.subList(
+						start, end)));
+			}
+		} finally {
+			synchronized (this) {
+				loadCount++;
+				// don't cache values loaded before the cache was cleared, the
+				// loading entries were removed when it was cleared
+				if (loadGeneration == generation) {
+					for (int i = firstBlock; i < firstBlock + blockCount; i++) {
+						loading.remove(i);
+					}
+					blocks.putAll(loaded);
+				}
+			}
 		}
-		return values.get(0);
+		return loaded;
 	}
 
-	protected void put(Integer key, V value) {
-		map.put(key, value);
+	protected synchronized void put(Integer key, V value) {
+		List<V> block = blocks.get(key / blockSize);
+		int offset = key % blockSize;
+		if (block != null && offset < block.size()) {
+			block.set(offset, value);
+		}
 	}
 
-	protected void putAll(Map<Integer, V> map) {
-		map.putAll(map);
+	protected void putAll(Map<Integer, V> values) {
+		for (Map.Entry<Integer, V> entry : values.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
-	 * Load the item indicated by the key and return it.
+	 * Load the values starting at the item indicated by the key using the
+	 * ordering from the paginator. This may be called from any thread that
+	 * calls {@link #get(Integer)}, but is never called by two threads at once.
 	 * 
 	 * @param key
-	 *            Key of the value to load
-	 * @return the item to load
+	 *            Key of the first value to load
+	 * @param batchSize
+	 *            number of values to load
+	 * @return the loaded values
 	 */
 	protected List<V> loadValues(Integer key, int batchSize) {
-		// load ahead
-		paginator.setFirstResult(key);
-		paginator.setMaxRows(10);
-		return getProvider().fetchResults(paginator);
+		Paginator loadPaginator = new DefaultPaginator();
+		loadPaginator.setOrderKey(paginator.getOrderKey());
+		loadPaginator.setOrderAscending(paginator.isOrderAscending());
+		loadPaginator.setFirstResult(key);
+		loadPaginator.setMaxRows(batchSize);
+		return getProvider().fetchResults(loadPaginator);
+	}
+
+	/**
+	 * Counts the values using the provider. The count is fetched while
+	 * holding the same lock as the loads so the provider is never used by two
+	 * threads at once.
+	 * 
+	 * @return the number of values available from the provider
+	 */
+	public Integer fetchResultCount() {
+		synchronized (providerLock) {
+			return getProvider().fetchResultCount();
+		}
 	}
 
 	public DataProvider<V> getProvider() {
 		return provider;
 	}
 
-	public void clear() {
-		map.clear();
+	/**
+	 * Removes all the values from the cache. Values from loads that are in
+	 * progress are not added to the cache and later requests don't wait for
+	 * those loads.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		loading.clear();
+		generation++;
+		lastMissedBlock = -1;
+		readAhead = 0;
+	}
+
+	/**
+	 * Indicates whether the value for the key is held in the cache.
+	 * 
+	 * @param key
+	 *            index of the value
+	 * @return true if the value is cached
+	 */
+	public synchronized boolean isCached(Integer key) {
+		return blocks.containsKey(key / blockSize);
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getMaximumBlocks() {
+		return maximumBlocks;
+	}
+
+	public int getMaximumReadAhead() {
+		return maximumReadAhead;
+	}
+
+	/**
+	 * @return the number of blocks currently read ahead on a miss
+	 */
+	public synchronized int getReadAhead() {
+		return readAhead;
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return the number of times values have been fetched from the provider
+	 */
+	public synchronized int getLoadCount() {
+		return loadCount;
 	}
 
 }
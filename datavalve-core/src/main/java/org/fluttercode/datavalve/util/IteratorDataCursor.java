@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.Iterator;
+
+import org.fluttercode.datavalve.DataCursor;
+
+/**
+ * {@link DataCursor} over data that is already held in memory.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from the cursor
+ */
+public class IteratorDataCursor<T> extends AbstractDataCursor<T> {
+
+	private Iterator<T> iterator;
+	private T current;
+
+	public IteratorDataCursor(Iterator<T> iterator) {
+		super(null);
+		this.iterator = iterator;
+	}
+
+	@Override
+	protected boolean moveNext() {
+		if (iterator.hasNext()) {
+			current = iterator.next();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	protected T getCurrent() {
+		return current;
+	}
+
+	@Override
+	protected void doClose() {
+		current = null;
+	}
+}
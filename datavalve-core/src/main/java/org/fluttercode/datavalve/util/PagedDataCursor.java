@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DataProvider;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+
+/**
+ * {@link DataCursor} that streams the results from any {@link DataProvider} by
+ * fetching them a batch at a time. Only one batch is held in memory at once.
+ * This is the fall back used for providers that don't have a native way to
+ * stream results.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object returned from the cursor
+ */
+public class PagedDataCursor<T> extends AbstractDataCursor<T> {
+
+	private final DataProvider<T> provider;
+	private final Paginator batchPaginator = new DefaultPaginator();
+	private Iterator<T> batch;
+	private boolean lastBatch;
+	private T current;
+
+	/**
+	 * @param provider
+	 *            provider to fetch the batches from
+	 * @param paginator
+	 *            defines the first result, max rows and ordering of the results
+	 * @param batchSize
+	 *            number of rows to fetch in each batch
+	 */
+	public PagedDataCursor(DataProvider<T> provider, Paginator paginator,
+			int batchSize) {
+		super(paginator.getMaxRows());
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"Cursor batch size must be at least 1");
+		}
+		this.provider = provider;
+		batchPaginator.setFirstResult(paginator.getFirstResult());
+		batchPaginator.setMaxRows(batchSize);
+		batchPaginator.setOrderKey(paginator.getOrderKey());
+		batchPaginator.setOrderAscending(paginator.isOrderAscending());
+	}
+
+	@Override
+	protected boolean moveNext() {
+		if (batch == null || !batch.hasNext()) {
+			if (batch != null) {
+				if (lastBatch) {
+					return false;
+				}
+				batchPaginator.setFirstResult(batchPaginator.getFirstResult()
+						+ batchPaginator.getMaxRows());
+			}
+			List<T> results = provider.fetchResults(batchPaginator);
+			lastBatch = !batchPaginator.isNextAvailable();
+			batch = results.iterator();
+			if (!batch.hasNext()) {
+				return false;
+			}
+		}
+		current = batch.next();
+		return true;
+	}
+
+	@Override
+	protected T getCurrent() {
+		return current;
+	}
+
+	@Override
+	protected void doClose() {
+		batch = null;
+		current = null;
+	}
+}
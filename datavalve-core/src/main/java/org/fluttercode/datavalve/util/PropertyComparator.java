@@ -0,0 +1,342 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * Comparator that orders objects by the value of a property, which can be a
+ * nested property path such as <code>address.city</code>. Null values, or
+ * values of paths that pass through a null, come first. Strings are compared
+ * with a {@link Collator} for the locale if one is given.
+ * <p/>
+ * When sorting a lot of objects, {@link #createIndexComparator(Object[])}
+ * reads the property of each object just once into an array of keys, using
+ * primitive arrays for numbers and dates and {@link CollationKey}s for
+ * collated strings, so the sort itself only compares keys.
+ * 
+ * @author Andy Gibson
+ * 
+ * @param <T>
+ *            The type of object being compared
+ */
+public class PropertyComparator<T> implements Comparator<T>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String propertyPath;
+	private final String[] properties;
+	private final Locale locale;
+	private transient Collator collator;
+
+	public PropertyComparator(String propertyPath, Locale locale) {
+		if (propertyPath == null || propertyPath.length() == 0) {
+			throw new IllegalArgumentException("Property path cannot be empty");
+		}
+		this.propertyPath = propertyPath;
+		this.properties = propertyPath.split("\\.");
+		this.locale = locale;
+	}
+
+	public PropertyComparator(String propertyPath) {
+		this(propertyPath, null);
+	}
+
+	public int compare(T o1, T o2) {
+		return compareValues(getValue(o1), getValue(o2));
+	}
+
+	/**
+	 * Reads the property from an object.
+	 * 
+	 * @param object
+	 *            object to read the property from
+	 * @return the value of the property or null if it or any object on the
+	 *         path to it is null
+	 */
+	public Object getValue(Object object) {
+		Object base = object;
+		for (int i = 0; i < properties.length && base != null; i++) {
+			try {
+				base = PropertyUtils.getProperty(base, properties[i]);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(String.format(
+						"Unable to read property '%s'", propertyPath), e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException(String.format(
+						"Unable to read property '%s'", propertyPath), e);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(String.format(
+						"Unable to read property '%s'", propertyPath), e);
+			}
+		}
+		return base;
+	}
+
+	private int compareValues(Object value1, Object value2) {
+		if (value1 instanceof String && value2 instanceof String
+				&& locale != null) {
+			return getCollator().compare(value1, value2);
+		}
+		return compareObjects(value1, value2);
+	}
+
+	/**
+	 * Compares two property values in their natural order, with nulls first
+	 * and numbers of different types compared by value.
+	 * 
+	 * @throws ClassCastException
+	 *             if the values are not numbers and can't be compared with
+	 *             each other
+	 */
+	@SuppressWarnings("unchecked")
+	public static int compareObjects(Object value1, Object value2) {
+		if (value1 == null || value2 == null) {
+			return value1 == null ? (value2 == null ? 0 : -1) : 1;
+		}
+		if (isIntegral(value1) && isIntegral(value2)) {
+			long long1 = ((Number) value1).longValue();
+			long long2 = ((Number) value2).longValue();
+			return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+		}
+		if (value1 instanceof Number && value2 instanceof Number) {
+			if (isBig(value1) || isBig(value2)) {
+				BigDecimal decimal1 = toBigDecimal((Number) value1);
+				BigDecimal decimal2 = toBigDecimal((Number) value2);
+				if (decimal1 != null && decimal2 != null) {
+					return decimal1.compareTo(decimal2);
+				}
+			}
+			return Double.compare(((Number) value1).doubleValue(),
+					((Number) value2).doubleValue());
+		}
+		return ((Comparable<Object>) value1).compareTo(value2);
+	}
+
+	private static boolean isBig(Object value) {
+		return value instanceof BigDecimal || value instanceof BigInteger;
+	}
+
+	/**
+	 * @return the exact value of the number or null if it is infinite or not
+	 *         a number
+	 */
+	private static BigDecimal toBigDecimal(Number value) {
+		if (value instanceof BigDecimal) {
+			return (BigDecimal) value;
+		}
+		if (value instanceof BigInteger) {
+			return new BigDecimal((BigInteger) value);
+		}
+		if (isIntegral(value)) {
+			return BigDecimal.valueOf(value.longValue());
+		}
+		double d = value.doubleValue();
+		return Double.isNaN(d) || Double.isInfinite(d) ? null
+				: new BigDecimal(d);
+	}
+
+	/**
+	 * Reads the property from each object once and creates a comparator for
+	 * the positions of the objects that compares the values read. Orders
+	 * objects the same as {@link #compare(Object, Object)}.
+	 * 
+	 * @param objects
+	 *            the objects being sorted
+	 * @return comparator for positions in the array
+	 */
+	public IndexComparator createIndexComparator(Object[] objects) {
+		Object[] values = new Object[objects.length];
+		boolean[] nulls = null;
+		boolean integral = true;
+		boolean numeric = true;
+		boolean big = false;
+		boolean dates = true;
+		boolean strings = true;
+		for (int i = 0; i < objects.length; i++) {
+			Object value = getValue(objects[i]);
+			if (value == null) {
+				if (nulls == null) {
+					nulls = new boolean[objects.length];
+				}
+				nulls[i] = true;
+				continue;
+			}
+			values[i] = value;
+			integral &= isIntegral(value);
+			numeric &= value instanceof Number;
+			big |= isBig(value);
+			dates &= value instanceof Date;
+			strings &= value instanceof String;
+		}
+		if (integral) {
+			long[] keys = new long[values.length];
+			for (int i = 0; i < values.length; i++) {
+				keys[i] = values[i] == null ? 0 : ((Number) values[i])
+						.longValue();
+			}
+			return new LongKeyComparator(keys, nulls);
+		}
+		if (dates) {
+			long[] keys = new long[values.length];
+			for (int i = 0; i < values.length; i++) {
+				keys[i] = values[i] == null ? 0 : ((Date) values[i])
+						.getTime();
+			}
+			return new LongKeyComparator(keys, nulls);
+		}
+		if (numeric && big) {
+			// doubles can't hold big numbers exactly, so compare them as
+			// big decimals the same way compareObjects does
+			Object[] keys = new Object[values.length];
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					keys[i] = toBigDecimal((Number) values[i]);
+					if (keys[i] == null) {
+						// infinite or not a number, compare the values
+						return new ObjectKeyComparator(values);
+					}
+				}
+			}
+			return new ObjectKeyComparator(keys);
+		}
+		if (numeric) {
+			double[] keys = new double[values.length];
+			for (int i = 0; i < values.length; i++) {
+				keys[i] = values[i] == null ? 0 : ((Number) values[i])
+						.doubleValue();
+			}
+			return new DoubleKeyComparator(keys, nulls);
+		}
+		if (strings && locale != null) {
+			Collator collator = getCollator();
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					values[i] = collator.getCollationKey((String) values[i]);
+				}
+			}
+		}
+		return new ObjectKeyComparator(values);
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte;
+	}
+
+	private Collator getCollator() {
+		if (collator == null) {
+			collator = Collator.getInstance(locale);
+		}
+		return collator;
+	}
+
+	public String getPropertyPath() {
+		return propertyPath;
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	@Override
+	public String toString() {
+		return "PropertyComparator[" + propertyPath + "]";
+	}
+
+	/**
+	 * Orders a position holding a null before one holding a value.
+	 * 
+	 * @return the result of the comparison or 2 if neither is null
+	 */
+	private static int compareNulls(boolean[] nulls, int index1, int index2) {
+		if (nulls == null || (!nulls[index1] && !nulls[index2])) {
+			return 2;
+		}
+		return nulls[index1] ? (nulls[index2] ? 0 : -1) : 1;
+	}
+
+	private static class LongKeyComparator implements IndexComparator {
+
+		private final long[] keys;
+		private final boolean[] nulls;
+
+		public LongKeyComparator(long[] keys, boolean[] nulls) {
+			this.keys = keys;
+			this.nulls = nulls;
+		}
+
+		public int compare(int index1, int index2) {
+			int result = compareNulls(nulls, index1, index2);
+			if (result != 2) {
+				return result;
+			}
+			long key1 = keys[index1];
+			long key2 = keys[index2];
+			return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+		}
+	}
+
+	private static class DoubleKeyComparator implements IndexComparator {
+
+		private final double[] keys;
+		private final boolean[] nulls;
+
+		public DoubleKeyComparator(double[] keys, boolean[] nulls) {
+			this.keys = keys;
+			this.nulls = nulls;
+		}
+
+		public int compare(int index1, int index2) {
+			int result = compareNulls(nulls, index1, index2);
+			if (result != 2) {
+				return result;
+			}
+			return Double.compare(keys[index1], keys[index2]);
+		}
+	}
+
+	private static class ObjectKeyComparator implements IndexComparator {
+
+		private final Object[] keys;
+
+		public ObjectKeyComparator(Object[] keys) {
+			this.keys = keys;
+		}
+
+		public int compare(int index1, int index2) {
+			return compareObjects(keys[index1], keys[index2]);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.client.swing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.provider.InMemoryDataProvider;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class ProviderTableModelTest extends TestCase {
+
+	private static class CountingProvider extends
+			InMemoryDataProvider<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int countRequests;
+
+		@Override
+		protected List<Integer> fetchBackingData() {
+			List<Integer> data = new ArrayList<Integer>();
+			for (int i = 0; i < 200; i++) {
+				data.add(i);
+			}
+			return data;
+		}
+
+		@Override
+		public Integer fetchResultCount() {
+			countRequests++;
+			return super.fetchResultCount();
+		}
+	}
+
+	private static class IntegerTableModel extends ProviderTableModel<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		public IntegerTableModel(CountingProvider provider) {
+			super(provider);
+		}
+
+		@Override
+		protected Object getColumnValue(Integer object, int column) {
+			return object;
+		}
+
+		@Override
+		protected Object getPlaceholderValue(int row, int column) {
+			return "loading";
+		}
+	}
+
+	private CountingProvider provider;
+	private IntegerTableModel model;
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = new CountingProvider();
+		model = new IntegerTableModel(provider);
+		model.addColumn("Value");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		super.tearDown();
+	}
+
+	private void waitForLoads() throws Exception {
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		// run any updates posted to the event thread
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+			}
+		});
+	}
+
+	public void testRowCountIsCached() {
+		assertEquals(200, model.getRowCount());
+		assertEquals(200, model.getRowCount());
+		assertEquals(1, provider.countRequests);
+		model.invalidate();
+		assertEquals(200, model.getRowCount());
+		assertEquals(2, provider.countRequests);
+	}
+
+	public void testSynchronousValues() {
+		assertEquals(0, model.getValueAt(0, 0));
+		assertEquals(150, model.getValueAt(150, 0));
+	}
+
+	public void testAsynchronousLoading() throws Exception {
+		executor = Executors.newSingleThreadExecutor();
+		model.setExecutor(executor);
+		final List<TableModelEvent> events = new ArrayList<TableModelEvent>();
+		model.addTableModelListener(new TableModelListener() {
+			public void tableChanged(TableModelEvent e) {
+				events.add(e);
+			}
+		});
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				assertEquals(0, model.getRowCount());
+				assertEquals("loading", model.getValueAt(60, 0));
+			}
+		});
+		waitForLoads();
+		assertEquals(200, model.getRowCount());
+		assertEquals(60, model.getValueAt(60, 0));
+
+		// only the block holding row 60 is updated
+		int blockSize = model.getCache().getBlockSize();
+		int first = (60 / blockSize) * blockSize;
+		boolean updated = false;
+		for (TableModelEvent event : events) {
+			if (event.getType() == TableModelEvent.UPDATE
+					&& event.getFirstRow() == first) {
+				assertEquals(first + blockSize - 1, event.getLastRow());
+				updated = true;
+			}
+		}
+		assertTrue(updated);
+	}
+
+	public void testSortByColumn() {
+		model.setColumnOrderKey(0, "value");
+		model.sortByColumn(0);
+		assertEquals("value", model.getPaginator().getOrderKey());
+		assertTrue(model.getPaginator().isOrderAscending());
+		model.sortByColumn(0);
+		assertFalse(model.getPaginator().isOrderAscending());
+	}
+
+	public void testSortByUnmappedColumnIgnored() {
+		model.sortByColumn(0);
+		assertNull(model.getPaginator().getOrderKey());
+	}
+}
@@ -263,4 +263,77 @@ public class DataQueryBuilderTest extends TestCase {
 				.getStatement());
 	}
 
+	public void testKeysetRestriction() {
+		builder.setOrderBy("y.a,y.b");
+		builder.setKeyset(new String[] { "y.a", "y.b" }, new Object[] { 1, 2 });
+		DataQuery query = builder.build();
+		assertEquals(
+				"select x from y WHERE (y.a > :param_0 OR (y.a = :param_1 AND y.b > :param_2)) ORDER BY y.a ASC, y.b ASC",
+				query.getStatement());
+		assertEquals(3, query.getParameters().size());
+		assertEquals(1, query.getParameters().get(0).getValue());
+		assertEquals(1, query.getParameters().get(1).getValue());
+		assertEquals(2, query.getParameters().get(2).getValue());
+	}
+
+	public void testKeysetRestrictionDescending() {
+		builder.setOrderBy("y.a");
+		builder.setOrderAscending(false);
+		builder.setKeyset(new String[] { "y.a" }, new Object[] { 5 });
+		DataQuery query = builder.build();
+		assertEquals("select x from y WHERE (y.a < :param_0) ORDER BY y.a DESC",
+				query.getStatement());
+	}
+
+	public void testKeysetWithRestrictions() {
+		provider.addRestriction("a=:VALUE2");
+		provider.addRestriction("OR b=:VALUE1");
+		builder.setOrderBy("y.id");
+		builder.setKeyset(new String[] { "y.id" }, new Object[] { 10 });
+		DataQuery query = builder.build();
+		assertEquals(
+				"select x from y WHERE (a=:param_0 OR b=:param_1) AND (y.id > :param_2) ORDER BY y.id ASC",
+				query.getStatement());
+		assertEquals(3, query.getParameters().size());
+		assertEquals(10, query.getParameters().get(2).getValue());
+	}
+
+	public void testRebuildFromCachedTemplates() {
+		provider.addRestriction("a=:VALUE1");
+		provider.addRestriction("b=:NULL");
+		provider.addRestriction("c=#{id}");
+		DataQuery first = builder.build();
+
+		DataQueryBuilder other = new DataQueryBuilder();
+		other.setBaseStatement("select x from y");
+		other.setProvider(provider);
+		DataQuery second = other.build();
+
+		assertEquals("select x from y WHERE a=:param_0 AND c=:param_1", first
+				.getStatement());
+		assertEquals(first.getStatement(), second.getStatement());
+		assertEquals(2, second.getParameters().size());
+		assertEquals(1l, second.getParameters().get(0).getValue());
+		assertEquals(99, second.getParameters().get(1).getValue());
+		assertNotSame(first.getParameters().get(0), second.getParameters()
+				.get(0));
+	}
+
+	public void testSubclassHooksUsed() {
+		provider.addRestriction("a=:VALUE1");
+		DataQueryBuilder subclass = new DataQueryBuilder() {
+			@Override
+			protected void addRestrictionToQuery(String line) {
+				super.addRestrictionToQuery(line == null ? null : "(" + line
+						+ ")");
+			}
+		};
+		subclass.setBaseStatement("select x from y");
+		subclass.setProvider(provider);
+		assertEquals("select x from y WHERE (a=:param_0)", subclass.build()
+				.getStatement());
+		assertEquals("select x from y WHERE a=:param_0", builder.build()
+				.getStatement());
+	}
+
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.fluttercode.datavalve.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.KeysetPaginator;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class KeysetPagingTest extends TestCase {
+
+	private static class RecordingProvider extends
+			AbstractQueryDataProvider<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private List<String> statements = new ArrayList<String>();
+
+		@Override
+		protected Integer queryForCount(DataQuery query) {
+			return 0;
+		}
+
+		@Override
+		protected List<Integer> queryForResults(DataQuery query,
+				Integer firstResult, Integer count) {
+			statements.add(query.getStatement());
+			List<Integer> results = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++) {
+				results.add(i);
+			}
+			return results;
+		}
+
+		@Override
+		protected Object getKeyValue(Integer row, String field) {
+			return row;
+		}
+	}
+
+	private RecordingProvider provider;
+	private KeysetPaginator paginator;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = new RecordingProvider();
+		provider.setSelectStatement("select p from Person p");
+		provider.getOrderKeyMap().put("name", "p.lastName");
+		paginator = new KeysetPaginator(10);
+		paginator.setOrderKey("name");
+	}
+
+	public void testOffsetPagingWithoutUniqueField() {
+		provider.fetchResults(paginator);
+		paginator.next();
+		assertNull(provider.getKeysetFields(paginator));
+		provider.fetchResults(paginator);
+		assertEquals("select p from Person p ORDER BY p.lastName ASC",
+				provider.statements.get(1));
+	}
+
+	public void testUniqueFieldAppended() {
+		provider.setKeysetUniqueField("p.id");
+		provider.fetchResults(paginator);
+		assertEquals(
+				"select p from Person p ORDER BY p.lastName ASC, p.id ASC",
+				provider.statements.get(0));
+		paginator.next();
+		provider.fetchResults(paginator);
+		String statement = provider.statements.get(1);
+		assertTrue(statement, statement.contains("p.id > "));
+		assertTrue(statement, statement
+				.endsWith("ORDER BY p.lastName ASC, p.id ASC"));
+	}
+
+	public void testUniqueFieldNotDuplicated() {
+		provider.setKeysetUniqueField("p.id");
+		provider.getOrderKeyMap().put("id", "p.id");
+		paginator.setOrderKey("id");
+		assertEquals(1, provider.getKeysetFields(paginator).length);
+	}
+}
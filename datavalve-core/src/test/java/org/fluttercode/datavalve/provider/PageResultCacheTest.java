@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+import org.fluttercode.datavalve.provider.util.PageResultCache;
+import org.fluttercode.datavalve.provider.util.QueryKey;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class PageResultCacheTest extends TestCase {
+
+	private static class PagingProvider extends DummyDataProvider<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int resultQueries;
+
+		@Override
+		protected List<String> queryForResults(DataQuery query,
+				Integer firstResult, Integer count) {
+			resultQueries++;
+			List<String> results = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				results.add("Row " + (firstResult + i));
+			}
+			return results;
+		}
+
+		@Override
+		protected DataQuery buildDataQuery(String baseStatement,
+				boolean includeOrdering, Paginator paginator) {
+			DataQuery query = new DataQuery();
+			query.setStatement(baseStatement);
+			return query;
+		}
+	}
+
+	private QueryKey buildKey(int firstResult) {
+		DataQuery query = new DataQuery();
+		query.setStatement("select");
+		return new QueryKey(query, firstResult, 10);
+	}
+
+	public void testWeightedEviction() {
+		PageResultCache cache = new PageResultCache(0, 1000);
+		List<String> page = Arrays.asList("aaaaaaaaaa", "bbbbbbbbbb",
+				"cccccccccc");
+		cache.put(buildKey(0), null, page);
+		long weight = cache.getWeight();
+		assertTrue(weight > 3 * 20);
+		int capacity = (int) (1000 / weight);
+		for (int i = 1; i <= capacity; i++) {
+			cache.put(buildKey(i), null, page);
+		}
+		assertEquals(capacity, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue(cache.getWeight() <= 1000);
+		assertNull(cache.get(buildKey(0)));
+	}
+
+	public void testOversizedPageNotCached() {
+		PageResultCache cache = new PageResultCache(0, 50);
+		cache.put(buildKey(0), null, Arrays.asList("a much longer string"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testProviderUsesCache() {
+		PagingProvider provider = new PagingProvider();
+		provider.setEntityClass(String.class);
+		provider.setSelectStatement("select * from table");
+		provider.setPageResultCache(new PageResultCache(0, 100000));
+		Paginator paginator = new DefaultPaginator(10);
+
+		List<String> first = provider.fetchResults(paginator);
+		List<String> second = provider.fetchResults(paginator);
+		assertEquals(1, provider.resultQueries);
+		assertEquals(first, second);
+		assertNotSame(first, second);
+		assertTrue(paginator.isNextAvailable());
+
+		paginator.setFirstResult(10);
+		assertEquals("Row 10", provider.fetchResults(paginator).get(0));
+		assertEquals(2, provider.resultQueries);
+
+		provider.getPageResultCache().invalidate(String.class);
+		provider.fetchResults(paginator);
+		assertEquals(3, provider.resultQueries);
+		assertEquals(1, provider.getPageResultCache().getHitCount());
+		assertEquals(3, provider.getPageResultCache().getMissCount());
+	}
+
+	public void testCacheRegions() {
+		PageResultCache cache = new PageResultCache(0, 100000);
+		PagingProvider first = new PagingProvider();
+		first.setSelectStatement("select * from table");
+		first.setPageResultCache(cache);
+		PagingProvider second = new PagingProvider();
+		second.setSelectStatement("select * from table");
+		second.setPageResultCache(cache);
+		second.setCacheRegion("other");
+
+		first.fetchResults(new DefaultPaginator(10));
+		second.fetchResults(new DefaultPaginator(10));
+		assertEquals(1, second.resultQueries);
+		assertEquals(2, cache.size());
+	}
+
+	public void testSharedInstanceSerialization() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(PageResultCache.getSharedInstance());
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		assertSame(PageResultCache.getSharedInstance(), in.readObject());
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.params.Parameter;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+import org.fluttercode.datavalve.provider.util.QueryKey;
+import org.fluttercode.datavalve.provider.util.QueryResultCache;
+import org.fluttercode.datavalve.provider.util.ResultCountCache;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class ResultCountCacheTest extends TestCase {
+
+	private long time;
+
+	private class TimedCache extends ResultCountCache {
+
+		private static final long serialVersionUID = 1L;
+
+		public TimedCache(long timeToLive, int maximumSize) {
+			super(timeToLive, maximumSize);
+		}
+
+		@Override
+		protected long currentTime() {
+			return time;
+		}
+	}
+
+	private static class CountingProvider extends DummyDataProvider<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int countQueries;
+
+		@Override
+		protected Integer queryForCount(DataQuery query) {
+			countQueries++;
+			return 12;
+		}
+
+		@Override
+		protected DataQuery buildDataQuery(String baseStatement,
+				boolean includeOrdering, Paginator paginator) {
+			DataQuery query = new DataQuery();
+			query.setStatement(baseStatement);
+			query.getParameters().add(
+					new Parameter(":value", getParameters().get("value")));
+			return query;
+		}
+	}
+
+	private DataQuery buildQuery(String statement, Object value) {
+		DataQuery query = new DataQuery();
+		query.setStatement(statement);
+		query.getParameters().add(new Parameter(":value", value));
+		return query;
+	}
+
+	public void testKeyEquality() {
+		QueryKey key = new QueryKey(buildQuery("select", 1));
+		assertEquals(key, new QueryKey(buildQuery("select", 1)));
+		assertEquals(key.hashCode(), new QueryKey(buildQuery("select", 1))
+				.hashCode());
+		assertFalse(key.equals(new QueryKey(buildQuery("select", 2))));
+		assertFalse(key.equals(new QueryKey(buildQuery("select", 1), 10)));
+		assertEquals(new QueryKey(buildQuery("select", new int[] { 1, 2 })),
+				new QueryKey(buildQuery("select", new int[] { 1, 2 })));
+	}
+
+	public void testKeyCopiesParameterValues() {
+		Date date = new Date(1000);
+		QueryKey key = new QueryKey(buildQuery("select", date));
+		date.setTime(2000);
+		assertEquals(new QueryKey(buildQuery("select", new Date(1000))), key);
+		assertTrue(key.isCacheable());
+
+		QueryKey entityKey = new QueryKey(buildQuery("select",
+				new StringBuilder("entity")));
+		assertFalse(entityKey.isCacheable());
+		ResultCountCache cache = new ResultCountCache(0, 10);
+		cache.put(entityKey, null, 1);
+		assertEquals(0, cache.size());
+	}
+
+	public void testExpiry() {
+		ResultCountCache cache = new TimedCache(1000, 10);
+		QueryKey key = new QueryKey(buildQuery("select", 1));
+		cache.put(key, Long.class, 5);
+		time = 999;
+		assertEquals(5, cache.get(key).intValue());
+		time = 1000;
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void testLeastRecentlyUsedEviction() {
+		QueryResultCache<Integer> cache = new ResultCountCache(0, 2);
+		QueryKey key1 = new QueryKey(buildQuery("select", 1));
+		QueryKey key2 = new QueryKey(buildQuery("select", 2));
+		QueryKey key3 = new QueryKey(buildQuery("select", 3));
+		cache.put(key1, null, 1);
+		cache.put(key2, null, 2);
+		cache.get(key1);
+		cache.put(key3, null, 3);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get(key2));
+		assertEquals(1, cache.get(key1).intValue());
+		assertEquals(3, cache.get(key3).intValue());
+	}
+
+	public void testInvalidateByEntityClass() {
+		ResultCountCache cache = new ResultCountCache(0, 10);
+		cache.put(new QueryKey(buildQuery("a", 1)), Integer.class, 1);
+		cache.put(new QueryKey(buildQuery("b", 1)), Long.class, 2);
+		cache.put(new QueryKey(buildQuery("c", 1)), null, 3);
+		assertEquals(2, cache.invalidate(Number.class));
+		assertEquals(1, cache.size());
+	}
+
+	public void testProviderUsesCache() {
+		CountingProvider provider = new CountingProvider();
+		provider.setEntityClass(Long.class);
+		provider.setCountStatement("select count(*) from table");
+		provider.setResultCountCache(new ResultCountCache(0, 10));
+		provider.getParameters().put("value", 1);
+
+		assertEquals(12, provider.fetchResultCount().intValue());
+		assertEquals(12, provider.fetchResultCount().intValue());
+		assertEquals(1, provider.countQueries);
+
+		provider.getParameters().put("value", 2);
+		provider.fetchResultCount();
+		assertEquals(2, provider.countQueries);
+
+		provider.getResultCountCache().invalidate(Long.class);
+		provider.fetchResultCount();
+		assertEquals(3, provider.countQueries);
+	}
+
+	public void testSharedInstanceSerialization() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(ResultCountCache.getSharedInstance());
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		assertSame(ResultCountCache.getSharedInstance(), in.readObject());
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.ResultPage;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class ResultPageProviderTest extends TestCase {
+
+	private ExecutorService executor;
+
+	private static class LatchedProvider extends AbstractDataProvider<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		final CountDownLatch resultsFetched = new CountDownLatch(1);
+		private int preFetchCount;
+		private Thread countThread;
+
+		@Override
+		protected void doPreFetch() {
+			preFetchCount++;
+		}
+
+		@Override
+		protected Integer doFetchResultCount() {
+			countThread = Thread.currentThread();
+			return 42;
+		}
+
+		@Override
+		protected List<Integer> doFetchResults(Paginator paginator) {
+			List<Integer> results = new ArrayList<Integer>();
+			for (int i = 0; i < paginator.getMaxRows(); i++) {
+				results.add(paginator.getFirstResult() + i);
+			}
+			paginator.setNextAvailable(true);
+			resultsFetched.countDown();
+			return results;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newFixedThreadPool(1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testSequentialFetch() {
+		LatchedProvider provider = new LatchedProvider();
+		ResultPage<Integer> page = provider.fetchResultPage(new DefaultPaginator(
+				10));
+		assertEquals(10, page.getResults().size());
+		assertEquals(42, page.getResultCount().intValue());
+		assertTrue(page.isNextAvailable());
+		assertEquals(1, provider.preFetchCount);
+		assertSame(Thread.currentThread(), provider.countThread);
+	}
+
+	public void testConcurrentFetch() throws Exception {
+		final LatchedProvider provider = new LatchedProvider() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Integer doFetchResultCount() {
+				Integer result = super.doFetchResultCount();
+				// only completes if the results are fetched at the same time
+				try {
+					assertTrue(resultsFetched.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					fail("Interrupted");
+				}
+				return result;
+			}
+		};
+		provider.setExecutor(executor);
+		Paginator paginator = new DefaultPaginator(5);
+		paginator.setFirstResult(20);
+		ResultPage<Integer> page = provider.fetchResultPage(paginator);
+		assertEquals(5, page.getResults().size());
+		assertEquals(20, page.getResults().get(0).intValue());
+		assertEquals(42, page.getResultCount().intValue());
+		assertEquals(1, provider.preFetchCount);
+		assertNotSame(Thread.currentThread(), provider.countThread);
+	}
+}
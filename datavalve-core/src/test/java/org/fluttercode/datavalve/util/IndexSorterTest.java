@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class IndexSorterTest extends TestCase {
+
+	private int[] keys;
+	private IndexComparator comparator;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(3);
+		keys = new int[100000];
+		for (int i = 0; i < keys.length; i++) {
+			// lots of ties to check the sorts are stable
+			keys[i] = random.nextInt(1000);
+		}
+		comparator = new IndexComparator() {
+			public int compare(int index1, int index2) {
+				return keys[index1] - keys[index2];
+			}
+		};
+	}
+
+	/**
+	 * @return the indexes sorted by key and then by index
+	 */
+	private int[] expected() {
+		List<Integer> indexes = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			indexes.add(i);
+		}
+		Collections.sort(indexes, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return comparator.compare(o1, o2);
+			}
+		});
+		int[] result = new int[indexes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = indexes.get(i);
+		}
+		return result;
+	}
+
+	private void assertIndexes(int[] expected, int[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Index " + i, expected[i], actual[i]);
+		}
+	}
+
+	public void testSort() {
+		int[] indexes = IndexSorter.identity(keys.length);
+		IndexSorter.sort(indexes, comparator);
+		assertIndexes(expected(), indexes);
+	}
+
+	public void testParallelSort() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// odd number of runs so one is carried through a merge round
+			for (int parallelism : new int[] { 2, 3, 4, 7 }) {
+				int[] indexes = IndexSorter.identity(keys.length);
+				IndexSorter.sort(indexes, comparator, executor, parallelism);
+				assertIndexes(expected(), indexes);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testParallelSortWithoutExecutor() {
+		int[] indexes = IndexSorter.identity(keys.length);
+		IndexSorter.sort(indexes, comparator, null, 4);
+		assertIndexes(expected(), indexes);
+	}
+
+	public void testSelect() {
+		IndexComparator tieBreaking = new IndexComparator() {
+			public int compare(int index1, int index2) {
+				int result = comparator.compare(index1, index2);
+				return result != 0 ? result : index1 - index2;
+			}
+		};
+		int[] expected = expected();
+		int[] selected = IndexSorter.select(keys.length, 250, tieBreaking);
+		assertIndexes(copyOf(expected, 250), selected);
+		assertEquals(0, IndexSorter.select(keys.length, 0, tieBreaking).length);
+		assertIndexes(expected, IndexSorter.select(keys.length,
+				keys.length + 10, tieBreaking));
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.provider.InMemoryDataProvider;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class IndexedDataProviderCacheTest extends TestCase {
+
+	private static class CountingProvider extends
+			InMemoryDataProvider<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Integer> requests = new ArrayList<Integer>();
+		private CountDownLatch blockLoad;
+
+		@Override
+		protected List<Integer> fetchBackingData() {
+			List<Integer> data = new ArrayList<Integer>();
+			for (int i = 0; i < 1000; i++) {
+				data.add(i);
+			}
+			return data;
+		}
+
+		@Override
+		public List<Integer> fetchResults(Paginator paginator) {
+			synchronized (requests) {
+				requests.add(paginator.getFirstResult());
+			}
+			if (blockLoad != null) {
+				try {
+					blockLoad.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.fetchResults(paginator);
+		}
+	}
+
+	private CountingProvider provider;
+	private IndexedDataProviderCache<Integer> cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = new CountingProvider();
+		cache = new IndexedDataProviderCache<Integer>(provider,
+				new DefaultPaginator(), 10, 20, 4);
+	}
+
+	public void testBlockAlignedLoad() {
+		assertEquals(15, cache.get(15).intValue());
+		assertEquals(1, provider.requests.size());
+		assertEquals(10, provider.requests.get(0).intValue());
+		assertEquals(10, cache.get(10).intValue());
+		assertEquals(19, cache.get(19).intValue());
+		assertEquals(1, cache.getLoadCount());
+		assertFalse(cache.isCached(20));
+	}
+
+	public void testSequentialReadAheadGrows() {
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i, cache.get(i).intValue());
+		}
+		// blocks 0, 1-2, 3-5, 6-10, 11-15, 16-20
+		assertEquals(6, cache.getLoadCount());
+		assertEquals(4, cache.getReadAhead());
+	}
+
+	public void testRandomAccessDoesNotReadAhead() {
+		cache.get(500);
+		cache.get(100);
+		cache.get(900);
+		assertEquals(0, cache.getReadAhead());
+		assertTrue(cache.isCached(905));
+		assertFalse(cache.isCached(910));
+	}
+
+	public void testBackwardScrolling() {
+		for (int i = 999; i >= 800; i--) {
+			assertEquals(i, cache.get(i).intValue());
+		}
+		assertTrue(cache.getLoadCount() < 10);
+	}
+
+	public void testValuesPastEndAreNull() {
+		assertNull(cache.get(1005));
+	}
+
+	public void testConcurrentLoadsCollapse() throws Exception {
+		provider.blockLoad = new CountDownLatch(1);
+		final Integer[] values = new Integer[2];
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				values[0] = cache.get(42);
+			}
+		};
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				values[1] = cache.get(47);
+			}
+		};
+		first.start();
+		second.start();
+		// give both threads time to request the block
+		Thread.sleep(100);
+		provider.blockLoad.countDown();
+		first.join(5000);
+		second.join(5000);
+		assertEquals(42, values[0].intValue());
+		assertEquals(47, values[1].intValue());
+		assertEquals(1, provider.requests.size());
+	}
+
+	public void testClear() {
+		cache.get(5);
+		cache.clear();
+		assertFalse(cache.isCached(5));
+		cache.get(5);
+		assertEquals(2, cache.getLoadCount());
+	}
+
+	public void testClearDuringLoad() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		provider.blockLoad = latch;
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				cache.get(42);
+			}
+		};
+		loader.start();
+		Thread.sleep(100);
+		cache.clear();
+		provider.blockLoad = null;
+		final Integer[] value = new Integer[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				value[0] = cache.get(45);
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		latch.countDown();
+		loader.join(5000);
+		reader.join(5000);
+		assertEquals(45, value[0].intValue());
+		// the block is loaded again instead of joining the stale load
+		assertEquals(2, provider.requests.size());
+		assertTrue(cache.isCached(45));
+	}
+
+	public void testCountWaitsForLoad() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		provider.blockLoad = latch;
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				cache.get(42);
+			}
+		};
+		loader.start();
+		Thread.sleep(100);
+		final Integer[] count = new Integer[1];
+		Thread counter = new Thread() {
+			@Override
+			public void run() {
+				count[0] = cache.fetchResultCount();
+			}
+		};
+		counter.start();
+		counter.join(100);
+		assertTrue(counter.isAlive());
+		latch.countDown();
+		counter.join(5000);
+		loader.join(5000);
+		assertEquals(1000, count[0].intValue());
+	}
+
+	public void testNegativeReadAheadRejected() {
+		try {
+			new IndexedDataProviderCache<Integer>(provider,
+					new DefaultPaginator(), 10, 20, -1);
+			fail("Negative read ahead accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("read ahead"));
+		}
+	}
+}
@@ -25,10 +25,22 @@ package org.fluttercode.datavalve.dataset;
 
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.fluttercode.datavalve.DefaultPaginator;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.PreparedFetch;
+import org.fluttercode.datavalve.ResultPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This is an abstract dataset that provides common implementation for most of
@@ -48,6 +60,30 @@ import org.fluttercode.datavalve.Paginator;
  * <code>last()</code> method. This is so we do not have to run this expensive
  * query unless we absolutely have to.
  * <p>
+ * The {@link CountStrategy} determines how the count is loaded. For large
+ * datasets where the exact count is too expensive, the count can be bounded,
+ * estimated or skipped altogether. When the count is not exact,
+ * {@link #getPageCount()} only includes the pages known to exist and
+ * {@link #last()} loads the exact count so it can move to the last page.
+ * <p>
+ * For screens that always need the count, setting
+ * <code>loadCountWithResults</code> loads the exact count along with the
+ * results using {@link #loadResultPage(Paginator)} which lets the provider
+ * fetch them both at the same time.
+ * <p>
+ * The {@link PrefetchPolicy} along with a <code>prefetchExecutor</code> lets
+ * the dataset read the adjacent pages in the background once the current
+ * page has been loaded. Each page is prepared on the calling thread with
+ * {@link #prepareLoad(Paginator)}, so parameters are resolved there, and only
+ * the fetch itself runs on the executor. A prefetched page is only used if
+ * the page size, ordering and the key of the prepared query and parameter
+ * values still match, and prefetched pages are discarded when the dataset is
+ * refreshed. Invalidating the result info (which clients such as Wicket do at
+ * the end of every request) keeps the prefetched pages unless they were
+ * prepared without a key. Loads on the calling thread and the background
+ * loads never run at the same time so the provider is never used by two
+ * threads at once.
+ * <p>
  * Note that this class is NOT dependent on any kind of data provider, and you
  * can subclass this and implement any kind of data fetching you want.
  * 
@@ -61,6 +97,8 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 
 	private static final long serialVersionUID = 1L;
 
+	private static Logger log = LoggerFactory.getLogger(AbstractDataset.class);
+
 	private int firstResult = 0;
 	private Integer maxRows;
 	private Integer resultCount;
@@ -70,6 +108,80 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 	private Class<?> entityClass;
 	private boolean nextAvailable;
 	private boolean resetFirstResultOnRefresh = true;
+	private CountStrategy countStrategy = CountStrategy.EXACT;
+	private int countBound = 1000;
+	private boolean resultCountExact = true;
+	private boolean loadCountWithResults = false;
+	private PrefetchPolicy prefetchPolicy = PrefetchPolicy.NONE;
+	private transient ExecutorService prefetchExecutor;
+	private transient Map<PageKey, Future<PrefetchedPage<T>>> prefetchedPages;
+	private transient int prefetchCount;
+	private transient int prefetchHitCount;
+	private transient int prefetchDiscardCount;
+	// whether all the prefetched pages have a key to check them against
+	private transient boolean prefetchKeyed;
+	// serializable lock used to stop loads running on two threads at once
+	private final Object[] loadLock = new Object[0];
+
+	/**
+	 * Identifies a page of results by position, ordering and the key of the
+	 * query and parameter values.
+	 */
+	private static class PageKey {
+
+		final int firstResult;
+		final int maxRows;
+		final String orderKey;
+		final boolean orderAscending;
+		final Object fingerprint;
+
+		PageKey(int firstResult, int maxRows, String orderKey,
+				boolean orderAscending, Object fingerprint) {
+			this.firstResult = firstResult;
+			this.maxRows = maxRows;
+			this.orderKey = orderKey;
+			this.orderAscending = orderAscending;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PageKey)) {
+				return false;
+			}
+			PageKey other = (PageKey) obj;
+			return firstResult == other.firstResult
+					&& maxRows == other.maxRows
+					&& orderAscending == other.orderAscending
+					&& (orderKey == null ? other.orderKey == null : orderKey
+							.equals(other.orderKey))
+					&& (fingerprint == null ? other.fingerprint == null
+							: fingerprint.equals(other.fingerprint));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 * firstResult + maxRows;
+			result = 31 * result + (orderKey == null ? 0 : orderKey.hashCode());
+			result = 31 * result
+					+ (fingerprint == null ? 0 : fingerprint.hashCode());
+			return 31 * result + (orderAscending ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Results of a page loaded in the background.
+	 */
+	private static class PrefetchedPage<T> {
+
+		final List<T> results;
+		final boolean nextAvailable;
+
+		PrefetchedPage(List<T> results, boolean nextAvailable) {
+			this.results = results;
+			this.nextAvailable = nextAvailable;
+		}
+	}
 
 	public int getFirstResult() {
 		return firstResult;
@@ -79,28 +191,302 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 		return maxRows;
 	}
 
+	/**
+	 * Returns the number of results. For {@link CountStrategy#NONE}, the
+	 * results aren't counted so this returns the lower bound known from the
+	 * current page (the rows up to the end of the page plus one if there is a
+	 * next page) which is only exact once the last page is reached.
+	 * 
+	 * @return the number of results
+	 */
 	public Integer getResultCount() {
+		if (resultCount == null && countStrategy == CountStrategy.NONE) {
+			return getLowerBoundResultCount();
+		}
 		if (resultCount == null) {
-			resultCount = loadResultCount();
+			synchronized (loadLock) {
+				resultCount = loadResultCount(countStrategy);
+			}
 		}
 		return resultCount;
 	}
 
+	private Integer getLowerBoundResultCount() {
+		int count = firstResult + getResultList().size();
+		boolean more = isNextAvailable();
+		resultCountExact = !more;
+		return more ? count + 1 : count;
+	}
+
 	public void setResultCount(Integer resultCount) {
 		this.resultCount = resultCount;
+		this.resultCountExact = true;
+	}
+
+	private Integer loadResultCount(CountStrategy strategy) {
+		switch (strategy) {
+		case BOUNDED:
+			Integer count = loadBoundedResultCount(countBound + 1);
+			if (count != null && count > countBound) {
+				resultCountExact = false;
+				return countBound;
+			}
+			resultCountExact = true;
+			return count;
+		case ESTIMATED:
+			Integer estimate = loadEstimatedResultCount();
+			if (estimate != null) {
+				resultCountExact = false;
+				return estimate;
+			}
+			break;
+		case NONE:
+			break;
+		}
+		resultCountExact = true;
+		return loadResultCount();
+	}
+
+	/**
+	 * Indicates whether the value returned from {@link #getResultCount()} is
+	 * the exact number of results. This is false if the count was bounded and
+	 * there are more results than the bound, if the count is estimated or if
+	 * the results are not counted at all.
+	 * 
+	 * @return true if the result count is exact
+	 */
+	public boolean isResultCountExact() {
+		getResultCount();
+		return resultCountExact;
+	}
+
+	/**
+	 * Returns the result count formatted for display, bounded counts and the
+	 * lower bounds used when the results are not counted are shown as
+	 * <code>1000+</code>, estimated counts as <code>~1000</code>.
+	 * 
+	 * @return the result count text
+	 */
+	public String getResultCountText() {
+		Integer count = getResultCount();
+		if (count == null) {
+			return null;
+		}
+		if (resultCountExact) {
+			return count.toString();
+		}
+		if (countStrategy == CountStrategy.BOUNDED
+				|| countStrategy == CountStrategy.NONE) {
+			return count + "+";
+		}
+		return "~" + count;
 	}
 
 	protected abstract Integer loadResultCount();
 
+	/**
+	 * Counts the results up to <code>limit</code>. By default this loads the
+	 * exact count and caps it at <code>limit</code>, override in subclasses to
+	 * stop counting at the limit.
+	 * 
+	 * @param limit
+	 *            maximum value to count to
+	 * @return the number of results, no greater than <code>limit</code>
+	 */
+	protected Integer loadBoundedResultCount(int limit) {
+		Integer count = loadResultCount();
+		if (count == null || count <= limit) {
+			return count;
+		}
+		return limit;
+	}
+
+	/**
+	 * Returns an estimate of the number of results. By default this returns
+	 * null so the exact count is used instead.
+	 * 
+	 * @return the estimated number of results or null if there is no estimate
+	 */
+	protected Integer loadEstimatedResultCount() {
+		return null;
+	}
+
 	protected abstract List<T> loadResults(Paginator paginator);
 
 	public List<T> getResultList() {
 		if (results == null) {
-			results = loadResults(this);
+			results = takePrefetchedPage();
+			if (results == null) {
+				results = loadCurrentResults();
+			}
+			schedulePrefetch();
 		}
 		return results;
 	}
 
+	private List<T> loadCurrentResults() {
+		synchronized (loadLock) {
+			if (loadCountWithResults && resultCount == null
+					&& countStrategy == CountStrategy.EXACT) {
+				ResultPage<T> page = loadResultPage(this);
+				if (page != null) {
+					resultCount = page.getResultCount();
+					resultCountExact = true;
+					return page.getResults();
+				}
+			}
+			return loadResults(this);
+		}
+	}
+
+	private PageKey buildPageKey(int first, Object fingerprint) {
+		return new PageKey(first, getMaxRows(), getOrderKey(),
+				isOrderAscending(), fingerprint);
+	}
+
+	/**
+	 * Prepares the load of a page of results on the calling thread so it can
+	 * be run on the prefetch executor. Prefetched pages are only used if the
+	 * key of the fetch matches the key of the page being read. By default
+	 * this returns a fetch without a key that calls
+	 * {@link #loadResults(Paginator)} when it is run, which means the dataset
+	 * can't tell if the results have changed so the prefetched pages are
+	 * discarded when the result info is invalidated.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return the prepared load
+	 */
+	protected PreparedFetch<T> prepareLoad(final Paginator paginator) {
+		return new PreparedFetch<T>(null, new Callable<List<T>>() {
+			public List<T> call() throws Exception {
+				return loadResults(paginator);
+			}
+		});
+	}
+
+	private PreparedFetch<T> prepareLoadLocked(Paginator paginator) {
+		synchronized (loadLock) {
+			return prepareLoad(paginator);
+		}
+	}
+
+	/**
+	 * Returns the results for the current page if they have been (or are
+	 * being) prefetched, waiting for the prefetch to complete if needed.
+	 * 
+	 * @return the prefetched results or null if the page was not prefetched
+	 */
+	private List<T> takePrefetchedPage() {
+		if (prefetchedPages == null || includeAllResults()) {
+			return null;
+		}
+		Future<PrefetchedPage<T>> future = prefetchedPages
+				.remove(buildPageKey(firstResult, prepareLoadLocked(this)
+						.getKey()));
+		if (future == null) {
+			return null;
+		}
+		try {
+			PrefetchedPage<T> page = future.get();
+			setNextAvailable(page.nextAvailable);
+			prefetchHitCount++;
+			return page.results;
+		} catch (CancellationException ex) {
+			return null;
+		} catch (ExecutionException ex) {
+			log.warn("Error prefetching page, loading it again", ex.getCause());
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Starts loading the pages adjacent to the current page in the background
+	 * according to the prefetch policy and discards any other prefetched
+	 * pages.
+	 */
+	private void schedulePrefetch() {
+		if (prefetchPolicy == PrefetchPolicy.NONE || prefetchExecutor == null
+				|| includeAllResults()) {
+			cancelPrefetch();
+			return;
+		}
+		Map<PageKey, Future<PrefetchedPage<T>>> pages = new HashMap<PageKey, Future<PrefetchedPage<T>>>();
+		boolean keyed = true;
+		if (nextAvailable) {
+			keyed &= prefetchPage(firstResult + getMaxRows(), pages);
+		}
+		if (prefetchPolicy == PrefetchPolicy.ADJACENT && firstResult > 0) {
+			keyed &= prefetchPage(Math.max(0, firstResult - getMaxRows()),
+					pages);
+		}
+		cancelPrefetch();
+		prefetchedPages = pages;
+		prefetchKeyed = keyed;
+	}
+
+	/**
+	 * Prepares the page on the calling thread and starts loading it unless
+	 * the same page is already being prefetched.
+	 * 
+	 * @return true if the page has a key
+	 */
+	private boolean prefetchPage(int first,
+			Map<PageKey, Future<PrefetchedPage<T>>> pages) {
+		final Paginator paginator = new DefaultPaginator(getMaxRows());
+		paginator.setFirstResult(first);
+		paginator.setOrderKey(getOrderKey());
+		paginator.setOrderAscending(isOrderAscending());
+		final PreparedFetch<T> fetch = prepareLoadLocked(paginator);
+		PageKey key = buildPageKey(first, fetch.getKey());
+		Future<PrefetchedPage<T>> future = prefetchedPages == null ? null
+				: prefetchedPages.remove(key);
+		if (future == null) {
+			future = prefetchExecutor.submit(new Callable<PrefetchedPage<T>>() {
+				public PrefetchedPage<T> call() throws Exception {
+					synchronized (loadLock) {
+						List<T> pageResults = fetch.fetchResults();
+						return new PrefetchedPage<T>(pageResults, paginator
+								.isNextAvailable());
+					}
+				}
+			});
+			prefetchCount++;
+		}
+		pages.put(key, future);
+		return key.fingerprint != null;
+	}
+
+	/**
+	 * Cancels any pages being read ahead and discards any pages that have
+	 * already been read ahead.
+	 */
+	public void cancelPrefetch() {
+		if (prefetchedPages != null) {
+			for (Future<PrefetchedPage<T>> future : prefetchedPages.values()) {
+				future.cancel(true);
+				prefetchDiscardCount++;
+			}
+			prefetchedPages = null;
+		}
+	}
+
+	/**
+	 * Loads the results along with the exact result count. By default this
+	 * returns null and the results and count are loaded separately, override
+	 * in subclasses that can fetch both together.
+	 * 
+	 * @param paginator
+	 *            Indicates the set of data to return
+	 * @return the results and count or null if they must be loaded separately
+	 */
+	protected ResultPage<T> loadResultPage(Paginator paginator) {
+		return null;
+	}
+
 	public void setFirstResult(int firstResult) {
 		this.firstResult = firstResult;
 		invalidateResults();
@@ -116,8 +502,17 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 		invalidateResults();
 	}
 
+	/**
+	 * Clears the result count and results. Prefetched pages are kept if they
+	 * were {@link #prepareLoad(Paginator) prepared} with a key since they are
+	 * only used while it matches.
+	 */
 	public void invalidateResultInfo() {
+		if (!prefetchKeyed) {
+			cancelPrefetch();
+		}
 		resultCount = null;
+		resultCountExact = true;
 		results = null;
 
 	}
@@ -175,6 +570,12 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 			return;
 		}
 
+		// we need the exact count to find the last page
+		if (!isResultCountExact()) {
+			synchronized (loadLock) {
+				setResultCount(loadResultCount());
+			}
+		}
 		setFirstResult((getPageCount() - 1) * getMaxRows());
 	}
 
@@ -182,14 +583,29 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 		if (includeAllResults()) {
 			return 1;
 		}
-		float result = (float) getResultCount() / getMaxRows();
+		Integer count = getResultCount();
+		if (count == null) {
+			return getKnownPageCount();
+		}
+		float result = (float) count / getMaxRows();
 		if ((int) result != result) {
 			result = result + 1;
 		}
+		if (!resultCountExact) {
+			return Math.max((int) result, getKnownPageCount());
+		}
 		return (int) result;
 
 	}
 
+	/**
+	 * @return the number of pages known to exist from the current page and
+	 *         whether there is a next page
+	 */
+	private int getKnownPageCount() {
+		return getPage() + (isNextAvailable() ? 1 : 0);
+	}
+
 	public boolean isMultiPage() {
 		return isNextAvailable() || isPreviousAvailable();
 	}
@@ -265,6 +681,7 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 	}
 
 	public void refresh() {
+		cancelPrefetch();
 		invalidateResults();
 		if (getResetFirstResultOnRefresh()) {
 			firstResult = 0;
@@ -280,6 +697,126 @@ public abstract class AbstractDataset<T> implements ObjectDataset<T>,
 		this.nextAvailable = nextAvailable;
 	}
 
+	public PrefetchPolicy getPrefetchPolicy() {
+		return prefetchPolicy;
+	}
+
+	/**
+	 * Sets which pages are read ahead in the background. Pages are only read
+	 * ahead if a <code>prefetchExecutor</code> is also set.
+	 * 
+	 * @param prefetchPolicy
+	 *            the new policy, null for {@link PrefetchPolicy#NONE}
+	 */
+	public void setPrefetchPolicy(PrefetchPolicy prefetchPolicy) {
+		this.prefetchPolicy = prefetchPolicy == null ? PrefetchPolicy.NONE
+				: prefetchPolicy;
+		if (this.prefetchPolicy == PrefetchPolicy.NONE) {
+			cancelPrefetch();
+		}
+	}
+
+	public ExecutorService getPrefetchExecutor() {
+		return prefetchExecutor;
+	}
+
+	/**
+	 * Sets the executor used to read pages ahead. The executor is not shut
+	 * down by the dataset.
+	 * 
+	 * @param prefetchExecutor
+	 *            executor to load pages on or null to disable read ahead
+	 */
+	public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+		if (prefetchExecutor == null) {
+			cancelPrefetch();
+		}
+		this.prefetchExecutor = prefetchExecutor;
+	}
+
+	/**
+	 * @return the number of pages that have been read ahead
+	 */
+	public int getPrefetchCount() {
+		return prefetchCount;
+	}
+
+	/**
+	 * @return the number of pages that were read ahead and then used
+	 */
+	public int getPrefetchHitCount() {
+		return prefetchHitCount;
+	}
+
+	/**
+	 * @return the number of pages read ahead that were cancelled or discarded
+	 *         without being used
+	 */
+	public int getPrefetchDiscardCount() {
+		return prefetchDiscardCount;
+	}
+
+	public boolean isLoadCountWithResults() {
+		return loadCountWithResults;
+	}
+
+	/**
+	 * Indicates whether the exact result count should be loaded along with the
+	 * results when the results are loaded and the count hasn't been loaded
+	 * yet. This only applies to the {@link CountStrategy#EXACT} strategy.
+	 * 
+	 * @param loadCountWithResults
+	 *            true to load the count with the results
+	 */
+	public void setLoadCountWithResults(boolean loadCountWithResults) {
+		this.loadCountWithResults = loadCountWithResults;
+	}
+
+	public CountStrategy getCountStrategy() {
+		return countStrategy;
+	}
+
+	/**
+	 * Sets the strategy used to determine the result count. Changing the
+	 * strategy clears the current result count.
+	 * 
+	 * @param countStrategy
+	 *            the new strategy, null for {@link CountStrategy#EXACT}
+	 */
+	public void setCountStrategy(CountStrategy countStrategy) {
+		if (countStrategy == null) {
+			countStrategy = CountStrategy.EXACT;
+		}
+		if (this.countStrategy != countStrategy) {
+			this.countStrategy = countStrategy;
+			resultCount = null;
+			resultCountExact = true;
+		}
+	}
+
+	public int getCountBound() {
+		return countBound;
+	}
+
+	/**
+	 * Sets the maximum number of results counted when using the
+	 * {@link CountStrategy#BOUNDED} strategy.
+	 * 
+	 * @param countBound
+	 *            number of results to count up to
+	 */
+	public void setCountBound(int countBound) {
+		if (countBound < 0) {
+			throw new IllegalArgumentException("Count bound cannot be negative");
+		}
+		if (this.countBound != countBound) {
+			this.countBound = countBound;
+			if (countStrategy == CountStrategy.BOUNDED) {
+				resultCount = null;
+			}
+		}
+	}
+
 	public void setResetFirstResultOnRefresh(boolean resetFirstResultOnRefresh) {
 		this.resetFirstResultOnRefresh = resetFirstResultOnRefresh;
 	}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.dataset;
+
+/**
+ * Determines how an {@link AbstractDataset} works out the number of results
+ * available.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public enum CountStrategy {
+
+	/**
+	 * Counts all the results, this is the default.
+	 */
+	EXACT,
+
+	/**
+	 * Counts the results up to the count bound plus one, if there are more
+	 * than the count bound, the result count is reported as the bound (i.e.
+	 * "1000+") and is not exact.
+	 */
+	BOUNDED,
+
+	/**
+	 * Uses an estimate of the number of results from the provider (such as
+	 * planner statistics) and falls back to an exact count if no estimate is
+	 * available.
+	 */
+	ESTIMATED,
+
+	/**
+	 * Does not count the results at all. The result count is the lower bound
+	 * known from the current page and paging relies on the next available flag
+	 * returned with each page.
+	 */
+	NONE
+
+}
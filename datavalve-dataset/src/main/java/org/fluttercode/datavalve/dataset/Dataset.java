@@ -25,8 +25,13 @@ package org.fluttercode.datavalve.dataset;
 
 import java.util.List;
 
+import org.fluttercode.datavalve.CountingDataProvider;
 import org.fluttercode.datavalve.DataProvider;
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.PreparedFetch;
+import org.fluttercode.datavalve.PreparingDataProvider;
+import org.fluttercode.datavalve.ResultPage;
+import org.fluttercode.datavalve.ResultPageProvider;
 
 /**
  * A Generic version of the provider dataset that extends the
@@ -74,12 +79,67 @@ public class Dataset<T, P extends DataProvider<T>> extends AbstractDataset<T> {
 		return provider.fetchResultCount();
 	}
 
+	/**
+	 * Uses the provider to count the results if it is a
+	 * {@link CountingDataProvider}.
+	 */
+	@Override
+	protected Integer loadBoundedResultCount(int limit) {
+		if (provider instanceof CountingDataProvider<?>) {
+			return ((CountingDataProvider<?>) provider)
+					.fetchBoundedResultCount(limit);
+		}
+		return super.loadBoundedResultCount(limit);
+	}
+
+	/**
+	 * Uses the provider to estimate the count if it is a
+	 * {@link CountingDataProvider}.
+	 */
+	@Override
+	protected Integer loadEstimatedResultCount() {
+		if (provider instanceof CountingDataProvider<?>) {
+			return ((CountingDataProvider<?>) provider)
+					.fetchEstimatedResultCount();
+		}
+		return super.loadEstimatedResultCount();
+	}
+
+	/**
+	 * Fetches the results and count together if the provider is a
+	 * {@link ResultPageProvider}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected ResultPage<T> loadResultPage(Paginator paginator) {
+		if (provider instanceof ResultPageProvider<?>) {
+			return ((ResultPageProvider<T>) provider)
+					.fetchResultPage(paginator);
+		}
+		return super.loadResultPage(paginator);
+	}
+
 	@Override
 	protected List<T> loadResults(Paginator paginator) {
 
 		return provider.fetchResults(paginator);
 	}
 
+	/**
+	 * Prepares the load with the provider if it is a
+	 * {@link PreparingDataProvider} so the parameters are resolved on the
+	 * calling thread.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected PreparedFetch<T> prepareLoad(Paginator paginator) {
+		if (provider instanceof PreparingDataProvider<?>) {
+			return ((PreparingDataProvider<T>) provider)
+					.prepareFetch(paginator);
+		}
+		return super.prepareLoad(paginator);
+	}
+
 	public List<T> fetchResults(Paginator paginator) {
 		return provider.fetchResults(paginator);
 	}
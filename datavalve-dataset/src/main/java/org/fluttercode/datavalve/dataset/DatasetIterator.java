@@ -28,6 +28,10 @@ import java.util.Iterator;
 /**
  * Iterator implementation for the iterator that is returned from the
  * {@link ObjectDataset#iterator()} method.
+ * <p/>
+ * The iterator moves through the dataset a page at a time. If the dataset is
+ * an {@link AbstractDataset} with a {@link PrefetchPolicy} set, the next page
+ * is loaded in the background while the current page is being processed.
  * 
  * @author Andy Gibson
  * 
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.dataset;
+
+/**
+ * Determines which pages an {@link AbstractDataset} reads ahead in the
+ * background once the current page has been loaded.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public enum PrefetchPolicy {
+
+	/**
+	 * No pages are read ahead, this is the default.
+	 */
+	NONE,
+
+	/**
+	 * The next page is read ahead if there is one.
+	 */
+	NEXT,
+
+	/**
+	 * The next and previous pages are read ahead if they exist.
+	 */
+	ADJACENT
+
+}
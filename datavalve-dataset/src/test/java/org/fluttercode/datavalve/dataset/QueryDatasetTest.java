@@ -25,12 +25,20 @@ package org.fluttercode.datavalve.dataset;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.ParameterResolver;
 import org.fluttercode.datavalve.dataset.ObjectDataset;
 import org.fluttercode.datavalve.dataset.QueryDataset;
+import org.fluttercode.datavalve.params.Parameter;
 import org.fluttercode.datavalve.provider.AbstractQueryDataProvider;
+import org.fluttercode.datavalve.provider.ParameterizedDataProvider;
 import org.fluttercode.datavalve.provider.QueryDataProvider;
 import org.fluttercode.datavalve.provider.util.DataQuery;
 import org.fluttercode.datavalve.testing.junit.AbstractObjectDatasetJUnitTest;
@@ -305,6 +313,76 @@ public class QueryDatasetTest extends AbstractObjectDatasetJUnitTest<Integer>
 		assertEquals(false, qry.isNextAvailable());
 	}
 
+	public void testPrefetchKeyedByResolvedParameters() {
+		final int[] group = { 1 };
+		final Set<Thread> resolvingThreads = Collections
+				.synchronizedSet(new HashSet<Thread>());
+		QueryDataProvider<Integer> provider = new AbstractQueryDataProvider<Integer>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Integer> queryForResults(DataQuery query,
+					Integer firstResult, Integer count) {
+				int value = ((Integer) query.getParameters().get(0).getValue())
+						.intValue();
+				List<Integer> result = new ArrayList<Integer>();
+				for (int i = firstResult; i < firstResult + count && i < 100; i++) {
+					result.add(new Integer(value * 1000 + i));
+				}
+				return result;
+			}
+
+			@Override
+			protected Integer queryForCount(DataQuery query) {
+				return 100;
+			}
+		};
+		provider.setSelectStatement("Select o from Object o");
+		provider.addRestriction("o.group = #{group}");
+		provider.addParameterResolver(new ParameterResolver() {
+
+			public boolean resolveParameter(
+					ParameterizedDataProvider<? extends Object> dataset,
+					Parameter parameter) {
+				resolvingThreads.add(Thread.currentThread());
+				parameter.setValue(new Integer(group[0]));
+				return true;
+			}
+
+			public boolean acceptParameter(String name) {
+				return name.equals("#{group}");
+			}
+		});
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			QueryDataset<Integer> ds = new QueryDataset<Integer>(provider);
+			ds.setMaxRows(10);
+			ds.setPrefetchPolicy(PrefetchPolicy.NEXT);
+			ds.setPrefetchExecutor(executor);
+			assertEquals(1000, ds.getResultList().get(0).intValue());
+
+			// same parameter values, the prefetched page is kept
+			ds.invalidateResultInfo();
+			ds.setFirstResult(10);
+			assertEquals(1010, ds.getResultList().get(0).intValue());
+			assertEquals(1, ds.getPrefetchHitCount());
+
+			// a new value doesn't match the page prefetched with the old one
+			group[0] = 2;
+			ds.invalidateResultInfo();
+			ds.setFirstResult(20);
+			assertEquals(2020, ds.getResultList().get(0).intValue());
+			assertEquals(1, ds.getPrefetchHitCount());
+
+			assertEquals(Collections.singleton(Thread.currentThread()),
+					resolvingThreads);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	@Override
 	public ObjectDataset<Integer> buildObjectDataset() {
 		return buildQuery(100);
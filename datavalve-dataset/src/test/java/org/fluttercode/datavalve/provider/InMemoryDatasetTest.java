@@ -26,10 +26,15 @@ package org.fluttercode.datavalve.provider;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
+import org.fluttercode.datavalve.Predicate;
+import org.fluttercode.datavalve.dataset.CountStrategy;
 import org.fluttercode.datavalve.dataset.Dataset;
 import org.fluttercode.datavalve.dataset.ObjectDataset;
+import org.fluttercode.datavalve.dataset.PrefetchPolicy;
 import org.fluttercode.datavalve.provider.InMemoryDataProvider;
 import org.fluttercode.datavalve.testing.junit.AbstractObjectDatasetJUnitTest;
 
@@ -224,4 +229,108 @@ public class InMemoryDatasetTest extends
 		return 100;
 	}
 
+	public void testBoundedCount() {
+		Dataset<?, ?> ds = (Dataset<?, ?>) buildTestDataset();
+		ds.setCountStrategy(CountStrategy.BOUNDED);
+		ds.setCountBound(40);
+		ds.setMaxRows(10);
+		assertEquals(40, ds.getResultCount().intValue());
+		assertFalse(ds.isResultCountExact());
+		assertEquals("40+", ds.getResultCountText());
+		assertEquals(4, ds.getPageCount());
+
+		ds.setCountBound(100);
+		assertEquals(100, ds.getResultCount().intValue());
+		assertTrue(ds.isResultCountExact());
+		assertEquals("100", ds.getResultCountText());
+	}
+
+	public void testNoCount() {
+		Dataset<?, ?> ds = (Dataset<?, ?>) buildTestDataset();
+		ds.setCountStrategy(CountStrategy.NONE);
+		ds.setMaxRows(30);
+		assertEquals(31, ds.getResultCount().intValue());
+		assertFalse(ds.isResultCountExact());
+		assertEquals("31+", ds.getResultCountText());
+		assertEquals(2, ds.getPageCount());
+		ds.next();
+		assertEquals(61, ds.getResultCount().intValue());
+		assertEquals(3, ds.getPageCount());
+
+		ds.last();
+		assertEquals(4, ds.getPage());
+		assertTrue(ds.isResultCountExact());
+		assertEquals(100, ds.getResultCount().intValue());
+	}
+
+	public void testEstimatedCountFallsBackToExact() {
+		Dataset<?, ?> ds = (Dataset<?, ?>) buildTestDataset();
+		ds.setCountStrategy(CountStrategy.ESTIMATED);
+		assertEquals(100, ds.getResultCount().intValue());
+		assertTrue(ds.isResultCountExact());
+	}
+
+	public void testPrefetchWhileIterating() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Dataset<Integer, ?> ds = (Dataset<Integer, ?>) buildTestDataset();
+			ds.setMaxRows(10);
+			ds.setPrefetchPolicy(PrefetchPolicy.NEXT);
+			ds.setPrefetchExecutor(executor);
+			int expected = 0;
+			for (Integer value : ds) {
+				assertEquals(expected++, value.intValue());
+			}
+			assertEquals(100, expected);
+			assertEquals(9, ds.getPrefetchCount());
+			assertEquals(9, ds.getPrefetchHitCount());
+			assertEquals(0, ds.getPrefetchDiscardCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testPrefetchDiscardedOnPageSizeChange() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Dataset<Integer, ?> ds = (Dataset<Integer, ?>) buildTestDataset();
+			ds.setMaxRows(10);
+			ds.setPrefetchPolicy(PrefetchPolicy.ADJACENT);
+			ds.setPrefetchExecutor(executor);
+			ds.setFirstResult(20);
+			ds.getResultList();
+			assertEquals(2, ds.getPrefetchCount());
+
+			ds.setMaxRows(20);
+			assertEquals(20, ds.getResultList().get(0).intValue());
+			assertEquals(0, ds.getPrefetchHitCount());
+			assertEquals(2, ds.getPrefetchDiscardCount());
+
+			ds.next();
+			assertEquals(40, ds.getResultList().get(0).intValue());
+			assertEquals(1, ds.getPrefetchHitCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testPrefetchDiscardedWithoutKey() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Dataset<Integer, ?> ds = (Dataset<Integer, ?>) buildTestDataset();
+			ds.setMaxRows(10);
+			ds.setPrefetchPolicy(PrefetchPolicy.NEXT);
+			ds.setPrefetchExecutor(executor);
+			ds.getResultList();
+
+			// predicates can't be compared so the pages can't be kept
+			ds.invalidateResultInfo();
+			assertEquals(1, ds.getPrefetchDiscardCount());
+			ds.setFirstResult(10);
+			assertEquals(10, ds.getResultList().get(0).intValue());
+			assertEquals(0, ds.getPrefetchHitCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 }
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class InMemoryRestrictionTest extends TestCase {
+
+	private static final String[] CATEGORIES = { "books", "bikes", "boats",
+			"cars", "games", "garden" };
+
+	private static int categoryReads;
+
+	public static class Product {
+
+		private final int id;
+		private final long stock;
+		private final String category;
+
+		public Product(int id, long stock, String category) {
+			this.id = id;
+			this.stock = stock;
+			this.category = category;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public long getStock() {
+			return stock;
+		}
+
+		public String getCategory() {
+			categoryReads++;
+			return category;
+		}
+	}
+
+	private List<Product> products;
+	private InMemoryDataProvider<Product> provider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(23);
+		products = new ArrayList<Product>();
+		for (int i = 0; i < 3000; i++) {
+			products.add(new Product(i, random.nextInt(500), i % 11 == 0 ? null
+					: CATEGORIES[random.nextInt(CATEGORIES.length)]));
+		}
+		provider = new InMemoryDataProvider<Product>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Product> fetchBackingData() {
+				return products;
+			}
+		};
+		categoryReads = 0;
+	}
+
+	private List<Integer> expectedIds(Predicate<Product> predicate) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Product product : products) {
+			if (predicate.accept(product)) {
+				ids.add(product.getId());
+			}
+		}
+		return ids;
+	}
+
+	private List<Integer> fetchIds(int pageSize) {
+		List<Integer> ids = new ArrayList<Integer>();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setMaxRows(pageSize);
+		do {
+			for (Product product : provider.fetchResults(paginator)) {
+				ids.add(product.getId());
+			}
+			paginator.setFirstResult(paginator.getFirstResult() + pageSize);
+		} while (paginator.isNextAvailable());
+		return ids;
+	}
+
+	private void assertRestriction(Predicate<Product> expected,
+			PropertyRestriction<Product> restriction) {
+		provider.clearRestrictions();
+		provider.addRestriction(restriction);
+		List<Integer> ids = expectedIds(expected);
+		assertEquals(ids.size(), provider.fetchResultCount().intValue());
+		assertEquals(ids, fetchIds(50));
+	}
+
+	private void assertRestrictions() {
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return "cars".equals(object.getCategory());
+			}
+		}, PropertyRestriction.<Product> equalTo("category", "cars"));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() == 42;
+			}
+		}, PropertyRestriction.<Product> equalTo("stock", 42));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return "books".equals(object.getCategory())
+						|| "games".equals(object.getCategory());
+			}
+		}, PropertyRestriction.<Product> in("category", Arrays.asList(
+				"books", "games", null)));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() >= 100 && object.getStock() <= 150;
+			}
+		}, PropertyRestriction.<Product> between("stock", 100, 150L));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() <= 20;
+			}
+		}, PropertyRestriction.<Product> between("stock", null, 20));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getCategory() != null
+						&& object.getCategory().compareTo("cars") >= 0;
+			}
+		}, PropertyRestriction.<Product> between("category", "cars", null));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getCategory() != null
+						&& object.getCategory().startsWith("b");
+			}
+		}, PropertyRestriction.<Product> startsWith("category", "b"));
+	}
+
+	private void assertNumericRestrictions() {
+		// numbers of other types match the long property by value
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() == 42;
+			}
+		}, PropertyRestriction.<Product> equalTo("stock", 42.0));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() == 42 || object.getStock() == 43;
+			}
+		}, PropertyRestriction.<Product> in("stock", Arrays.asList(42.0f,
+				new BigDecimal("43.00"), 7.5)));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return object.getStock() >= 100 && object.getStock() <= 150;
+			}
+		}, PropertyRestriction.<Product> between("stock", new BigDecimal(
+				"99.5"), BigInteger.valueOf(150)));
+		assertRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return false;
+			}
+		}, PropertyRestriction.<Product> equalTo("stock", 42.5));
+	}
+
+	public void testRestrictionsWithoutIndexes() {
+		assertRestrictions();
+		assertNumericRestrictions();
+	}
+
+	public void testRestrictionsWithIndexes() {
+		provider.addPropertyIndex("category");
+		provider.addPropertyIndex("stock");
+		assertRestrictions();
+		assertNumericRestrictions();
+	}
+
+	public void testDecimalValues() {
+		assertEquals(1L, PropertyRestriction.normalize(1.0));
+		assertEquals(1L, PropertyRestriction
+				.normalize(new BigDecimal("1.000")));
+		assertEquals(1.5, PropertyRestriction
+				.normalize(new BigDecimal("1.50")));
+		// kept exact rather than rounded to the nearest double
+		assertEquals(new BigDecimal("0.1"), PropertyRestriction
+				.normalize(new BigDecimal("0.10")));
+		assertFalse(PropertyRestriction.normalize(new BigDecimal("0.1"))
+				.equals(PropertyRestriction.normalize(0.1)));
+		assertEquals(Long.MIN_VALUE, PropertyRestriction
+				.normalize((double) Long.MIN_VALUE));
+		assertEquals(0x1p63, PropertyRestriction.normalize(0x1p63));
+	}
+
+	public void testIndexReused() {
+		provider.addPropertyIndex("category");
+		provider.addRestriction(PropertyRestriction.<Product> equalTo(
+				"category", "cars"));
+		provider.fetchResultCount();
+		assertEquals(products.size(), categoryReads);
+
+		// a new restriction on the property uses the same index
+		provider.clearRestrictions();
+		provider.addRestriction(PropertyRestriction.<Product> startsWith(
+				"category", "ga"));
+		provider.fetchResultCount();
+		provider.fetchResults(new DefaultPaginator());
+		assertEquals(products.size(), categoryReads);
+
+		// invalidating the data drops the index
+		provider.invalidateData();
+		provider.fetchResultCount();
+		assertEquals(products.size() * 2, categoryReads);
+	}
+
+	public void testOnlyCandidatesTested() {
+		provider.addPropertyIndex("category");
+		provider.addRestriction(PropertyRestriction.<Product> equalTo(
+				"category", "boats"));
+		final int[] tested = new int[1];
+		provider.addRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				tested[0]++;
+				return object.getId() % 2 == 0;
+			}
+		});
+		List<Integer> boats = expectedIds(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				return "boats".equals(object.getCategory());
+			}
+		});
+		List<Integer> even = new ArrayList<Integer>();
+		for (Integer id : boats) {
+			if (id % 2 == 0) {
+				even.add(id);
+			}
+		}
+		assertEquals(even.size(), provider.fetchResultCount().intValue());
+		assertEquals(even, fetchIds(10));
+		assertEquals(boats.size(), tested[0]);
+	}
+
+	public void testSortedRestrictedResults() {
+		provider.addPropertyIndex("category");
+		provider.addPropertyOrderKey("stock", "stock");
+		provider.addRestriction(PropertyRestriction.<Product> equalTo(
+				"category", "garden"));
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("stock");
+		paginator.setOrderAscending(false);
+		paginator.setMaxRows(5);
+		List<Product> page = provider.fetchResults(paginator);
+		assertEquals(5, page.size());
+		long last = Long.MAX_VALUE;
+		for (Product product : page) {
+			assertEquals("garden", product.getCategory());
+			assertTrue(product.getStock() <= last);
+			last = product.getStock();
+		}
+		// nothing outside the restriction has more stock than the first
+		for (Product product : products) {
+			if ("garden".equals(product.getCategory())) {
+				assertTrue(product.getStock() <= page.get(0).getStock());
+			}
+		}
+	}
+
+	public void testRestrictedOutsideLock() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger tested = new AtomicInteger();
+		provider.addRestriction(new Predicate<Product>() {
+			public boolean accept(Product object) {
+				if (tested.getAndIncrement() == 0) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return object.getId() % 2 == 0;
+			}
+		});
+		final List<Integer> counts = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		List<Thread> counters = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			Thread counter = new Thread() {
+				@Override
+				public void run() {
+					counts.add(provider.fetchResultCount());
+				}
+			};
+			counters.add(counter);
+			counter.start();
+			entered.await();
+		}
+		// the second thread waits for the first one's restriction
+		while (counters.get(1).getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+
+		// the lock is free while the restriction runs
+		Thread invalidator = new Thread() {
+			@Override
+			public void run() {
+				provider.invalidateRestrictions();
+			}
+		};
+		invalidator.start();
+		invalidator.join(5000);
+		assertFalse(invalidator.isAlive());
+
+		release.countDown();
+		for (Thread counter : counters) {
+			counter.join();
+		}
+		assertEquals(Arrays.asList(1500, 1500), counts);
+		assertEquals(products.size(), tested.get());
+	}
+
+	public void testClearRestrictions() {
+		provider.addRestriction(PropertyRestriction.<Product> equalTo("id", 7));
+		assertEquals(1, provider.fetchResultCount().intValue());
+		provider.clearRestrictions();
+		assertEquals(products.size(), provider.fetchResultCount().intValue());
+	}
+}
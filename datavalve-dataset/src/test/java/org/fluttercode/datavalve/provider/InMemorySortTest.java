@@ -0,0 +1,500 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.util.PropertyComparator;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class InMemorySortTest extends TestCase {
+
+	private static final int SIZE = 2000;
+
+	private List<Integer> data;
+	private CountingComparator comparator;
+	private InMemoryDataProvider<Integer> provider;
+
+	/**
+	 * Compares by the value modulo 100 so there are plenty of ties, counting
+	 * the comparisons made.
+	 */
+	private static class CountingComparator implements Comparator<Integer> {
+
+		private int comparisons;
+
+		public int compare(Integer o1, Integer o2) {
+			comparisons++;
+			return (o1 % 100) - (o2 % 100);
+		}
+	}
+
+	public static class Item {
+
+		private final int id;
+		private final Double price;
+		private final String name;
+		private final Date created;
+		private final Item parent;
+
+		public Item(int id, Double price, String name, Date created,
+				Item parent) {
+			this.id = id;
+			this.price = price;
+			this.name = name;
+			this.created = created;
+			this.parent = parent;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public Double getPrice() {
+			return price;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Date getCreated() {
+			return created;
+		}
+
+		public Item getParent() {
+			return parent;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(11);
+		data = new ArrayList<Integer>();
+		for (int i = 0; i < SIZE; i++) {
+			data.add(random.nextInt(100000));
+		}
+		comparator = new CountingComparator();
+		provider = new InMemoryDataProvider<Integer>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Integer> fetchBackingData() {
+				return data;
+			}
+		};
+		provider.getOrderKeyMap().put("mod", comparator);
+	}
+
+	private List<Integer> expected(boolean ascending) {
+		List<Integer> sorted = new ArrayList<Integer>(data);
+		Collections.sort(sorted, new CountingComparator());
+		if (!ascending) {
+			Collections.reverse(sorted);
+		}
+		return sorted;
+	}
+
+	private List<Integer> fetchPage(boolean ascending, int first, Integer max) {
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("mod");
+		paginator.setOrderAscending(ascending);
+		paginator.setFirstResult(first);
+		paginator.setMaxRows(max);
+		return provider.fetchResults(paginator);
+	}
+
+	private List<Integer> fetchAll(boolean ascending, int pageSize) {
+		List<Integer> results = new ArrayList<Integer>();
+		for (int first = 0; first < SIZE; first += pageSize) {
+			results.addAll(fetchPage(ascending, first, pageSize));
+		}
+		return results;
+	}
+
+	public void testAscendingPages() {
+		assertEquals(expected(true), fetchAll(true, 37));
+	}
+
+	public void testDescendingPages() {
+		assertEquals(expected(false), fetchAll(false, 37));
+	}
+
+	public void testBackingDataNotReordered() {
+		List<Integer> original = new ArrayList<Integer>(data);
+		fetchAll(true, 100);
+		fetchAll(false, 100);
+		assertEquals(original, data);
+		assertEquals(original, provider.fetchResults(new DefaultPaginator()));
+	}
+
+	public void testSortReused() {
+		fetchPage(true, 1000, 10);
+		int comparisons = comparator.comparisons;
+		assertTrue(comparisons > 0);
+		fetchPage(true, 0, 10);
+		fetchPage(false, 500, 10);
+		fetchPage(false, 0, 10);
+		assertEquals(comparisons, comparator.comparisons);
+	}
+
+	public void testFirstPagesSelected() {
+		provider.setPartialSortRatio(10);
+		assertEquals(expected(true).subList(0, 20), fetchPage(true, 0, 20));
+		int selected = comparator.comparisons;
+		assertEquals(expected(false).subList(10, 30), fetchPage(false, 10, 20));
+		assertEquals(expected(true).subList(20, 40), fetchPage(true, 20, 20));
+
+		// selecting the first 20 rows takes far fewer comparisons than sorting
+		provider.invalidateData();
+		comparator.comparisons = 0;
+		fetchPage(true, 0, SIZE);
+		assertTrue(selected < comparator.comparisons / 2);
+	}
+
+	public void testSelectionOutsideLock() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		provider.getOrderKeyMap().put("mod", new Comparator<Integer>() {
+
+			private boolean blocked;
+
+			public int compare(Integer o1, Integer o2) {
+				if (!blocked) {
+					blocked = true;
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return comparator.compare(o1, o2);
+			}
+		});
+		final List<List<Integer>> pages = Collections
+				.synchronizedList(new ArrayList<List<Integer>>());
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					pages.add(fetchPage(true, 0, 10));
+				}
+			};
+			readers.add(reader);
+			reader.start();
+			entered.await();
+		}
+		// the second thread waits for the first one's selection
+		while (readers.get(1).getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+
+		// the lock is free while the selection runs
+		Thread invalidator = new Thread() {
+			@Override
+			public void run() {
+				provider.invalidateData();
+			}
+		};
+		invalidator.start();
+		invalidator.join(5000);
+		assertFalse(invalidator.isAlive());
+
+		release.countDown();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		List<Integer> expected = expected(true).subList(0, 10);
+		assertEquals(Arrays.asList(expected, expected), pages);
+	}
+
+	public void testDeepPageSwitchesToFullSort() {
+		fetchPage(true, 0, 20);
+		assertEquals(expected(true).subList(1500, 1520), fetchPage(true, 1500,
+				20));
+		int comparisons = comparator.comparisons;
+		// later shallow pages come from the full sort
+		assertEquals(expected(true).subList(20, 40), fetchPage(true, 20, 20));
+		assertEquals(expected(false).subList(0, 20), fetchPage(false, 0, 20));
+		assertEquals(comparisons, comparator.comparisons);
+	}
+
+	public void testFullSortOnly() {
+		provider.setPartialSortRatio(0);
+		fetchPage(true, 0, 10);
+		int comparisons = comparator.comparisons;
+		assertEquals(expected(true).subList(1000, 1010), fetchPage(true, 1000,
+				10));
+		assertEquals(comparisons, comparator.comparisons);
+	}
+
+	public void testInvalidateData() {
+		fetchPage(true, 0, 10);
+		data = new ArrayList<Integer>(data.subList(0, 50));
+		provider.invalidateData();
+		List<Integer> results = fetchPage(true, 0, null);
+		assertEquals(50, results.size());
+		assertEquals(expected(true), results);
+	}
+
+	private List<Item> buildItems() {
+		Random random = new Random(5);
+		String[] names = { "apple", "Banana", "cherry", "Apple", "banana",
+				"\u00e9clair", "eclair", "date" };
+		List<Item> parents = new ArrayList<Item>();
+		for (int i = 0; i < 10; i++) {
+			parents.add(new Item(random.nextInt(5), null, names[i
+					% names.length], null, null));
+		}
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < 500; i++) {
+			// every seventh price is missing
+			Double price = i % 7 == 0 ? null : random.nextInt(1000) / 4.0;
+			items.add(new Item(random.nextInt(50), price, names[random
+					.nextInt(names.length)], new Date(random.nextInt(100000)),
+					i % 5 == 0 ? null : parents.get(random.nextInt(10))));
+		}
+		return items;
+	}
+
+	private void assertPropertyOrder(String path, Locale locale) {
+		final List<Item> items = buildItems();
+		InMemoryDataProvider<Item> itemProvider = new InMemoryDataProvider<Item>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Item> fetchBackingData() {
+				return items;
+			}
+		};
+		itemProvider.addPropertyOrderKey("key", path, locale);
+		// the same comparator applied to objects as a plain sort would
+		List<Item> expected = new ArrayList<Item>(items);
+		Collections.sort(expected, new PropertyComparator<Item>(path, locale));
+		for (boolean ascending : new boolean[] { true, false }) {
+			Paginator paginator = new DefaultPaginator();
+			paginator.setOrderKey("key");
+			paginator.setOrderAscending(ascending);
+			List<Item> results = itemProvider.fetchResults(paginator);
+			assertEquals(expected, results);
+			Collections.reverse(expected);
+		}
+	}
+
+	public void testIntegerPropertyOrderKey() {
+		assertPropertyOrder("id", null);
+	}
+
+	public void testDoublePropertyWithNulls() {
+		assertPropertyOrder("price", null);
+	}
+
+	public static class Amount {
+
+		private final Number value;
+
+		public Amount(Number value) {
+			this.value = value;
+		}
+
+		public Number getValue() {
+			return value;
+		}
+	}
+
+	public void testBigNumberPropertyOrderKey() {
+		BigInteger twoTo53 = BigInteger.ONE.shiftLeft(53);
+		// a double can't tell these apart
+		final List<Amount> amounts = Arrays.asList(new Amount(new BigDecimal(
+				"0.10000000000000000001")), new Amount(0.1), new Amount(
+				new BigDecimal("0.1")), new Amount(twoTo53.longValue() + 1),
+				new Amount(new BigDecimal(twoTo53).add(new BigDecimal("0.5"))),
+				new Amount(twoTo53));
+		InMemoryDataProvider<Amount> amountProvider = new InMemoryDataProvider<Amount>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Amount> fetchBackingData() {
+				return amounts;
+			}
+		};
+		amountProvider.addPropertyOrderKey("amount", "value");
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("amount");
+		assertEquals(Arrays.asList(amounts.get(2), amounts.get(0), amounts
+				.get(1), amounts.get(5), amounts.get(4), amounts.get(3)),
+				amountProvider.fetchResults(paginator));
+	}
+
+	public void testDatePropertyOrderKey() {
+		assertPropertyOrder("created", null);
+	}
+
+	public void testStringPropertyOrderKey() {
+		assertPropertyOrder("name", null);
+	}
+
+	public void testCollatedPropertyOrderKey() {
+		assertPropertyOrder("name", Locale.ENGLISH);
+		PropertyComparator<Item> comparator = new PropertyComparator<Item>(
+				"name", Locale.ENGLISH);
+		// collation ignores case at first and puts accented letters with
+		// their base letter
+		assertTrue(comparator.compare(new Item(0, null, "apple", null, null),
+				new Item(0, null, "Banana", null, null)) < 0);
+		assertTrue(comparator.compare(new Item(0, null, "\u00e9clair", null,
+				null), new Item(0, null, "date", null, null)) > 0);
+	}
+
+	public void testNestedPropertyOrderKey() {
+		assertPropertyOrder("parent.name", null);
+		assertPropertyOrder("parent.id", null);
+	}
+
+	private InMemoryDataProvider<Integer> buildLargeProvider(
+			final List<Integer> values) {
+		InMemoryDataProvider<Integer> large = new InMemoryDataProvider<Integer>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Integer> fetchBackingData() {
+				return values;
+			}
+		};
+		large.setPartialSortRatio(0);
+		return large;
+	}
+
+	public void testParallelSort() {
+		final List<Integer> values = new ArrayList<Integer>();
+		Random random = new Random(13);
+		for (int i = 0; i < 60000; i++) {
+			values.add(random.nextInt(500));
+		}
+		InMemoryDataProvider<Integer> large = buildLargeProvider(values);
+		large.getOrderKeyMap().put("mod", new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return (o1 % 100) - (o2 % 100);
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			large.setSortExecutor(executor);
+			large.setSortParallelism(4);
+			large.setParallelSortThreshold(1000);
+			List<Integer> expected = new ArrayList<Integer>(values);
+			Collections.sort(expected, large.getOrderKeyMap().get("mod"));
+			Paginator paginator = new DefaultPaginator();
+			paginator.setOrderKey("mod");
+			assertEquals(expected, large.fetchResults(paginator));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testConcurrentSortsRunOnce() throws Exception {
+		final List<Integer> values = new ArrayList<Integer>();
+		Random random = new Random(17);
+		for (int i = 0; i < 50000; i++) {
+			values.add(random.nextInt(100000));
+		}
+		final AtomicInteger comparisons = new AtomicInteger();
+		Comparator<Integer> counting = new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				comparisons.incrementAndGet();
+				return o1.compareTo(o2);
+			}
+		};
+
+		// comparisons for a single sort
+		InMemoryDataProvider<Integer> single = buildLargeProvider(values);
+		single.getOrderKeyMap().put("value", counting);
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("value");
+		paginator.setMaxRows(10);
+		single.fetchResults(paginator);
+		int singleSort = comparisons.getAndSet(0);
+
+		final InMemoryDataProvider<Integer> shared = buildLargeProvider(values);
+		shared.getOrderKeyMap().put("value", counting);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final boolean ascending = i % 2 == 0;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						Paginator page = new DefaultPaginator();
+						page.setOrderKey("value");
+						page.setOrderAscending(ascending);
+						page.setMaxRows(10);
+						List<Integer> results = shared.fetchResults(page);
+						assertEquals(10, results.size());
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(singleSort, comparisons.get());
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class ColumnIndexTest extends TestCase {
+
+	private static final int LINES = 500;
+
+	private File file;
+	private File sortDirectory;
+	private List<PhoneEntry> entries;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("indexed", ".csv");
+		sortDirectory = new File(file.getPath() + ".dir");
+		sortDirectory.mkdir();
+		Random random = new Random(7);
+		entries = new ArrayList<PhoneEntry>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			String name = "name" + random.nextInt(20);
+			String phone = Integer.toString(random.nextInt(1000));
+			entries.add(new PhoneEntry(i, name, "last", phone));
+			sb.append(i).append(',').append(name).append(",last,").append(
+					phone).append('\n');
+		}
+		write(sb.toString());
+	}
+
+	private void write(String content) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File child : sortDirectory.listFiles()) {
+			child.delete();
+		}
+		sortDirectory.delete();
+		for (int column = 0; column < 4; column++) {
+			new File(file.getPath() + ".col" + column).delete();
+		}
+		file.delete();
+		super.tearDown();
+	}
+
+	private PhoneTextFile buildProvider() {
+		PhoneTextFile provider = new PhoneTextFile(file.getPath());
+		provider.setSortDirectory(sortDirectory.getPath());
+		// force the index to be merged from several runs
+		provider.setSortBufferSize(9);
+		provider.addIndexedColumn(1);
+		provider.addIndexedColumn(3, true);
+		return provider;
+	}
+
+	private List<Integer> fetchIds(PhoneTextFile provider, int pageSize) {
+		List<Integer> ids = new ArrayList<Integer>();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setMaxRows(pageSize);
+		do {
+			for (PhoneEntry entry : provider.fetchResults(paginator)) {
+				ids.add(entry.getId());
+			}
+			paginator.setFirstResult(paginator.getFirstResult() + pageSize);
+		} while (paginator.isNextAvailable());
+		return ids;
+	}
+
+	private List<Integer> expectedIds(String name, Integer from, Integer to) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (PhoneEntry entry : entries) {
+			int phone = Integer.parseInt(entry.getPhone());
+			if ((name == null || name.equals(entry.getFirstName()))
+					&& (from == null || phone >= from)
+					&& (to == null || phone <= to)) {
+				ids.add(entry.getId());
+			}
+		}
+		return ids;
+	}
+
+	public void testEqualityRestriction() {
+		PhoneTextFile provider = buildProvider();
+		provider.addColumnRestriction(1, "name3");
+		List<Integer> expected = expectedIds("name3", null, null);
+		assertFalse(expected.isEmpty());
+		assertEquals(expected.size(), provider.fetchResultCount().intValue());
+		assertEquals(expected, fetchIds(provider, 7));
+		assertTrue(new File(file.getPath() + ".col1").exists());
+	}
+
+	public void testNumericRangeRestriction() {
+		PhoneTextFile provider = buildProvider();
+		// numeric so "95" sorts below "100"
+		provider.addColumnRangeRestriction(3, "95", 400);
+		List<Integer> expected = expectedIds(null, 95, 400);
+		assertEquals(expected.size(), provider.fetchResultCount().intValue());
+		assertEquals(expected, fetchIds(provider, 10));
+	}
+
+	public void testOpenEndedRange() {
+		PhoneTextFile provider = buildProvider();
+		provider.addColumnRangeRestriction(3, 900, null);
+		assertEquals(expectedIds(null, 900, null), fetchIds(provider, 10));
+	}
+
+	public void testCombinedRestrictions() {
+		PhoneTextFile provider = buildProvider();
+		provider.addColumnRestriction(1, "name5");
+		provider.addColumnRangeRestriction(3, null, 500);
+		List<Integer> expected = expectedIds("name5", null, 500);
+		assertEquals(expected, fetchIds(provider, 3));
+
+		// predicates are applied to the lines from the index
+		provider.addRestriction(new Predicate<PhoneEntry>() {
+			public boolean accept(PhoneEntry object) {
+				return object.getId() % 2 == 0;
+			}
+		});
+		List<Integer> even = new ArrayList<Integer>();
+		for (Integer id : expected) {
+			if (id % 2 == 0) {
+				even.add(id);
+			}
+		}
+		assertEquals(even.size(), provider.fetchResultCount().intValue());
+		assertEquals(even, fetchIds(provider, 3));
+	}
+
+	public void testSortedRestriction() {
+		PhoneTextFile provider = buildProvider();
+		provider.getOrderKeyMap().put("phone",
+				new SortKeyExtractor<PhoneEntry>() {
+					public Object getSortKey(PhoneEntry object) {
+						return Integer.valueOf(object.getPhone());
+					}
+				});
+		provider.addColumnRestriction(1, "name8");
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("phone");
+		paginator.setOrderAscending(false);
+		int last = Integer.MAX_VALUE;
+		int count = 0;
+		for (PhoneEntry entry : provider.fetchResults(paginator)) {
+			assertEquals("name8", entry.getFirstName());
+			int phone = Integer.parseInt(entry.getPhone());
+			assertTrue(phone <= last);
+			last = phone;
+			count++;
+		}
+		assertEquals(expectedIds("name8", null, null).size(), count);
+	}
+
+	public void testCursor() {
+		PhoneTextFile provider = buildProvider();
+		provider.addColumnRestriction(1, "name1");
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(2);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		List<Integer> ids = new ArrayList<Integer>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		List<Integer> expected = expectedIds("name1", null, null);
+		assertEquals(expected.subList(2, expected.size()), ids);
+	}
+
+	public void testIndexRebuiltWhenFileChanges() throws Exception {
+		PhoneTextFile provider = buildProvider();
+		provider.addColumnRestriction(1, "name3");
+		provider.fetchResultCount();
+		ColumnIndex index = provider.getColumnIndex(1);
+		assertSame(index, provider.getColumnIndex(1));
+
+		// a new provider loads the persisted index
+		PhoneTextFile other = buildProvider();
+		assertEquals(index.getSize(), other.getColumnIndex(1).getSize());
+
+		write("0,name3,last,1\n1,name4,last,2\n2,name3,last,3\n");
+		file.setLastModified(file.lastModified() + 2000);
+		assertEquals(2, provider.fetchResultCount().intValue());
+		assertEquals(3, provider.getColumnIndex(1).getSize());
+	}
+
+	public void testUnindexedColumnRejected() {
+		PhoneTextFile provider = buildProvider();
+		try {
+			provider.addColumnRestriction(2, "last");
+			fail("Restriction on unindexed column should fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testMappedReader() {
+		PhoneTextFile provider = buildProvider();
+		provider.setUseMappedReader(true);
+		provider.addColumnRangeRestriction(3, 100, 199);
+		assertEquals(expectedIds(null, 100, 199), fetchIds(provider, 10));
+	}
+
+	public void testMappedReaderWithPredicate() {
+		PhoneTextFile provider = buildProvider();
+		provider.setUseMappedReader(true);
+		provider.addColumnRangeRestriction(3, 100, 599);
+		provider.addRestriction(new Predicate<PhoneEntry>() {
+			public boolean accept(PhoneEntry object) {
+				return object.getId() % 3 == 0;
+			}
+		});
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Integer id : expectedIds(null, 100, 599)) {
+			if (id % 3 == 0) {
+				expected.add(id);
+			}
+		}
+		assertEquals(expected.size(), provider.fetchResultCount().intValue());
+		assertEquals(expected, fetchIds(provider, 4));
+	}
+}
@@ -29,6 +29,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
 import org.fluttercode.datavalve.dataset.Dataset;
 import org.fluttercode.datavalve.dataset.ObjectDataset;
 import org.fluttercode.datavalve.testing.junit.AbstractObjectDatasetJUnitTest;
@@ -110,4 +113,39 @@ public class CommaDelimitedDatasetTest extends
 		return 100;
 	}
 
+	public void testCursor() {
+		PhoneTextFile provider = new PhoneTextFile(fileName);
+		DataCursor<PhoneEntry> cursor = provider
+				.fetchCursor(new DefaultPaginator());
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				count++;
+				assertEquals(count, cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(100, count);
+	}
+
+	public void testCursorWithOffset() {
+		PhoneTextFile provider = new PhoneTextFile(fileName);
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(20);
+		paginator.setMaxRows(30);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				assertEquals(21 + count, cursor.next().getId());
+				count++;
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(30, count);
+		assertFalse(cursor.hasNext());
+	}
+
 }
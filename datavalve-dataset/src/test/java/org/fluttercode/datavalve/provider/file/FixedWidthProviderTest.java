@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class FixedWidthProviderTest extends TestCase {
+
+	private static final int LINES = 1000;
+
+	// id(6) first(10) last(10) phone(8) newline
+	private static final int RECORD_LENGTH = 35;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("fixed", ".dat");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			sb.append(String.format("%06d%-10s%-10s%8s\n", i, "first" + i,
+					"last" + (i % 7), "555" + i));
+		}
+		write(sb.toString());
+	}
+
+	private void write(String content) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private FixedWidthProvider<PhoneEntry> buildProvider() {
+		FixedWidthProvider<PhoneEntry> provider = new FixedWidthProvider<PhoneEntry>(
+				file.getPath(), RECORD_LENGTH,
+				new ColumnarRowMapper<PhoneEntry>() {
+					public PhoneEntry mapRow(String[] columns) {
+						return new PhoneEntry(Integer.parseInt(columns[0]),
+								columns[1], columns[2], columns[3]);
+					}
+				});
+		provider.addColumn(6);
+		provider.addColumn(10);
+		provider.addColumn(10);
+		provider.addColumn(8);
+		return provider;
+	}
+
+	public void testCount() {
+		assertEquals(LINES, buildProvider().fetchResultCount().intValue());
+	}
+
+	public void testPage() {
+		FixedWidthProvider<PhoneEntry> provider = buildProvider();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(750);
+		paginator.setMaxRows(20);
+		List<PhoneEntry> results = provider.fetchResults(paginator);
+		assertEquals(20, results.size());
+		for (int i = 0; i < 20; i++) {
+			PhoneEntry entry = results.get(i);
+			assertEquals(750 + i, entry.getId());
+			assertEquals("first" + (750 + i), entry.getFirstName());
+			assertEquals("last" + ((750 + i) % 7), entry.getLastName());
+			assertEquals("555" + (750 + i), entry.getPhone());
+		}
+		assertTrue(paginator.isNextAvailable());
+	}
+
+	public void testLastPage() {
+		FixedWidthProvider<PhoneEntry> provider = buildProvider();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(990);
+		paginator.setMaxRows(20);
+		List<PhoneEntry> results = provider.fetchResults(paginator);
+		assertEquals(10, results.size());
+		assertEquals(999, results.get(9).getId());
+		assertFalse(paginator.isNextAvailable());
+	}
+
+	public void testCursorAcrossBlocks() {
+		FixedWidthProvider<PhoneEntry> provider = buildProvider();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(3);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				assertEquals(3 + count, cursor.next().getId());
+				count++;
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(LINES - 3, count);
+	}
+
+	public void testLastRecordWithoutTerminator() throws Exception {
+		write(String.format("%06d%-10s%-10s%8s\n%06d%-10s%-10s%8s", 1, "a",
+				"b", "1", 2, "c", "d", "2"));
+		FixedWidthProvider<PhoneEntry> provider = buildProvider();
+		assertEquals(2, provider.fetchResultCount().intValue());
+		List<PhoneEntry> results = provider
+				.fetchResults(new DefaultPaginator());
+		assertEquals(2, results.size());
+		assertEquals("c", results.get(1).getFirstName());
+		assertEquals("2", results.get(1).getPhone());
+	}
+
+	public void testColumnOutsideRecordRejected() {
+		FixedWidthProvider<PhoneEntry> provider = buildProvider();
+		try {
+			provider.addColumn(30, 10);
+			fail("Column past the end of the record should fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
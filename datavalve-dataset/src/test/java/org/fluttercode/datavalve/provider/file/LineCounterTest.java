@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class LineCounterTest extends TestCase {
+
+	private File file;
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("lineCounter", ".txt");
+		executor = Executors.newFixedThreadPool(3);
+		LineCounter.clearCache();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		file.delete();
+		super.tearDown();
+	}
+
+	private void write(String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private int readLineCount() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int count = 0;
+			while (reader.readLine() != null) {
+				count++;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void checkCount(String content) throws IOException {
+		write(content);
+		int expected = readLineCount();
+		assertEquals(expected, new LineCounter().count(file));
+		LineCounter.clearCache();
+		// ranges of one to a few bytes split every CRLF pair somewhere
+		for (int range = 1; range < 5; range++) {
+			assertEquals(expected, new LineCounter(executor, range)
+					.count(file));
+			LineCounter.clearCache();
+		}
+	}
+
+	public void testEmptyFile() throws Exception {
+		checkCount("");
+	}
+
+	public void testLineEndings() throws Exception {
+		checkCount("a\nbb\r\nccc\r\rdddd");
+		checkCount("a\r\n\r\n\n\r");
+		checkCount("\n");
+		checkCount("no line break");
+	}
+
+	public void testCachedCount() throws Exception {
+		write("a\nb\n");
+		LineCounter counter = new LineCounter();
+		assertEquals(2, counter.count(file));
+		// a changed length is a different version of the file
+		write("a\nb\nc\n");
+		assertEquals(3, counter.count(file));
+	}
+
+	public void testProviderWithoutLineIndex() throws Exception {
+		write("1,a,b,c\r\n2,a,b,c\r\n3,a,b,c");
+		PhoneTextFile provider = new PhoneTextFile(file.getPath());
+		provider.setUseLineIndex(false);
+		assertEquals(3, provider.fetchResultCount().intValue());
+	}
+}
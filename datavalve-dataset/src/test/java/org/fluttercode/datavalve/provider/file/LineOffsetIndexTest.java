@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class LineOffsetIndexTest extends TestCase {
+
+	private File file;
+	private File indexFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("lineIndex", ".txt");
+		indexFile = new File(file.getPath() + ".idx");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		indexFile.delete();
+		super.tearDown();
+	}
+
+	private void write(String content) throws IOException {
+		write(content, false);
+	}
+
+	private void append(String content) throws IOException {
+		write(content, true);
+	}
+
+	private void write(String content, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private String readLine(LineOffsetIndex index, int line)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(index.getSeekOffset(line));
+			for (int i = 0; i < index.getLinesToSkip(line); i++) {
+				raf.readLine();
+			}
+			return raf.readLine();
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void testEmptyFile() throws Exception {
+		write("");
+		assertEquals(0, LineOffsetIndex.build(file).getLineCount());
+	}
+
+	public void testLineEndings() throws Exception {
+		write("a\nbb\r\nccc\r\rdddd");
+		LineOffsetIndex index = LineOffsetIndex.build(file);
+		assertEquals(5, index.getLineCount());
+		assertEquals("a", readLine(index, 0));
+		assertEquals("bb", readLine(index, 1));
+		assertEquals("ccc", readLine(index, 2));
+		assertEquals("", readLine(index, 3));
+		assertEquals("dddd", readLine(index, 4));
+	}
+
+	public void testTrailingNewLine() throws Exception {
+		write("a\nb\n");
+		assertEquals(2, LineOffsetIndex.build(file).getLineCount());
+	}
+
+	public void testStride() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("line").append(i).append('\n');
+		}
+		write(sb.toString());
+		LineOffsetIndex index = LineOffsetIndex.build(file, 7);
+		assertEquals(100, index.getLineCount());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("line" + i, readLine(index, i));
+		}
+		assertEquals(file.length(), index.getSeekOffset(100));
+	}
+
+	public void testSaveAndLoad() throws Exception {
+		write("a\nb\nc\n");
+		LineOffsetIndex index = LineOffsetIndex.build(file, 2);
+		index.save(indexFile);
+		LineOffsetIndex loaded = LineOffsetIndex.load(indexFile, file);
+		assertNotNull(loaded);
+		assertEquals(3, loaded.getLineCount());
+		assertEquals(2, loaded.getStride());
+		assertEquals("c", readLine(loaded, 2));
+	}
+
+	public void testStaleIndexNotLoaded() throws Exception {
+		write("a\nb\nc\n");
+		LineOffsetIndex index = LineOffsetIndex.build(file);
+		index.save(indexFile);
+		write("a\nb\nc\nd\n");
+		assertFalse(index.isCurrent(file));
+		assertNull(LineOffsetIndex.load(indexFile, file));
+	}
+
+	public void testProviderPagesMatchUnindexedProvider() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append(i).append(",first,last,").append(i * 3).append("\r\n");
+		}
+		write(sb.toString());
+		PhoneTextFile indexed = new PhoneTextFile(file.getPath());
+		indexed.setLineIndexStride(4);
+		indexed.setPersistLineIndex(true);
+		PhoneTextFile unindexed = new PhoneTextFile(file.getPath());
+		unindexed.setUseLineIndex(false);
+
+		assertEquals(50, indexed.fetchResultCount().intValue());
+		assertTrue(indexFile.exists());
+		for (int first = 0; first < 55; first += 9) {
+			Paginator paginator = new DefaultPaginator();
+			paginator.setFirstResult(first);
+			paginator.setMaxRows(10);
+			List<PhoneEntry> expected = unindexed.fetchResults(paginator);
+			boolean expectedNext = paginator.isNextAvailable();
+			List<PhoneEntry> actual = indexed.fetchResults(paginator);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getId(), actual.get(i).getId());
+			}
+			assertEquals(expectedNext, paginator.isNextAvailable());
+		}
+	}
+
+	public void testExtend() throws Exception {
+		write("a\nb\r");
+		LineOffsetIndex index = LineOffsetIndex.build(file, 2);
+		assertEquals(2, index.getLineCount());
+		// completes the CRLF split across the append
+		append("\nc\nd");
+		LineOffsetIndex extended = index.extend(file);
+		assertNotNull(extended);
+		assertTrue(extended.isCurrent(file));
+		assertEquals(4, extended.getLineCount());
+		assertEquals("c", readLine(extended, 2));
+		assertEquals("d", readLine(extended, 3));
+		// the partial last line carries on
+		append("d\ne\n");
+		extended = extended.extend(file);
+		assertEquals(5, extended.getLineCount());
+		assertEquals("dd", readLine(extended, 3));
+		assertEquals("e", readLine(extended, 4));
+		// the original index is unchanged
+		assertEquals(2, index.getLineCount());
+		assertEquals("b", readLine(index, 1));
+	}
+
+	public void testExtendTwiceFromSameIndex() throws Exception {
+		write("a\nb\nc\n");
+		LineOffsetIndex index = LineOffsetIndex.build(file);
+		append("d\n");
+		LineOffsetIndex first = index.extend(file);
+		append("e\n");
+		LineOffsetIndex second = index.extend(file);
+		assertEquals(4, first.getLineCount());
+		assertEquals(5, second.getLineCount());
+		assertEquals("e", readLine(second, 4));
+	}
+
+	public void testExtendDetectsTruncation() throws Exception {
+		write("a\nb\nc\n");
+		LineOffsetIndex index = LineOffsetIndex.build(file);
+		write("a\n");
+		assertNull(index.extend(file));
+	}
+
+	public void testExtendDetectsReplacement() throws Exception {
+		write("a\nb\nc\n");
+		LineOffsetIndex index = LineOffsetIndex.build(file);
+		write("x\ny\nz\nw\n");
+		assertNull(index.extend(file));
+	}
+
+	public void testProviderTailMode() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			sb.append(i).append(",first,last,555\n");
+		}
+		write(sb.toString());
+		PhoneTextFile provider = new PhoneTextFile(file.getPath());
+		provider.setTailMode(true);
+		provider.setPersistLineIndex(true);
+		assertEquals(20, provider.fetchResultCount().intValue());
+
+		append("20,first,last,555\n21,first,last,555\n");
+		assertEquals(22, provider.fetchResultCount().intValue());
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(20);
+		paginator.setMaxRows(10);
+		List<PhoneEntry> results = provider.fetchResults(paginator);
+		assertEquals(2, results.size());
+		assertEquals(21, results.get(1).getId());
+
+		// a new provider extends the saved index
+		append("22,first,last,555\n");
+		PhoneTextFile reopened = new PhoneTextFile(file.getPath());
+		reopened.setTailMode(true);
+		reopened.setPersistLineIndex(true);
+		assertEquals(23, reopened.fetchResultCount().intValue());
+
+		write("0,first,last,555\n");
+		assertEquals(1, provider.fetchResultCount().intValue());
+	}
+}
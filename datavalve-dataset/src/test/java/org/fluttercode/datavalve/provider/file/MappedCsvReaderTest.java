@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class MappedCsvReaderTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("mappedCsv", ".csv");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".idx").delete();
+		super.tearDown();
+	}
+
+	private void write(String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private MappedCsvReader open(int windowSize) throws IOException {
+		return new MappedCsvReader(file, UTF8, windowSize);
+	}
+
+	public void testSimpleRecords() throws Exception {
+		write("1,a,b\n2,c,d\n");
+		MappedCsvReader reader = open(1024);
+		try {
+			assertTrue(reader.next());
+			assertEquals(3, reader.getRow().getColumnCount());
+			assertEquals(1, reader.getRow().getInt(0));
+			assertEquals("b", reader.getRow().getString(2));
+			assertNull(reader.getRow().getString(3));
+			assertTrue(reader.next());
+			assertEquals(2L, reader.getRow().getLong(0));
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testQuotedValues() throws Exception {
+		write("\"a,b\",\"say \"\"hi\"\"\",\"line\r\nbreak\"\r\nx,,\n");
+		MappedCsvReader reader = open(1024);
+		try {
+			assertTrue(reader.next());
+			CsvRow row = reader.getRow();
+			assertEquals(3, row.getColumnCount());
+			assertEquals("a,b", row.getString(0));
+			assertEquals("say \"hi\"", row.getString(1));
+			assertEquals("line\r\nbreak", row.getString(2));
+			assertTrue(reader.next());
+			assertEquals(3, row.getColumnCount());
+			assertEquals("x", row.getString(0));
+			assertTrue(row.isEmpty(1));
+			assertEquals("", row.getString(2));
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Checks a quoted line index finds the same records as the reader.
+	 */
+	private void assertIndexMatchesReader(LineOffsetIndex index)
+			throws IOException {
+		List<Long> starts = new ArrayList<Long>();
+		MappedCsvReader reader = open(1024);
+		try {
+			long start = reader.getPosition();
+			while (reader.next()) {
+				starts.add(start);
+				start = reader.getPosition();
+			}
+		} finally {
+			reader.close();
+		}
+		assertEquals(starts.size(), index.getLineCount());
+		for (int i = 0; i < starts.size(); i++) {
+			assertEquals(starts.get(i).longValue(), index.getSeekOffset(i));
+		}
+	}
+
+	public void testIndexMatchesReaderWithStrayQuotes() throws Exception {
+		String[] contents = { "1,5'10\" tall\n2,b\n3,c\n4,d\n",
+				"\"a\"\"b\",x\"y\n2,\"q\"z\"\n3\n",
+				"\"multi\r\nline\",1\r\n2,x\"\"\r\n\"\"\n4",
+				"a\"\n\"b\nc\"\n" };
+		for (String content : contents) {
+			write(content);
+			assertIndexMatchesReader(LineOffsetIndex.build(file, 1, true));
+		}
+
+		// extending carries the quote state over the end of the old file
+		write("1,\"a\"");
+		LineOffsetIndex index = LineOffsetIndex.build(file, 1, true);
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write("\"b\n\",2\n3,\"c\"\n4\n".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		file.setLastModified(file.lastModified() + 2000);
+		assertIndexMatchesReader(index.extend(file));
+	}
+
+	public void testNoTrailingLineBreak() throws Exception {
+		write("a,b\nc,");
+		MappedCsvReader reader = open(1024);
+		try {
+			assertTrue(reader.next());
+			assertTrue(reader.next());
+			assertEquals(2, reader.getRow().getColumnCount());
+			assertEquals("", reader.getRow().getString(1));
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testNumbers() throws Exception {
+		write("-42,+7,9223372036854775807,-9223372036854775808,12x,99999999999\n");
+		MappedCsvReader reader = open(1024);
+		try {
+			assertTrue(reader.next());
+			CsvRow row = reader.getRow();
+			assertEquals(-42, row.getInt(0));
+			assertEquals(7, row.getInt(1));
+			assertEquals(Long.MAX_VALUE, row.getLong(2));
+			assertEquals(Long.MIN_VALUE, row.getLong(3));
+			try {
+				row.getInt(4);
+				fail("Expected NumberFormatException");
+			} catch (NumberFormatException expected) {
+			}
+			try {
+				row.getInt(5);
+				fail("Expected NumberFormatException");
+			} catch (NumberFormatException expected) {
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testRecordsSpanningWindows() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			sb.append(i).append(",\"value ").append(i).append(
+					"\nwith, quotes \"\"").append(i).append("\"\"\"\r\n");
+		}
+		write(sb.toString());
+		// window smaller than a record forces the window to grow
+		MappedCsvReader reader = open(7);
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertTrue(reader.next());
+				assertEquals(i, reader.getRow().getInt(0));
+				assertEquals("value " + i + "\nwith, quotes \"" + i + "\"",
+						reader.getRow().getString(1));
+			}
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testProviderWithMappedReader() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 60; i++) {
+			sb.append(i).append(",\"first\nname\",last,\"555,").append(i)
+					.append("\"\n");
+		}
+		write(sb.toString());
+		CommaDelimitedProvider<PhoneEntry> provider = new CommaDelimitedProvider<PhoneEntry>(
+				file.getPath());
+		provider.setUseMappedReader(true);
+		provider.setLineIndexStride(5);
+		provider.setCsvRowMapper(new CsvRowMapper<PhoneEntry>() {
+			public PhoneEntry mapRow(CsvRow row) {
+				return new PhoneEntry(row.getInt(0), row.getString(1), row
+						.getString(2), row.getString(3));
+			}
+		});
+		assertEquals(60, provider.fetchResultCount().intValue());
+
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(23);
+		paginator.setMaxRows(10);
+		List<PhoneEntry> results = provider.fetchResults(paginator);
+		assertEquals(10, results.size());
+		assertEquals(23, results.get(0).getId());
+		assertEquals("first\nname", results.get(0).getFirstName());
+		assertEquals("555,23", results.get(0).getPhone());
+		assertTrue(paginator.isNextAvailable());
+
+		paginator.setFirstResult(55);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		try {
+			int expected = 55;
+			while (cursor.hasNext()) {
+				assertEquals(expected++, cursor.next().getId());
+			}
+			assertEquals(60, expected);
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class TextFileRestrictionTest extends TestCase {
+
+	private static final int LINES = 1000;
+
+	private static final Predicate<PhoneEntry> MULTIPLE_OF_SEVEN = new Predicate<PhoneEntry>() {
+		public boolean accept(PhoneEntry object) {
+			return object.getId() % 7 == 0;
+		}
+	};
+
+	private File file;
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("restricted", ".csv");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			sb.append(i).append(",first,last,555\n");
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		file.delete();
+		super.tearDown();
+	}
+
+	private PhoneTextFile buildProvider(boolean parallel) {
+		PhoneTextFile provider = new PhoneTextFile(file.getPath());
+		provider.setLineIndexStride(4);
+		provider.addRestriction(MULTIPLE_OF_SEVEN);
+		if (parallel) {
+			provider.setScanExecutor(executor);
+			provider.setScanParallelism(3);
+		}
+		return provider;
+	}
+
+	private List<Integer> expectedIds(int first, int max) {
+		List<Integer> ids = new ArrayList<Integer>();
+		int match = 0;
+		for (int i = 0; i < LINES && ids.size() < max; i++) {
+			if (i % 7 == 0 && match++ >= first) {
+				ids.add(i);
+			}
+		}
+		return ids;
+	}
+
+	private void checkPages(PhoneTextFile provider) {
+		int matches = (LINES + 6) / 7;
+		assertEquals(matches, provider.fetchResultCount().intValue());
+		for (int first = 0; first < matches + 10; first += 13) {
+			Paginator paginator = new DefaultPaginator();
+			paginator.setFirstResult(first);
+			paginator.setMaxRows(10);
+			List<PhoneEntry> results = provider.fetchResults(paginator);
+			List<Integer> ids = new ArrayList<Integer>();
+			for (PhoneEntry entry : results) {
+				ids.add(entry.getId());
+			}
+			assertEquals(expectedIds(first, 10), ids);
+			assertEquals(first + 10 < matches, paginator.isNextAvailable());
+		}
+	}
+
+	public void testSequentialScan() {
+		checkPages(buildProvider(false));
+	}
+
+	public void testParallelScan() {
+		checkPages(buildProvider(true));
+	}
+
+	public void testParallelScanWithoutRetainedMatches() {
+		PhoneTextFile provider = buildProvider(true);
+		provider.setMaxRetainedMatches(0);
+		checkPages(provider);
+	}
+
+	public void testParallelScanWithMappedReader() {
+		PhoneTextFile provider = buildProvider(true);
+		provider.setUseMappedReader(true);
+		checkPages(provider);
+	}
+
+	public void testUnrestrictedAfterClear() {
+		PhoneTextFile provider = buildProvider(true);
+		assertEquals(143, provider.fetchResultCount().intValue());
+		provider.clearRestrictions();
+		assertEquals(LINES, provider.fetchResultCount().intValue());
+	}
+
+	public void testRestrictedCursor() {
+		PhoneTextFile provider = buildProvider(false);
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(5);
+		paginator.setMaxRows(3);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		try {
+			List<Integer> ids = new ArrayList<Integer>();
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+			assertEquals(expectedIds(5, 3), ids);
+		} finally {
+			cursor.close();
+		}
+	}
+}
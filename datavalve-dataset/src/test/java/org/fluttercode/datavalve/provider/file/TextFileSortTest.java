@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.Predicate;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class TextFileSortTest extends TestCase {
+
+	private static final int LINES = 500;
+
+	private File file;
+	private File sortDirectory;
+	private List<PhoneEntry> entries;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("sorted", ".csv");
+		sortDirectory = new File(file.getPath() + ".dir");
+		sortDirectory.mkdir();
+		Random random = new Random(42);
+		entries = new ArrayList<PhoneEntry>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			// few distinct names so there are plenty of ties
+			String name = "name" + random.nextInt(20);
+			String phone = Integer.toString(random.nextInt(100000));
+			entries.add(new PhoneEntry(i, name, "last", phone));
+			sb.append(i).append(',').append(name).append(",last,").append(
+					phone).append('\n');
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File child : sortDirectory.listFiles()) {
+			child.delete();
+		}
+		sortDirectory.delete();
+		file.delete();
+		super.tearDown();
+	}
+
+	private PhoneTextFile buildProvider() {
+		PhoneTextFile provider = new PhoneTextFile(file.getPath());
+		provider.setSortDirectory(sortDirectory.getPath());
+		// enough runs to need more than one merge pass
+		provider.setSortBufferSize(7);
+		provider.getOrderKeyMap().put("name",
+				new SortKeyExtractor<PhoneEntry>() {
+					public Object getSortKey(PhoneEntry object) {
+						return object.getFirstName();
+					}
+				});
+		provider.getOrderKeyMap().put("phone",
+				new SortKeyExtractor<PhoneEntry>() {
+					public Object getSortKey(PhoneEntry object) {
+						return Integer.valueOf(object.getPhone());
+					}
+				});
+		return provider;
+	}
+
+	private List<Integer> sortedIds(List<PhoneEntry> list,
+			Comparator<PhoneEntry> comparator, boolean ascending) {
+		List<PhoneEntry> sorted = new ArrayList<PhoneEntry>(list);
+		Collections.sort(sorted, comparator);
+		if (!ascending) {
+			Collections.reverse(sorted);
+		}
+		List<Integer> ids = new ArrayList<Integer>();
+		for (PhoneEntry entry : sorted) {
+			ids.add(entry.getId());
+		}
+		return ids;
+	}
+
+	private List<Integer> fetchIds(PhoneTextFile provider, String orderKey,
+			boolean ascending, int pageSize) {
+		List<Integer> ids = new ArrayList<Integer>();
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey(orderKey);
+		paginator.setOrderAscending(ascending);
+		paginator.setMaxRows(pageSize);
+		do {
+			for (PhoneEntry entry : provider.fetchResults(paginator)) {
+				ids.add(entry.getId());
+			}
+			paginator.setFirstResult(paginator.getFirstResult() + pageSize);
+		} while (paginator.isNextAvailable());
+		return ids;
+	}
+
+	private static final Comparator<PhoneEntry> BY_NAME = new Comparator<PhoneEntry>() {
+		public int compare(PhoneEntry o1, PhoneEntry o2) {
+			return o1.getFirstName().compareTo(o2.getFirstName());
+		}
+	};
+
+	private static final Comparator<PhoneEntry> BY_PHONE = new Comparator<PhoneEntry>() {
+		public int compare(PhoneEntry o1, PhoneEntry o2) {
+			return Integer.valueOf(o1.getPhone()).compareTo(
+					Integer.valueOf(o2.getPhone()));
+		}
+	};
+
+	public void testAscendingPages() {
+		PhoneTextFile provider = buildProvider();
+		assertEquals(sortedIds(entries, BY_NAME, true), fetchIds(provider,
+				"name", true, 23));
+	}
+
+	public void testDescendingPages() {
+		PhoneTextFile provider = buildProvider();
+		assertEquals(sortedIds(entries, BY_NAME, false), fetchIds(provider,
+				"name", false, 23));
+	}
+
+	public void testNumericKeys() {
+		PhoneTextFile provider = buildProvider();
+		assertEquals(sortedIds(entries, BY_PHONE, true), fetchIds(provider,
+				"phone", true, 50));
+	}
+
+	public void testIndexReused() {
+		fetchIds(buildProvider(), "name", true, 10);
+		File[] indexes = sortDirectory.listFiles();
+		assertEquals(1, indexes.length);
+		long modified = indexes[0].lastModified();
+		assertEquals(sortedIds(entries, BY_NAME, true), fetchIds(
+				buildProvider(), "name", true, 10));
+		assertEquals(modified, indexes[0].lastModified());
+	}
+
+	public void testUnknownOrderKeyIgnored() {
+		PhoneTextFile provider = buildProvider();
+		List<Integer> ids = fetchIds(provider, "unknown", true, 100);
+		for (int i = 0; i < LINES; i++) {
+			assertEquals(i, ids.get(i).intValue());
+		}
+	}
+
+	public void testSortedRestrictedResults() {
+		PhoneTextFile provider = buildProvider();
+		provider.addRestriction(new Predicate<PhoneEntry>() {
+			public boolean accept(PhoneEntry object) {
+				return object.getId() % 3 == 0;
+			}
+		});
+		List<PhoneEntry> matches = new ArrayList<PhoneEntry>();
+		for (PhoneEntry entry : entries) {
+			if (entry.getId() % 3 == 0) {
+				matches.add(entry);
+			}
+		}
+		assertEquals(sortedIds(matches, BY_PHONE, false), fetchIds(provider,
+				"phone", false, 17));
+		provider.clearRestrictions();
+		assertEquals(sortedIds(entries, BY_PHONE, false), fetchIds(provider,
+				"phone", false, 17));
+	}
+
+	public void testSortedCursor() {
+		PhoneTextFile provider = buildProvider();
+		provider.setCursorBatchSize(9);
+		Paginator paginator = new DefaultPaginator();
+		paginator.setOrderKey("name");
+		paginator.setFirstResult(100);
+		paginator.setMaxRows(50);
+		DataCursor<PhoneEntry> cursor = provider.fetchCursor(paginator);
+		List<Integer> ids = new ArrayList<Integer>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(sortedIds(entries, BY_NAME, true).subList(100, 150), ids);
+	}
+
+	public void testIndexRebuiltForOtherExtractor() {
+		fetchIds(buildProvider(), "name", true, 10);
+		PhoneTextFile provider = buildProvider();
+		// same order key with an extractor that sorts on the phone
+		provider.getOrderKeyMap().put("name", provider.getOrderKeyMap().get(
+				"phone"));
+		assertEquals(sortedIds(entries, BY_PHONE, true), fetchIds(provider,
+				"name", true, 10));
+	}
+
+	public void testSortingRequiresLineIndex() {
+		PhoneTextFile provider = buildProvider();
+		provider.setUseLineIndex(false);
+		Paginator paginator = new DefaultPaginator(10);
+		paginator.setOrderKey("name");
+		try {
+			provider.fetchResults(paginator);
+			fail("Sorted without the line index");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -26,14 +26,28 @@ package org.fluttercode.datavalve.provider.hibernate;
 import java.util.List;
 
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.Paginator;
 import org.fluttercode.datavalve.params.Parameter;
 import org.fluttercode.datavalve.provider.AbstractQueryDataProvider;
 import org.fluttercode.datavalve.provider.QueryDataProvider;
 import org.fluttercode.datavalve.provider.util.DataQuery;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
 
 /**
  * A Hibernate based {@link QueryDataProvider}.
+ * <p/>
+ * Cursors returned from {@link #fetchCursor(Paginator)} scroll through a
+ * single forward only, read only query. By default each entity is evicted
+ * from the session once the cursor moves past it so the session doesn't grow
+ * while streaming large results. Set <code>evictStreamedResults</code> to
+ * false to keep them attached.
+ * <p/>
+ * Hibernate sessions are not thread safe so the count and results are never
+ * fetched concurrently.
  * 
  * @author Andy Gibson
  * 
@@ -44,6 +58,7 @@ public class HibernateDataProvider<T> extends AbstractQueryDataProvider<T> {
 	private static final long serialVersionUID = 1L;
 
 	private Session session;
+	private boolean evictStreamedResults = true;
 
 	public HibernateDataProvider() {
 		super();
@@ -74,6 +89,11 @@ public class HibernateDataProvider<T> extends AbstractQueryDataProvider<T> {
 		return qry;
 	}
 
+	@Override
+	protected boolean isConcurrentFetchSupported() {
+		return false;
+	}
+
 	@Override
 	protected Integer queryForCount(DataQuery query) {
 		Query qry = buildHibernateQuery(query);
@@ -98,4 +118,78 @@ public class HibernateDataProvider<T> extends AbstractQueryDataProvider<T> {
 
 		return qry.list();
 	}
+
+	@Override
+	protected DataCursor<T> queryForCursor(DataQuery query,
+			Integer firstResult, Integer count) {
+		Query qry = buildHibernateQuery(query);
+		qry.setFetchSize(getCursorBatchSize());
+		qry.setReadOnly(true);
+
+		if (count != null) {
+			qry.setMaxResults(count.intValue());
+		}
+
+		if (firstResult != null) {
+			qry.setFirstResult(firstResult.intValue());
+		}
+
+		return new ScrollableResultsCursor(qry.scroll(ScrollMode.FORWARD_ONLY));
+	}
+
+	public boolean isEvictStreamedResults() {
+		return evictStreamedResults;
+	}
+
+	public void setEvictStreamedResults(boolean evictStreamedResults) {
+		this.evictStreamedResults = evictStreamedResults;
+	}
+
+	/**
+	 * Cursor over hibernate {@link ScrollableResults} that evicts entities
+	 * from the session once they have been passed.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class ScrollableResultsCursor extends AbstractDataCursor<T> {
+
+		private final ScrollableResults results;
+		private Object current;
+
+		public ScrollableResultsCursor(ScrollableResults results) {
+			super(null);
+			this.results = results;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			evictCurrent();
+			return results.next();
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected T getCurrent() {
+			// match the result of Query.list() for single and multiple
+			// column selects
+			Object[] row = results.get();
+			current = row.length == 1 ? row[0] : row;
+			return (T) current;
+		}
+
+		@Override
+		protected void doClose() {
+			evictCurrent();
+			results.close();
+		}
+
+		private void evictCurrent() {
+			if (evictStreamedResults && current != null
+					&& getSession().contains(current)) {
+				getSession().evict(current);
+			}
+			current = null;
+		}
+	}
 }
@@ -26,6 +26,7 @@ package org.fluttercode.datavalve.provider.jpa;
 import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Query;
 
 import org.fluttercode.datavalve.params.Parameter;
@@ -36,6 +37,17 @@ import org.fluttercode.datavalve.provider.util.DataQuery;
 /**
  * Base class for a JPA based {@link QueryDataProvider}. Override and implement
  * {@link #createJpaQuery(String)} to create a query of the type needed.
+ * <p/>
+ * JPA 1.0 has no API for streaming query results so cursors fetch the results
+ * in batches of the cursor batch size, re-using the built query for each
+ * batch. Subclasses can override
+ * {@link #queryForCursor(DataQuery, Integer, Integer)} to use a vendor
+ * specific scrolling API.
+ * <p/>
+ * Entity managers are not thread safe, so the count is only fetched
+ * concurrently with the results when a <code>countEntityManagerFactory</code>
+ * is set. The count is then run on a new entity manager from the factory
+ * which is closed once the count is complete.
  * 
  * @see JpaDataProvider
  * @see JpaNativeProvider
@@ -50,6 +62,7 @@ public abstract class AbstractJpaDataProvider<T> extends
 	private static final long serialVersionUID = 1L;
 
 	private EntityManager entityManager;
+	private transient EntityManagerFactory countEntityManagerFactory;
 
 	public AbstractJpaDataProvider() {		
 	}
@@ -74,6 +87,21 @@ public abstract class AbstractJpaDataProvider<T> extends
 	 */
 	protected abstract Query createJpaQuery(String ql);
 
+	/**
+	 * Creates the query on a specific entity manager, used for running counts
+	 * on a separate entity manager. By default this creates an EJBQL query,
+	 * subclasses using other types of query should override this.
+	 * 
+	 * @param entityManager
+	 *            the entity manager to create the query on
+	 * @param ql
+	 *            Statement the query must execute
+	 * @return Query object created from the entity manager
+	 */
+	protected Query createJpaQuery(EntityManager entityManager, String ql) {
+		return entityManager.createQuery(ql);
+	}
+
 	public EntityManager getEntityManager() {
 		return entityManager;
 	}
@@ -93,7 +121,11 @@ public abstract class AbstractJpaDataProvider<T> extends
 	 * @return The initialized {@link Query}
 	 */
 	private final Query buildJpaQuery(DataQuery dataQuery) {
-		Query qry = createJpaQuery(dataQuery.getStatement());
+		return setParameters(createJpaQuery(dataQuery.getStatement()),
+				dataQuery);
+	}
+
+	private final Query setParameters(Query qry, DataQuery dataQuery) {
 		for (Parameter param : dataQuery.getParameters()) {
 			qry.setParameter(param.getName(), param.getValue());
 		}
@@ -107,6 +139,45 @@ public abstract class AbstractJpaDataProvider<T> extends
 		return new Integer(result.intValue());
 	}
 
+	@Override
+	protected boolean isConcurrentFetchSupported() {
+		return countEntityManagerFactory != null;
+	}
+
+	@Override
+	protected Integer queryForConcurrentCount(DataQuery query) {
+		if (countEntityManagerFactory == null) {
+			return queryForCount(query);
+		}
+		EntityManager countEntityManager = countEntityManagerFactory
+				.createEntityManager();
+		try {
+			Query qry = setParameters(createJpaQuery(countEntityManager, query
+					.getStatement()), query);
+			Long result = (Long) qry.getSingleResult();
+			return new Integer(result.intValue());
+		} finally {
+			countEntityManager.close();
+		}
+	}
+
+	public EntityManagerFactory getCountEntityManagerFactory() {
+		return countEntityManagerFactory;
+	}
+
+	/**
+	 * Sets the factory used to create entity managers for counting the
+	 * results concurrently with fetching them.
+	 * 
+	 * @param countEntityManagerFactory
+	 *            factory for count entity managers, or null to always count
+	 *            on the provider's entity manager
+	 */
+	public void setCountEntityManagerFactory(
+			EntityManagerFactory countEntityManagerFactory) {
+		this.countEntityManagerFactory = countEntityManagerFactory;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	protected List<T> queryForResults(DataQuery query, Integer firstResult,
@@ -47,7 +47,12 @@ public class JpaNativeProvider<T> extends AbstractJpaDataProvider<T> {
 
 	@Override
 	protected Query createJpaQuery(String ql) {
-		return getEntityManager().createNativeQuery(ql, getEntityClass());
+		return createJpaQuery(getEntityManager(), ql);
+	}
+
+	@Override
+	protected Query createJpaQuery(EntityManager entityManager, String ql) {
+		return entityManager.createNativeQuery(ql, getEntityClass());
 	}
 
 }
@@ -24,6 +24,7 @@
 package org.fluttercode.datavalve.provider.jdbc;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -31,10 +32,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.KeysetPaginator;
+import org.fluttercode.datavalve.Paginator;
 import org.fluttercode.datavalve.params.Parameter;
 import org.fluttercode.datavalve.provider.AbstractQueryDataProvider;
 import org.fluttercode.datavalve.provider.QueryDataProvider;
+import org.fluttercode.datavalve.provider.jdbc.dialect.SqlDialect;
 import org.fluttercode.datavalve.provider.util.DataQuery;
+import org.fluttercode.datavalve.util.AbstractDataCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +54,35 @@ import org.slf4j.LoggerFactory;
  * {@link AbstractJdbcDataProvider#createListFromResultSet(ResultSet, Integer, Integer)
  * as abstract. This will be implemented in sub classes to convert the result
  * set data into a strongly typed object.
+ * <p/>
+ * If a {@link SqlDialect} is assigned to the provider, the paging is pushed
+ * down to the database by adding the vendor specific limit and offset clause
+ * to the query. Without a dialect (or if the dialect cannot page the query),
+ * the provider skips over the rows before the first result in the result set.
+ * <p/>
+ * When paging with a {@link KeysetPaginator}, the order key values are read
+ * from the result set columns named in the order key translation and the
+ * keyset unique field so the returned objects don't need to expose them as
+ * properties.
+ * <p/>
+ * Setting the <code>statementCacheSize</code> to a value greater than zero
+ * enables a {@link PreparedStatementCache} so statements are reused for each
+ * count and page instead of being prepared every time. Call
+ * {@link #release()} to close the cached statements once the provider is no
+ * longer needed.
+ * <p/>
+ * Cursors returned from {@link #fetchCursor(Paginator)} execute the query once
+ * on a forward only, read only result set using the cursor batch size as the
+ * JDBC fetch size and create the objects as the rows are read. Cursor
+ * statements are never taken from the statement cache since they stay open
+ * until the cursor is closed.
+ * <p/>
+ * Since the provider uses a single connection, the count and results are
+ * never fetched concurrently.
+ * <p/>
+ * Counts and pages cached by the provider are kept in a cache region made up
+ * of the connection URL and user name so providers connected to different
+ * databases don't share cached results.
  * 
  * 
  * @author Andy Gibson
@@ -63,6 +98,12 @@ public abstract class AbstractJdbcDataProvider<T> extends
 			.getLogger(AbstractJdbcDataProvider.class);
 
 	private transient Connection connection;
+	private SqlDialect dialect;
+	private int statementCacheSize = 0;
+	private transient PreparedStatementCache statementCache;
+	private transient String[] keyColumns;
+	private transient List<Object[]> rowKeys;
+	private transient String connectionRegion;
 
 	public AbstractJdbcDataProvider() {
 		this(null);
@@ -73,8 +114,8 @@ public abstract class AbstractJdbcDataProvider<T> extends
 	}
 
 	/**
-	 * Creates a new {@link PreparedStatement} for use in fetching the count or
-	 * the results.
+	 * Creates a new {@link PreparedStatement} (or reuses one from the
+	 * statement cache) for use in fetching the count or the results.
 	 * 
 	 * @param query
 	 *            {@link DataQuery} instance that contains the query sql and
@@ -85,18 +126,24 @@ public abstract class AbstractJdbcDataProvider<T> extends
 	private PreparedStatement buildPreparedStatement(DataQuery query)
 			throws SQLException {
 
-		PreparedStatement statement = connection.prepareStatement(query
-				.getStatement());
+		PreparedStatementCache cache = getStatementCache();
+		PreparedStatement statement = cache == null ? connection
+				.prepareStatement(query.getStatement()) : cache
+				.prepareStatement(query.getStatement());
 
+		bindParameters(statement, query);
+		return statement;
+
+	}
+
+	private void bindParameters(PreparedStatement statement, DataQuery query)
+			throws SQLException {
 		List<Parameter> params = query.getParameters();
 		for (int i = 0; i < params.size(); i++) {
 			Parameter param = params.get(i);
 			log.debug("Setting parameter {} to '{}'", i, param.getValue());
 			statement.setObject(i + 1, param.getValue());
 		}
-
-		return statement;
-
 	}
 
 	@Override
@@ -121,23 +168,115 @@ public abstract class AbstractJdbcDataProvider<T> extends
 				if (resultSet != null) {
 					resultSet.close();
 				}
-				if (statement != null) {
-					statement.close();
-				}
+				releaseStatement(statement);
 
 			}
 
 		} catch (SQLException ex) {
+			invalidateStatement(query);
 			ex.printStackTrace();
 		}
 		return 0;
 	}
 
+	/**
+	 * JDBC connections can't be used from two threads at once.
+	 */
+	@Override
+	protected boolean isConcurrentFetchSupported() {
+		return false;
+	}
+
+	/**
+	 * Counts the rows without creating any objects. If there is a dialect, the
+	 * count is run on the database against the select statement limited to
+	 * <code>limit</code> rows, otherwise the rows are counted in the result
+	 * set.
+	 */
+	@Override
+	protected Integer queryForBoundedCount(DataQuery query, int limit) {
+		DataQuery pagedQuery = buildPagedQuery(query, 0, limit);
+		if (pagedQuery != null) {
+			DataQuery countQuery = new DataQuery();
+			countQuery.setStatement("select count(*) from ("
+					+ pagedQuery.getStatement() + ") bounded_count");
+			countQuery.getParameters().addAll(pagedQuery.getParameters());
+			return queryForCount(countQuery);
+		}
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			try {
+				// not cached since the max rows setting would stay on the
+				// statement
+				statement = connection.prepareStatement(query.getStatement());
+				statement.setMaxRows(limit);
+				bindParameters(statement, query);
+				resultSet = statement.executeQuery();
+				int count = 0;
+				while (count < limit && resultSet.next()) {
+					count++;
+				}
+				log.debug("Bounded count returned {}", count);
+				return count;
+			} finally {
+				closeQuietly(statement, resultSet);
+			}
+		} catch (SQLException ex) {
+			log.warn("Unable to run the bounded result count", ex);
+		}
+		return 0;
+	}
+
+	/**
+	 * Uses the {@link SqlDialect} to get the row count estimate from the
+	 * database. Returns null if there is no dialect, the dialect can't
+	 * estimate counts or the estimate fails.
+	 */
+	@Override
+	protected Integer queryForEstimatedCount(DataQuery query) {
+		if (dialect == null) {
+			return null;
+		}
+		DataQuery estimateQuery = dialect.buildEstimateQuery(query);
+		if (estimateQuery == null) {
+			return null;
+		}
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			try {
+				statement = buildPreparedStatement(estimateQuery);
+				resultSet = statement.executeQuery();
+				if (resultSet.next()) {
+					Integer value = dialect.readEstimate(resultSet);
+					log.debug("Estimated result count is {}", value);
+					return value;
+				}
+			} finally {
+				if (resultSet != null) {
+					resultSet.close();
+				}
+				releaseStatement(statement);
+			}
+		} catch (SQLException ex) {
+			invalidateStatement(estimateQuery);
+			log.warn("Unable to estimate the result count", ex);
+		}
+		return null;
+	}
+
 	@Override
 	protected List<T> queryForResults(DataQuery query, Integer firstResult,
 			Integer count) {
 		PreparedStatement statement = null;
 		ResultSet resultSet = null;
+		DataQuery pagedQuery = buildPagedQuery(query, firstResult, count);
+		if (pagedQuery != null) {
+			// the database does the skipping for us
+			query = pagedQuery;
+			firstResult = null;
+		}
 		try {
 			try {
 				statement = buildPreparedStatement(query);
@@ -153,16 +292,216 @@ public abstract class AbstractJdbcDataProvider<T> extends
 				if (resultSet != null) {
 					resultSet.close();
 				}
-				if (statement != null) {
-					statement.close();
-				}
+				releaseStatement(statement);
 			}
 		} catch (SQLException ex) {
+			invalidateStatement(query);
 			ex.printStackTrace();
 		}
 		return Collections.emptyList();
 	}
 
+	@Override
+	protected DataCursor<T> queryForCursor(DataQuery query,
+			Integer firstResult, Integer count) {
+		DataQuery pagedQuery = buildPagedQuery(query, firstResult, count);
+		if (pagedQuery != null) {
+			query = pagedQuery;
+			firstResult = null;
+		}
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = connection.prepareStatement(query.getStatement(),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(getCursorBatchSize());
+			bindParameters(statement, query);
+			resultSet = statement.executeQuery();
+			resultSet.setFetchSize(getCursorBatchSize());
+			int skip = firstResult == null ? 0 : firstResult;
+			while (skip > 0 && resultSet.next()) {
+				skip--;
+			}
+			return new ResultSetCursor(statement, resultSet, count);
+		} catch (SQLException ex) {
+			closeQuietly(statement, resultSet);
+			throw new IllegalStateException("Error opening result cursor",
+					ex);
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement statement,
+			ResultSet resultSet) {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+		} catch (SQLException ex) {
+			log.warn("Error closing cursor result set", ex);
+		}
+		try {
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException ex) {
+			log.warn("Error closing cursor statement", ex);
+		}
+	}
+
+	/**
+	 * Cursor that creates an object from each row of an open result set as it
+	 * is read and closes the result set and statement when it is closed.
+	 * 
+	 * @author Andy Gibson
+	 * 
+	 */
+	private class ResultSetCursor extends AbstractDataCursor<T> {
+
+		private final PreparedStatement statement;
+		private final ResultSet resultSet;
+
+		public ResultSetCursor(PreparedStatement statement,
+				ResultSet resultSet, Integer maxRows) {
+			super(maxRows);
+			this.statement = statement;
+			this.resultSet = resultSet;
+		}
+
+		@Override
+		protected boolean moveNext() {
+			try {
+				return resultSet.next();
+			} catch (SQLException ex) {
+				throw new IllegalStateException(
+						"Error reading next row from cursor", ex);
+			}
+		}
+
+		@Override
+		protected T getCurrent() {
+			try {
+				return createObjectFromResultSet(resultSet);
+			} catch (SQLException ex) {
+				throw new IllegalStateException(
+						"Error creating object from cursor row", ex);
+			}
+		}
+
+		@Override
+		protected void doClose() {
+			closeQuietly(statement, resultSet);
+		}
+	}
+
+	/**
+	 * Closes the statement once it has been used unless it is held in the
+	 * statement cache.
+	 * 
+	 * @param statement
+	 *            the statement to release, may be null
+	 * @throws SQLException
+	 */
+	private void releaseStatement(PreparedStatement statement)
+			throws SQLException {
+		if (statement != null && statementCache == null) {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Removes the statement for the query from the cache after an error so a
+	 * failed statement isn't reused.
+	 * 
+	 * @param query
+	 *            the query that failed
+	 */
+	private void invalidateStatement(DataQuery query) {
+		if (statementCache != null) {
+			statementCache.invalidate(query.getStatement());
+		}
+	}
+
+	/**
+	 * Returns the statement cache for the current connection, creating it if
+	 * needed. Returns null if statement caching is disabled.
+	 * 
+	 * @return the {@link PreparedStatementCache} or null
+	 */
+	public PreparedStatementCache getStatementCache() {
+		if (statementCacheSize <= 0 || connection == null) {
+			return null;
+		}
+		if (statementCache != null
+				&& statementCache.getConnection() != connection) {
+			statementCache.close();
+			statementCache = null;
+		}
+		if (statementCache == null) {
+			statementCache = new PreparedStatementCache(connection,
+					statementCacheSize);
+		}
+		return statementCache;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of prepared statements held for reuse. A value
+	 * of zero (the default) disables the cache and statements are closed
+	 * after each use.
+	 * 
+	 * @param statementCacheSize
+	 *            maximum number of statements to cache
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		if (statementCacheSize != this.statementCacheSize) {
+			release();
+			this.statementCacheSize = statementCacheSize;
+		}
+	}
+
+	/**
+	 * Closes any cached statements held by this provider. The provider can
+	 * still be used afterwards and will prepare new statements as needed.
+	 */
+	public void release() {
+		if (statementCache != null) {
+			statementCache.close();
+			statementCache = null;
+		}
+	}
+
+	/**
+	 * Uses the {@link SqlDialect} to add the paging clause to the query.
+	 * 
+	 * @param query
+	 *            {@link DataQuery} to add paging to
+	 * @param firstResult
+	 *            first row to return or null for the first row
+	 * @param count
+	 *            number of rows to return or null for all rows
+	 * @return the paged {@link DataQuery} or null if the rows need to be
+	 *         skipped in the result set.
+	 */
+	protected DataQuery buildPagedQuery(DataQuery query, Integer firstResult,
+			Integer count) {
+		if (dialect == null) {
+			return null;
+		}
+		int first = firstResult == null ? 0 : firstResult;
+		if (first == 0 && count == null) {
+			return null;
+		}
+		DataQuery result = dialect.applyPaging(query, first, count);
+		if (result != null) {
+			log.debug("Paged query using {} : {}", dialect, result
+					.getStatement());
+		}
+		return result;
+	}
+
 	/**
 	 * Iterate over the given result set calling the
 	 * {@link AbstractJdbcQueryDataProvider#resultSetObjectMapper} for each row
@@ -190,6 +529,9 @@ public abstract class AbstractJdbcDataProvider<T> extends
 
 		while (true) {
 			results.add(createObjectFromResultSet(resultSet));
+			if (keyColumns != null) {
+				rowKeys.add(readKeyValues(resultSet));
+			}
 
 			// if this is paged, limit the number of rows loaded
 			if (maxRows != null && results.size() == maxRows) {
@@ -227,7 +569,96 @@ public abstract class AbstractJdbcDataProvider<T> extends
 		return resultSet.next();
 	}
 
+	@Override
+	protected List<T> doFetchResults(Paginator paginator) {
+		keyColumns = getKeysetFields(paginator);
+		rowKeys = keyColumns == null ? null : new ArrayList<Object[]>();
+		try {
+			return super.doFetchResults(paginator);
+		} finally {
+			keyColumns = null;
+			rowKeys = null;
+		}
+	}
+
+	@Override
+	protected Object[] extractKeyValues(List<T> results, int index,
+			String[] keyFields) {
+		if (rowKeys == null || rowKeys.isEmpty()) {
+			return super.extractKeyValues(results, index, keyFields);
+		}
+		if (index < 0 || index >= rowKeys.size()) {
+			return null;
+		}
+		return rowKeys.get(index);
+	}
+
+	/**
+	 * Reads the order key values for keyset paging from the current row of the
+	 * result set. The alias prefix is removed from the key fields to get the
+	 * column names.
+	 * 
+	 * @param resultSet
+	 *            result set positioned on the row to read
+	 * @return the key values or null if any of them are null or can't be read
+	 */
+	private Object[] readKeyValues(ResultSet resultSet) {
+		Object[] values = new Object[keyColumns.length];
+		try {
+			for (int i = 0; i < keyColumns.length; i++) {
+				String column = keyColumns[i];
+				int dot = column.indexOf('.');
+				if (dot != -1) {
+					column = column.substring(dot + 1);
+				}
+				values[i] = resultSet.getObject(column);
+				if (values[i] == null) {
+					return null;
+				}
+			}
+		} catch (SQLException ex) {
+			log.warn("Unable to read order key values from result set", ex);
+			return null;
+		}
+		return values;
+	}
+
+	/**
+	 * Uses the connection URL and user name as the cache region.
+	 */
+	@Override
+	protected String getDefaultCacheRegion() {
+		if (connectionRegion == null && connection != null) {
+			try {
+				DatabaseMetaData metaData = connection.getMetaData();
+				connectionRegion = getClass().getName() + "@"
+						+ metaData.getURL() + "#" + metaData.getUserName();
+			} catch (SQLException ex) {
+				log.warn("Unable to read the connection URL for the "
+						+ "cache region", ex);
+				return super.getDefaultCacheRegion();
+			}
+		}
+		return connectionRegion == null ? super.getDefaultCacheRegion()
+				: connectionRegion;
+	}
+
 	public abstract T createObjectFromResultSet(ResultSet resultSet)
 			throws SQLException;
 
+	public SqlDialect getDialect() {
+		return dialect;
+	}
+
+	/**
+	 * Sets the {@link SqlDialect} used to push paging down to the database.
+	 * Set to null to skip rows on the client.
+	 * 
+	 * @param dialect
+	 *            the dialect for the database the connection is for
+	 */
+	public void setDialect(SqlDialect dialect) {
+		this.dialect = dialect;
+	}
+
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a limited number of {@link PreparedStatement} instances for a
+ * {@link Connection} keyed by the SQL text so statements can be reused instead
+ * of being prepared for each fetch. Uses a LRU mechanism to eject and close
+ * older statements once the maximum size is reached.
+ * <p/>
+ * Statements returned from the cache have their parameters cleared and must
+ * not be closed by the caller, only the result sets should be closed. Call
+ * {@link #close()} to close all the cached statements when they are no longer
+ * needed.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class PreparedStatementCache {
+
+	private static Logger log = LoggerFactory
+			.getLogger(PreparedStatementCache.class);
+
+	private final Connection connection;
+	private final Map<String, PreparedStatement> statements;
+	private long hitCount;
+	private long missCount;
+
+	public PreparedStatementCache(Connection connection, final int maximumSize) {
+		if (connection == null) {
+			throw new IllegalArgumentException(
+					"Cannot create a statement cache without a connection");
+		}
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException(
+					"Statement cache size must be at least 1");
+		}
+		this.connection = connection;
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > maximumSize) {
+					closeStatement(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL. If the statement is in the
+	 * cache, its parameters are cleared ready to be bound again, otherwise a
+	 * new statement is prepared and added to the cache.
+	 * 
+	 * @param sql
+	 *            SQL of the statement
+	 * @return the prepared statement
+	 * @throws SQLException
+	 */
+	public synchronized PreparedStatement prepareStatement(String sql)
+			throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement != null) {
+			hitCount++;
+			statement.clearParameters();
+			return statement;
+		}
+		missCount++;
+		statement = connection.prepareStatement(sql);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * Removes the statement from the cache and closes it. Used when the
+	 * statement fails so it isn't reused.
+	 * 
+	 * @param sql
+	 *            SQL of the statement to remove
+	 */
+	public synchronized void invalidate(String sql) {
+		closeStatement(statements.remove(sql));
+	}
+
+	/**
+	 * Closes all the cached statements and empties the cache.
+	 */
+	public synchronized void close() {
+		List<PreparedStatement> values = new ArrayList<PreparedStatement>(
+				statements.values());
+		statements.clear();
+		for (PreparedStatement statement : values) {
+			closeStatement(statement);
+		}
+	}
+
+	private void closeStatement(PreparedStatement statement) {
+		if (statement == null) {
+			return;
+		}
+		try {
+			statement.close();
+		} catch (SQLException ex) {
+			log.warn("Error closing cached statement", ex);
+		}
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"PreparedStatementCache[size=%d, hits=%d, misses=%d]",
+				statements.size(), hitCount, missCount);
+	}
+}
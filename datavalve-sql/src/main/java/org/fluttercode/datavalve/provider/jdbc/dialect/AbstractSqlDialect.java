@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.fluttercode.datavalve.params.Parameter;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * Base class for {@link SqlDialect} implementations that takes care of
+ * copying the query and binding the offset and limit parameters. Subclasses
+ * just need to provide the paged version of the statement and the order the
+ * limit values are bound in.
+ * <p/>
+ * Queries that fetch all the rows (<code>maxRows</code> is null) are not
+ * rewritten and are handled by the provider as before.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public abstract class AbstractSqlDialect implements SqlDialect,
+		Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public DataQuery applyPaging(DataQuery query, int firstResult,
+			Integer maxRows) {
+		if (maxRows == null) {
+			return null;
+		}
+		boolean hasOffset = firstResult > 0;
+
+		DataQuery result = new DataQuery();
+		result.setStatement(getPagedStatement(query.getStatement(), hasOffset));
+
+		Object[] limitValues = getLimitValues(firstResult, maxRows, hasOffset);
+
+		if (bindLimitParametersFirst()) {
+			addLimitParameters(result, limitValues);
+			result.getParameters().addAll(query.getParameters());
+		} else {
+			result.getParameters().addAll(query.getParameters());
+			addLimitParameters(result, limitValues);
+		}
+		return result;
+	}
+
+	/**
+	 * By default, dialects can't estimate row counts and this returns null.
+	 */
+	public DataQuery buildEstimateQuery(DataQuery query) {
+		return null;
+	}
+
+	public Integer readEstimate(ResultSet resultSet) throws SQLException {
+		return null;
+	}
+
+	/**
+	 * Creates a copy of the query with the statement prefixed with
+	 * <code>prefix</code>, used for building <code>EXPLAIN</code> statements.
+	 * 
+	 * @param prefix
+	 *            text to put before the statement
+	 * @param query
+	 *            the query to copy
+	 * @return the new query
+	 */
+	protected DataQuery prefixQuery(String prefix, DataQuery query) {
+		DataQuery result = new DataQuery();
+		result.setStatement(prefix + query.getStatement());
+		result.getParameters().addAll(query.getParameters());
+		return result;
+	}
+
+	private void addLimitParameters(DataQuery query, Object[] values) {
+		for (Object value : values) {
+			query.getParameters().add(new Parameter("?", value));
+		}
+	}
+
+	/**
+	 * Returns the SQL statement with the paging clause added to it. The
+	 * clause should use <code>?</code> markers for the values returned from
+	 * {@link #getLimitValues(int, int, boolean)}.
+	 * 
+	 * @param sql
+	 *            Statement to add the paging clause to
+	 * @param hasOffset
+	 *            indicates whether the clause needs to skip rows
+	 * @return the paged SQL statement
+	 */
+	protected abstract String getPagedStatement(String sql, boolean hasOffset);
+
+	/**
+	 * Returns the values for the paging parameters in the order they appear in
+	 * the paged statement. By default this is the limit followed by the offset
+	 * if there is one.
+	 * 
+	 * @param firstResult
+	 *            index of the first row to return
+	 * @param maxRows
+	 *            number of rows to return
+	 * @param hasOffset
+	 *            whether the statement includes the offset parameter
+	 * @return array of parameter values
+	 */
+	protected Object[] getLimitValues(int firstResult, int maxRows,
+			boolean hasOffset) {
+		if (hasOffset) {
+			return new Object[] { maxRows, firstResult };
+		}
+		return new Object[] { maxRows };
+	}
+
+	/**
+	 * @return true if the paging parameters come before the query parameters
+	 *         in the paged statement.
+	 */
+	protected boolean bindLimitParametersFirst() {
+		return false;
+	}
+
+	/**
+	 * Finds the position just after the first <code>select</code> keyword for
+	 * dialects that put the paging clause at the start of the statement, ahead
+	 * of any <code>distinct</code> keyword.
+	 * 
+	 * @param sql
+	 *            statement to search
+	 * @return index of the insertion point
+	 */
+	protected int getAfterSelectInsertPoint(String sql) {
+		int selectIndex = sql.toLowerCase().indexOf("select");
+		if (selectIndex < 0) {
+			throw new IllegalArgumentException(
+					"Unable to add paging to statement without a select : "
+							+ sql);
+		}
+		return selectIndex + "select".length();
+	}
+
+	/**
+	 * Indicates whether the outermost level of the statement contains an
+	 * <code>order by</code> clause. Clauses inside parentheses (sub-queries,
+	 * function calls) and quoted literals or identifiers are ignored.
+	 * 
+	 * @param sql
+	 *            Statement to check
+	 * @return true if the statement is ordered
+	 */
+	protected boolean hasOrderBy(String sql) {
+		String lower = sql.toLowerCase();
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < lower.length(); i++) {
+			char c = lower.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (depth == 0 && lower.startsWith("order", i)
+					&& isWordBoundary(lower, i - 1)) {
+				int by = i + "order".length();
+				while (by < lower.length()
+						&& Character.isWhitespace(lower.charAt(by))) {
+					by++;
+				}
+				if (by > i + "order".length() && lower.startsWith("by", by)
+						&& isWordBoundary(lower, by + 2)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isWordBoundary(String sql, int index) {
+		if (index < 0 || index >= sql.length()) {
+			return true;
+		}
+		char c = sql.charAt(index);
+		return !Character.isLetterOrDigit(c) && c != '_';
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+/**
+ * {@link SqlDialect} for HSQLDB 1.8 which puts the paging clause
+ * (<code>LIMIT offset count</code> or <code>TOP count</code>) directly after
+ * the <code>select</code> keyword.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class HsqlDialect extends AbstractSqlDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected String getPagedStatement(String sql, boolean hasOffset) {
+		return new StringBuilder(sql.length() + 10).append(sql).insert(
+				getAfterSelectInsertPoint(sql),
+				hasOffset ? " LIMIT ? ?" : " TOP ?").toString();
+	}
+
+	@Override
+	protected Object[] getLimitValues(int firstResult, int maxRows,
+			boolean hasOffset) {
+		if (hasOffset) {
+			return new Object[] { firstResult, maxRows };
+		}
+		return new Object[] { maxRows };
+	}
+
+	@Override
+	protected boolean bindLimitParametersFirst() {
+		return true;
+	}
+}
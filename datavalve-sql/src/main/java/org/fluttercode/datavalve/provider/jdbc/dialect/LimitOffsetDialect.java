@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+/**
+ * {@link SqlDialect} for databases that support the
+ * <code>LIMIT ? OFFSET ?</code> syntax at the end of the statement such as
+ * PostgreSQL and H2.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class LimitOffsetDialect extends AbstractSqlDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected String getPagedStatement(String sql, boolean hasOffset) {
+		return new StringBuilder(sql.length() + 20).append(sql).append(
+				hasOffset ? " LIMIT ? OFFSET ?" : " LIMIT ?").toString();
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * {@link SqlDialect} for MySQL which uses the <code>LIMIT offset, count</code>
+ * clause.
+ * <p/>
+ * Row count estimates are read from the <code>rows</code> column of the first
+ * row of the <code>EXPLAIN</code> output.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class MySqlDialect extends AbstractSqlDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected String getPagedStatement(String sql, boolean hasOffset) {
+		return new StringBuilder(sql.length() + 20).append(sql).append(
+				hasOffset ? " LIMIT ?, ?" : " LIMIT ?").toString();
+	}
+
+	@Override
+	protected Object[] getLimitValues(int firstResult, int maxRows,
+			boolean hasOffset) {
+		if (hasOffset) {
+			return new Object[] { firstResult, maxRows };
+		}
+		return new Object[] { maxRows };
+	}
+
+	@Override
+	public DataQuery buildEstimateQuery(DataQuery query) {
+		return prefixQuery("EXPLAIN ", query);
+	}
+
+	@Override
+	public Integer readEstimate(ResultSet resultSet) throws SQLException {
+		long rows = resultSet.getLong("rows");
+		if (resultSet.wasNull()) {
+			return null;
+		}
+		return (int) Math.min(rows, Integer.MAX_VALUE);
+	}
+}
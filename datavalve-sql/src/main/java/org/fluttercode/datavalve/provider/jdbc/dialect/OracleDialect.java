@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+/**
+ * {@link SqlDialect} for Oracle which wraps the statement in sub-selects
+ * restricted on the <code>ROWNUM</code> pseudo column.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class OracleDialect extends AbstractSqlDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected String getPagedStatement(String sql, boolean hasOffset) {
+		StringBuilder result = new StringBuilder(sql.length() + 100);
+		if (hasOffset) {
+			result.append("select * from ( select row_.*, rownum rownum_ from ( ");
+		} else {
+			result.append("select * from ( ");
+		}
+		result.append(sql);
+		if (hasOffset) {
+			result.append(" ) row_ where rownum <= ?) where rownum_ > ?");
+		} else {
+			result.append(" ) where rownum <= ?");
+		}
+		return result.toString();
+	}
+
+	@Override
+	protected Object[] getLimitValues(int firstResult, int maxRows,
+			boolean hasOffset) {
+		if (hasOffset) {
+			return new Object[] { firstResult + maxRows, firstResult };
+		}
+		return new Object[] { maxRows };
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * {@link SqlDialect} for PostgreSQL which uses the <code>LIMIT ? OFFSET ?</code>
+ * clause.
+ * <p/>
+ * Row count estimates are read from the <code>rows=</code> value of the top
+ * node of the <code>EXPLAIN</code> plan.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class PostgreSqlDialect extends LimitOffsetDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Pattern rowsPattern = Pattern.compile("rows=(\\d+)");
+
+	@Override
+	public DataQuery buildEstimateQuery(DataQuery query) {
+		return prefixQuery("EXPLAIN ", query);
+	}
+
+	@Override
+	public Integer readEstimate(ResultSet resultSet) throws SQLException {
+		String plan = resultSet.getString(1);
+		if (plan == null) {
+			return null;
+		}
+		Matcher matcher = rowsPattern.matcher(plan);
+		if (!matcher.find()) {
+			return null;
+		}
+		long rows = Long.parseLong(matcher.group(1));
+		return (int) Math.min(rows, Integer.MAX_VALUE);
+	}
+}
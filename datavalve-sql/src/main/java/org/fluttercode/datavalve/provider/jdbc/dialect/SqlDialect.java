@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.fluttercode.datavalve.provider.jdbc.AbstractJdbcDataProvider;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * Defines how a specific database vendor limits the rows returned from a
+ * query. The {@link AbstractJdbcDataProvider} uses the dialect to rewrite the
+ * final {@link DataQuery} so the database only returns the rows for the
+ * requested page instead of the provider skipping over rows in the result
+ * set.
+ * <p/>
+ * The offset and limit values are added to the query as parameters so the
+ * statement text stays the same from one page to the next.
+ * <p/>
+ * Dialects can also provide a query that returns the planner's estimate of the
+ * number of rows a query returns which is used for estimated result counts.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public interface SqlDialect {
+
+	/**
+	 * Returns a new {@link DataQuery} which contains the statement and
+	 * parameters from <code>query</code> with the paging clause for this
+	 * dialect added to it.
+	 * 
+	 * @param query
+	 *            the query to add the paging clause to
+	 * @param firstResult
+	 *            index of the first row to return
+	 * @param maxRows
+	 *            maximum number of rows to return or null if all rows from
+	 *            <code>firstResult</code> are to be returned
+	 * @return the paged query, or null if this dialect is unable to page the
+	 *         query in which case the rows are skipped on the client.
+	 */
+	DataQuery applyPaging(DataQuery query, int firstResult, Integer maxRows);
+
+	/**
+	 * Returns a query that asks the database for an estimate of the number of
+	 * rows returned from <code>query</code> without executing it.
+	 * 
+	 * @param query
+	 *            the query to estimate the row count for
+	 * @return the estimate query, or null if this dialect can't estimate row
+	 *         counts
+	 */
+	DataQuery buildEstimateQuery(DataQuery query);
+
+	/**
+	 * Reads the estimated row count from the results of the query returned
+	 * from {@link #buildEstimateQuery(DataQuery)}.
+	 * 
+	 * @param resultSet
+	 *            results of the estimate query positioned on the first row
+	 * @return the estimated number of rows or null if it couldn't be read
+	 * @throws SQLException
+	 */
+	Integer readEstimate(ResultSet resultSet) throws SQLException;
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper class that picks a {@link SqlDialect} based on the database product
+ * name reported by the JDBC driver.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public final class SqlDialectResolver {
+
+	private static Logger log = LoggerFactory
+			.getLogger(SqlDialectResolver.class);
+
+	private SqlDialectResolver() {
+	}
+
+	/**
+	 * Returns the dialect matching the database the connection is for.
+	 * 
+	 * @param connection
+	 *            connection to the database
+	 * @return the matching {@link SqlDialect} or null if the database is not
+	 *         recognized.
+	 */
+	public static SqlDialect resolveDialect(Connection connection) {
+		if (connection == null) {
+			return null;
+		}
+		try {
+			return resolveDialect(connection.getMetaData()
+					.getDatabaseProductName());
+		} catch (SQLException ex) {
+			log.warn("Unable to read database product name", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the dialect matching the database product name.
+	 * 
+	 * @param productName
+	 *            database product name as returned from the driver metadata
+	 * @return the matching {@link SqlDialect} or null if the name is not
+	 *         recognized.
+	 */
+	public static SqlDialect resolveDialect(String productName) {
+		if (productName == null) {
+			return null;
+		}
+		String name = productName.toLowerCase();
+		if (name.startsWith("hsql")) {
+			return new HsqlDialect();
+		}
+		if (name.equals("h2")) {
+			return new H2Dialect();
+		}
+		if (name.startsWith("postgres")) {
+			return new PostgreSqlDialect();
+		}
+		if (name.startsWith("mysql") || name.startsWith("mariadb")) {
+			return new MySqlDialect();
+		}
+		if (name.startsWith("oracle")) {
+			return new OracleDialect();
+		}
+		if (name.startsWith("microsoft sql server")) {
+			return new SqlServerDialect();
+		}
+		log.debug("No dialect found for database '{}'", productName);
+		return null;
+	}
+}
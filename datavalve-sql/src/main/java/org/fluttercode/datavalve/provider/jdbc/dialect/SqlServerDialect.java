@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+/**
+ * {@link SqlDialect} for SQL Server 2012 and later which uses the
+ * <code>OFFSET ? ROWS FETCH NEXT ? ROWS ONLY</code> clause. This clause
+ * requires an <code>ORDER BY</code> so if the statement is not ordered a
+ * neutral ordering is added.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class SqlServerDialect extends AbstractSqlDialect {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected String getPagedStatement(String sql, boolean hasOffset) {
+		StringBuilder result = new StringBuilder(sql.length() + 60).append(sql);
+		if (!hasOrderBy(sql)) {
+			result.append(" ORDER BY (SELECT NULL)");
+		}
+		return result.append(" OFFSET ? ROWS FETCH NEXT ? ROWS ONLY")
+				.toString();
+	}
+
+	@Override
+	protected Object[] getLimitValues(int firstResult, int maxRows,
+			boolean hasOffset) {
+		return new Object[] { firstResult, maxRows };
+	}
+}
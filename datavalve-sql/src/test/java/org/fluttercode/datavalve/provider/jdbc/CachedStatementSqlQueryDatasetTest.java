@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc;
+
+import org.fluttercode.datavalve.dataset.QueryDataset;
+
+/**
+ * Runs the SQL dataset tests with the prepared statements cached by the
+ * provider.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class CachedStatementSqlQueryDatasetTest extends SqlQueryDatasetTest {
+
+	private static final long serialVersionUID = 1L;
+
+	private AbstractJdbcDataProvider<Person> provider;
+
+	@Override
+	protected QueryDataset<Person> createDataset() {
+		QueryDataset<Person> result = super.createDataset();
+		provider = (AbstractJdbcDataProvider<Person>) result.getProvider();
+		provider.setStatementCacheSize(10);
+		return result;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		provider.release();
+		super.tearDown();
+	}
+
+	public void testStatementReuse() {
+		QueryDataset<Person> dataset = createDataset();
+		dataset.setMaxRows(10);
+		dataset.getResultCount();
+		dataset.getResultList();
+		dataset.next();
+		dataset.getResultList();
+		dataset.next();
+		dataset.getResultList();
+
+		PreparedStatementCache cache = provider.getStatementCache();
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.size());
+
+		provider.release();
+		assertEquals(0, provider.getStatementCache().size());
+	}
+}
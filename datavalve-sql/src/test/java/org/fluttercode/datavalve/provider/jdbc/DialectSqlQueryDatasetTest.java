@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc;
+
+import org.fluttercode.datavalve.dataset.QueryDataset;
+import org.fluttercode.datavalve.provider.jdbc.dialect.HsqlDialect;
+
+/**
+ * Runs the SQL dataset tests with the paging pushed down to the database
+ * using the {@link HsqlDialect}.
+ * 
+ * @author Andy Gibson
+ * 
+ */
+public class DialectSqlQueryDatasetTest extends SqlQueryDatasetTest {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected QueryDataset<Person> createDataset() {
+		QueryDataset<Person> result = super.createDataset();
+		((AbstractJdbcDataProvider<Person>) result.getProvider())
+				.setDialect(new HsqlDialect());
+		return result;
+	}
+
+}
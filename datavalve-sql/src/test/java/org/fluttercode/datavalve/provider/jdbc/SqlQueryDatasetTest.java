@@ -26,6 +26,11 @@ package org.fluttercode.datavalve.provider.jdbc;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.fluttercode.datavalve.CountingDataProvider;
+import org.fluttercode.datavalve.DataCursor;
+import org.fluttercode.datavalve.DefaultPaginator;
+import org.fluttercode.datavalve.Paginator;
+import org.fluttercode.datavalve.StreamingDataProvider;
 import org.fluttercode.datavalve.dataset.ObjectDataset;
 import org.fluttercode.datavalve.dataset.QueryDataset;
 import org.fluttercode.datavalve.provider.QueryDataProvider;
@@ -138,4 +143,28 @@ public class SqlQueryDatasetTest extends BaseJdbcDatasetTest<Person> {
 		}
 	}
 
+	public void testCursor() {
+		Paginator paginator = new DefaultPaginator();
+		paginator.setFirstResult(10);
+		paginator.setOrderKey("id");
+		StreamingDataProvider<Person> provider = (StreamingDataProvider<Person>) dataset
+				.getProvider();
+		DataCursor<Person> cursor = provider.fetchCursor(paginator);
+		long expected = 10;
+		try {
+			while (cursor.hasNext()) {
+				assertEquals(expected++, cursor.next().getId().longValue());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(100, expected);
+	}
+
+	public void testBoundedCount() {
+		CountingDataProvider<Person> provider = (CountingDataProvider<Person>) dataset
+				.getProvider();
+		assertEquals(25, provider.fetchBoundedResultCount(25).intValue());
+		assertEquals(100, provider.fetchBoundedResultCount(500).intValue());
+	}
 }
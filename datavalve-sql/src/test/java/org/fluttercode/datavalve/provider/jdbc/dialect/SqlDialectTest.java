@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010, Andrew M Gibson
+ *
+ * www.andygibson.net
+ *
+ * This file is part of DataValve.
+ *
+ * DataValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * DataValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with DataValve.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fluttercode.datavalve.provider.jdbc.dialect;
+
+import junit.framework.TestCase;
+
+import org.fluttercode.datavalve.params.Parameter;
+import org.fluttercode.datavalve.provider.util.DataQuery;
+
+/**
+ * @author Andy Gibson
+ * 
+ */
+public class SqlDialectTest extends TestCase {
+
+	private DataQuery query;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		query = new DataQuery();
+		query.setStatement("select * from persons where id > ? order by id");
+		query.getParameters().add(new Parameter("?", 5));
+	}
+
+	private void assertParameters(DataQuery paged, Object... values) {
+		assertEquals(values.length, paged.getParameters().size());
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], paged.getParameters().get(i).getValue());
+		}
+	}
+
+	public void testNoPagingForAllRows() {
+		assertNull(new PostgreSqlDialect().applyPaging(query, 10, null));
+	}
+
+	public void testLimitOffset() {
+		DataQuery paged = new PostgreSqlDialect().applyPaging(query, 20, 10);
+		assertEquals(
+				"select * from persons where id > ? order by id LIMIT ? OFFSET ?",
+				paged.getStatement());
+		assertParameters(paged, 5, 10, 20);
+	}
+
+	public void testLimitOnly() {
+		DataQuery paged = new H2Dialect().applyPaging(query, 0, 10);
+		assertEquals("select * from persons where id > ? order by id LIMIT ?",
+				paged.getStatement());
+		assertParameters(paged, 5, 10);
+	}
+
+	public void testMySql() {
+		DataQuery paged = new MySqlDialect().applyPaging(query, 20, 10);
+		assertEquals(
+				"select * from persons where id > ? order by id LIMIT ?, ?",
+				paged.getStatement());
+		assertParameters(paged, 5, 20, 10);
+	}
+
+	public void testHsql() {
+		DataQuery paged = new HsqlDialect().applyPaging(query, 20, 10);
+		assertEquals(
+				"select LIMIT ? ? * from persons where id > ? order by id",
+				paged.getStatement());
+		assertParameters(paged, 20, 10, 5);
+
+		paged = new HsqlDialect().applyPaging(query, 0, 10);
+		assertEquals("select TOP ? * from persons where id > ? order by id",
+				paged.getStatement());
+		assertParameters(paged, 10, 5);
+	}
+
+	public void testHsqlDistinct() {
+		query.setStatement("select distinct first_name from persons");
+		DataQuery paged = new HsqlDialect().applyPaging(query, 0, 10);
+		assertEquals("select TOP ? distinct first_name from persons", paged
+				.getStatement());
+	}
+
+	public void testSqlServerNestedOrderBy() {
+		query.setStatement("select * from persons where id in "
+				+ "(select id from persons order by id) and name <> 'order by'");
+		query.getParameters().clear();
+		DataQuery paged = new SqlServerDialect().applyPaging(query, 0, 10);
+		assertTrue(paged.getStatement().contains("ORDER BY (SELECT NULL)"));
+	}
+
+	public void testOracle() {
+		DataQuery paged = new OracleDialect().applyPaging(query, 20, 10);
+		assertEquals(
+				"select * from ( select row_.*, rownum rownum_ from ( "
+						+ "select * from persons where id > ? order by id"
+						+ " ) row_ where rownum <= ?) where rownum_ > ?",
+				paged.getStatement());
+		assertParameters(paged, 5, 30, 20);
+	}
+
+	public void testSqlServer() {
+		DataQuery paged = new SqlServerDialect().applyPaging(query, 20, 10);
+		assertEquals("select * from persons where id > ? order by id"
+				+ " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY", paged.getStatement());
+		assertParameters(paged, 5, 20, 10);
+	}
+
+	public void testSqlServerWithoutOrder() {
+		query.setStatement("select * from persons");
+		query.getParameters().clear();
+		DataQuery paged = new SqlServerDialect().applyPaging(query, 0, 10);
+		assertEquals("select * from persons ORDER BY (SELECT NULL)"
+				+ " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY", paged.getStatement());
+		assertParameters(paged, 0, 10);
+	}
+
+	public void testEstimateQuery() {
+		DataQuery estimate = new PostgreSqlDialect().buildEstimateQuery(query);
+		assertEquals("EXPLAIN select * from persons where id > ? order by id",
+				estimate.getStatement());
+		assertParameters(estimate, 5);
+		assertNull(new HsqlDialect().buildEstimateQuery(query));
+	}
+
+	public void testResolveDialect() {
+		assertTrue(SqlDialectResolver.resolveDialect("HSQL Database Engine") instanceof HsqlDialect);
+		assertTrue(SqlDialectResolver.resolveDialect("PostgreSQL") instanceof PostgreSqlDialect);
+		assertTrue(SqlDialectResolver.resolveDialect("Oracle") instanceof OracleDialect);
+		assertNull(SqlDialectResolver.resolveDialect("Unknown"));
+	}
+}
@@ -23,13 +23,11 @@
 
 package org.fluttercode.datavalve.samples.swingdemo;
 
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
+import java.util.concurrent.Executors;
 
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
-import javax.swing.table.TableColumnModel;
 
 import org.hibernate.Session;
 import org.fluttercode.datavalve.client.swing.ProviderTableModel;
@@ -77,34 +75,18 @@ public class Main extends JFrame {
 
 		initClickableColumns(model);
 
+		// load rows off the event thread, the session is only used by the
+		// single worker thread
+		model.setExecutor(Executors.newSingleThreadExecutor());
+
 	}
 
 	private void initClickableColumns(final ProviderTableModel<Person> model) {
-		// add mouse listener to the header that sets the paginator order key
-		// for the paginator used in the model
-		table.getTableHeader().addMouseListener(new MouseAdapter() {
-			@Override
-			public void mouseClicked(MouseEvent e) {
-				TableColumnModel cm = table.getColumnModel();
-
-				int ci = cm.getColumnIndexAtX(e.getX());
-				int idx = table.convertColumnIndexToModel(ci);
-				switch (idx) {
-				case 0:
-					model.getPaginator().changeOrderKey("id");
-					break;
-				case 1:
-					model.getPaginator().changeOrderKey("name");
-					break;
-				case 2:
-					model.getPaginator().changeOrderKey("phone");
-					break;
-				}
-				model.invalidate();
-				table.repaint();
-			}
-		});
-
+		// clicking a header sets the paginator order key used by the model
+		model.setColumnOrderKey(0, "id");
+		model.setColumnOrderKey(1, "name");
+		model.setColumnOrderKey(2, "phone");
+		model.installHeaderSorting(table);
 	}
 
 	private ProviderTableModel<Person> initModel(Session session) {
@@ -119,6 +101,11 @@ public class Main extends JFrame {
 		return new ProviderTableModel<Person>(provider) {
 			private static final long serialVersionUID = 1L;
 			
+			@Override
+			protected Object getPlaceholderValue(int row, int column) {
+				return column == 1 ? "Loading..." : null;
+			}
+
 			@Override
 			protected Object getColumnValue(Person object, int column) {
 				switch (column) {